@@ -0,0 +1,441 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  BPSPatch.java - creates and applies BPS patches, so a randomized ROM  --*/
+/*--                  can be handed out as its difference to the base ROM.  --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// BPS rather than IPS: IPS offsets are 3 bytes, so it can't patch past 16MB, and it can't express data that
+// moved. BPS has no size limit and can copy from anywhere in the source, which matters for NDS ROMs, where
+// rebuilding the ROM moves every file after the first one that changed size.
+//
+// Source and target are read from index 0 up to their limit.
+public class BPSPatch {
+
+    private static final int SOURCE_READ = 0, TARGET_READ = 1, SOURCE_COPY = 2, TARGET_COPY = 3;
+
+    // Matches shorter than this cost about as much as sending the bytes themselves
+    private static final int MIN_MATCH = 8;
+
+    // NDS files start at multiples of 0x200, so moved files are found by looking up the block at each
+    // multiple of 0x200 in the target among the blocks at multiples of 0x200 in the source
+    private static final int BLOCK_SIZE = 0x200;
+
+    private static final int IO_BUFFER_SIZE = 0x10000;
+
+    public static void create(ByteBuffer source, ByteBuffer target, OutputStream out) throws IOException {
+        CRC32 patchCRC = new CRC32();
+        CheckedOutputStream patch = new CheckedOutputStream(new BufferedOutputStream(out, IO_BUFFER_SIZE), patchCRC);
+        int sourceLength = source.limit();
+        int targetLength = target.limit();
+
+        patch.write(new byte[] { 'B', 'P', 'S', '1' });
+        writeNumber(patch, sourceLength);
+        writeNumber(patch, targetLength);
+        writeNumber(patch, 0);
+
+        BlockIndex blocks = new BlockIndex(source);
+        // SourceCopy offsets are relative to where the previous copy ended. copyDelta is how far the previous
+        // copy's source was from its target, so data that goes on past a change can be followed.
+        long sourceRelative = 0;
+        int copyDelta = 0;
+        boolean copied = false;
+        int literalStart = 0;
+        int position = 0;
+        while (position < targetLength) {
+            // Unchanged data at the same offset first, then data that continues the last copy, then a
+            // moved block
+            int action = SOURCE_READ;
+            int from = position;
+            int length = matchLength(source, position, target, position);
+            if (length < MIN_MATCH && copied) {
+                from = position + copyDelta;
+                length = matchLength(source, from, target, position);
+                action = SOURCE_COPY;
+            }
+            if (length < MIN_MATCH && position % BLOCK_SIZE == 0) {
+                from = blocks.find(target, position);
+                length = from < 0 ? 0 : matchLength(source, from, target, position);
+                action = SOURCE_COPY;
+            }
+            if (length < MIN_MATCH) {
+                position++;
+                continue;
+            }
+
+            writeLiteral(patch, target, literalStart, position - literalStart);
+            writeNumber(patch, ((long) (length - 1) << 2) | action);
+            if (action == SOURCE_COPY) {
+                long relative = from - sourceRelative;
+                writeNumber(patch, (Math.abs(relative) << 1) | (relative < 0 ? 1 : 0));
+                sourceRelative = (long) from + length;
+                copyDelta = from - position;
+                copied = true;
+            }
+            position += length;
+            literalStart = position;
+        }
+        writeLiteral(patch, target, literalStart, targetLength - literalStart);
+
+        writeInt(patch, crc32(source));
+        writeInt(patch, crc32(target));
+        writeInt(patch, (int) patchCRC.getValue());
+        patch.flush();
+    }
+
+    // Applies the patch to source, writing the result to target from its start. The whole patch is checked
+    // as it is read, and an IOException is thrown if it doesn't belong to source or the result is damaged.
+    public static void apply(InputStream in, ByteBuffer source, FileChannel target) throws IOException {
+        CRC32 patchCRC = new CRC32();
+        CheckedInputStream patch = new CheckedInputStream(new BufferedInputStream(in, IO_BUFFER_SIZE), patchCRC);
+        byte[] magic = readFully(patch, 4);
+        if (magic[0] != 'B' || magic[1] != 'P' || magic[2] != 'S' || magic[3] != '1') {
+            throw new IOException("not a valid BPS file");
+        }
+        long sourceLength = readNumber(patch);
+        long targetLength = readNumber(patch);
+        skipFully(patch, readNumber(patch));
+        if (sourceLength != source.limit()) {
+            throw new IOException("BPS patch is for a different ROM");
+        }
+
+        TargetWriter output = new TargetWriter(target);
+        long sourceRelative = 0, targetRelative = 0;
+        byte[] buffer = new byte[IO_BUFFER_SIZE];
+        while (output.position < targetLength) {
+            long data = readNumber(patch);
+            long length = (data >>> 2) + 1;
+            if (output.position + length > targetLength) {
+                throw new IOException("BPS patch writes past the end of the target");
+            }
+            switch ((int) (data & 3)) {
+                case SOURCE_READ:
+                    output.copyFrom(source, output.position, length);
+                    break;
+                case TARGET_READ:
+                    while (length > 0) {
+                        int count = (int) Math.min(length, buffer.length);
+                        readFully(patch, buffer, 0, count);
+                        output.write(buffer, 0, count);
+                        length -= count;
+                    }
+                    break;
+                case SOURCE_COPY:
+                    sourceRelative += readSigned(patch);
+                    output.copyFrom(source, sourceRelative, length);
+                    sourceRelative += length;
+                    break;
+                case TARGET_COPY:
+                    targetRelative += readSigned(patch);
+                    if (targetRelative < 0 || targetRelative >= output.position) {
+                        throw new IOException("BPS patch copies from outside the target");
+                    }
+                    // The copy may overlap what it writes, so it goes in steps no longer than the distance
+                    while (length > 0) {
+                        int count = (int) Math.min(Math.min(length, buffer.length), output.position - targetRelative);
+                        output.read(targetRelative, buffer, count);
+                        output.write(buffer, 0, count);
+                        targetRelative += count;
+                        length -= count;
+                    }
+                    break;
+            }
+        }
+        output.flush();
+
+        int sourceCRC = readInt(patch);
+        int targetCRC = readInt(patch);
+        int expectedPatchCRC = (int) patchCRC.getValue();
+        if (readInt(patch) != expectedPatchCRC) {
+            throw new IOException("BPS patch is damaged");
+        }
+        if (sourceCRC != crc32(source)) {
+            throw new IOException("BPS patch is for a different ROM");
+        }
+        if (targetCRC != (int) output.crc.getValue()) {
+            throw new IOException("BPS patch produced a damaged ROM");
+        }
+    }
+
+    public static void apply(String sourceFilename, String patchFilename, String targetFilename) throws IOException {
+        MappedFile source = MappedFile.open(sourceFilename);
+        if (source.length() > Integer.MAX_VALUE) {
+            throw new IOException("ROM too large for a BPS patch");
+        }
+        try (InputStream patch = new FileInputStream(patchFilename);
+             FileChannel target = FileChannel.open(new File(targetFilename).toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            apply(patch, source.slice(0, (int) source.length()), target);
+        }
+    }
+
+    // How many bytes from sourcePosition and targetPosition on are the same
+    private static int matchLength(ByteBuffer source, int sourcePosition, ByteBuffer target, int targetPosition) {
+        if (sourcePosition < 0) {
+            return 0;
+        }
+        int length = Math.min(source.limit() - sourcePosition, target.limit() - targetPosition);
+        if (length <= 0) {
+            return 0;
+        }
+        // Eight bytes at a time until something differs, then byte by byte to find where
+        int matched = 0;
+        while (matched + 8 <= length
+                && source.getLong(sourcePosition + matched) == target.getLong(targetPosition + matched)) {
+            matched += 8;
+        }
+        while (matched < length && source.get(sourcePosition + matched) == target.get(targetPosition + matched)) {
+            matched++;
+        }
+        return matched;
+    }
+
+    // Reads from position without moving data's own position, so data can be shared
+    private static void get(ByteBuffer data, int position, byte[] into, int offset, int length) {
+        ByteBuffer view = data.duplicate();
+        view.position(position);
+        view.get(into, offset, length);
+    }
+
+    private static void writeLiteral(OutputStream patch, ByteBuffer target, int start, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        writeNumber(patch, ((long) (length - 1) << 2) | TARGET_READ);
+        byte[] buffer = new byte[Math.min(length, IO_BUFFER_SIZE)];
+        while (length > 0) {
+            int count = Math.min(length, buffer.length);
+            get(target, start, buffer, 0, count);
+            patch.write(buffer, 0, count);
+            start += count;
+            length -= count;
+        }
+    }
+
+    private static int crc32(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        ByteBuffer view = data.duplicate();
+        view.position(0);
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    // BPS numbers: 7 bits per byte, lowest first, with the top bit marking the last byte. Each byte
+    // after the first also counts one more, so every number has exactly one encoding.
+    private static void writeNumber(OutputStream out, long value) throws IOException {
+        while (true) {
+            int bits = (int) (value & 0x7F);
+            value >>>= 7;
+            if (value == 0) {
+                out.write(0x80 | bits);
+                return;
+            }
+            out.write(bits);
+            value--;
+        }
+    }
+
+    private static long readNumber(InputStream in) throws IOException {
+        long value = 0, shift = 1;
+        while (true) {
+            int bits = in.read();
+            if (bits < 0) {
+                throw new EOFException("abrupt ending to BPS file");
+            }
+            value += (bits & 0x7F) * shift;
+            if ((bits & 0x80) != 0) {
+                return value;
+            }
+            shift <<= 7;
+            value += shift;
+        }
+    }
+
+    private static long readSigned(InputStream in) throws IOException {
+        long data = readNumber(in);
+        return (data & 1) != 0 ? -(data >>> 1) : data >>> 1;
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static int readInt(InputStream in) throws IOException {
+        byte[] data = readFully(in, 4);
+        return (data[0] & 0xFF) | ((data[1] & 0xFF) << 8) | ((data[2] & 0xFF) << 16) | ((data[3] & 0xFF) << 24);
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        readFully(in, data, 0, length);
+        return data;
+    }
+
+    private static void readFully(InputStream in, byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = in.read(data, offset, length);
+            if (count < 0) {
+                throw new EOFException("abrupt ending to BPS file");
+            }
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private static void skipFully(InputStream in, long length) throws IOException {
+        while (length > 0) {
+            long count = in.skip(length);
+            if (count <= 0) {
+                // skip can stop short without being at the end, so read a byte to tell which
+                if (in.read() < 0) {
+                    throw new EOFException("abrupt ending to BPS file");
+                }
+                count = 1;
+            }
+            length -= count;
+        }
+    }
+
+    // Hashes of the source's aligned blocks, in an open-addressed table. Where several blocks are the same
+    // (padding, mostly), the first one is kept.
+    private static class BlockIndex {
+        private final ByteBuffer source;
+        private final long[] hashes;
+        private final int[] positions;
+        private final int mask;
+
+        private BlockIndex(ByteBuffer source) {
+            this.source = source;
+            int blockCount = source.limit() / BLOCK_SIZE;
+            int capacity = Integer.highestOneBit(Math.max(blockCount, 1)) * 4;
+            this.hashes = new long[capacity];
+            this.positions = new int[capacity];
+            this.mask = capacity - 1;
+            Arrays.fill(positions, -1);
+            for (int block = 0; block < blockCount; block++) {
+                int position = block * BLOCK_SIZE;
+                long hash = hash(source, position);
+                int slot = (int) hash & mask;
+                while (positions[slot] >= 0 && hashes[slot] != hash) {
+                    slot = (slot + 1) & mask;
+                }
+                if (positions[slot] < 0) {
+                    hashes[slot] = hash;
+                    positions[slot] = position;
+                }
+            }
+        }
+
+        // A source position whose block hashes the same as the target's block at position, or -1
+        private int find(ByteBuffer target, int position) {
+            if (position + BLOCK_SIZE > target.limit()) {
+                return -1;
+            }
+            long hash = hash(target, position);
+            for (int slot = (int) hash & mask; positions[slot] >= 0; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash) {
+                    return positions[slot];
+                }
+            }
+            return -1;
+        }
+
+        private static long hash(ByteBuffer data, int position) {
+            long hash = 0;
+            for (int i = 0; i < BLOCK_SIZE; i += 8) {
+                hash = (hash ^ data.getLong(position + i)) * 0x9E3779B97F4A7C15L;
+            }
+            return hash ^ (hash >>> 29);
+        }
+    }
+
+    // Buffers what is written to the target and keeps its CRC32
+    private static class TargetWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+        private final byte[] sourceChunk = new byte[IO_BUFFER_SIZE];
+        private final CRC32 crc = new CRC32();
+        // How much has been written, and how much of that is in the channel already
+        private long position, flushed;
+
+        private TargetWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void write(byte[] data, int offset, int length) throws IOException {
+            crc.update(data, offset, length);
+            position += length;
+            while (length > 0) {
+                int count = Math.min(length, buffer.remaining());
+                buffer.put(data, offset, count);
+                offset += count;
+                length -= count;
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+            }
+        }
+
+        private void copyFrom(ByteBuffer source, long from, long length) throws IOException {
+            if (from < 0 || from + length > source.limit()) {
+                throw new IOException("BPS patch copies from outside the source");
+            }
+            while (length > 0) {
+                int count = (int) Math.min(length, sourceChunk.length);
+                get(source, (int) from, sourceChunk, 0, count);
+                write(sourceChunk, 0, count);
+                from += count;
+                length -= count;
+            }
+        }
+
+        private void read(long from, byte[] data, int length) throws IOException {
+            flush();
+            ByteBuffer into = ByteBuffer.wrap(data, 0, length);
+            while (into.hasRemaining()) {
+                if (channel.read(into, from + into.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                flushed += channel.write(buffer, flushed);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  MappedFile.java - a read-only, memory-mapped view of a base ROM that  --*/
+/*--                    any number of threads can read at once.             --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Reads go through absolute gets on the mapped buffers, so there's no file pointer to share and no lock.
+// A single buffer can't be larger than 2GB, so the file is mapped in chunks of CHUNK_SIZE; reads that
+// cross a chunk boundary are put together from both. Every job that opens the same unchanged file gets
+// the same mapping, as long as it's one of the last few files opened; older mappings are only dropped from
+// the cache, so they stay usable by whoever has them and are unmapped once nobody does.
+public class MappedFile {
+
+    private static final int CHUNK_SIZE = 1 << 30;
+    private static final int MAX_OPEN_FILES = 8;
+
+    // Keyed by canonical path, length and modification time, so a changed file gets mapped again.
+    // Access ordered, so the least recently opened file is the one let go.
+    private static final Map<String, MappedFile> openFiles = new LinkedHashMap<String, MappedFile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MappedFile> eldest) {
+            return size() > MAX_OPEN_FILES;
+        }
+    };
+
+    private final long length;
+    private final MappedByteBuffer[] chunks;
+
+    private MappedFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            this.length = channel.size();
+            int chunkCount = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            this.chunks = new MappedByteBuffer[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                long position = (long) i * CHUNK_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, length - position));
+            }
+        }
+    }
+
+    public static MappedFile open(String filename) throws IOException {
+        File file = new File(filename).getCanonicalFile();
+        String key = file.getPath() + "|" + file.length() + "|" + file.lastModified();
+        synchronized (openFiles) {
+            MappedFile mapped = openFiles.get(key);
+            if (mapped == null) {
+                // Forget older mappings of the same file; they go away once nobody uses them any more
+                openFiles.keySet().removeIf(k -> k.startsWith(file.getPath() + "|"));
+                mapped = new MappedFile(file);
+                openFiles.put(key, mapped);
+            }
+            return mapped;
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public byte[] read(long position, int length) throws IOException {
+        byte[] data = new byte[length];
+        read(position, data, 0, length);
+        return data;
+    }
+
+    public void read(long position, byte[] data, int offset, int length) throws IOException {
+        if (position < 0 || position + length > this.length) {
+            throw new EOFException();
+        }
+        while (length > 0) {
+            int chunk = (int) (position / CHUNK_SIZE);
+            int inChunk = (int) (position % CHUNK_SIZE);
+            int count = Math.min(length, CHUNK_SIZE - inChunk);
+            // The chunks are shared between threads, so each read goes through its own duplicate
+            ByteBuffer view = chunks[chunk].duplicate();
+            view.position(inChunk);
+            view.get(data, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    // A read-only view of part of the file. It's only a copy if the part crosses a chunk boundary.
+    public ByteBuffer slice(long position, int length) throws IOException {
+        if (position < 0 || position + length > this.length) {
+            throw new EOFException();
+        }
+        int chunk = (int) (position / CHUNK_SIZE);
+        int inChunk = (int) (position % CHUNK_SIZE);
+        if (inChunk + length <= CHUNK_SIZE) {
+            ByteBuffer view = chunks[chunk].duplicate();
+            view.position(inChunk);
+            view.limit(inChunk + length);
+            return view.slice().asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(read(position, length)).asReadOnlyBuffer();
+    }
+}
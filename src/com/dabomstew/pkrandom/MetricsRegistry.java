@@ -0,0 +1,106 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  MetricsRegistry.java - process-wide totals of the randomization step  --*/
+/*--                         metrics, in the Prometheus text format.        --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.util.Map;
+import java.util.TreeMap;
+
+public class MetricsRegistry {
+
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    // Totals for one step name and generation
+    private static class StepTotals {
+        private long count, wallNanos, allocatedBytes, rngCalls;
+    }
+
+    // Keyed by {step, generation}; sorted so the output is stable. Guarded by this.
+    private final Map<String, StepTotals> steps = new TreeMap<>();
+    private final Map<String, long[]> jobs = new TreeMap<>();
+
+    public static MetricsRegistry instance() {
+        return instance;
+    }
+
+    public synchronized void addJob(RandomizationMetrics metrics, boolean success) {
+        for (RandomizationMetrics.Step step : metrics.getSteps()) {
+            addStep(step.name, metrics.getGeneration(), step.wallNanos, step.allocatedBytes, step.rngCalls);
+        }
+        long[] counts = jobs.computeIfAbsent(labels("generation", String.valueOf(metrics.getGeneration()),
+                "result", success ? "success" : "failure"), k -> new long[1]);
+        counts[0]++;
+    }
+
+    // For work measured outside of a job's record, e.g. compression. Generation 0 means unknown.
+    public synchronized void addStep(String name, int generation, long wallNanos, long allocatedBytes, long rngCalls) {
+        StepTotals totals = steps.computeIfAbsent(labels("step", name, "generation", String.valueOf(generation)),
+                k -> new StepTotals());
+        totals.count++;
+        totals.wallNanos += wallNanos;
+        totals.allocatedBytes += allocatedBytes;
+        totals.rngCalls += rngCalls;
+    }
+
+    public synchronized String toPrometheusText() {
+        StringBuilder sb = new StringBuilder();
+        header(sb, "pkrandom_jobs_total", "Randomization jobs finished");
+        for (Map.Entry<String, long[]> entry : jobs.entrySet()) {
+            sb.append("pkrandom_jobs_total").append(entry.getKey()).append(' ').append(entry.getValue()[0]).append('\n');
+        }
+        header(sb, "pkrandom_step_total", "Times a randomization step ran");
+        for (Map.Entry<String, StepTotals> entry : steps.entrySet()) {
+            sb.append("pkrandom_step_total").append(entry.getKey()).append(' ').append(entry.getValue().count).append('\n');
+        }
+        header(sb, "pkrandom_step_seconds_total", "Wall time spent in a randomization step");
+        for (Map.Entry<String, StepTotals> entry : steps.entrySet()) {
+            sb.append("pkrandom_step_seconds_total").append(entry.getKey()).append(' ')
+                    .append(entry.getValue().wallNanos / 1e9).append('\n');
+        }
+        header(sb, "pkrandom_step_allocated_bytes_total", "Heap allocated by a randomization step");
+        for (Map.Entry<String, StepTotals> entry : steps.entrySet()) {
+            sb.append("pkrandom_step_allocated_bytes_total").append(entry.getKey()).append(' ')
+                    .append(entry.getValue().allocatedBytes).append('\n');
+        }
+        header(sb, "pkrandom_step_rng_calls_total", "Random numbers drawn by a randomization step");
+        for (Map.Entry<String, StepTotals> entry : steps.entrySet()) {
+            sb.append("pkrandom_step_rng_calls_total").append(entry.getKey()).append(' ')
+                    .append(entry.getValue().rngCalls).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+    }
+
+    private static String labels(String name1, String value1, String name2, String value2) {
+        return "{" + name1 + "=\"" + escape(value1) + "\"," + name2 + "=\"" + escape(value2) + "\"}";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,225 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  OverlayStore.java - holds the extracted and modified files of one     --*/
+/*--                      DS or 3DS ROM while a job works on it.            --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+// Every ROM object gets its own store, so nothing is shared between jobs, even two jobs on the same game.
+// put() and get() always copy, so callers can keep modifying the arrays they pass in or get back.
+//
+// Which kind of store is used is set with the pkrandom.overlayStore property:
+//  - "heap": byte arrays
+//  - "offheap": direct buffers, which keeps big ROMs out of the Java heap
+//  - "spill" (the default): byte arrays until the store holds more than pkrandom.overlayStore.spillMB
+//    (256 by default), then files in a folder of its own under the randomizer's folder
+public abstract class OverlayStore {
+
+    private static final long SPILL_THRESHOLD = Long.getLong("pkrandom.overlayStore.spillMB", 256) * 1024 * 1024;
+
+    public static OverlayStore create(String romFilename) {
+        String kind = kind();
+        switch (kind) {
+            case "heap":
+                return new HeapStore();
+            case "offheap":
+                return new OffHeapStore();
+            case "spill":
+                return new SpillingStore(romFilename, SPILL_THRESHOLD);
+            default:
+                throw new IllegalArgumentException("Unknown overlay store: " + kind);
+        }
+    }
+
+    // The most a store for a ROM of romLength bytes can keep in the Java heap, for heap estimates. Everything
+    // extracted from a ROM is less than the ROM itself.
+    public static long estimatedHeapBytes(long romLength) {
+        switch (kind()) {
+            case "offheap":
+                return 0;
+            case "spill":
+                return Math.min(romLength, SPILL_THRESHOLD);
+            default:
+                return romLength;
+        }
+    }
+
+    private static String kind() {
+        return System.getProperty("pkrandom.overlayStore", "spill");
+    }
+
+    // Stores a copy of data under the name, replacing whatever was stored under it before
+    public abstract void put(String name, byte[] data) throws IOException;
+
+    // Returns a copy of what is stored under the name, or null
+    public abstract byte[] get(String name) throws IOException;
+
+    // Frees everything stored. The store can't be used afterwards.
+    public abstract void close();
+
+    private static class HeapStore extends OverlayStore {
+        private final Map<String, byte[]> entries = new HashMap<>();
+
+        @Override
+        public synchronized void put(String name, byte[] data) {
+            entries.put(name, data.clone());
+        }
+
+        @Override
+        public synchronized byte[] get(String name) {
+            byte[] data = entries.get(name);
+            return data == null ? null : data.clone();
+        }
+
+        @Override
+        public synchronized void close() {
+            entries.clear();
+        }
+    }
+
+    private static class OffHeapStore extends OverlayStore {
+        private final Map<String, ByteBuffer> entries = new HashMap<>();
+
+        @Override
+        public synchronized void put(String name, byte[] data) {
+            ByteBuffer buffer = entries.get(name);
+            if (buffer == null || buffer.capacity() != data.length) {
+                buffer = ByteBuffer.allocateDirect(data.length);
+                entries.put(name, buffer);
+            }
+            ByteBuffer view = buffer.duplicate();
+            view.position(0);
+            view.put(data);
+        }
+
+        @Override
+        public synchronized byte[] get(String name) {
+            ByteBuffer buffer = entries.get(name);
+            if (buffer == null) {
+                return null;
+            }
+            byte[] data = new byte[buffer.capacity()];
+            ByteBuffer view = buffer.duplicate();
+            view.position(0);
+            view.get(data);
+            return data;
+        }
+
+        @Override
+        public synchronized void close() {
+            // The buffers' memory is given back once they're collected
+            entries.clear();
+        }
+    }
+
+    private static class SpillingStore extends OverlayStore {
+        private final String romFilename;
+        private final long threshold;
+        private final Map<String, byte[]> inMemory = new HashMap<>();
+        private final Map<String, File> spilled = new HashMap<>();
+        private long inMemoryBytes;
+        private File folder;
+        // Set if the folder couldn't be made, after which everything stays in memory
+        private boolean spillingFailed;
+
+        private SpillingStore(String romFilename, long threshold) {
+            this.romFilename = romFilename;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public synchronized void put(String name, byte[] data) throws IOException {
+            byte[] old = inMemory.remove(name);
+            if (old != null) {
+                inMemoryBytes -= old.length;
+            }
+            if (inMemoryBytes + data.length > threshold && makeFolder()) {
+                File file = spilled.get(name);
+                if (file == null) {
+                    file = new File(folder, spilled.size() + "_" + name.replaceAll("[^A-Za-z0-9_.]+", ""));
+                    spilled.put(name, file);
+                }
+                Files.write(file.toPath(), data);
+            } else {
+                File file = spilled.remove(name);
+                if (file != null) {
+                    file.delete();
+                }
+                inMemory.put(name, data.clone());
+                inMemoryBytes += data.length;
+            }
+        }
+
+        @Override
+        public synchronized byte[] get(String name) throws IOException {
+            byte[] data = inMemory.get(name);
+            if (data != null) {
+                return data.clone();
+            }
+            File file = spilled.get(name);
+            return file == null ? null : Files.readAllBytes(file.toPath());
+        }
+
+        @Override
+        public synchronized void close() {
+            inMemory.clear();
+            inMemoryBytes = 0;
+            for (File file : spilled.values()) {
+                file.delete();
+            }
+            spilled.clear();
+            if (folder != null) {
+                folder.delete();
+                folder = null;
+            }
+        }
+
+        // A new folder for each store, so concurrent jobs on the same ROM never see each other's files
+        private boolean makeFolder() {
+            if (folder != null) {
+                return true;
+            }
+            if (spillingFailed) {
+                return false;
+            }
+            String rawFilename = new File(romFilename).getName();
+            int dot = rawFilename.lastIndexOf('.');
+            String prefix = "tmp_" + (dot < 0 ? rawFilename : rawFilename.substring(0, dot))
+                    .replaceAll("[^A-Za-z0-9_]+", "") + "_";
+            try {
+                // Not deleteOnExit: its entries would pile up for the life of the server. close() deletes it.
+                folder = Files.createTempDirectory(new File(SysConstants.ROOT_PATH).toPath(), prefix).toFile();
+                return true;
+            } catch (IOException | RuntimeException e) {
+                spillingFailed = true;
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  ParallelHasher.java - SHA-256 and CRC32 of many independent regions,  --*/
+/*--                        spread over all cores.                          --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+// Hashes a list of regions, each of which is part of a file, an array or a buffer, and returns
+// the results in the same order. The regions are split between the common fork-join pool; file regions
+// are read with positional reads, so several threads can share one channel.
+public class ParallelHasher {
+
+    // Below this many bytes in total, hashing on the calling thread is faster than forking
+    private static final long FORK_THRESHOLD = 0x10000;
+    private static final int READ_BUFFER_SIZE = 0x100000;
+
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<byte[]> readBuffers = ThreadLocal.withInitial(() -> new byte[READ_BUFFER_SIZE]);
+
+    public static class Region {
+        private final FileChannel channel;
+        private final byte[] data;
+        private final ByteBuffer buffer;
+        private final long offset;
+        private final long length;
+
+        public Region(FileChannel channel, long offset, long length) {
+            this.channel = channel;
+            this.data = null;
+            this.buffer = null;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public Region(byte[] data, int offset, int length) {
+            this.channel = null;
+            this.data = data;
+            this.buffer = null;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        // The buffer's remaining bytes, e.g. a slice of a MappedFile
+        public Region(ByteBuffer buffer) {
+            this.channel = null;
+            this.data = null;
+            this.buffer = buffer;
+            this.offset = buffer.position();
+            this.length = buffer.remaining();
+        }
+
+        // Hands the region's bytes to the consumer, a buffer at a time for file regions
+        private void read(ChunkConsumer consumer) throws IOException {
+            if (data != null) {
+                consumer.accept(data, (int) offset, (int) length);
+                return;
+            }
+            byte[] readBuffer = readBuffers.get();
+            // A duplicate of its own, so the same buffer can be hashed from several threads
+            ByteBuffer view = buffer == null ? null : buffer.duplicate();
+            for (long done = 0; done < length; ) {
+                int chunk = (int) Math.min(readBuffer.length, length - done);
+                if (view != null) {
+                    view.position((int) (offset + done));
+                    view.get(readBuffer, 0, chunk);
+                } else {
+                    ByteBuffer bb = ByteBuffer.wrap(readBuffer, 0, chunk);
+                    while (bb.hasRemaining()) {
+                        if (channel.read(bb, offset + done + bb.position()) < 0) {
+                            throw new EOFException();
+                        }
+                    }
+                }
+                consumer.accept(readBuffer, 0, chunk);
+                done += chunk;
+            }
+        }
+    }
+
+    private interface ChunkConsumer {
+        void accept(byte[] data, int offset, int length);
+    }
+
+    private interface RegionHasher {
+        void hash(Region region, int index) throws IOException;
+    }
+
+    // Hashes one array region on the calling thread
+    public static byte[] sha256(byte[] data, int offset, int length) {
+        MessageDigest digest = sha256.get();
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    public static byte[][] sha256(List<Region> regions) throws IOException {
+        byte[][] hashes = new byte[regions.size()][];
+        hashAll(regions, (region, index) -> {
+            MessageDigest digest = sha256.get();
+            region.read(digest::update);
+            hashes[index] = digest.digest();
+        });
+        return hashes;
+    }
+
+    public static long[] crc32(List<Region> regions) throws IOException {
+        long[] crcs = new long[regions.size()];
+        hashAll(regions, (region, index) -> {
+            CRC32 checksum = new CRC32();
+            region.read(checksum::update);
+            crcs[index] = checksum.getValue();
+        });
+        return crcs;
+    }
+
+    private static void hashAll(List<Region> regions, RegionHasher hasher) throws IOException {
+        long[] endOffsets = new long[regions.size()];
+        long total = 0;
+        for (int i = 0; i < regions.size(); i++) {
+            total += regions.get(i).length;
+            endOffsets[i] = total;
+        }
+        HashTask task = new HashTask(regions, endOffsets, hasher, RandomizationMetrics.otherThreads(), 0,
+                regions.size());
+        try {
+            if (regions.size() < 2 || total < FORK_THRESHOLD) {
+                task.compute();
+            } else {
+                ForkJoinPool.commonPool().invoke(task);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Splits its range of regions in two halves of about the same number of bytes until they're small
+    private static class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 3371954284036185179L;
+
+        private final List<Region> regions;
+        private final long[] endOffsets;
+        private final RegionHasher hasher;
+        private final RandomizationMetrics.OtherThreads otherThreads;
+        private final int from, to;
+
+        private HashTask(List<Region> regions, long[] endOffsets, RegionHasher hasher,
+                         RandomizationMetrics.OtherThreads otherThreads, int from, int to) {
+            this.regions = regions;
+            this.endOffsets = endOffsets;
+            this.hasher = hasher;
+            this.otherThreads = otherThreads;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            long startOffset = from == 0 ? 0 : endOffsets[from - 1];
+            if (to - from > 1 && endOffsets[to - 1] - startOffset > FORK_THRESHOLD) {
+                long middleOffset = startOffset + (endOffsets[to - 1] - startOffset) / 2;
+                int middle = from + 1;
+                while (middle < to - 1 && endOffsets[middle - 1] < middleOffset) {
+                    middle++;
+                }
+                invokeAll(new HashTask(regions, endOffsets, hasher, otherThreads, from, middle),
+                        new HashTask(regions, endOffsets, hasher, otherThreads, middle, to));
+                return;
+            }
+            otherThreads.run(() -> {
+                try {
+                    for (int i = from; i < to; i++) {
+                        hasher.hash(regions.get(i), i);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+}
@@ -29,77 +29,124 @@ package com.dabomstew.pkrandom;
 import java.security.SecureRandom;
 import java.util.Random;
 
+// One RandomSource per randomization job. Nothing in here is static, so
+// concurrent jobs never draw from each other's stream.
 public class RandomSource {
 
-    private static Random source = new Random();
-    private static Random cosmeticSource = new Random();
-    private static int calls = 0;
-    private static int cosmeticCalls = 0;
-    private static Random instance = new RandomSourceInstance();
-    private static Random cosmeticInstance = new CosmeticRandomSourceInstance();
+    private Random source = new Random();
+    private Random cosmeticSource = new Random();
+    private int calls = 0;
+    private int cosmeticCalls = 0;
+    private final Random instance = new RandomSourceInstance();
+    private final Random cosmeticInstance = new CosmeticRandomSourceInstance();
+    // The stream of the task running on each thread, see onStream
+    private final ThreadLocal<Stream> streams = new ThreadLocal<>();
 
-    public static void reset() {
+    public RandomSource() {
+    }
+
+    public RandomSource(long seed) {
+        seed(seed);
+    }
+
+    public void reset() {
         source = new Random();
         cosmeticSource = new Random();
         calls = 0;
         cosmeticCalls = 0;
     }
 
-    public static void seed(long seed) {
+    public void seed(long seed) {
         source.setSeed(seed);
         cosmeticSource.setSeed(seed);
         calls = 0;
         cosmeticCalls = 0;
     }
 
-    public static double random() {
-        calls++;
-        return source.nextDouble();
+    public double random() {
+        return draw().nextDouble();
     }
 
-    public static int nextInt(int size) {
-        calls++;
-        return source.nextInt(size);
+    public int nextInt(int size) {
+        return draw().nextInt(size);
     }
 
-    public static int nextIntCosmetic(int size) {
+    public int nextIntCosmetic(int size) {
         cosmeticCalls++;
         return cosmeticSource.nextInt(size);
     }
 
-    public static void nextBytes(byte[] bytes) {
-        calls++;
-        source.nextBytes(bytes);
+    public void nextBytes(byte[] bytes) {
+        draw().nextBytes(bytes);
+    }
+
+    public int nextInt() {
+        return draw().nextInt();
     }
 
-    public static int nextInt() {
-        calls++;
-        return source.nextInt();
+    public long nextLong() {
+        return draw().nextLong();
     }
 
-    public static long nextLong() {
-        calls++;
-        return source.nextLong();
+    public boolean nextBoolean() {
+        return draw().nextBoolean();
     }
 
-    public static boolean nextBoolean() {
-        calls++;
-        return source.nextBoolean();
+    public float nextFloat() {
+        return draw().nextFloat();
     }
 
-    public static float nextFloat() {
-        calls++;
-        return source.nextFloat();
+    public double nextDouble() {
+        return draw().nextDouble();
     }
 
-    public static double nextDouble() {
-        calls++;
-        return source.nextDouble();
+    public double nextGaussian() {
+        return draw().nextGaussian();
     }
 
-    public static synchronized double nextGaussian() {
-        calls++;
-        return source.nextGaussian();
+    // Runs task with the draws made on this thread coming from a stream of its own, seeded with streamSeed, so
+    // tasks running in parallel draw the same numbers whichever thread runs them and in whatever order. Their
+    // draws still count towards callsSinceSeed.
+    public void onStream(long streamSeed, Runnable task) {
+        Stream previous = streams.get();
+        Stream stream = new Stream(streamSeed);
+        streams.set(stream);
+        try {
+            task.run();
+        } finally {
+            if (previous == null) {
+                streams.remove();
+            } else {
+                streams.set(previous);
+            }
+            addCalls(previous, stream.calls);
+        }
+    }
+
+    // The seed of the index-th of a set of streams, mixed so neighbouring indexes give unrelated streams
+    public static long streamSeed(long base, int index) {
+        long z = base + (index + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private Random draw() {
+        Stream stream = streams.get();
+        if (stream == null) {
+            calls++;
+            return source;
+        }
+        stream.calls++;
+        return stream.random;
+    }
+
+    private synchronized void addCalls(Stream stream, int count) {
+        if (stream == null) {
+            calls += count;
+        } else {
+            stream.calls += count;
+        }
     }
 
     public static long pickSeed() {
@@ -111,19 +158,28 @@ public class RandomSource {
         return value;
     }
 
-    public static Random instance() {
+    public Random instance() {
         return instance;
     }
 
-    public static Random cosmeticInstance() {
+    public Random cosmeticInstance() {
         return cosmeticInstance;
     }
 
-    public static int callsSinceSeed() {
+    public int callsSinceSeed() {
         return calls + cosmeticCalls;
     }
 
-    private static class RandomSourceInstance extends Random {
+    private static class Stream {
+        private final Random random;
+        private int calls;
+
+        private Stream(long seed) {
+            this.random = new Random(seed);
+        }
+    }
+
+    private class RandomSourceInstance extends Random {
 
         /**
          * 
@@ -132,56 +188,56 @@ public class RandomSource {
 
         @Override
         public synchronized void setSeed(long seed) {
-            RandomSource.seed(seed);
+            RandomSource.this.seed(seed);
         }
 
         @Override
         public void nextBytes(byte[] bytes) {
-            RandomSource.nextBytes(bytes);
+            RandomSource.this.nextBytes(bytes);
         }
 
         @Override
         public int nextInt() {
-            return RandomSource.nextInt();
+            return RandomSource.this.nextInt();
         }
 
         @Override
         public int nextInt(int n) {
-            return RandomSource.nextInt(n);
+            return RandomSource.this.nextInt(n);
         }
 
         @Override
         public long nextLong() {
-            return RandomSource.nextLong();
+            return RandomSource.this.nextLong();
         }
 
         @Override
         public boolean nextBoolean() {
-            return RandomSource.nextBoolean();
+            return RandomSource.this.nextBoolean();
         }
 
         @Override
         public float nextFloat() {
-            return RandomSource.nextFloat();
+            return RandomSource.this.nextFloat();
         }
 
         @Override
         public double nextDouble() {
-            return RandomSource.nextDouble();
+            return RandomSource.this.nextDouble();
         }
 
         @Override
         public synchronized double nextGaussian() {
-            return RandomSource.nextGaussian();
+            return RandomSource.this.nextGaussian();
         }
 
     }
 
-    private static class CosmeticRandomSourceInstance extends Random {
+    private class CosmeticRandomSourceInstance extends Random {
 
         @Override
         public synchronized void setSeed(long seed) {
-            RandomSource.seed(seed);
+            RandomSource.this.seed(seed);
         }
 
         @Override
@@ -198,7 +254,7 @@ public class RandomSource {
 
         @Override
         public int nextInt(int n) {
-            return RandomSource.nextIntCosmetic(n);
+            return RandomSource.this.nextIntCosmetic(n);
         }
 
         @Override
@@ -0,0 +1,44 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  RandomizationListener.java - gets told when Randomizer.randomize      --*/
+/*--                               moves from one phase to the next.        --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+public interface RandomizationListener {
+
+    // In the order Randomizer.randomize runs them. Some phases come up twice, because e.g. base stats
+    // are updated before evolutions are randomized but shuffled/randomized after.
+    enum Phase {
+        POKEMON_POOL, MOVE_DATA, MISC_TWEAKS, BASE_STATS, TYPES, EVOLUTIONS, ABILITIES, STARTERS, MOVESETS,
+        TRAINERS, STATIC_POKEMON, TOTEM_POKEMON, WILD_POKEMON, TMS, MOVE_TUTORS, TRADES, ITEMS, SAVE
+    }
+
+    // Times are in milliseconds; elapsed is since the start of the randomization
+    default void phaseStarted(Phase phase, long elapsedMillis) {
+    }
+
+    void phaseFinished(Phase phase, long phaseMillis, long elapsedMillis);
+
+    default void randomizationFinished(long elapsedMillis) {
+    }
+}
@@ -0,0 +1,202 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  RandomizationMetrics.java - wall time, allocations and RNG draws of   --*/
+/*--                              each step of one randomization job.       --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.dabomstew.pkrandom.romhandlers.RomHandler;
+
+// The per-job record. Listens to the Randomizer's phases, and measure() wraps the steps around it
+// (loading, saving). All steps of a job run on one thread, whose allocation counter is read around each
+// step. Work the job hands to the fork-join pool is added in through OtherThreads.
+// finish() adds the job to MetricsRegistry, and every step is also emitted as a JFR event when a
+// recording is running.
+public class RandomizationMetrics implements RandomizationListener {
+
+    public static final String LOAD_ROM = "LOAD_ROM";
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    // The job being measured on this thread
+    private static final ThreadLocal<RandomizationMetrics> current = new ThreadLocal<>();
+
+    // Counts what work run on other threads allocates toward the job that handed it out
+    public static class OtherThreads {
+        private final RandomizationMetrics metrics;
+        private final Thread jobThread;
+
+        private OtherThreads(RandomizationMetrics metrics, Thread jobThread) {
+            this.metrics = metrics;
+            this.jobThread = jobThread;
+        }
+
+        public void run(Runnable work) {
+            // The job's own thread often takes part too, and its allocations are already counted
+            if (metrics == null || Thread.currentThread() == jobThread) {
+                work.run();
+                return;
+            }
+            long before = allocatedBytes();
+            try {
+                work.run();
+            } finally {
+                metrics.allocatedElsewhere.add(Math.max(0, allocatedBytes() - before));
+            }
+        }
+    }
+
+    public static class Step {
+        public final String name;
+        public final long wallNanos;
+        public final long allocatedBytes;
+        public final long rngCalls;
+
+        private Step(String name, long wallNanos, long allocatedBytes, long rngCalls) {
+            this.name = name;
+            this.wallNanos = wallNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.rngCalls = rngCalls;
+        }
+    }
+
+    private final List<Step> steps = new ArrayList<>();
+    private final LongAdder allocatedElsewhere = new LongAdder();
+    private RomHandler romHandler;
+    private int generation;
+    private boolean finished;
+
+    // State of the step currently being measured
+    private long stepStartNanos, stepStartAllocated, stepStartAllocatedElsewhere, stepStartRngCalls;
+
+    // For the thread of the job being measured to call before handing work to other threads, which then
+    // run it through what this returns. Off a measured job's thread, the work is simply run.
+    public static OtherThreads otherThreads() {
+        return new OtherThreads(current.get(), Thread.currentThread());
+    }
+
+    public void setRomHandler(RomHandler romHandler) {
+        this.romHandler = romHandler;
+        this.generation = romHandler == null ? 0 : romHandler.generationOfPokemon();
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    public long getTotalNanos() {
+        long total = 0;
+        for (Step step : steps) {
+            total += step.wallNanos;
+        }
+        return total;
+    }
+
+    public <T> T measure(String name, Supplier<T> step) {
+        startStep();
+        try {
+            return step.get();
+        } finally {
+            finishStep(name);
+        }
+    }
+
+    @Override
+    public void phaseStarted(Phase phase, long elapsedMillis) {
+        startStep();
+    }
+
+    @Override
+    public void phaseFinished(Phase phase, long phaseMillis, long elapsedMillis) {
+        finishStep(phase.name());
+    }
+
+    // Publishes the job to the registry. Only the first call counts.
+    public void finish(boolean success) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (current.get() == this) {
+            current.remove();
+        }
+        MetricsRegistry.instance().addJob(this, success);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Gen %d, %d ms total", generation, getTotalNanos() / 1000000));
+        for (Step step : steps) {
+            sb.append(String.format("; %s %d ms, %d KB, %d RNG", step.name, step.wallNanos / 1000000,
+                    step.allocatedBytes / 1024, step.rngCalls));
+        }
+        return sb.toString();
+    }
+
+    private void startStep() {
+        current.set(this);
+        stepStartNanos = System.nanoTime();
+        stepStartAllocated = allocatedBytes();
+        stepStartAllocatedElsewhere = allocatedElsewhere.sum();
+        stepStartRngCalls = rngCalls();
+    }
+
+    private void finishStep(String name) {
+        Step step = new Step(name, System.nanoTime() - stepStartNanos,
+                Math.max(0, allocatedBytes() - stepStartAllocated)
+                        + allocatedElsewhere.sum() - stepStartAllocatedElsewhere,
+                Math.max(0, rngCalls() - stepStartRngCalls));
+        steps.add(step);
+
+        RandomizationStepEvent.emit(step.name, generation, step.wallNanos, step.allocatedBytes, step.rngCalls);
+    }
+
+    private long rngCalls() {
+        if (romHandler == null || romHandler.getRandomSource() == null) {
+            return 0;
+        }
+        return romHandler.getRandomSource().callsSinceSeed();
+    }
+
+    // Bytes allocated by this thread so far, or 0 where the JVM can't tell
+    private static long allocatedBytes() {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) threadBean;
+            if (sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,108 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  RandomizationStepEvent.java - emits each step of a randomization job  --*/
+/*--                                as a Flight Recorder event.             --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// One step of a randomization job, for Flight Recorder. Costs next to nothing unless a recording enables
+// it, e.g. java -XX:StartFlightRecording:filename=rec.jfr ...
+// jdk.jfr isn't part of the Java 8 API the randomizer is built against, so the event type is made at
+// runtime through jdk.jfr.EventFactory, by reflection. On a JVM without JFR, emit does nothing.
+class RandomizationStepEvent {
+
+    // Fields of the event, in the order they are set
+    private static final int STEP = 0, GENERATION = 1, WALL_NANOS = 2, ALLOCATED_BYTES = 3, RNG_CALLS = 4;
+
+    private static Object factory;
+    private static Method newEvent, shouldCommit, set, commit;
+
+    static {
+        try {
+            Class<?> elementClass = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> descriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Constructor<?> element = elementClass.getConstructor(Class.class, Object.class);
+            Constructor<?> descriptor = descriptorClass.getConstructor(Class.class, String.class, List.class);
+
+            List<Object> eventAnnotations = Arrays.asList(
+                    element.newInstance(annotation("Name"), "com.dabomstew.pkrandom.RandomizationStep"),
+                    element.newInstance(annotation("Label"), "Randomization Step"),
+                    element.newInstance(annotation("Category"), new String[] { "Pokemon Randomizer" }),
+                    element.newInstance(annotation("Description"),
+                            "A phase of Randomizer.randomize, or loading/saving the ROM"));
+            List<Object> fields = Arrays.asList(
+                    descriptor.newInstance(String.class, "step",
+                            Collections.singletonList(element.newInstance(annotation("Label"), "Step"))),
+                    descriptor.newInstance(int.class, "generation",
+                            Collections.singletonList(element.newInstance(annotation("Label"), "Generation"))),
+                    descriptor.newInstance(long.class, "wallNanos",
+                            Arrays.asList(element.newInstance(annotation("Label"), "Wall Time"),
+                                    element.newInstance(annotation("Timespan"), "NANOSECONDS"))),
+                    descriptor.newInstance(long.class, "allocatedBytes",
+                            Arrays.asList(element.newInstance(annotation("Label"), "Allocated"),
+                                    element.newInstance(annotation("DataAmount"), "BYTES"))),
+                    descriptor.newInstance(long.class, "rngCalls",
+                            Collections.singletonList(element.newInstance(annotation("Label"), "RNG Calls"))));
+
+            factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, eventAnnotations, fields);
+            newEvent = factoryClass.getMethod("newEvent");
+            shouldCommit = eventClass.getMethod("shouldCommit");
+            set = eventClass.getMethod("set", int.class, Object.class);
+            commit = eventClass.getMethod("commit");
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            // No Flight Recorder in this JVM
+            factory = null;
+        }
+    }
+
+    private static Class<? extends Annotation> annotation(String name) throws ClassNotFoundException {
+        return Class.forName("jdk.jfr." + name).asSubclass(Annotation.class);
+    }
+
+    static void emit(String step, int generation, long wallNanos, long allocatedBytes, long rngCalls) {
+        if (factory == null) {
+            return;
+        }
+        try {
+            Object event = newEvent.invoke(factory);
+            if ((Boolean) shouldCommit.invoke(event)) {
+                set.invoke(event, STEP, step);
+                set.invoke(event, GENERATION, generation);
+                set.invoke(event, WALL_NANOS, wallNanos);
+                set.invoke(event, ALLOCATED_BYTES, allocatedBytes);
+                set.invoke(event, RNG_CALLS, rngCalls);
+                commit.invoke(event);
+            }
+        } catch (ReflectiveOperationException e) {
+            // Recording a step is never worth failing the job over
+        }
+    }
+}
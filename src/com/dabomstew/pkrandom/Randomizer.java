@@ -42,6 +42,12 @@ public class Randomizer {
     private final RomHandler romHandler;
     private final ResourceBundle bundle;
     private final boolean saveAsDirectory;
+    private boolean saveAsPatch;
+    private final List<RandomizationListener> listeners = new ArrayList<>();
+
+    // Phase tracking for the listener
+    private RandomizationListener.Phase currentPhase;
+    private long runStart, phaseStart;
 
     public Randomizer(Settings settings, RomHandler romHandler, ResourceBundle bundle, boolean saveAsDirectory) {
         this.settings = settings;
@@ -50,6 +56,17 @@ public class Randomizer {
         this.saveAsDirectory = saveAsDirectory;
     }
 
+    // Save a patch against the loaded ROM (see RomHandler.saveRomPatch) instead of the whole ROM
+    public void setSaveAsPatch(boolean saveAsPatch) {
+        this.saveAsPatch = saveAsPatch;
+    }
+
+    public void addListener(RandomizationListener listener) {
+        if (listener != null) {
+            listeners.add(listener);
+        }
+    }
+
     public int randomize(final String filename) {
         return randomize(filename, new PrintStream(new OutputStream() {
             @Override
@@ -67,7 +84,11 @@ public class Randomizer {
     public int randomize(final String filename, final PrintStream log, long seed) {
 
         final long startTime = System.currentTimeMillis();
-        RandomSource.seed(seed);
+        runStart = startTime;
+        currentPhase = null;
+        // Each run gets its own RNG context, so concurrent jobs can't draw from each other's stream
+        RandomSource randomSource = new RandomSource(seed);
+        romHandler.setRandomSource(randomSource);
 
         int checkValue = 0;
 
@@ -94,6 +115,8 @@ public class Randomizer {
         boolean tutorCompatChanged = false;
         boolean shopsChanged = false;
 
+        enterPhase(RandomizationListener.Phase.POKEMON_POOL);
+
         // Limit Pokemon
         // 1. Set Pokemon pool according to limits (or lack thereof)
         // 2. If limited, remove evolutions that are outside of the pool
@@ -104,6 +127,8 @@ public class Randomizer {
             romHandler.removeEvosForPokemonPool();
         }
 
+        enterPhase(RandomizationListener.Phase.MOVE_DATA);
+
         // Move updates & data changes
         // 1. Update moves to a future generation
         // 2. Randomize move stats
@@ -143,11 +168,15 @@ public class Randomizer {
             movesChanged = true;
         }
 
+        enterPhase(RandomizationListener.Phase.MISC_TWEAKS);
+
         // Misc Tweaks
         if (settings.getCurrentMiscTweaks() != MiscTweak.NO_MISC_TWEAKS) {
             romHandler.applyMiscTweaks(settings);
         }
 
+        enterPhase(RandomizationListener.Phase.BASE_STATS);
+
         // Update base stats to a future generation
         if (settings.isUpdateBaseStats()) {
             romHandler.updatePokemonStats(settings);
@@ -159,6 +188,8 @@ public class Randomizer {
             romHandler.standardizeEXPCurves(settings);
         }
 
+        enterPhase(RandomizationListener.Phase.TYPES);
+
         // Pokemon Types
         if (settings.getTypesMod() != Settings.TypesMod.UNCHANGED) {
             romHandler.randomizePokemonTypes(settings);
@@ -171,6 +202,8 @@ public class Randomizer {
             pokemonTraitsChanged = true;
         }
 
+        enterPhase(RandomizationListener.Phase.EVOLUTIONS);
+
         // Random Evos
         // Applied after type to pick new evos based on new types.
 
@@ -186,6 +219,8 @@ public class Randomizer {
             logEvolutionChanges(log);
         }
 
+        enterPhase(RandomizationListener.Phase.BASE_STATS);
+
         // Base stat randomization
         switch (settings.getBaseStatisticsMod()) {
             case SHUFFLE:
@@ -200,6 +235,8 @@ public class Randomizer {
                 break;
         }
 
+        enterPhase(RandomizationListener.Phase.ABILITIES);
+
         // Abilities
         if (settings.getAbilitiesMod() == Settings.AbilitiesMod.RANDOMIZE) {
             romHandler.randomizeAbilities(settings);
@@ -220,6 +257,8 @@ public class Randomizer {
             }
         }
 
+        enterPhase(RandomizationListener.Phase.EVOLUTIONS);
+
         // Trade evolutions removal
         if (settings.isChangeImpossibleEvolutions()) {
             romHandler.removeImpossibleEvolutions(settings);
@@ -252,6 +291,8 @@ public class Randomizer {
             logUpdatedEvolutions(log, romHandler.getTimeBasedEvoUpdates(), null);
         }
 
+        enterPhase(RandomizationListener.Phase.STARTERS);
+
         // Starter Pokemon
         // Applied after type to update the strings correctly based on new types
         switch(settings.getStartersMod()) {
@@ -278,6 +319,8 @@ public class Randomizer {
             logStarters(log);
         }
 
+        enterPhase(RandomizationListener.Phase.MOVESETS);
+
         // Move Data Log
         // Placed here so it matches its position in the randomizer interface
         if (movesChanged) {
@@ -311,6 +354,8 @@ public class Randomizer {
             log.println("Pokemon Movesets: Unchanged." + NEWLINE);
         }
 
+        enterPhase(RandomizationListener.Phase.TRAINERS);
+
         // Trainer Pokemon
         // 1. Add extra Trainer Pokemon
         // 2. Set trainers to be double battles and add extra Pokemon if necessary
@@ -405,6 +450,8 @@ public class Randomizer {
             }
         }
 
+        enterPhase(RandomizationListener.Phase.STATIC_POKEMON);
+
         // Static Pokemon
         if (romHandler.canChangeStaticPokemon()) {
             List<StaticEncounter> oldStatics = romHandler.getStaticPokemon();
@@ -423,6 +470,8 @@ public class Randomizer {
             }
         }
 
+        enterPhase(RandomizationListener.Phase.TOTEM_POKEMON);
+
         // Totem Pokemon
         if (romHandler.generationOfPokemon() == 7) {
             List<TotemPokemon> oldTotems = romHandler.getTotemPokemon();
@@ -443,6 +492,8 @@ public class Randomizer {
             }
         }
 
+        enterPhase(RandomizationListener.Phase.WILD_POKEMON);
+
         // Wild Pokemon
         // 1. Update catch rates
         // 2. Randomize Wild Pokemon
@@ -487,6 +538,8 @@ public class Randomizer {
             }
         }
 
+        enterPhase(RandomizationListener.Phase.TMS);
+
         // TMs
 
         if (!(settings.getMovesetsMod() == Settings.MovesetsMod.METRONOME_ONLY)
@@ -543,6 +596,8 @@ public class Randomizer {
             logTMHMCompatibility(log);
         }
 
+        enterPhase(RandomizationListener.Phase.MOVE_TUTORS);
+
         // Move Tutors
         if (romHandler.hasMoveTutors()) {
 
@@ -599,6 +654,8 @@ public class Randomizer {
 
         }
 
+        enterPhase(RandomizationListener.Phase.TRADES);
+
         // In-game trades
 
         List<IngameTrade> oldTrades = romHandler.getIngameTrades();
@@ -616,6 +673,8 @@ public class Randomizer {
             logTrades(log, oldTrades);
         }
 
+        enterPhase(RandomizationListener.Phase.ITEMS);
+
         // Field Items
         switch(settings.getFieldItemsMod()) {
             case SHUFFLE:
@@ -663,12 +722,17 @@ public class Randomizer {
         // Record check value?
         romHandler.writeCheckValueToROM(checkValue);
 
+        enterPhase(RandomizationListener.Phase.SAVE);
+
         // Save
-        if (saveAsDirectory) {
+        if (saveAsPatch) {
+            romHandler.saveRomPatch(filename);
+        } else if (saveAsDirectory) {
             romHandler.saveRomDirectory(filename);
         } else {
             romHandler.saveRomFile(filename, seed);
         }
+        finishPhases();
 
         // Log tail
         String gameName = romHandler.getROMName();
@@ -678,7 +742,7 @@ public class Randomizer {
         log.println("------------------------------------------------------------------");
         log.println("Randomization of " + gameName + " completed.");
         log.println("Time elapsed: " + (System.currentTimeMillis() - startTime) + "ms");
-        log.println("RNG Calls: " + RandomSource.callsSinceSeed());
+        log.println("RNG Calls: " + randomSource.callsSinceSeed());
         log.println("------------------------------------------------------------------");
         log.println();
 
@@ -692,6 +756,29 @@ public class Randomizer {
         return checkValue;
     }
 
+    private void enterPhase(RandomizationListener.Phase phase) {
+        long now = System.currentTimeMillis();
+        for (RandomizationListener listener : listeners) {
+            if (currentPhase != null) {
+                listener.phaseFinished(currentPhase, now - phaseStart, now - runStart);
+            }
+            listener.phaseStarted(phase, now - runStart);
+        }
+        currentPhase = phase;
+        phaseStart = now;
+    }
+
+    private void finishPhases() {
+        long now = System.currentTimeMillis();
+        for (RandomizationListener listener : listeners) {
+            if (currentPhase != null) {
+                listener.phaseFinished(currentPhase, now - phaseStart, now - runStart);
+            }
+            listener.randomizationFinished(now - runStart);
+        }
+        currentPhase = null;
+    }
+
     private int logMoveTutorMoves(PrintStream log, int checkValue, List<Integer> oldMtMoves) {
         log.println("--Move Tutor Moves--");
         List<Integer> newMtMoves = romHandler.getMoveTutorMoves();
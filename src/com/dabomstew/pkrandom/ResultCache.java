@@ -0,0 +1,270 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  ResultCache.java - keeps randomized ROMs and their logs on disk so an --*/
+/*--                     identical job is served without randomizing again.--*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.dabomstew.pkrandom.romhandlers.RomSnapshotCache;
+
+// Randomization is deterministic given the base ROM, the settings string and the seed, so the output of a
+// job can be reused for any later job with the same inputs and randomizer version. Each entry is a
+// directory named after the hash of those inputs, holding the output ROM ("output.<extension>") and its
+// log ("output.log", stored without the BOM). The least recently used entries are deleted once the cache
+// grows past its size bound.
+public class ResultCache {
+
+    private static final String OUTPUT_NAME = "output";
+    private static final String LOG_NAME = "output.log";
+
+    private static final ResultCache instance = new ResultCache(
+            new File(System.getProperty("pkrandom.resultCache.dir", SysConstants.ROOT_PATH + "result_cache")),
+            Long.getLong("pkrandom.resultCache.maxMB", 2048) * 1024 * 1024);
+
+    public static class Entry {
+        private final File output;
+        private final File log;
+
+        private Entry(File output, File log) {
+            this.output = output;
+            this.log = log;
+        }
+
+        public String getExtension() {
+            String name = output.getName();
+            return name.substring(name.lastIndexOf('.') + 1);
+        }
+
+        // Copies the cached ROM (and log, if wanted) to where the job would have written them
+        public void copyTo(File destination, boolean withLog) throws IOException {
+            Files.copy(output.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (withLog && log.exists()) {
+                try (FileOutputStream fos = new FileOutputStream(destination.getAbsolutePath() + ".log")) {
+                    fos.write(0xEF);
+                    fos.write(0xBB);
+                    fos.write(0xBF);
+                    fos.write(Files.readAllBytes(log.toPath()));
+                }
+            }
+        }
+    }
+
+    private final File directory;
+    private final long maxBytes;
+    // Access-ordered: iteration starts at the least recently used entry. Guarded by this.
+    private final Map<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private boolean scanned;
+
+    public ResultCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    public static ResultCache instance() {
+        return instance;
+    }
+
+    public static String key(long romCRC32, String settingsString, long seed) {
+        String inputs = String.format("%08X", romCRC32) + "|" + settingsString + "|" + seed + "|" + Version.VERSION;
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(inputs.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Copies the result of an earlier identical job to where this job would have written its output,
+    // and returns that file. Returns null on a miss, or if the cache can't be used for any reason.
+    public File serve(String romFilePath, String settingsString, long seed, String destination, boolean withLog) {
+        try {
+            long romCRC32 = RomSnapshotCache.instance().getCRC32(romFilePath);
+            Entry entry = get(key(romCRC32, settingsString, seed));
+            if (entry == null) {
+                return null;
+            }
+            List<String> extensions = new ArrayList<>(Arrays.asList("sgb", "gbc", "gba", "nds", "cxi"));
+            extensions.remove(entry.getExtension());
+            File output = FileFunctions.fixFilename(new File(destination), entry.getExtension(), extensions);
+            entry.copyTo(output, withLog);
+            return output;
+        } catch (Exception e) {
+            System.out.println("Result cache lookup failed: " + e);
+            return null;
+        }
+    }
+
+    public void store(String romFilePath, String settingsString, long seed, File output, String extension, byte[] log) {
+        try {
+            long romCRC32 = RomSnapshotCache.instance().getCRC32(romFilePath);
+            put(key(romCRC32, settingsString, seed), output, extension, log);
+        } catch (Exception e) {
+            System.out.println("Could not cache result: " + e);
+        }
+    }
+
+    // Returns the cached result for the key, or null
+    public synchronized Entry get(String key) {
+        scanIfNeeded();
+        // get() rather than containsKey(), so this counts as a use for the LRU order
+        if (sizes.get(key) == null) {
+            return null;
+        }
+        File entryDir = new File(directory, key);
+        File output = findOutput(entryDir);
+        if (output == null) {
+            forget(key);
+            return null;
+        }
+        entryDir.setLastModified(System.currentTimeMillis());
+        return new Entry(output, new File(entryDir, LOG_NAME));
+    }
+
+    // Stores a finished job. Failing to cache is never an error for the job itself.
+    public void put(String key, File output, String extension, byte[] log) {
+        synchronized (this) {
+            // Before creating our temporary directory, which the scan would take for a leftover
+            scanIfNeeded();
+        }
+        File tmpDir = new File(directory, key + ".tmp" + Thread.currentThread().getId());
+        try {
+            if (!tmpDir.mkdirs() && !tmpDir.isDirectory()) {
+                return;
+            }
+            Files.copy(output.toPath(), new File(tmpDir, OUTPUT_NAME + "." + extension).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            if (log != null) {
+                Files.write(new File(tmpDir, LOG_NAME).toPath(), log);
+            }
+            long size = directorySize(tmpDir);
+            synchronized (this) {
+                File entryDir = new File(directory, key);
+                if (sizes.containsKey(key) || !tmpDir.renameTo(entryDir)) {
+                    // Someone else stored the same result first
+                    deleteDirectory(tmpDir);
+                    return;
+                }
+                sizes.put(key, size);
+                totalBytes += size;
+                evict(key);
+            }
+        } catch (IOException e) {
+            deleteDirectory(tmpDir);
+            System.out.println("Could not cache result " + key + ": " + e);
+        }
+    }
+
+    public synchronized long getTotalBytes() {
+        scanIfNeeded();
+        return totalBytes;
+    }
+
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = sizes.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            deleteDirectory(new File(directory, eldest.getKey()));
+            totalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private void forget(String key) {
+        Long size = sizes.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        deleteDirectory(new File(directory, key));
+    }
+
+    // Picks up entries left by earlier runs, oldest use first
+    private void scanIfNeeded() {
+        if (scanned) {
+            return;
+        }
+        scanned = true;
+        File[] entries = directory.listFiles();
+        if (entries == null) {
+            return;
+        }
+        List<File> entryDirs = new ArrayList<>();
+        for (File entry : entries) {
+            if (entry.getName().contains(".tmp")) {
+                // Left over from a crash while storing
+                deleteDirectory(entry);
+            } else if (entry.isDirectory()) {
+                entryDirs.add(entry);
+            }
+        }
+        entryDirs.sort(Comparator.comparingLong(File::lastModified));
+        for (File entryDir : entryDirs) {
+            long size = directorySize(entryDir);
+            sizes.put(entryDir.getName(), size);
+            totalBytes += size;
+        }
+        evict(null);
+    }
+
+    private static File findOutput(File entryDir) {
+        File[] files = entryDir.listFiles((dir, name) -> name.startsWith(OUTPUT_NAME + ".") && !name.equals(LOG_NAME));
+        return files == null || files.length == 0 ? null : files[0];
+    }
+
+    private static long directorySize(File dir) {
+        File[] files = dir.listFiles();
+        return files == null ? 0 : Arrays.stream(files).mapToLong(File::length).sum();
+    }
+
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,229 @@
+package com.dabomstew.pkrandom.cli;
+
+import com.dabomstew.pkrandom.*;
+import com.dabomstew.pkrandom.romhandlers.*;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Randomizes many seeds of one ROM with one set of settings, e.g. for races and tournaments.
+// The ROM is detected and read once; every seed then starts from a pristine handler (see RomSnapshotCache)
+// and the seeds run in parallel. Each output gets its own log, and a manifest.json lists all of them.
+// Outputs are either whole ROMs or patches against the source ROM (see RomHandler.saveRomPatch).
+public class BatchRandomizer {
+
+    private final static ResourceBundle bundle = java.util.ResourceBundle.getBundle("com/dabomstew/pkrandom/newgui/Bundle");
+
+    private static final RomHandler.Factory[] checkHandlers = new RomHandler.Factory[] {
+            new Gen1RomHandler.Factory(),
+            new Gen2RomHandler.Factory(),
+            new Gen3RomHandler.Factory(),
+            new Gen4RomHandler.Factory(),
+            new Gen5RomHandler.Factory(),
+            new Gen6RomHandler.Factory(),
+            new Gen7RomHandler.Factory()
+    };
+
+    public static class SeedResult {
+        public final long seed;
+        public final String fileName;
+        public final String logFileName;
+        public final boolean success;
+        public final String error;
+        public final long millis;
+
+        private SeedResult(long seed, String fileName, String logFileName, boolean success, String error, long millis) {
+            this.seed = seed;
+            this.fileName = fileName;
+            this.logFileName = logFileName;
+            this.success = success;
+            this.error = error;
+            this.millis = millis;
+        }
+    }
+
+    private final Settings settings;
+    private final String sourceRomFilePath;
+    private final File outputDirectory;
+    private String outputPrefix;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean saveLogs = true;
+    private boolean savePatches;
+
+    public BatchRandomizer(Settings settings, String sourceRomFilePath, File outputDirectory) {
+        this.settings = settings;
+        this.sourceRomFilePath = sourceRomFilePath;
+        this.outputDirectory = outputDirectory;
+        String romName = new File(sourceRomFilePath).getName();
+        this.outputPrefix = romName.contains(".") ? romName.substring(0, romName.lastIndexOf('.')) : romName;
+    }
+
+    public BatchRandomizer setOutputPrefix(String outputPrefix) {
+        this.outputPrefix = outputPrefix;
+        return this;
+    }
+
+    public BatchRandomizer setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    public BatchRandomizer setSaveLogs(boolean saveLogs) {
+        this.saveLogs = saveLogs;
+        return this;
+    }
+
+    public BatchRandomizer setSavePatches(boolean savePatches) {
+        this.savePatches = savePatches;
+        return this;
+    }
+
+    public List<SeedResult> randomize(int count) throws IOException {
+        List<Long> seeds = new ArrayList<>();
+        Set<Long> seen = new HashSet<>();
+        while (seeds.size() < count) {
+            long seed = RandomSource.pickSeed();
+            if (seen.add(seed)) {
+                seeds.add(seed);
+            }
+        }
+        return randomize(seeds);
+    }
+
+    // Runs every seed and writes the manifest. Individual seeds that fail are recorded in the
+    // manifest instead of aborting the rest of the batch.
+    public List<SeedResult> randomize(List<Long> seeds) throws IOException {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("Could not create output directory " + outputDirectory);
+        }
+        long batchStart = System.currentTimeMillis();
+
+        // Load once up front: this fills the snapshot cache, and tweaking the settings for the ROM here
+        // means the seeds below only ever read them.
+        RomHandler firstHandler = RomSnapshotCache.instance().load(sourceRomFilePath, checkHandlers,
+                new RandomSource(), null);
+        if (firstHandler == null) {
+            throw new IOException(String.format(bundle.getString("GUI.unsupportedRom"),
+                    new File(sourceRomFilePath).getName()));
+        }
+        settings.tweakForRom(firstHandler);
+        String extension = savePatches ? firstHandler.getPatchExtension() : firstHandler.getDefaultExtension();
+        long romCRC32 = RomSnapshotCache.instance().getCRC32(sourceRomFilePath);
+        firstHandler.releaseRom();
+        firstHandler = null;
+
+        // Every seed running holds a ROM of its own, so no more run at once than the heap has room for
+        int poolSize = Math.min(threads, seeds.size());
+        long peakHeapBytes = estimatePeakHeapBytes();
+        if (peakHeapBytes > 0) {
+            poolSize = (int) Math.max(1, Math.min(poolSize, Runtime.getRuntime().maxMemory() / peakHeapBytes));
+        }
+
+        List<SeedResult> results = new ArrayList<>();
+        if (!seeds.isEmpty()) {
+            ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+            try {
+                List<Future<SeedResult>> futures = new ArrayList<>();
+                for (long seed : seeds) {
+                    futures.add(pool.submit(() -> randomizeSeed(seed, extension)));
+                }
+                for (Future<SeedResult> future : futures) {
+                    try {
+                        results.add(future.get());
+                    } catch (Exception e) {
+                        throw new IOException(e);
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        writeManifest(results, romCRC32, System.currentTimeMillis() - batchStart);
+        return results;
+    }
+
+    private long estimatePeakHeapBytes() {
+        for (RomHandler.Factory rhf : checkHandlers) {
+            if (rhf.isLoadable(sourceRomFilePath)) {
+                return rhf.getEstimatedPeakHeapBytes(sourceRomFilePath);
+            }
+        }
+        return 0;
+    }
+
+    private SeedResult randomizeSeed(long seed, String extension) {
+        long start = System.currentTimeMillis();
+        File outputFile = new File(outputDirectory, outputPrefix + "_" + seed + "." + extension);
+        String filename = outputFile.getAbsolutePath();
+        String logFileName = saveLogs ? outputFile.getName() + ".log" : null;
+        RomHandler romHandler = null;
+        try {
+            romHandler = RomSnapshotCache.instance().load(sourceRomFilePath, checkHandlers,
+                    new RandomSource(), null);
+            if (romHandler == null) {
+                throw new IOException("Could not reload " + sourceRomFilePath);
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            PrintStream log = new PrintStream(baos, false, "UTF-8");
+            Randomizer randomizer = new Randomizer(settings, romHandler, bundle, false);
+            randomizer.setSaveAsPatch(savePatches);
+            randomizer.randomize(filename, log, seed);
+            log.close();
+            if (saveLogs) {
+                try (FileOutputStream fos = new FileOutputStream(filename + ".log")) {
+                    fos.write(0xEF);
+                    fos.write(0xBB);
+                    fos.write(0xBF);
+                    fos.write(baos.toByteArray());
+                }
+            }
+            return new SeedResult(seed, outputFile.getName(), logFileName, true, null,
+                    System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return new SeedResult(seed, outputFile.getName(), null, false, e.toString(),
+                    System.currentTimeMillis() - start);
+        } finally {
+            if (romHandler != null) {
+                romHandler.releaseRom();
+            }
+        }
+    }
+
+    private void writeManifest(List<SeedResult> results, long romCRC32, long totalMillis) throws IOException {
+        JSONArray entries = new JSONArray();
+        for (SeedResult result : results) {
+            JSONObject entry = new JSONObject()
+                    .put("seed", result.seed)
+                    .put("fileName", result.fileName)
+                    .put("success", result.success)
+                    .put("millis", result.millis);
+            if (result.logFileName != null) {
+                entry.put("logFileName", result.logFileName);
+            }
+            if (result.error != null) {
+                entry.put("error", result.error);
+            }
+            entries.put(entry);
+        }
+        JSONObject manifest = new JSONObject()
+                .put("version", Version.VERSION_STRING)
+                .put("rom", new File(sourceRomFilePath).getName())
+                .put("patches", savePatches)
+                .put("romCRC32", String.format("%08X", romCRC32))
+                .put("settingsString", Version.VERSION + settings.toString())
+                .put("totalMillis", totalMillis)
+                .put("seeds", entries);
+        try (Writer writer = new OutputStreamWriter(
+                new FileOutputStream(new File(outputDirectory, "manifest.json")), StandardCharsets.UTF_8)) {
+            writer.write(manifest.toString(2));
+        }
+    }
+}
@@ -6,21 +6,22 @@ import com.dabomstew.pkrandom.romhandlers.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
+import com.dabomstew.pkrandom.worker.ApiClient;
 import org.apache.http.Header;
-import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.entity.mime.content.FileBody;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.json.*;
 import com.google.gson.*;
 
-import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletResponse;
 
 import java.io.File;
 import java.io.IOException;
@@ -31,6 +32,12 @@ public class CliRandomizer {
 
     private final static ResourceBundle bundle = java.util.ResourceBundle.getBundle("com/dabomstew/pkrandom/newgui/Bundle");
 
+    private static GenerateQueue generateQueue;
+    // An event stream keeps one of the web server's threads until its job is done, so only this many are
+    // allowed at once; the rest of the thread pool stays free for /generate and the other routes
+    private static final int DEFAULT_MAX_EVENT_STREAMS = 16;
+    private static Semaphore eventStreams;
+
     private static String performDirectRandomization(Settings settings, String sourceRomFilePath,
                                                       String destinationRomFilePath, boolean saveAsDirectory,
                                                       String updateFilePath, boolean saveLog)
@@ -47,22 +54,26 @@ public class CliRandomizer {
         builder.addPart("file[]", new FileBody(file));
         //builder.addPart("optionalParam", new StringBody("true", ContentType.create("text/plain", Consts.ASCII)));
         post.setEntity(builder.build());
-        HttpResponse response = HttpClients.createDefault().execute(post);
-        int httpStatus = response.getStatusLine().getStatusCode();
-        String responseMsg = EntityUtils.toString(response.getEntity(), "UTF-8");
-
-        // If the returned HTTP response code is not in 200 series then
-        // throw the error
-        if (httpStatus < 200 || httpStatus > 400) {
-            throw new IOException("HTTP " + httpStatus + " - Error during upload of file: " + responseMsg);
-        }
+        String responseMsg;
+        String locationHeader;
+        try (CloseableHttpResponse response = ApiClient.getHttpClient().execute(post)) {
+            int httpStatus = response.getStatusLine().getStatusCode();
+            responseMsg = EntityUtils.toString(response.getEntity(), "UTF-8");
+
+            // If the returned HTTP response code is not in 200 series then
+            // throw the error
+            if (httpStatus < 200 || httpStatus > 400) {
+                throw new IOException("HTTP " + httpStatus + " - Error during upload of file: " + responseMsg);
+            }
 
-        String locationHeader = response.getFirstHeader("Location").getValue();
+            locationHeader = response.getFirstHeader("Location").getValue();
+        }
 
         HttpGet get = new HttpGet(host + locationHeader);
         get.setHeader("JSON", "1");
-        response = HttpClients.createDefault().execute(get);
-        responseMsg = EntityUtils.toString(response.getEntity(), "UTF-8");
+        try (CloseableHttpResponse response = ApiClient.getHttpClient().execute(get)) {
+            responseMsg = EntityUtils.toString(response.getEntity(), "UTF-8");
+        }
         Gson g = new Gson();
         Utils.FichierRoot root = g.fromJson(responseMsg, Utils.FichierRoot.class);
         printSuccess(root.links.get(0).download);
@@ -74,6 +85,14 @@ public class CliRandomizer {
     private static String performDirectRandomization(Settings settings, long seed, String sourceRomFilePath,
                                                       String destinationRomFilePath, boolean saveAsDirectory,
                                                       String updateFilePath, boolean saveLog) {
+        return performDirectRandomization(settings, seed, sourceRomFilePath, destinationRomFilePath, saveAsDirectory,
+                false, updateFilePath, saveLog, null).toString();
+    }
+
+    private static GenerateQueue.JobResult performDirectRandomization(Settings settings, long seed, String sourceRomFilePath,
+                                                      String destinationRomFilePath, boolean saveAsDirectory,
+                                                      boolean saveAsPatch, String updateFilePath, boolean saveLog,
+                                                      RandomizationListener listener) {
         // borrowed directly from NewRandomizerGUI()
         RomHandler.Factory[] checkHandlers = new RomHandler.Factory[] {
                 new Gen1RomHandler.Factory(),
@@ -96,89 +115,120 @@ public class CliRandomizer {
 
         final PrintStream verboseLog = log;
 
+        // Randomizing is deterministic, so a job identical to an earlier one is served from the result
+        // cache without loading the ROM. Directory and patch output and game updates aren't cached.
+        String settingsString = Version.VERSION + settings.toString();
+        boolean cacheable = !saveAsDirectory && !saveAsPatch && updateFilePath == null;
+        File cached = cacheable && seed != 0
+                ? ResultCache.instance().serve(sourceRomFilePath, settingsString, seed, destinationRomFilePath, saveLog)
+                : null;
+        if (cached != null) {
+            printSuccess("Served from result cache");
+            printSuccess(cached.getAbsolutePath());
+            return GenerateQueue.JobResult.success(new JSONObject()
+                    .put("status", 200)
+                    .put("data", new JSONObject().put("fileName", cached.getName())
+                            .put("seed", seed)
+                            .put("settingsString", settings.toString())));
+        }
+
+        RandomizationMetrics metrics = new RandomizationMetrics();
+        String failure;
+        RomHandler romHandler = null;
         try {
             File romFileHandler = new File(sourceRomFilePath);
-            RomHandler romHandler = null;
 
-            for (RomHandler.Factory rhf : checkHandlers) {
-                if (rhf.isLoadable(romFileHandler.getAbsolutePath())) {
-                    if (romHandler == null) {
-                        romHandler = rhf.create(RandomSource.instance());
-                        romHandler.loadRom(romFileHandler.getAbsolutePath());
+            romHandler = metrics.measure(RandomizationMetrics.LOAD_ROM, () -> RomSnapshotCache.instance()
+                    .load(romFileHandler.getAbsolutePath(), checkHandlers, new RandomSource(), null));
+            if (romHandler != null) {
+                metrics.setRomHandler(romHandler);
+                if (updateFilePath != null && romHandler.generationOfPokemon() == 6 || romHandler.generationOfPokemon() == 7) {
+                    romHandler.loadGameUpdate(updateFilePath);
+                    if (!saveAsDirectory && !saveAsPatch) {
+                        printWarning("Forcing save as directory since a game update was supplied.");
                     }
-                    if (updateFilePath != null && romHandler.generationOfPokemon() == 6 || romHandler.generationOfPokemon() == 7) {
-                        romHandler.loadGameUpdate(updateFilePath);
-                        if (!saveAsDirectory) {
-                            printWarning("Forcing save as directory since a game update was supplied.");
-                        }
-                        saveAsDirectory = true;
-                    }
-                    if (saveAsDirectory && romHandler.generationOfPokemon() != 6 && romHandler.generationOfPokemon() != 7) {
-                        saveAsDirectory = false;
-                        printWarning("Saving as directory does not make sense for non-3DS games, ignoring \"-d\" flag...");
-                    }
-                    //settings.tweakForRom(romHandler);
-                    CliRandomizer.displaySettingsWarnings(settings, romHandler);
-
-                    File fh = new File(destinationRomFilePath);
-                    if (!saveAsDirectory) {
-                        List<String> extensions = new ArrayList<>(Arrays.asList("sgb", "gbc", "gba", "nds", "cxi"));
-                        extensions.remove(romHandler.getDefaultExtension());
-
-                        fh = FileFunctions.fixFilename(fh, romHandler.getDefaultExtension(), extensions);
-                        if (romHandler instanceof AbstractDSRomHandler || romHandler instanceof Abstract3DSRomHandler) {
-                            String currentFN = romHandler.loadedFilename();
-                            if (currentFN.equals(fh.getAbsolutePath())) {
-                                printError(bundle.getString("GUI.cantOverwriteDS"));
-                                return "error";
-                            }
+                    saveAsDirectory = true;
+                }
+                if (saveAsDirectory && romHandler.generationOfPokemon() != 6 && romHandler.generationOfPokemon() != 7) {
+                    saveAsDirectory = false;
+                    printWarning("Saving as directory does not make sense for non-3DS games, ignoring \"-d\" flag...");
+                }
+                //settings.tweakForRom(romHandler);
+                CliRandomizer.displaySettingsWarnings(settings, romHandler);
+
+                File fh = new File(destinationRomFilePath);
+                if (saveAsPatch) {
+                    fh = FileFunctions.fixFilename(fh, romHandler.getPatchExtension());
+                } else if (!saveAsDirectory) {
+                    List<String> extensions = new ArrayList<>(Arrays.asList("sgb", "gbc", "gba", "nds", "cxi"));
+                    extensions.remove(romHandler.getDefaultExtension());
+
+                    fh = FileFunctions.fixFilename(fh, romHandler.getDefaultExtension(), extensions);
+                    if (romHandler instanceof AbstractDSRomHandler || romHandler instanceof Abstract3DSRomHandler) {
+                        String currentFN = romHandler.loadedFilename();
+                        if (currentFN.equals(fh.getAbsolutePath())) {
+                            printError(bundle.getString("GUI.cantOverwriteDS"));
+                            return GenerateQueue.JobResult.failure(bundle.getString("GUI.cantOverwriteDS"));
                         }
                     }
+                }
 
-                    String filename = fh.getAbsolutePath();
+                String filename = fh.getAbsolutePath();
 
-                    Randomizer randomizer = new Randomizer(settings, romHandler, bundle, saveAsDirectory);
-                    if (seed == 0)
-                    {
-                        seed = RandomSource.pickSeed();
-                        randomizer.randomize(filename, verboseLog, seed);
-                    }
-                    else
-                    {
-                        randomizer.randomize(filename, verboseLog, seed);
-                    }
-                    verboseLog.close();
-                    byte[] out = baos.toByteArray();
-                    if (saveLog) {
-                        try {
-                            FileOutputStream fos = new FileOutputStream(filename + ".log");
-                            fos.write(0xEF);
-                            fos.write(0xBB);
-                            fos.write(0xBF);
-                            fos.write(out);
-                            fos.close();
-                        } catch (IOException e) {
-                            printWarning("Could not write log.");
-                        }
+                Randomizer randomizer = new Randomizer(settings, romHandler, bundle, saveAsDirectory);
+                randomizer.setSaveAsPatch(saveAsPatch);
+                randomizer.addListener(metrics);
+                randomizer.addListener(listener);
+                if (seed == 0)
+                {
+                    seed = RandomSource.pickSeed();
+                    randomizer.randomize(filename, verboseLog, seed);
+                }
+                else
+                {
+                    randomizer.randomize(filename, verboseLog, seed);
+                }
+                verboseLog.close();
+                byte[] out = baos.toByteArray();
+                if (saveLog) {
+                    try {
+                        FileOutputStream fos = new FileOutputStream(filename + ".log");
+                        fos.write(0xEF);
+                        fos.write(0xBB);
+                        fos.write(0xBF);
+                        fos.write(out);
+                        fos.close();
+                    } catch (IOException e) {
+                        printWarning("Could not write log.");
                     }
-                    printSuccess("Finished randomizing - update status via API");
-                    String jsonString = new JSONObject()
-                            .put("status", 200)
-                            .put("data", new JSONObject().put("fileName", fh.getName())
-                                    .put("seed", seed)
-                                    .put("settingsString", settings.toString()))
-                            .toString();
-                    return jsonString;
-                    // this is the only successful exit, everything else will return false at the end of the function
-                    //return true;
                 }
+                if (cacheable && !saveAsDirectory) {
+                    ResultCache.instance().store(sourceRomFilePath, settingsString, seed, fh,
+                            romHandler.getDefaultExtension(), out);
+                }
+                metrics.finish(true);
+                printSuccess("Finished randomizing - update status via API");
+                printSuccess("Metrics: " + metrics);
+                return GenerateQueue.JobResult.success(new JSONObject()
+                        .put("status", 200)
+                        .put("data", new JSONObject().put("fileName", fh.getName())
+                                .put("seed", seed)
+                                .put("settingsString", settings.toString())));
+                // this is the only successful exit, everything else will return a failure at the end of the function
             }
             // if we get here it means no rom handlers matched the ROM file
-            System.err.printf(bundle.getString("GUI.unsupportedRom") + "%n", romFileHandler.getName());
+            failure = String.format(bundle.getString("GUI.unsupportedRom"), romFileHandler.getName());
+            System.err.println(failure);
         } catch (Exception e) {
             e.printStackTrace();
+            failure = e.toString();
+        } finally {
+            if (romHandler != null) {
+                romHandler.releaseRom();
+            }
         }
-        return "";
+        metrics.finish(false);
+        return GenerateQueue.JobResult.failure(failure);
     }
 
     private static void displaySettingsWarnings(Settings settings, RomHandler romHandler) {
@@ -197,6 +247,42 @@ public class CliRandomizer {
     }
 
     public static int invoke(String[] args) {
+        if (args.length > 0 && args[0].equals("batch")) {
+            return runBatch(Arrays.copyOfRange(args, 1, args.length));
+        }
+        if (args.length > 0 && args[0].equals("applypatch")) {
+            return runApplyPatch(Arrays.copyOfRange(args, 1, args.length));
+        }
+        int workerCount = Runtime.getRuntime().availableProcessors();
+        int queueCapacity = 0;
+        int maxEventStreams = DEFAULT_MAX_EVENT_STREAMS;
+        for (int i = 0; i < args.length - 1; i++) {
+            switch (args[i]) {
+                case "-w":
+                    workerCount = Integer.parseInt(args[++i]);
+                    break;
+                case "-q":
+                    queueCapacity = Integer.parseInt(args[++i]);
+                    break;
+                case "-e":
+                    maxEventStreams = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (queueCapacity <= 0) {
+            queueCapacity = workerCount * 4;
+        }
+        generateQueue = new GenerateQueue(workerCount, queueCapacity);
+        eventStreams = new Semaphore(maxEventStreams);
+
+        get("/metrics", (request, response) -> {
+            // Prometheus text exposition format
+            response.header("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            return MetricsRegistry.instance().toPrometheusText();
+        });
+
         post("/generate", (request, response) -> {
             // Init variables for later use.
             String updateFile = null;
@@ -246,24 +332,73 @@ public class CliRandomizer {
                 //Some ROMs can have an update file (new functions/pokemon etc) this allow
                 updateFile = request.queryParams("updateFile");
             }
+            // Only send what changed, as a patch for the client to apply to its own copy of the ROM
+            boolean asPatch = "true".equals(request.queryParams("patch"));
             String outFileName = randomStringGenerator.generateString();
-            final AsyncContext ctx = request.raw().startAsync();
             long finalProvidedSeed = providedSeed;
             String finalUpdateFile = updateFile;
-            Thread t = new Thread(() -> {
-                try {
-                    performDirectRandomization(settings, finalProvidedSeed, filePath, outFileName, false, finalUpdateFile, false);
-                    ctx.complete();
-                }
-                catch (Exception e) {
-                    e.printStackTrace();
-                }
-            });
-            t.start();
+            boolean queued = generateQueue.submit(outFileName, listener ->
+                    performDirectRandomization(settings, finalProvidedSeed, filePath, outFileName, false, asPatch,
+                            finalUpdateFile, false, listener));
+            if (!queued) {
+                // Too many ROMs loading already, tell the client when to come back
+                long retryAfter = generateQueue.getRetryAfterSeconds();
+                response.status(503);
+                response.header("Retry-After", String.valueOf(retryAfter));
+                return new JSONObject()
+                        .put("status", "503")
+                        .put("data", "Too many randomizations queued, retry later.")
+                        .put("retryAfter", retryAfter).toString();
+            }
 
             return outFileName;
             //return performDirectRandomization(settings, providedSeed, filePath, outFileName, false, updateFile, false);
         });
+        get("/generate/:id", (request, response) -> {
+            response.header("Content-Type", "application/json");
+            GenerateQueue.JobStatus status = generateQueue.getStatus(request.params(":id"));
+            if (status == null) {
+                response.status(404);
+                return new JSONObject()
+                        .put("status", "404")
+                        .put("data", "Unknown randomization.").toString();
+            }
+            return status.toJson().toString();
+        });
+        get("/generate/:id/events", (request, response) -> {
+            GenerateQueue.JobStatus status = generateQueue.getStatus(request.params(":id"));
+            if (status == null) {
+                response.status(404);
+                response.header("Content-Type", "application/json");
+                return new JSONObject()
+                        .put("status", "404")
+                        .put("data", "Unknown randomization.").toString();
+            }
+            if (!eventStreams.tryAcquire()) {
+                // Clients can still poll /generate/:id
+                long retryAfter = generateQueue.getRetryAfterSeconds();
+                response.status(503);
+                response.header("Content-Type", "application/json");
+                response.header("Retry-After", String.valueOf(retryAfter));
+                return new JSONObject()
+                        .put("status", "503")
+                        .put("data", "Too many event streams open, poll the job's status instead.")
+                        .put("retryAfter", retryAfter).toString();
+            }
+            // Server-sent events: replays the job's progress so far, then streams it live until it's done
+            try {
+                HttpServletResponse raw = response.raw();
+                raw.setContentType("text/event-stream");
+                raw.setCharacterEncoding("UTF-8");
+                raw.setHeader("Cache-Control", "no-cache");
+                status.getProgress().stream(raw.getOutputStream());
+            } catch (IOException e) {
+                // Client disconnected
+            } finally {
+                eventStreams.release();
+            }
+            return "";
+        });
         post("/uploadTest", (request, response) -> {
             uploadFile1Fichier(request.queryParams("url"), request.queryParams("id"), new File(request.queryParams("file")));
             return 1;
@@ -306,6 +441,109 @@ public class CliRandomizer {
         return 0;
     }
 
+    // cli batch -i <rom> -o <output dir> (-s <settings string> | -S <settings JSON>) (-n <count> | -e <seed,seed,...>)
+    //           [-t <threads>] [-p <output prefix>] [-l] [-P]
+    private static int runBatch(String[] args) {
+        String romFilePath = null;
+        String outputDirectory = null;
+        Settings settings = null;
+        List<Long> seeds = new ArrayList<>();
+        int count = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String outputPrefix = null;
+        boolean noLogs = false;
+        boolean patches = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-i":
+                        romFilePath = args[++i];
+                        break;
+                    case "-o":
+                        outputDirectory = args[++i];
+                        break;
+                    case "-s":
+                        settings = getSettingsFromString(args[++i]);
+                        break;
+                    case "-S":
+                        settings = createSettingsFromString(args[++i]);
+                        break;
+                    case "-n":
+                        count = Integer.parseInt(args[++i]);
+                        break;
+                    case "-e":
+                        for (String seed : args[++i].split(",")) {
+                            seeds.add(Long.parseLong(seed.trim()));
+                        }
+                        break;
+                    case "-t":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "-p":
+                        outputPrefix = args[++i];
+                        break;
+                    case "-l":
+                        noLogs = true;
+                        break;
+                    case "-P":
+                        patches = true;
+                        break;
+                    default:
+                        printWarning("Ignoring unknown batch option " + args[i]);
+                        break;
+                }
+            }
+        } catch (Exception e) {
+            printError("Invalid batch arguments: " + e);
+            return 1;
+        }
+        if (romFilePath == null || outputDirectory == null || settings == null || (count <= 0 && seeds.isEmpty())) {
+            printError("Usage: batch -i <rom> -o <output dir> (-s <settings string> | -S <settings JSON>) "
+                    + "(-n <count> | -e <seed,seed,...>) [-t <threads>] [-p <output prefix>] [-l] [-P]");
+            return 1;
+        }
+
+        BatchRandomizer batch = new BatchRandomizer(settings, romFilePath, new File(outputDirectory))
+                .setThreads(threads)
+                .setSaveLogs(!noLogs)
+                .setSavePatches(patches);
+        if (outputPrefix != null) {
+            batch.setOutputPrefix(outputPrefix);
+        }
+        try {
+            List<BatchRandomizer.SeedResult> results = seeds.isEmpty() ? batch.randomize(count) : batch.randomize(seeds);
+            int failed = 0;
+            for (BatchRandomizer.SeedResult result : results) {
+                if (!result.success) {
+                    failed++;
+                    printError("Seed " + result.seed + " failed: " + result.error);
+                }
+            }
+            printSuccess("Randomized " + (results.size() - failed) + " of " + results.size() + " seeds into "
+                    + new File(outputDirectory).getAbsolutePath());
+            return failed == 0 ? 0 : 1;
+        } catch (IOException e) {
+            printError(e.getMessage());
+            return 1;
+        }
+    }
+
+    // cli applypatch <source ROM> <BPS patch> <output ROM>
+    private static int runApplyPatch(String[] args) {
+        if (args.length != 3) {
+            printError("Usage: applypatch <source ROM> <BPS patch> <output ROM>");
+            return 1;
+        }
+        try {
+            BPSPatch.apply(args[0], args[1], args[2]);
+        } catch (IOException e) {
+            printError(e.getMessage());
+            return 1;
+        }
+        printSuccess(new File(args[2]).getAbsolutePath());
+        return 0;
+    }
+
     private static Settings getSettingsFromString(String settingsString) throws UnsupportedEncodingException {
         int settingsStringVersionNumber = Integer.parseInt(settingsString.substring(0, 3));
         if (settingsStringVersionNumber < Version.VERSION) {
@@ -347,7 +585,7 @@ public class CliRandomizer {
 //            File chosenFile = new File(filePath);
 //            if (rhf.isLoadable(chosenFile.getAbsolutePath()))
 //            {
-//                romHandler = rhf.create(RandomSource.instance());
+//                romHandler = rhf.create(new RandomSource());
 //                romHandler.loadRom(filePath);
 //            }
 //        }
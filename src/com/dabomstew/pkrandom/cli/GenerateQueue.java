@@ -0,0 +1,183 @@
+package com.dabomstew.pkrandom.cli;
+
+import com.dabomstew.pkrandom.RandomizationListener;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// Runs /generate requests on a fixed number of threads behind a bounded queue, and remembers what
+// happened to each one so clients can ask for its status. When the queue is full, submit() refuses
+// the job and the caller tells the client when to retry instead of starting yet another ROM load.
+public class GenerateQueue {
+
+    private static final int MAX_REMEMBERED_JOBS = 10000;
+    private static final long DEFAULT_JOB_MILLIS = 10000;
+
+    public enum JobState {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    // What a job produced: the JSON /generate used to return when it succeeded, or why it failed
+    public static class JobResult {
+        private final boolean success;
+        private final JSONObject data;
+        private final String error;
+
+        private JobResult(boolean success, JSONObject data, String error) {
+            this.success = success;
+            this.data = data;
+            this.error = error;
+        }
+
+        public static JobResult success(JSONObject data) {
+            return new JobResult(true, data, null);
+        }
+
+        public static JobResult failure(String error) {
+            return new JobResult(false, null, error);
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        // The JSON on success, the error text otherwise
+        Object toJsonValue() {
+            return success ? data : error;
+        }
+
+        @Override
+        public String toString() {
+            return success ? data.toString() : error;
+        }
+    }
+
+    public static class JobStatus {
+        private final String id;
+        private volatile JobState state = JobState.QUEUED;
+        private volatile JobResult result;
+        private final long queuedAt = System.currentTimeMillis();
+        private volatile long startedAt;
+        private volatile long finishedAt;
+        private final JobProgress progress = new JobProgress();
+
+        private JobStatus(String id) {
+            this.id = id;
+        }
+
+        public JobState getState() {
+            return state;
+        }
+
+        public JobProgress getProgress() {
+            return progress;
+        }
+
+        public JSONObject toJson() {
+            JSONObject json = new JSONObject()
+                    .put("id", id)
+                    .put("state", state.name())
+                    .put("queuedAt", queuedAt);
+            if (startedAt != 0) {
+                json.put("startedAt", startedAt);
+            }
+            if (finishedAt != 0) {
+                json.put("finishedAt", finishedAt);
+            }
+            if (result != null) {
+                json.put("result", result.toJsonValue());
+            }
+            return json;
+        }
+    }
+
+    private final int workerCount;
+    private final ThreadPoolExecutor executor;
+    // Insertion-ordered so the oldest jobs are forgotten first. Guarded by itself.
+    private final Map<String, JobStatus> jobs = new LinkedHashMap<String, JobStatus>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, JobStatus> eldest) {
+            return size() > MAX_REMEMBERED_JOBS;
+        }
+    };
+    private volatile long averageJobMillis = DEFAULT_JOB_MILLIS;
+
+    public GenerateQueue(int workerCount, int queueCapacity) {
+        this.workerCount = workerCount;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "generate-" + threadNumber.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    // Queues a job. The task is handed the job's progress listener. Returns false without queueing
+    // anything when the queue is full.
+    public boolean submit(String id, Function<RandomizationListener, JobResult> task) {
+        JobStatus status = new JobStatus(id);
+        status.progress.state(JobState.QUEUED.name());
+        synchronized (jobs) {
+            jobs.put(id, status);
+        }
+        try {
+            executor.execute(() -> run(status, task));
+            return true;
+        } catch (RejectedExecutionException e) {
+            synchronized (jobs) {
+                jobs.remove(id);
+            }
+            return false;
+        }
+    }
+
+    public JobStatus getStatus(String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    // Rough number of seconds until a queue slot frees up, for the Retry-After header
+    public long getRetryAfterSeconds() {
+        long millis = averageJobMillis * (getQueuedCount() / workerCount + 1);
+        return Math.max(1, (millis + 999) / 1000);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void run(JobStatus status, Function<RandomizationListener, JobResult> task) {
+        status.startedAt = System.currentTimeMillis();
+        status.state = JobState.RUNNING;
+        status.progress.state(JobState.RUNNING.name());
+        try {
+            JobResult result = task.apply(status.progress);
+            status.result = result != null ? result : JobResult.failure("No result");
+            status.state = status.result.isSuccess() ? JobState.DONE : JobState.FAILED;
+        } catch (Throwable t) {
+            // Errors too, e.g. running out of memory, or the job would stay RUNNING for good
+            t.printStackTrace();
+            status.result = JobResult.failure(t.toString());
+            status.state = JobState.FAILED;
+        } finally {
+            status.finishedAt = System.currentTimeMillis();
+            status.progress.finish(status.state.name(), status.result);
+            long millis = status.finishedAt - status.startedAt;
+            // Moving average, so the retry hint follows the kind of ROMs currently being requested
+            averageJobMillis = (averageJobMillis * 7 + millis) / 8;
+        }
+    }
+}
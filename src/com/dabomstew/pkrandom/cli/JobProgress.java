@@ -0,0 +1,94 @@
+package com.dabomstew.pkrandom.cli;
+
+import com.dabomstew.pkrandom.RandomizationListener;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Collects the progress of one /generate job as server-sent events. Every subscriber gets the events
+// so far replayed first, so it doesn't matter whether a client connects before or after the job starts.
+public class JobProgress implements RandomizationListener {
+
+    private static final long KEEP_ALIVE_MILLIS = 15000;
+
+    // Guarded by this
+    private final List<String> events = new ArrayList<>();
+    private boolean finished;
+
+    public void state(String state) {
+        add("state", new JSONObject().put("state", state));
+    }
+
+    @Override
+    public void phaseStarted(Phase phase, long elapsedMillis) {
+        add("phaseStarted", new JSONObject()
+                .put("phase", phase.name())
+                .put("elapsedMillis", elapsedMillis));
+    }
+
+    @Override
+    public void phaseFinished(Phase phase, long phaseMillis, long elapsedMillis) {
+        add("phaseFinished", new JSONObject()
+                .put("phase", phase.name())
+                .put("phaseMillis", phaseMillis)
+                .put("elapsedMillis", elapsedMillis));
+    }
+
+    @Override
+    public void randomizationFinished(long elapsedMillis) {
+        add("randomizationFinished", new JSONObject().put("elapsedMillis", elapsedMillis));
+    }
+
+    // The last event of a job. Subscribers are disconnected once they've been sent it.
+    public synchronized void finish(String state, GenerateQueue.JobResult result) {
+        if (finished) {
+            return;
+        }
+        JSONObject data = new JSONObject().put("state", state);
+        if (result != null) {
+            data.put("result", result.toJsonValue());
+        }
+        add("done", data);
+        finished = true;
+    }
+
+    // Writes events to the stream as they happen, until the job is done or the client goes away
+    public void stream(OutputStream out) throws IOException, InterruptedException {
+        int sent = 0;
+        while (true) {
+            List<String> pending;
+            boolean done;
+            synchronized (this) {
+                if (sent == events.size() && !finished) {
+                    wait(KEEP_ALIVE_MILLIS);
+                }
+                pending = new ArrayList<>(events.subList(sent, events.size()));
+                done = finished;
+            }
+            if (pending.isEmpty() && !done) {
+                // Comment line, keeps proxies from closing an idle connection
+                out.write(":\n\n".getBytes(StandardCharsets.UTF_8));
+            }
+            for (String event : pending) {
+                out.write(event.getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+            sent += pending.size();
+            if (done) {
+                return;
+            }
+        }
+    }
+
+    private synchronized void add(String name, JSONObject data) {
+        if (finished) {
+            return;
+        }
+        events.add("id: " + events.size() + "\nevent: " + name + "\ndata: " + data + "\n\n");
+        notifyAll();
+    }
+}
@@ -21,6 +21,7 @@ package com.dabomstew.pkrandom.ctr;
 /*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
 /*----------------------------------------------------------------------------*/
 
+import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
 import cuecompressors.BLZCoder;
 
 import java.io.ByteArrayOutputStream;
@@ -44,6 +45,9 @@ public class GARCArchive {
     private final String fimbMagic = "BMIF";
     private boolean skipDecompression = true;
 
+    // The archive as it was read. Subfiles are only decoded out of it when they're first used.
+    private byte[] data;
+
     public List<Map<Integer,byte[]>> files = new ArrayList<>();
     private Map<Integer,Boolean> isCompressed = new TreeMap<>();
     private List<Boolean> compressThese = null;
@@ -166,33 +170,22 @@ public class GARCArchive {
         }
         fimb.headerSize = bbuf.getInt();
         fimb.dataSize = bbuf.getInt();
-        fimb.files = new ArrayList<>();
         for (int i = 0; i < fatb.fileCount; i++) {
             FATBEntry entry = fatb.entries[i];
-            Map<Integer,byte[]> files = new TreeMap<>();
             for (int k: entry.subEntries.keySet()) {
                 FATBSubEntry subEntry = entry.subEntries.get(k);
-                bbuf.position(garc.dataOffset + subEntry.start);
-                byte[] file = new byte[subEntry.length];
-                boolean compressed = compressThese == null ?
-                        bbuf.get(bbuf.position()) == 0x11 && !skipDecompression :
-                        bbuf.get(bbuf.position()) == 0x11 && compressThese.get(i);
-                bbuf.get(file);
-                if (compressed) {
-                    try {
-                        files.put(k,new BLZCoder(null).BLZ_DecodePub(file,"GARC"));
-                        isCompressed.put(i,true);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        return false;
-                    }
-                } else {
-                    files.put(k,file);
-                    isCompressed.put(i,false);
+                int start = garc.dataOffset + subEntry.start;
+                if (start < 0 || subEntry.length < 0 || start + subEntry.length > data.length) {
+                    return false;
                 }
+                subEntry.compressed = compressThese == null ?
+                        data[start] == 0x11 && !skipDecompression :
+                        data[start] == 0x11 && compressThese.get(i);
+                isCompressed.put(i,subEntry.compressed);
             }
-            fimb.files.add(files);
         }
+        this.data = data;
+        fimb.files = new LazyFiles(fatb.fileCount);
         return true;
     }
 
@@ -200,6 +193,59 @@ public class GARCArchive {
         fimb.files = files;
     }
 
+    // Decodes one subfile out of the backing array
+    private byte[] readSubfile(FATBSubEntry subEntry) {
+        int start = garc.dataOffset + subEntry.start;
+        byte[] file = Arrays.copyOfRange(data, start, start + subEntry.length);
+        if (subEntry.compressed) {
+            try {
+                return new BLZCoder(null).BLZ_DecodePub(file,"GARC");
+            } catch (Exception e) {
+                throw new RandomizerIOException("Invalid GARC file", e);
+            }
+        }
+        return file;
+    }
+
+    // Whether entry i can be written out as the bytes it was read from. That's the case for entries no one
+    // has looked at, and for entries that were looked at (and perhaps edited in place) but still hold what
+    // they were read with.
+    private boolean isUnchanged(int i) {
+        if (!(fimb.files instanceof LazyFiles)) {
+            return false;
+        }
+        LazyFiles lazyFiles = (LazyFiles) fimb.files;
+        if (lazyFiles.dirty[i]) {
+            return false;
+        }
+        Map<Integer,byte[]> directory = lazyFiles.loaded.get(i);
+        if (directory == null) {
+            return true;
+        }
+        Map<Integer,FATBSubEntry> subEntries = fatb.entries[i].subEntries;
+        if (!directory.keySet().equals(subEntries.keySet())) {
+            return false;
+        }
+        for (int k: subEntries.keySet()) {
+            FATBSubEntry subEntry = subEntries.get(k);
+            byte[] file = directory.get(k);
+            if (file == null) {
+                return false;
+            }
+            if (subEntry.compressed) {
+                if (!Arrays.equals(file, readSubfile(subEntry))) {
+                    return false;
+                }
+            } else {
+                int start = garc.dataOffset + subEntry.start;
+                if (!ByteBuffer.wrap(file).equals(ByteBuffer.wrap(data, start, subEntry.length))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     public byte[] getBytes() throws IOException {
         int garcHeaderSize = garc.version == VER_4 ? garcHeaderSize_4 : garcHeaderSize_6;
         ByteBuffer garcBuf = ByteBuffer.allocate(garcHeaderSize);
@@ -234,17 +280,26 @@ public class GARCArchive {
         int largestSize = 0;
         int largestPadded = 0;
         for (int i = 0; i < fimb.files.size(); i++) {
-            Map<Integer,byte[]> directory = fimb.files.get(i);
             int bitVector = 0;
             int totalLength = 0;
-            for (int k: directory.keySet()) {
-                bitVector |= (1 << k);
-                byte[] file = directory.get(k);
-                if (isCompressed.get(i)) {
-                    file = new BLZCoder(null).BLZ_EncodePub(file,false,false,"GARC");
+            if (isUnchanged(i)) {
+                // Copy the subfiles as they were read, without decompressing and compressing them again
+                for (Map.Entry<Integer,FATBSubEntry> subEntry : fatb.entries[i].subEntries.entrySet()) {
+                    bitVector |= (1 << subEntry.getKey());
+                    fimbPayloadStream.write(data, garc.dataOffset + subEntry.getValue().start, subEntry.getValue().length);
+                    totalLength += subEntry.getValue().length;
+                }
+            } else {
+                Map<Integer,byte[]> directory = fimb.files.get(i);
+                for (int k: directory.keySet()) {
+                    bitVector |= (1 << k);
+                    byte[] file = directory.get(k);
+                    if (isCompressed.get(i)) {
+                        file = new BLZCoder(null).BLZ_EncodePub(file,false,false,"GARC");
+                    }
+                    fimbPayloadStream.write(file);
+                    totalLength += file.length;
                 }
-                fimbPayloadStream.write(file);
-                totalLength += file.length;
             }
 
             int paddingRequired = totalLength % garc.contentPadToNearest;
@@ -334,6 +389,9 @@ public class GARCArchive {
 
     public void setFile(int index, byte[] data) {
         fimb.files.get(index).put(0,data);
+        if (fimb.files instanceof LazyFiles) {
+            ((LazyFiles) fimb.files).dirty[index] = true;
+        }
     }
 
     public Map<Integer,byte[]> getDirectory(int index) {
@@ -374,12 +432,50 @@ public class GARCArchive {
 
     private class FATBSubEntry {
         boolean exists;
+        boolean compressed;
         int start;
         int end;
         int length;
         int padding;
     }
 
+    // The entries of the archive, each decoded the first time it's asked for. Entries that are replaced
+    // through set() or setFile() are marked dirty; entries edited in place are found by getBytes().
+    private class LazyFiles extends AbstractList<Map<Integer,byte[]>> {
+        private final List<Map<Integer,byte[]>> loaded;
+        private final boolean[] dirty;
+
+        private LazyFiles(int count) {
+            this.loaded = new ArrayList<>(Collections.nCopies(count, null));
+            this.dirty = new boolean[count];
+        }
+
+        @Override
+        public Map<Integer,byte[]> get(int index) {
+            if (loaded.get(index) == null) {
+                Map<Integer,byte[]> directory = new TreeMap<>();
+                for (Map.Entry<Integer,FATBSubEntry> subEntry : fatb.entries[index].subEntries.entrySet()) {
+                    directory.put(subEntry.getKey(), readSubfile(subEntry.getValue()));
+                }
+                loaded.set(index, directory);
+            }
+            return loaded.get(index);
+        }
+
+        @Override
+        public Map<Integer,byte[]> set(int index, Map<Integer,byte[]> directory) {
+            Map<Integer,byte[]> old = get(index);
+            loaded.set(index, directory);
+            dirty[index] = true;
+            return old;
+        }
+
+        @Override
+        public int size() {
+            return loaded.size();
+        }
+    }
+
     private class FIMBFrame {
         int headerSize;
         int dataSize;
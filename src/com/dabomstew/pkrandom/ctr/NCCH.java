@@ -22,22 +22,27 @@ package com.dabomstew.pkrandom.ctr;
 /*----------------------------------------------------------------------------*/
 
 import com.dabomstew.pkrandom.FileFunctions;
-import com.dabomstew.pkrandom.SysConstants;
-import com.dabomstew.pkrandom.cli.randomStringGenerator;
+import com.dabomstew.pkrandom.MappedFile;
+import com.dabomstew.pkrandom.OverlayStore;
+import com.dabomstew.pkrandom.ParallelHasher;
 import com.dabomstew.pkrandom.exceptions.EncryptedROMException;
 import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
 import cuecompressors.BLZCoder;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.*;
 import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 public class NCCH {
     private String romFilename;
     private RandomAccessFile baseRom;
+    private MappedFile mappedRom;
     private long ncchStartingOffset;
     private String productCode;
     private String titleId;
@@ -49,10 +54,10 @@ public class NCCH {
     private List<FileMetadata> fileMetadataList;
     private Map<String, RomfsFile> romfsFiles;
     private boolean romOpen;
-    private String tmpFolder;
-    private boolean writingEnabled;
+    private final OverlayStore overlays;
+    // The NCCH this one was copied from, which is never changed itself (see copy())
+    private final NCCH base;
     private boolean codeCompressed, codeOpen, codeChanged;
-    private byte[] codeRamstored;
 
     // Public so the base game can read it from the game update NCCH
     public long originalCodeCRC, originalRomfsHeaderCRC;
@@ -69,10 +74,15 @@ public class NCCH {
     private static final int romfs_magic_2 = 0x00000100;
     private static final int level3_header_size = 0x28;
     private static final int metadata_unused = 0xFFFFFFFF;
+    private static final int copy_buffer_size = 0x100000;
+    // Writes shorter than this are hashed on the calling thread rather than handed to ParallelHasher
+    private static final int inline_hash_threshold = 0x10000;
 
     public NCCH(String filename, String productCode, String titleId) throws IOException {
+        this.base = null;
         this.romFilename = filename;
         this.baseRom = new RandomAccessFile(filename, "r");
+        this.mappedRom = MappedFile.open(filename);
         this.ncchStartingOffset = NCCH.getCXIOffsetInFile(filename);
         this.productCode = productCode;
         this.titleId = titleId;
@@ -82,20 +92,7 @@ public class NCCH {
             this.version = this.readVersionFromFile();
         }
 
-        // TMP folder?
-        String rawFilename = new File(filename).getName();
-        String dataFolder = "tmp_" + randomStringGenerator.generateString() + rawFilename.substring(0, rawFilename.lastIndexOf('.'));
-        // remove nonsensical chars
-        dataFolder = dataFolder.replaceAll("[^A-Za-z0-9_]+", "");
-        File tmpFolder = new File(SysConstants.ROOT_PATH + dataFolder);
-        tmpFolder.mkdirs();
-        if (tmpFolder.canWrite()) {
-            writingEnabled = true;
-            this.tmpFolder = SysConstants.ROOT_PATH + dataFolder + File.separator;
-            tmpFolder.deleteOnExit();
-        } else {
-            writingEnabled = false;
-        }
+        this.overlays = OverlayStore.create(filename);
 
         // The below code handles things "wrong" with regards to encrypted ROMs. We just
         // blindly treat the ROM as decrypted and try to parse all of its data, when we
@@ -114,6 +111,50 @@ public class NCCH {
         }
     }
 
+    private NCCH(NCCH base) throws IOException {
+        this.base = base;
+        this.romFilename = base.romFilename;
+        this.baseRom = new RandomAccessFile(romFilename, "r");
+        this.mappedRom = MappedFile.open(romFilename);
+        this.ncchStartingOffset = base.ncchStartingOffset;
+        this.productCode = base.productCode;
+        this.titleId = base.titleId;
+        this.version = base.version;
+        this.romOpen = true;
+        this.overlays = OverlayStore.create(romFilename);
+        this.exefsOffset = base.exefsOffset;
+        this.romfsOffset = base.romfsOffset;
+        this.fileDataOffset = base.fileDataOffset;
+        this.codeCompressed = base.codeCompressed;
+        this.codeFileHeader = base.codeFileHeader;
+        this.extraExefsFiles = base.extraExefsFiles;
+        // Saving writes the seed into the SMDH and moves files around in the metadata, so those are copied
+        this.smdh = base.smdh == null ? null : new SMDH(base.smdh.getBytes().clone());
+        this.originalRomfsHeaderCRC = base.originalRomfsHeaderCRC;
+        if (base.fileMetadataList != null) {
+            fileMetadataList = new ArrayList<>();
+            romfsFiles = new TreeMap<>();
+            for (FileMetadata baseMetadata : base.fileMetadataList) {
+                FileMetadata metadata = new FileMetadata(baseMetadata);
+                RomfsFile file = new RomfsFile(this);
+                file.offset = baseMetadata.file.offset;
+                file.size = baseMetadata.file.size;
+                file.fullPath = baseMetadata.file.fullPath;
+                metadata.file = file;
+                fileMetadataList.add(metadata);
+                romfsFiles.put(file.fullPath, file);
+            }
+        }
+    }
+
+    // A new NCCH for the same unchanged file that doesn't read the exefs and romfs tables again. This
+    // one is the pristine base of its copies and mustn't be changed: the first copy to read .code has it
+    // decompressed into this one's store, and the others take it from there. What the copies change
+    // goes into their own stores.
+    public NCCH copy() throws IOException {
+        return new NCCH(this);
+    }
+
     public void reopenROM() throws IOException {
         if (!this.romOpen) {
             baseRom = new RandomAccessFile(this.romFilename, "r");
@@ -129,6 +170,12 @@ public class NCCH {
         }
     }
 
+    // Closes the ROM and frees its store, for when the randomization using it is over
+    public void close() throws IOException {
+        closeROM();
+        overlays.close();
+    }
+
     private void readFileSystem() throws IOException {
         exefsOffset = ncchStartingOffset + FileFunctions.readIntFromFile(baseRom, ncchStartingOffset + 0x1A0) * media_unit_size;
         romfsOffset = ncchStartingOffset + FileFunctions.readIntFromFile(baseRom, ncchStartingOffset + 0x1B0) * media_unit_size;
@@ -320,21 +367,15 @@ public class NCCH {
         fNew.write((int) newRomfsLength / media_unit_size);
 
         // Lastly, reconstruct the superblock hashes
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
         int exefsHashRegionSize = FileFunctions.readIntFromFile(baseRom, ncchStartingOffset + 0x1A8) * media_unit_size;
-        byte[] exefsDataToHash = new byte[exefsHashRegionSize];
-        fNew.seek(newExefsOffset);
-        fNew.readFully(exefsDataToHash);
-        byte[] exefsSuperblockHash = digest.digest(exefsDataToHash);
-        fNew.seek(0x1C0);
-        fNew.write(exefsSuperblockHash);
         int romfsHashRegionSize = FileFunctions.readIntFromFile(baseRom, ncchStartingOffset + 0x1B8) * media_unit_size;
-        byte[] romfsDataToHash = new byte[romfsHashRegionSize];
-        fNew.seek(newRomfsOffset);
-        fNew.readFully(romfsDataToHash);
-        byte[] romfsSuperblockHash = digest.digest(romfsDataToHash);
+        byte[][] superblockHashes = ParallelHasher.sha256(Arrays.asList(
+                new ParallelHasher.Region(fNew.getChannel(), newExefsOffset, exefsHashRegionSize),
+                new ParallelHasher.Region(fNew.getChannel(), newRomfsOffset, romfsHashRegionSize)));
+        fNew.seek(0x1C0);
+        fNew.write(superblockHashes[0]);
         fNew.seek(0x1E0);
-        fNew.write(romfsSuperblockHash);
+        fNew.write(superblockHashes[1]);
 
         // While totally optional, let's zero out the NCCH signature so that
         // it's clear this isn't a properly-signed ROM
@@ -342,12 +383,10 @@ public class NCCH {
         fNew.seek(0x0);
         fNew.write(zeroedSignature);
         fNew.close();
-        purgeDirectory(new File(tmpFolder));
-        File directory = new File(tmpFolder);
-        directory.delete();
+        overlays.close();
     }
 
-    private long rebuildExefs(RandomAccessFile fNew, long newExefsOffset) throws IOException, NoSuchAlgorithmException {
+    private long rebuildExefs(RandomAccessFile fNew, long newExefsOffset) throws IOException {
         System.out.println("NCCH: Rebuilding exefs...");
         byte[] code = getCode();
         if (codeCompressed) {
@@ -372,7 +411,8 @@ public class NCCH {
         }
 
         // Write the file data, then hash the data and write the hashes in reverse order
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        List<ParallelHasher.Region> fileData = new ArrayList<>();
+        List<Integer> hashSlots = new ArrayList<>();
         long endingOffset = 0;
         for (int i = 0; i < newHeaders.length; i++) {
             ExefsFileHeader header = newHeaders[i];
@@ -390,26 +430,27 @@ public class NCCH {
                 }
                 fNew.seek(newExefsOffset + 0x200 + header.offset);
                 fNew.write(data);
-                byte[] hash = digest.digest(data);
-                fNew.seek(newExefsOffset + 0x200 - ((i + 1) * 0x20));
-                fNew.write(hash);
+                fileData.add(new ParallelHasher.Region(data, 0, data.length));
+                hashSlots.add(i);
                 endingOffset = newExefsOffset + 0x200 + header.offset + header.size;
             }
         }
+        byte[][] hashes = ParallelHasher.sha256(fileData);
+        for (int i = 0; i < hashes.length; i++) {
+            fNew.seek(newExefsOffset + 0x200 - ((hashSlots.get(i) + 1) * 0x20));
+            fNew.write(hashes[i]);
+        }
 
         // Pad to media unit size
         fNew.seek(endingOffset);
-        long exefsLength = endingOffset - newExefsOffset;
-        while (exefsLength % media_unit_size != 0) {
-            fNew.writeByte(0);
-            exefsLength++;
-        }
+        long exefsLength = alignLong(endingOffset - newExefsOffset, media_unit_size);
+        fNew.write(new byte[(int) (exefsLength - (endingOffset - newExefsOffset))]);
 
         System.out.println("NCCH: Done rebuilding exefs");
         return exefsLength;
     }
 
-    private long rebuildRomfs(RandomAccessFile fNew, long newRomfsOffset) throws IOException, NoSuchAlgorithmException {
+    private long rebuildRomfs(RandomAccessFile fNew, long newRomfsOffset) throws IOException {
         System.out.println("NCCH: Rebuilding romfs...");
 
         // Start by copying the romfs header straight from the original ROM. We'll update the
@@ -429,65 +470,57 @@ public class NCCH {
         long level3Offset = romfsOffset + alignLong(0x60 + masterHashSize, level3HashBlockSize);
         long newLevel3Offset = newRomfsOffset + alignLong(0x60 + masterHashSize, level3HashBlockSize);
 
-        // Copy the level 3 header straight from the original ROM. Since we're not adding or
-        // removing any files, the File/Directory tables should have the same offsets and lengths
+        // The base ROM's level 2, i.e. the hashes of its level 3 blocks. Any block that ends up exactly
+        // as it was in the base ROM keeps its hash instead of being hashed again.
+        long baseLevel3HashdataSize = FileFunctions.readFullLong(romfsHeaderData, 0x44);
+        long baseLevel1HashdataSize = FileFunctions.readFullLong(romfsHeaderData, 0x14);
+        long baseLevel1Offset = level3Offset + alignLong(baseLevel3HashdataSize, level3HashBlockSize);
+        long baseLevel2Offset = baseLevel1Offset
+                + alignLong(baseLevel1HashdataSize, 1 << FileFunctions.readFullInt(romfsHeaderData, 0x1C));
+        byte[] baseLevel3Hashes = new byte[(int) (alignLong(baseLevel3HashdataSize, level3HashBlockSize) / level3HashBlockSize * 0x20)];
+        baseRom.seek(baseLevel2Offset);
+        baseRom.readFully(baseLevel3Hashes);
+        HashingWriter level3 = new HashingWriter(fNew, newLevel3Offset, level3HashBlockSize, baseRom, level3Offset,
+                baseLevel3Hashes);
+
+        // Copy the level 3 header and the tables straight from the original ROM. Since we're not adding
+        // or removing any files, the File/Directory tables should have the same offsets and lengths.
         byte[] level3HeaderData = new byte[level3_header_size];
         baseRom.seek(level3Offset);
         baseRom.readFully(level3HeaderData);
-        fNew.seek(newLevel3Offset);
-        fNew.write(level3HeaderData);
-
-        // Write out both hash tables and the directory metadata table. Since we're not adding or removing
-        // any files/directories, we can just use what's in the base ROM for this.
-        int directoryHashTableOffset = FileFunctions.readFullInt(level3HeaderData, 0x04);
-        int directoryHashTableLength = FileFunctions.readFullInt(level3HeaderData, 0x08);
-        int directoryMetadataTableOffset = FileFunctions.readFullInt(level3HeaderData, 0x0C);
-        int directoryMetadataTableLength = FileFunctions.readFullInt(level3HeaderData, 0x10);
-        int fileHashTableOffset = FileFunctions.readFullInt(level3HeaderData, 0x14);
-        int fileHashTableLength = FileFunctions.readFullInt(level3HeaderData, 0x18);
-        byte[] directoryHashTable = new byte[directoryHashTableLength];
-        baseRom.seek(level3Offset + directoryHashTableOffset);
-        baseRom.readFully(directoryHashTable);
-        fNew.seek(newLevel3Offset + directoryHashTableOffset);
-        fNew.write(directoryHashTable);
-        byte[] directoryMetadataTable = new byte[directoryMetadataTableLength];
-        baseRom.seek(level3Offset + directoryMetadataTableOffset);
-        baseRom.readFully(directoryMetadataTable);
-        fNew.seek(newLevel3Offset + directoryMetadataTableOffset);
-        fNew.write(directoryMetadataTable);
-        byte[] fileHashTable = new byte[fileHashTableLength];
-        baseRom.seek(level3Offset + fileHashTableOffset);
-        baseRom.readFully(fileHashTable);
-        fNew.seek(newLevel3Offset + fileHashTableOffset);
-        fNew.write(fileHashTable);
+        int fileDataOffset = FileFunctions.readFullInt(level3HeaderData, 0x24);
+        level3.copy(0, level3Offset, fileDataOffset);
 
         // Now reconstruct the file metadata table. It may need to be changed if any file grew or shrunk
         int fileMetadataTableOffset = FileFunctions.readFullInt(level3HeaderData, 0x1C);
         int fileMetadataTableLength = FileFunctions.readFullInt(level3HeaderData, 0x20);
+        byte[] fileMetadataTable = new byte[fileMetadataTableLength];
+        baseRom.seek(level3Offset + fileMetadataTableOffset);
+        baseRom.readFully(fileMetadataTable);
         byte[] newFileMetadataTable = updateFileMetadataTable(fileMetadataTableLength);
-        fNew.seek(newLevel3Offset + fileMetadataTableOffset);
-        fNew.write(newFileMetadataTable);
+        if (!Arrays.equals(fileMetadataTable, newFileMetadataTable)) {
+            level3.write(fileMetadataTableOffset, newFileMetadataTable);
+        }
 
-        // Using the new file metadata table, output the file data
-        int fileDataOffset = FileFunctions.readFullInt(level3HeaderData, 0x24);
+        // Using the new file metadata table, output the file data. Unchanged files are copied over
+        // from the base ROM without going through memory if they haven't moved.
         long endOfFileDataOffset = 0;
         for (FileMetadata metadata : fileMetadataList) {
             System.out.println("NCCH: Writing file " + metadata.file.fullPath + " to romfs");
             // Users have sent us bug reports with really bizarre errors here that seem to indicate
             // broken metadata; do this in a try-catch solely so we can log the metadata if we fail
             try {
-                byte[] fileData;
+                long currentDataOffset = fileDataOffset + metadata.fileDataOffset;
+                long fileLength;
                 if (metadata.file.fileChanged) {
-                    fileData = metadata.file.getOverrideContents();
+                    byte[] fileData = metadata.file.getOverrideContents();
+                    level3.write(currentDataOffset, fileData);
+                    fileLength = fileData.length;
                 } else {
-                    fileData = new byte[metadata.file.size];
-                    baseRom.seek(metadata.file.offset);
-                    baseRom.readFully(fileData);
+                    fileLength = metadata.file.size;
+                    level3.copy(currentDataOffset, metadata.file.offset, fileLength);
                 }
-                long currentDataOffset = newLevel3Offset + fileDataOffset + metadata.fileDataOffset;
-                fNew.seek(currentDataOffset);
-                fNew.write(fileData);
-                endOfFileDataOffset = currentDataOffset + fileData.length;
+                endOfFileDataOffset = newLevel3Offset + currentDataOffset + fileLength;
             } catch (Exception e) {
                 String message = String.format("Error when building romfs: File: %s, offset: %s, size: %s",
                         metadata.file.fullPath, metadata.offset, metadata.file.size);
@@ -509,38 +542,23 @@ public class NCCH {
         long newLevel1Offset = newLevel3Offset + alignLong(newLevel3HashdataSize, level3HashBlockSize);
         long newLevel2Offset = newLevel1Offset + alignLong(newLevel1HashdataSize, level1HashBlockSize);
         long newFileEndingOffset = alignLong(newLevel2Offset + newLevel2HashdataSize, level2HashBlockSize);
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] dataToHash = new byte[level3HashBlockSize];
-        for (long i = 0; i < numberOfLevel3HashBlocks; i++) {
-            fNew.seek(newLevel3Offset + (i * level3HashBlockSize));
-            fNew.readFully(dataToHash);
-            byte[] hash = digest.digest(dataToHash);
-            fNew.seek(newLevel2Offset + (i * 0x20));
-            fNew.write(hash);
-        }
-        while (fNew.getFilePointer() != newFileEndingOffset) {
-            fNew.writeByte(0);
-        }
-
-        // Now that level 2 (hashes of file data) is done, construct level 1 (hashes of
-        // hashes of file data) and the master hash/level 0 (hashes of level 1)
-        dataToHash = new byte[level2HashBlockSize];
-        for (long i = 0; i < numberOfLevel2HashBlocks; i++) {
-            fNew.seek(newLevel2Offset + (i * level2HashBlockSize));
-            fNew.readFully(dataToHash);
-            byte[] hash = digest.digest(dataToHash);
-            fNew.seek(newLevel1Offset + (i * 0x20));
-            fNew.write(hash);
-        }
+        byte[] level3Hashes = level3.finish(numberOfLevel3HashBlocks);
+
+        // Levels 2 and 1 are small (32 bytes per block of the level below), so build them in memory,
+        // zero padding included, and write them out in one go
+        byte[] level2Data = new byte[(int) Math.max(newFileEndingOffset - newLevel2Offset,
+                numberOfLevel2HashBlocks * level2HashBlockSize)];
+        System.arraycopy(level3Hashes, 0, level2Data, 0, level3Hashes.length);
+        byte[] level1Data = new byte[(int) (newLevel2Offset - newLevel1Offset)];
+        hashBlocks(level2Data, level2HashBlockSize, numberOfLevel2HashBlocks, level1Data);
         long numberOfLevel1HashBlocks = alignLong(newLevel1HashdataSize, level1HashBlockSize) / level1HashBlockSize;
-        dataToHash = new byte[level1HashBlockSize];
-        for (long i = 0; i < numberOfLevel1HashBlocks; i++) {
-            fNew.seek(newLevel1Offset + (i * level1HashBlockSize));
-            fNew.readFully(dataToHash);
-            byte[] hash = digest.digest(dataToHash);
-            fNew.seek(newRomfsOffset + 0x60 + (i * 0x20));
-            fNew.write(hash);
-        }
+        byte[] masterHashes = new byte[(int) numberOfLevel1HashBlocks * 0x20];
+        hashBlocks(level1Data, level1HashBlockSize, numberOfLevel1HashBlocks, masterHashes);
+        fNew.seek(newLevel1Offset);
+        fNew.write(level1Data);
+        fNew.write(level2Data, 0, (int) (newFileEndingOffset - newLevel2Offset));
+        fNew.seek(newRomfsOffset + 0x60);
+        fNew.write(masterHashes);
 
         // Lastly, update the header and return the size of the new romfs
         long level1LogicalOffset = 0;
@@ -558,14 +576,24 @@ public class NCCH {
         long currentLength = newFileEndingOffset - newRomfsOffset;
         long newRomfsLength = alignLong(currentLength, media_unit_size);
         fNew.seek(newFileEndingOffset);
-        while (fNew.getFilePointer() < newRomfsOffset + newRomfsLength) {
-            fNew.writeByte(0);
-        }
+        fNew.write(new byte[(int) (newRomfsLength - currentLength)]);
 
         System.out.println("NCCH: Done rebuilding romfs");
         return newRomfsLength;
     }
 
+    // Hashes blockCount blocks of data into consecutive 32-byte SHA-256 hashes
+    private static void hashBlocks(byte[] data, int blockSize, long blockCount, byte[] hashes) throws IOException {
+        List<ParallelHasher.Region> blocks = new ArrayList<>();
+        for (int i = 0; i < blockCount; i++) {
+            blocks.add(new ParallelHasher.Region(data, i * blockSize, blockSize));
+        }
+        byte[][] blockHashes = ParallelHasher.sha256(blocks);
+        for (int i = 0; i < blockHashes.length; i++) {
+            System.arraycopy(blockHashes[i], 0, hashes, i * 0x20, 0x20);
+        }
+    }
+
     private byte[] updateFileMetadataTable(int fileMetadataTableLength) {
         fileMetadataList.sort((FileMetadata f1, FileMetadata f2) -> (int) (f1.fileDataOffset - f2.fileDataOffset));
         byte[] fileMetadataTable = new byte[fileMetadataTableLength];
@@ -613,6 +641,25 @@ public class NCCH {
         }
     }
 
+    // The same files as saveAsLayeredFS, in a zip with the same layout
+    public void saveAsLayeredFSZip(String filename) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))) {
+            if (codeChanged) {
+                zip.putNextEntry(new ZipEntry(titleId + "/code.bin"));
+                zip.write(getCode());
+                zip.closeEntry();
+            }
+            for (Map.Entry<String, RomfsFile> entry : romfsFiles.entrySet()) {
+                RomfsFile file = entry.getValue();
+                if (file.fileChanged) {
+                    zip.putNextEntry(new ZipEntry(titleId + "/romfs/" + file.fullPath));
+                    zip.write(file.getOverrideContents());
+                    zip.closeEntry();
+                }
+            }
+        }
+    }
+
     private void purgeDirectory(File directory) {
         for (File file : directory.listFiles()) {
             if (file.isDirectory()) {
@@ -660,12 +707,17 @@ public class NCCH {
 
     // Retrieves a decompressed version of .code (the game's executable).
     // The first time this is called, it will retrieve it straight from the
-    // exefs. Future calls will rely on a cached version to speed things up.
-    // If writing is enabled, it will cache the decompressed version to the
-    // tmpFolder; otherwise, it will store it in RAM.
+    // exefs. Future calls will rely on the decompressed version kept in the
+    // overlay store.
     public byte[] getCode() throws IOException {
         if (!codeOpen) {
             codeOpen = true;
+            if (base != null) {
+                byte[] code = base.pristineCodeFor(this);
+                overlays.put(".code", code);
+                return code;
+            }
+            this.reopenROM();
             byte[] code = new byte[codeFileHeader.size];
 
             // File header offsets are from the start of the exefs but *exclude* the
@@ -678,52 +730,27 @@ public class NCCH {
                 code = new BLZCoder(null).BLZ_DecodePub(code, ".code");
             }
 
-            // Now actually make the copy or w/e
-            if (writingEnabled) {
-                File arm9file = new File(tmpFolder + ".code");
-                FileOutputStream fos = new FileOutputStream(arm9file);
-                fos.write(code);
-                fos.close();
-                arm9file.deleteOnExit();
-                this.codeRamstored = null;
-                return code;
-            } else {
-                this.codeRamstored = code;
-                byte[] newcopy = new byte[code.length];
-                System.arraycopy(code, 0, newcopy, 0, code.length);
-                return newcopy;
-            }
+            overlays.put(".code", code);
+            return code;
         } else {
-            if (writingEnabled) {
-                return FileFunctions.readFileFullyIntoBuffer(tmpFolder + ".code");
-            } else {
-                byte[] newcopy = new byte[this.codeRamstored.length];
-                System.arraycopy(this.codeRamstored, 0, newcopy, 0, this.codeRamstored.length);
-                return newcopy;
-            }
+            return overlays.get(".code");
         }
     }
 
+    private synchronized byte[] pristineCodeFor(NCCH copy) throws IOException {
+        byte[] code = getCode();
+        // Only the copies need the file open
+        closeROM();
+        copy.originalCodeCRC = originalCodeCRC;
+        return code;
+    }
+
     public void writeCode(byte[] code) throws IOException {
         if (!codeOpen) {
             getCode();
         }
         codeChanged = true;
-        if (writingEnabled) {
-            FileOutputStream fos = new FileOutputStream(new File(tmpFolder + ".code"));
-            fos.write(code);
-            fos.close();
-        } else {
-            if (this.codeRamstored.length == code.length) {
-                // copy new in
-                System.arraycopy(code, 0, this.codeRamstored, 0, code.length);
-            } else {
-                // make new array
-                this.codeRamstored = null;
-                this.codeRamstored = new byte[code.length];
-                System.arraycopy(code, 0, this.codeRamstored, 0, code.length);
-            }
-        }
+        overlays.put(".code", code);
     }
 
     public boolean hasFile(String filename) {
@@ -739,6 +766,24 @@ public class NCCH {
         }
     }
 
+    // The CRC32s of these romfs files as they are in the base ROM, worked out in parallel. Like reading
+    // the files would, this also records them for printRomDiagnostics.
+    public long[] getOriginalCRC32s(List<String> filenames) throws IOException {
+        List<ParallelHasher.Region> regions = new ArrayList<>();
+        for (String filename : filenames) {
+            RomfsFile file = romfsFiles.get(filename);
+            if (file == null) {
+                throw new FileNotFoundException(filename);
+            }
+            regions.add(new ParallelHasher.Region(mappedRom.slice(file.offset, file.size)));
+        }
+        long[] crcs = ParallelHasher.crc32(regions);
+        for (int i = 0; i < crcs.length; i++) {
+            romfsFiles.get(filenames.get(i)).originalCRC = crcs[i];
+        }
+        return crcs;
+    }
+
     public void writeFile(String filename, byte[] data) throws IOException {
         if (romfsFiles.containsKey(filename)) {
             romfsFiles.get(filename).writeOverride(data);
@@ -786,16 +831,18 @@ public class NCCH {
         return fileDiagnostics;
     }
 
-    public String getTmpFolder() {
-        return tmpFolder;
-    }
-
     public RandomAccessFile getBaseRom() {
         return baseRom;
     }
 
-    public boolean isWritingEnabled() {
-        return writingEnabled;
+    // For reading the base ROM; unlike getBaseRom(), this is safe to use from any thread
+    public MappedFile getMappedRom() {
+        return mappedRom;
+    }
+
+    // Where extracted and modified files are kept; each NCCH has its own
+    public OverlayStore getOverlayStore() {
+        return overlays;
     }
 
     public String getProductCode() {
@@ -924,6 +971,143 @@ public class NCCH {
         }
     }
 
+    // Writes the level 3 part of a romfs and works out the level 2 hashes (SHA-256 of each level 3 block).
+    // Blocks that a single write covers completely are hashed straight from the data being written, and
+    // blocks copied from the same place in the base ROM keep the base ROM's hashes. Only what's left,
+    // mostly the blocks where one file ends and the next begins, is read back and hashed in finish().
+    private static class HashingWriter {
+        private final RandomAccessFile out;
+        private final long start;
+        private final int blockSize;
+        private final RandomAccessFile base;
+        private final long baseStart;
+        private final byte[] baseHashes;
+        private final byte[] copyBuffer;
+        private byte[] hashes = new byte[0];
+        private final BitSet hashed = new BitSet();
+
+        HashingWriter(RandomAccessFile out, long start, int blockSize, RandomAccessFile base, long baseStart,
+                      byte[] baseHashes) throws IOException {
+            this.out = out;
+            this.start = start;
+            this.blockSize = blockSize;
+            this.base = base;
+            this.baseStart = baseStart;
+            this.baseHashes = baseHashes;
+            this.copyBuffer = new byte[alignInt(copy_buffer_size, blockSize)];
+            // Whatever isn't written must read back as zeros, even if we're overwriting an existing file
+            out.setLength(start);
+        }
+
+        void write(long offset, byte[] data) throws IOException {
+            write(offset, data, 0, data.length);
+        }
+
+        void write(long offset, byte[] data, int dataOffset, int length) throws IOException {
+            out.seek(start + offset);
+            out.write(data, dataOffset, length);
+            long firstBlock = alignLong(offset, blockSize) / blockSize;
+            long endBlock = (offset + length) / blockSize;
+            if (length < inline_hash_threshold) {
+                for (long block = firstBlock; block < endBlock; block++) {
+                    int blockOffset = dataOffset + (int) (block * blockSize - offset);
+                    setHash(block, ParallelHasher.sha256(data, blockOffset, blockSize), 0);
+                }
+            } else {
+                List<ParallelHasher.Region> blocks = new ArrayList<>();
+                for (long block = firstBlock; block < endBlock; block++) {
+                    blocks.add(new ParallelHasher.Region(data, dataOffset + (int) (block * blockSize - offset),
+                            blockSize));
+                }
+                byte[][] blockHashes = ParallelHasher.sha256(blocks);
+                for (int i = 0; i < blockHashes.length; i++) {
+                    setHash(firstBlock + i, blockHashes[i], 0);
+                }
+            }
+            forgetPartialBlocks(offset, length, firstBlock, endBlock);
+        }
+
+        // Copies length bytes of the base ROM starting at basePosition
+        void copy(long offset, long basePosition, long length) throws IOException {
+            if (basePosition - baseStart != offset) {
+                // Moved, so it needs hashing; read it through memory anyway. The chunks end on block
+                // boundaries so that only the blocks at either end need reading back.
+                base.seek(basePosition);
+                for (long copied = 0; copied < length; ) {
+                    int misalignment = (int) ((offset + copied) % blockSize);
+                    int chunk = (int) Math.min(copyBuffer.length - misalignment, length - copied);
+                    base.readFully(copyBuffer, 0, chunk);
+                    write(offset + copied, copyBuffer, 0, chunk);
+                    copied += chunk;
+                }
+                return;
+            }
+            FileChannel baseChannel = base.getChannel();
+            FileChannel outChannel = out.getChannel();
+            outChannel.position(start + offset);
+            for (long copied = 0; copied < length; ) {
+                long transferred = baseChannel.transferTo(basePosition + copied, length - copied, outChannel);
+                if (transferred <= 0) {
+                    throw new EOFException();
+                }
+                copied += transferred;
+            }
+            long firstBlock = alignLong(offset, blockSize) / blockSize;
+            long endBlock = (offset + length) / blockSize;
+            for (long block = firstBlock; block < endBlock; block++) {
+                if ((block + 1) * 0x20 <= baseHashes.length) {
+                    setHash(block, baseHashes, (int) block * 0x20);
+                } else {
+                    hashed.clear((int) block);
+                }
+            }
+            forgetPartialBlocks(offset, length, firstBlock, endBlock);
+        }
+
+        // Returns the hashes of the first blockCount blocks, hashing whatever hasn't been yet
+        byte[] finish(long blockCount) throws IOException {
+            if (out.length() < start + blockCount * blockSize) {
+                out.setLength(start + blockCount * blockSize);
+            }
+            byte[] result = Arrays.copyOf(hashes, (int) blockCount * 0x20);
+            List<Integer> leftOver = new ArrayList<>();
+            List<ParallelHasher.Region> blocks = new ArrayList<>();
+            for (int i = hashed.nextClearBit(0); i < blockCount; i = hashed.nextClearBit(i + 1)) {
+                leftOver.add(i);
+                blocks.add(new ParallelHasher.Region(out.getChannel(), start + (long) i * blockSize, blockSize));
+            }
+            byte[][] blockHashes = ParallelHasher.sha256(blocks);
+            for (int i = 0; i < blockHashes.length; i++) {
+                System.arraycopy(blockHashes[i], 0, result, leftOver.get(i) * 0x20, 0x20);
+            }
+            return result;
+        }
+
+        private void setHash(long block, byte[] hash, int hashOffset) {
+            int needed = (int) (block + 1) * 0x20;
+            if (hashes.length < needed) {
+                hashes = Arrays.copyOf(hashes, Math.max(needed, hashes.length * 2));
+            }
+            System.arraycopy(hash, hashOffset, hashes, (int) block * 0x20, 0x20);
+            hashed.set((int) block);
+        }
+
+        // The blocks at either end of a write that it only partly covers have to be hashed in finish()
+        private void forgetPartialBlocks(long offset, long length, long firstBlock, long endBlock) {
+            if (length == 0) {
+                return;
+            }
+            long startBlock = offset / blockSize;
+            long lastBlock = (offset + length - 1) / blockSize;
+            if (startBlock < firstBlock) {
+                hashed.clear((int) startBlock);
+            }
+            if (lastBlock >= endBlock) {
+                hashed.clear((int) lastBlock);
+            }
+        }
+    }
+
     private class ExefsFileHeader {
         public String filename;
         public int offset;
@@ -989,6 +1173,17 @@ public class NCCH {
         public String name;
         public RomfsFile file; // used only for rebuilding CXI
 
+        public FileMetadata(FileMetadata other) {
+            this.offset = other.offset;
+            this.parentDirectoryOffset = other.parentDirectoryOffset;
+            this.siblingFileOffset = other.siblingFileOffset;
+            this.fileDataOffset = other.fileDataOffset;
+            this.fileDataLength = other.fileDataLength;
+            this.nextFileInHashBucketOffset = other.nextFileInHashBucketOffset;
+            this.nameLength = other.nameLength;
+            this.name = other.name;
+        }
+
         public FileMetadata(byte[] fileMetadataBlock, int offset) {
             this.offset = offset;
             parentDirectoryOffset = FileFunctions.readFullInt(fileMetadataBlock, offset);
@@ -724,7 +724,7 @@ public class NewRandomizerGUI {
 
             for (RomHandler.Factory rhf : checkHandlers) {
                 if (rhf.isLoadable(fh.getAbsolutePath())) {
-                    this.romHandler = rhf.create(RandomSource.instance());
+                    this.romHandler = rhf.create(new RandomSource());
                     if (!usedLauncher && this.romHandler instanceof Abstract3DSRomHandler) {
                         String message = bundle.getString("GUI.pleaseUseTheLauncher");
                         Object[] messages = {message};
@@ -814,8 +814,6 @@ public class NewRandomizerGUI {
         if (allowed && fh != null) {
             // Get a seed
             long seed = RandomSource.pickSeed();
-            // Apply it
-            RandomSource.seed(seed);
             presetMode = false;
 
             try {
@@ -1070,8 +1068,6 @@ public class NewRandomizerGUI {
             }
 
             if (allowed && fh != null) {
-                // Apply the seed we were given
-                RandomSource.seed(seed);
                 presetMode = true;
                 performRandomization(fh.getAbsolutePath(), seed, pld.getCustomNames(), outputType == SaveType.DIRECTORY);
             }
@@ -1277,7 +1273,7 @@ public class NewRandomizerGUI {
         String currentFN = this.romHandler.loadedFilename();
         for (RomHandler.Factory rhf : checkHandlers) {
             if (rhf.isLoadable(currentFN)) {
-                this.romHandler = rhf.create(RandomSource.instance());
+                this.romHandler = rhf.create(new RandomSource());
                 opDialog = new OperationDialog(bundle.getString("GUI.loadingText"), frame, true);
                 Thread t = new Thread(() -> {
                     SwingUtilities.invokeLater(() -> opDialog.setVisible(true));
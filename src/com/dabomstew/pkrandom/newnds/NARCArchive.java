@@ -25,6 +25,9 @@ package com.dabomstew.pkrandom.newnds;
 /*----------------------------------------------------------------------------*/
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -41,39 +44,50 @@ public class NARCArchive {
         // creates a new empty NARC with no filenames by default
     }
 
+    // The entries are left in data, which must not be changed afterwards, and only copied out when
+    // they're first asked for
     public NARCArchive(byte[] data) throws IOException {
-        Map<String, byte[]> frames = readNitroFrames(data);
+        Map<String, int[]> frames = readNitroFrames(data);
         if (!frames.containsKey("FATB") || !frames.containsKey("FNTB") || !frames.containsKey("FIMG")) {
             throw new IOException("Not a valid narc file");
         }
 
         // File contents
-        byte[] fatbframe = frames.get("FATB");
-        byte[] fimgframe = frames.get("FIMG");
-        int fileCount = readLong(fatbframe, 0);
+        int fatbframe = frames.get("FATB")[0];
+        int fimgframe = frames.get("FIMG")[0];
+        int fimgLength = frames.get("FIMG")[1];
+        int fileCount = readLong(data, fatbframe);
+        Entries entries = new Entries(data, fileCount);
         for (int i = 0; i < fileCount; i++) {
-            int startOffset = readLong(fatbframe, 4 + i * 8);
-            int endOffset = readLong(fatbframe, 8 + i * 8);
-            int length = (endOffset - startOffset);
-            byte[] thisFile = new byte[length];
-            System.arraycopy(fimgframe, startOffset, thisFile, 0, length);
-            files.add(thisFile);
+            int startOffset = readLong(data, fatbframe + 4 + i * 8);
+            int endOffset = readLong(data, fatbframe + 8 + i * 8);
+            if (startOffset < 0 || endOffset < startOffset || endOffset > fimgLength) {
+                throw new IOException("Not a valid narc file");
+            }
+            entries.add(new Slice(fimgframe + startOffset, endOffset - startOffset));
         }
+        files = entries;
 
         // Filenames?
-        byte[] fntbframe = frames.get("FNTB");
-        int unk1 = readLong(fntbframe, 0);
+        int fntbframe = frames.get("FNTB")[0];
+        int fntbEnd = fntbframe + frames.get("FNTB")[1];
+        int unk1 = readLong(data, fntbframe);
         if (unk1 == 8) {
             // Filenames exist
             hasFilenames = true;
-            int offset = 8;
+            int offset = fntbframe + 8;
             for (int i = 0; i < fileCount; i++) {
-                int fnLength = (fntbframe[offset] & 0xFF);
+                if (offset >= fntbEnd) {
+                    throw new IOException("Not a valid narc file");
+                }
+                int fnLength = (data[offset] & 0xFF);
                 offset++;
-                byte[] filenameBA = new byte[fnLength];
-                System.arraycopy(fntbframe, offset, filenameBA, 0, fnLength);
-                String filename = new String(filenameBA, "US-ASCII");
+                if (offset + fnLength > fntbEnd) {
+                    throw new IOException("Not a valid narc file");
+                }
+                String filename = new String(data, offset, fnLength, "US-ASCII");
                 filenames.add(filename);
+                offset += fnLength;
             }
         } else {
             hasFilenames = false;
@@ -83,103 +97,155 @@ public class NARCArchive {
         }
     }
 
-    public byte[] getBytes() throws IOException {
-        // Get bytes required for FIMG frame
-        int bytesRequired = 0;
-        for (byte[] file : files) {
-            bytesRequired += Math.ceil(file.length / 4.0) * 4;
+    // A separate archive with the same contents. Entries that haven't been copied out yet stay shared,
+    // so this is cheap for archives read from a ROM.
+    public NARCArchive copy() {
+        NARCArchive copy = new NARCArchive();
+        copy.filenames = new ArrayList<>(filenames);
+        copy.hasFilenames = hasFilenames;
+        if (files instanceof Entries) {
+            Entries entries = (Entries) files;
+            Entries copiedEntries = new Entries(entries.source, entries.size());
+            for (Object entry : entries.entries) {
+                copiedEntries.entries.add(entry instanceof byte[] ? ((byte[]) entry).clone() : entry);
+            }
+            copy.files = copiedEntries;
+        } else {
+            for (byte[] file : files) {
+                copy.files.add(file.clone());
+            }
         }
-        // FIMG frame & FATB frame build
-
-        // 4 for numentries, 8*size for entries, 8 for nitro header
-        byte[] fatbFrame = new byte[4 + files.size() * 8 + 8];
-        // bytesRequired + 8 for nitro header
-        byte[] fimgFrame = new byte[bytesRequired + 8];
-
-        // Nitro headers
-        fatbFrame[0] = 'B';
-        fatbFrame[1] = 'T';
-        fatbFrame[2] = 'A';
-        fatbFrame[3] = 'F';
-        writeLong(fatbFrame, 4, fatbFrame.length);
-
-        fimgFrame[0] = 'G';
-        fimgFrame[1] = 'M';
-        fimgFrame[2] = 'I';
-        fimgFrame[3] = 'F';
-        writeLong(fimgFrame, 4, fimgFrame.length);
-        int offset = 0;
+        return copy;
+    }
 
-        writeLong(fatbFrame, 8, files.size());
+    public byte[] getBytes() throws IOException {
+        byte[] nitroFile = new byte[length()];
+        ByteBuffer out = ByteBuffer.wrap(nitroFile);
+        out.put(headers());
         for (int i = 0; i < files.size(); i++) {
-            byte[] file = files.get(i);
-            int bytesRequiredForFile = (int) (Math.ceil(file.length / 4.0) * 4);
-            System.arraycopy(file, 0, fimgFrame, offset + 8, file.length);
-            for (int filler = file.length; filler < bytesRequiredForFile; filler++) {
-                fimgFrame[offset + 8 + filler] = (byte) 0xFF;
+            if (isSlice(i)) {
+                Slice slice = (Slice) ((Entries) files).entries.get(i);
+                out.put(((Entries) files).source, slice.offset, slice.length);
+                putPadding(out, slice.length);
+            } else {
+                byte[] file = files.get(i);
+                out.put(file);
+                putPadding(out, file.length);
             }
-            writeLong(fatbFrame, 12 + i * 8, offset);
-            writeLong(fatbFrame, 16 + i * 8, offset + file.length);
-            offset += bytesRequiredForFile;
         }
+        return nitroFile;
+    }
 
-        // FNTB Frame
+    // Size in bytes of the archive getBytes() returns
+    public int length() throws IOException {
+        return 16 + fatbLength() + fntbLength() + 8 + fimgDataLength();
+    }
+
+    private int fatbLength() {
+        // 4 for numentries, 8*size for entries, 8 for nitro header
+        return 4 + files.size() * 8 + 8;
+    }
+
+    private int fntbLength() throws IOException {
         int bytesForFNTBFrame = 16;
         if (hasFilenames) {
             for (String filename : filenames) {
                 bytesForFNTBFrame += filename.getBytes("US-ASCII").length + 1;
             }
         }
-        byte[] fntbFrame = new byte[bytesForFNTBFrame];
+        return bytesForFNTBFrame;
+    }
 
-        fntbFrame[0] = 'B';
-        fntbFrame[1] = 'T';
-        fntbFrame[2] = 'N';
-        fntbFrame[3] = 'F';
-        writeLong(fntbFrame, 4, fntbFrame.length);
+    private int fimgDataLength() {
+        int bytesRequired = 0;
+        for (int i = 0; i < files.size(); i++) {
+            bytesRequired += padded(entryLength(i));
+        }
+        return bytesRequired;
+    }
+
+    // The NARC header, the FATB and FNTB frames and the FIMG frame's header: everything but the files
+    private ByteBuffer headers() throws IOException {
+        int fatbLength = fatbLength();
+        int fntbLength = fntbLength();
+        int fimgLength = fimgDataLength() + 8;
+        int nitrolength = 16 + fatbLength + fntbLength + fimgLength;
+        ByteBuffer headers = ByteBuffer.allocate(16 + fatbLength + fntbLength + 8);
+        headers.order(ByteOrder.LITTLE_ENDIAN);
 
+        headers.put(new byte[] { 'N', 'A', 'R', 'C' });
+        headers.putShort((short) 0xFFFE);
+        headers.putShort((short) 0x0100);
+        headers.putInt(nitrolength);
+        headers.putShort((short) 0x10);
+        headers.putShort((short) 3);
+
+        // FATB frame
+        headers.put(new byte[] { 'B', 'T', 'A', 'F' });
+        headers.putInt(fatbLength);
+        headers.putInt(files.size());
+        int offset = 0;
+        for (int i = 0; i < files.size(); i++) {
+            int length = entryLength(i);
+            headers.putInt(offset);
+            headers.putInt(offset + length);
+            offset += padded(length);
+        }
+
+        // FNTB Frame
+        headers.put(new byte[] { 'B', 'T', 'N', 'F' });
+        headers.putInt(fntbLength);
         if (hasFilenames) {
-            writeLong(fntbFrame, 8, 8);
-            writeLong(fntbFrame, 12, 0x10000);
-            int fntbOffset = 16;
+            headers.putInt(8);
+            headers.putInt(0x10000);
             for (String filename : filenames) {
                 byte[] fntbfilename = filename.getBytes("US-ASCII");
-                fntbFrame[fntbOffset] = (byte) fntbfilename.length;
-                System.arraycopy(fntbfilename, 0, fntbFrame, fntbOffset + 1, fntbfilename.length);
-                fntbOffset += 1 + fntbfilename.length;
+                headers.put((byte) fntbfilename.length);
+                headers.put(fntbfilename);
             }
         } else {
-            writeLong(fntbFrame, 8, 4);
-            writeLong(fntbFrame, 12, 0x10000);
-        }
-
-        // Now for the actual Nitro file
-        int nitrolength = 16 + fatbFrame.length + fntbFrame.length + fimgFrame.length;
-        byte[] nitroFile = new byte[nitrolength];
-        nitroFile[0] = 'N';
-        nitroFile[1] = 'A';
-        nitroFile[2] = 'R';
-        nitroFile[3] = 'C';
-        writeWord(nitroFile, 4, 0xFFFE);
-        writeWord(nitroFile, 6, 0x0100);
-        writeLong(nitroFile, 8, nitrolength);
-        writeWord(nitroFile, 12, 0x10);
-        writeWord(nitroFile, 14, 3);
-        System.arraycopy(fatbFrame, 0, nitroFile, 16, fatbFrame.length);
-        System.arraycopy(fntbFrame, 0, nitroFile, 16 + fatbFrame.length, fntbFrame.length);
-        System.arraycopy(fimgFrame, 0, nitroFile, 16 + fatbFrame.length + fntbFrame.length, fimgFrame.length);
+            headers.putInt(4);
+            headers.putInt(0x10000);
+        }
 
-        return nitroFile;
+        // FIMG frame header; the files follow
+        headers.put(new byte[] { 'G', 'M', 'I', 'F' });
+        headers.putInt(fimgLength);
+        headers.flip();
+        return headers;
     }
 
-    private Map<String, byte[]> readNitroFrames(byte[] data) throws IOException {
+    private boolean isSlice(int index) {
+        return files instanceof Entries && ((Entries) files).entries.get(index) instanceof Slice;
+    }
+
+    // The length of an entry, without copying it out if it's still a slice
+    private int entryLength(int index) {
+        if (isSlice(index)) {
+            return ((Slice) ((Entries) files).entries.get(index)).length;
+        }
+        return files.get(index).length;
+    }
+
+    private static int padded(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static void putPadding(ByteBuffer out, int length) {
+        for (int filler = length; filler < padded(length); filler++) {
+            out.put((byte) 0xFF);
+        }
+    }
+
+    // Returns the offset (past the 8-byte frame header) and length of each frame's contents
+    private Map<String, int[]> readNitroFrames(byte[] data) throws IOException {
 
         // Read the number of frames
         int frameCount = readWord(data, 0x0E);
 
         // each frame
         int offset = 0x10;
-        Map<String, byte[]> frames = new TreeMap<>();
+        Map<String, int[]> frames = new TreeMap<>();
         for (int i = 0; i < frameCount; i++) {
             byte[] magic = new byte[] { data[offset + 3], data[offset + 2], data[offset + 1], data[offset] };
             String magicS = new String(magic, "US-ASCII");
@@ -190,14 +256,81 @@ public class NARCArchive {
             if (i == frameCount - 1 && offset + frame_size < data.length) {
                 frame_size = data.length - offset;
             }
-            byte[] frame = new byte[frame_size - 8];
-            System.arraycopy(data, offset + 8, frame, 0, frame_size - 8);
-            frames.put(magicS, frame);
+            if (frame_size < 8 || offset + frame_size > data.length) {
+                throw new IOException("Not a valid narc file");
+            }
+            frames.put(magicS, new int[] { offset + 8, frame_size - 8 });
             offset += frame_size;
         }
         return frames;
     }
 
+    // An entry that is still the bytes at offset in the archive it was read from
+    private static class Slice {
+        private final int offset;
+        private final int length;
+
+        private Slice(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    // The list behind files. Each element is a Slice of source until it's first read, and a byte[] from
+    // then on, so handlers can keep editing entries in place as before.
+    private static class Entries extends AbstractList<byte[]> {
+        private final byte[] source;
+        private final List<Object> entries;
+
+        private Entries(byte[] source, int capacity) {
+            this.source = source;
+            this.entries = new ArrayList<>(capacity);
+        }
+
+        private void add(Slice slice) {
+            entries.add(slice);
+        }
+
+        @Override
+        public byte[] get(int index) {
+            Object entry = entries.get(index);
+            if (entry instanceof Slice) {
+                Slice slice = (Slice) entry;
+                byte[] file = new byte[slice.length];
+                System.arraycopy(source, slice.offset, file, 0, slice.length);
+                entries.set(index, file);
+                return file;
+            }
+            return (byte[]) entry;
+        }
+
+        @Override
+        public byte[] set(int index, byte[] file) {
+            byte[] old = get(index);
+            entries.set(index, file);
+            return old;
+        }
+
+        @Override
+        public void add(int index, byte[] file) {
+            entries.add(index, file);
+            modCount++;
+        }
+
+        @Override
+        public byte[] remove(int index) {
+            byte[] old = get(index);
+            entries.remove(index);
+            modCount++;
+            return old;
+        }
+
+        @Override
+        public int size() {
+            return entries.size();
+        }
+    }
+
     private int readWord(byte[] data, int offset) {
         return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
     }
@@ -207,16 +340,4 @@ public class NARCArchive {
                 | ((data[offset + 3] & 0xFF) << 24);
     }
 
-    private void writeWord(byte[] data, int offset, int value) {
-        data[offset] = (byte) (value & 0xFF);
-        data[offset + 1] = (byte) ((value >> 8) & 0xFF);
-    }
-
-    private void writeLong(byte[] data, int offset, int value) {
-        data[offset] = (byte) (value & 0xFF);
-        data[offset + 1] = (byte) ((value >> 8) & 0xFF);
-        data[offset + 2] = (byte) ((value >> 16) & 0xFF);
-        data[offset + 3] = (byte) ((value >> 24) & 0xFF);
-    }
-
 }
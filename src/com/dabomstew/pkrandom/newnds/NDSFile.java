@@ -1,9 +1,6 @@
 package com.dabomstew.pkrandom.newnds;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
 import com.dabomstew.pkrandom.FileFunctions;
 
@@ -35,8 +32,7 @@ public class NDSFile {
     public int fileID;
     public String fullPath;
     private Extracted status = Extracted.NOT;
-    private String extFilename;
-    public byte[] data;
+    private String storeKey;
     public long originalCRC;
 
     public NDSFile(NDSRom parent) {
@@ -46,38 +42,14 @@ public class NDSFile {
     public byte[] getContents() throws IOException {
         if (this.status == Extracted.NOT) {
             // extract file
-            parent.reopenROM();
-            RandomAccessFile rom = parent.getBaseRom();
-            byte[] buf = new byte[this.size];
-            rom.seek(this.offset);
-            rom.readFully(buf);
+            byte[] buf = parent.getMappedRom().read(this.offset, this.size);
             originalCRC = FileFunctions.getCRC32(buf);
-            if (parent.isWritingEnabled()) {
-                // make a file
-                String tmpDir = parent.getTmpFolder();
-                this.extFilename = fullPath.replaceAll("[^A-Za-z0-9_]+", "");
-                File tmpFile = new File(tmpDir + extFilename);
-                FileOutputStream fos = new FileOutputStream(tmpFile);
-                fos.write(buf);
-                fos.close();
-                tmpFile.deleteOnExit();
-                this.status = Extracted.TO_FILE;
-                this.data = null;
-                return buf;
-            } else {
-                this.status = Extracted.TO_RAM;
-                this.data = buf;
-                byte[] newcopy = new byte[buf.length];
-                System.arraycopy(buf, 0, newcopy, 0, buf.length);
-                return newcopy;
-            }
-        } else if (this.status == Extracted.TO_RAM) {
-            byte[] newcopy = new byte[this.data.length];
-            System.arraycopy(this.data, 0, newcopy, 0, this.data.length);
-            return newcopy;
+            this.storeKey = "file/" + fullPath;
+            parent.getOverlayStore().put(storeKey, buf);
+            this.status = Extracted.EXTRACTED;
+            return buf;
         } else {
-            String tmpDir = parent.getTmpFolder();
-            return FileFunctions.readFileFullyIntoBuffer(tmpDir + this.extFilename);
+            return parent.getOverlayStore().get(storeKey);
         }
     }
 
@@ -86,22 +58,7 @@ public class NDSFile {
             // temp extract
             getContents();
         }
-        if (status == Extracted.TO_FILE) {
-            String tmpDir = parent.getTmpFolder();
-            FileOutputStream fos = new FileOutputStream(new File(tmpDir + this.extFilename));
-            fos.write(data);
-            fos.close();
-        } else {
-            if (this.data.length == data.length) {
-                // copy new in
-                System.arraycopy(data, 0, this.data, 0, data.length);
-            } else {
-                // make new array
-                this.data = null;
-                this.data = new byte[data.length];
-                System.arraycopy(data, 0, this.data, 0, data.length);
-            }
-        }
+        parent.getOverlayStore().put(storeKey, data);
     }
 
     // returns null if no override
@@ -113,7 +70,7 @@ public class NDSFile {
     }
 
     private enum Extracted {
-        NOT, TO_FILE, TO_RAM
+        NOT, EXTRACTED
     }
 
 }
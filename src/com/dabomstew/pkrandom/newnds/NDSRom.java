@@ -1,12 +1,16 @@
 package com.dabomstew.pkrandom.newnds;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 
-import com.dabomstew.pkrandom.SysConstants;
 import com.dabomstew.pkrandom.FileFunctions;
+import com.dabomstew.pkrandom.MappedFile;
+import com.dabomstew.pkrandom.OverlayStore;
+import com.dabomstew.pkrandom.ParallelHasher;
 import com.dabomstew.pkrandom.RomFunctions;
 
 import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
@@ -39,20 +43,21 @@ public class NDSRom {
     private byte version;
     private String romFilename;
     private RandomAccessFile baseRom;
+    private MappedFile mappedRom;
     private boolean romOpen;
     private Map<String, NDSFile> files;
     private Map<Integer, NDSFile> filesByID;
     private Map<Integer, NDSY9Entry> arm9overlaysByFileID;
     private NDSY9Entry[] arm9overlays;
     private byte[] fat;
-    private String tmpFolder;
-    private boolean writingEnabled;
+    private final OverlayStore overlays;
+    // The NDSRom this one was copied from, which is never changed itself (see copy())
+    private final NDSRom base;
     private boolean arm9_open, arm9_changed, arm9_has_footer;
     private boolean arm9_compressed;
     private int arm9_ramoffset;
     private int arm9_szoffset;
     private byte[] arm9_footer;
-    private byte[] arm9_ramstored;
     private long originalArm9CRC;
 
     private static final int arm9_align = 0x1FF, arm7_align = 0x1FF;
@@ -60,27 +65,55 @@ public class NDSRom {
     private static final int banner_align = 0x1FF, file_align = 0x1FF;
 
     public NDSRom(String filename) throws IOException {
+        this.base = null;
         this.romFilename = filename;
         this.baseRom = new RandomAccessFile(filename, "r");
+        this.mappedRom = MappedFile.open(filename);
         this.romOpen = true;
-        // TMP folder?
-        String rawFilename = new File(filename).getName();
-        String dataFolder = "tmp_" + rawFilename.substring(0, rawFilename.lastIndexOf('.'));
-        // remove nonsensical chars
-        dataFolder = dataFolder.replaceAll("[^A-Za-z0-9_]+", "");
-        File tmpFolder = new File(SysConstants.ROOT_PATH + dataFolder);
-        tmpFolder.mkdir();
-        if (tmpFolder.canWrite()) {
-            writingEnabled = true;
-            this.tmpFolder = SysConstants.ROOT_PATH + dataFolder + File.separator;
-            tmpFolder.deleteOnExit();
-        } else {
-            writingEnabled = false;
-        }
+        this.overlays = OverlayStore.create(filename);
         readFileSystem();
         arm9_open = false;
         arm9_changed = false;
-        arm9_ramstored = null;
+    }
+
+    private NDSRom(NDSRom base) throws IOException {
+        this.base = base;
+        this.romFilename = base.romFilename;
+        this.baseRom = new RandomAccessFile(romFilename, "r");
+        this.mappedRom = MappedFile.open(romFilename);
+        this.romOpen = true;
+        this.overlays = OverlayStore.create(romFilename);
+        this.romCode = base.romCode;
+        this.version = base.version;
+        this.arm9_ramoffset = base.arm9_ramoffset;
+        this.fat = base.fat;
+        files = new HashMap<>();
+        filesByID = new HashMap<>();
+        for (NDSFile baseFile : base.filesByID.values()) {
+            NDSFile nf = new NDSFile(this);
+            nf.offset = baseFile.offset;
+            nf.size = baseFile.size;
+            nf.fullPath = baseFile.fullPath;
+            nf.fileID = baseFile.fileID;
+            files.put(nf.fullPath, nf);
+            filesByID.put(nf.fileID, nf);
+        }
+        arm9overlays = new NDSY9Entry[base.arm9overlays.length];
+        arm9overlaysByFileID = new HashMap<>();
+        for (int i = 0; i < arm9overlays.length; i++) {
+            arm9overlays[i] = base.arm9overlays[i].copyFor(this);
+            arm9overlaysByFileID.put(arm9overlays[i].fileID, arm9overlays[i]);
+        }
+        arm9_open = false;
+        arm9_changed = false;
+    }
+
+    // A new NDSRom for the same unchanged file that doesn't read the file system again. This one is
+    // the pristine base of its copies and mustn't be changed: the first copy to read the arm9 or an
+    // overlay has it decompressed into this one's store, and the others take it from there. What the
+    // copies change goes into their own stores.
+    public NDSRom copy() throws IOException {
+        return new NDSRom(this);
     }
 
     public void reopenROM() throws IOException {
@@ -98,6 +131,12 @@ public class NDSRom {
         }
     }
 
+    // Closes the ROM and frees its store, for when the randomization using it is over
+    public void close() throws IOException {
+        closeROM();
+        overlays.close();
+    }
+
     private void readFileSystem() throws IOException {
         // read rom code
         baseRom.seek(0x0C);
@@ -226,221 +265,226 @@ public class NDSRom {
         }
     }
 
+    // Writes the ROM in one sequential pass, in FAT order. Unchanged data goes straight from the base ROM
+    // to the new one with FileChannel.transferTo; only changed files and the tables pass through the heap.
     public void saveTo(String filename) throws IOException {
         this.reopenROM();
 
         // Initialise new ROM
-        RandomAccessFile fNew = new RandomAccessFile(filename, "rw");
+        try (RandomAccessFile fNew = new RandomAccessFile(filename, "rw")) {
+            FileChannel in = this.baseRom.getChannel();
+            FileChannel out = fNew.getChannel();
+
+            // The header is updated in memory and written out last
+            int headersize = readFromFile(this.baseRom, 0x84, 4);
+            byte[] header = new byte[headersize];
+            this.baseRom.seek(0);
+            this.baseRom.readFully(header);
+
+            // arm9
+            int arm9_offset = (headersize + arm9_align) & (~arm9_align);
+            int old_arm9_offset = readFromByteArr(header, 0x20, 4);
+            int arm9_size = readFromByteArr(header, 0x2C, 4);
+            out.position(arm9_offset);
+            if (arm9_open && arm9_changed) {
+                // custom arm9
+                byte[] newARM9 = getARM9();
+                if (arm9_compressed) {
+                    newARM9 = new BLZCoder(null).BLZ_EncodePub(newARM9, true, false, "arm9.bin");
+                    if (arm9_szoffset > 0) {
+                        int newValue = newARM9.length + arm9_ramoffset;
+                        writeToByteArr(newARM9, arm9_szoffset, 4, newValue);
+                    }
+                }
+                arm9_size = newARM9.length;
+                // copy new arm9
+                writeFully(out, newARM9);
+                // footer?
+                if (arm9_has_footer) {
+                    writeFully(out, arm9_footer);
+                }
 
-        int headersize = readFromFile(this.baseRom, 0x84, 4);
-        this.baseRom.seek(0);
-        copy(this.baseRom, fNew, headersize);
+            } else {
+                // copy arm9+footer
+                transfer(in, old_arm9_offset, arm9_size + 12, out);
+            }
 
-        // arm9
-        int arm9_offset = ((int) (fNew.getFilePointer() + arm9_align)) & (~arm9_align);
-        int old_arm9_offset = readFromFile(this.baseRom, 0x20, 4);
-        int arm9_size = readFromFile(this.baseRom, 0x2C, 4);
-        if (arm9_open && arm9_changed) {
-            // custom arm9
-            byte[] newARM9 = getARM9();
-            if (arm9_compressed) {
-                newARM9 = new BLZCoder(null).BLZ_EncodePub(newARM9, true, false, "arm9.bin");
-                if (arm9_szoffset > 0) {
-                    int newValue = newARM9.length + arm9_ramoffset;
-                    writeToByteArr(newARM9, arm9_szoffset, 4, newValue);
+            // arm9 ovl
+            int arm9_ovl_offset = (int) out.position();
+            int arm9_ovl_size = arm9overlays.length * 32;
+
+            // don't actually write arm9 ovl yet
+
+            // arm7
+            int arm7_offset = arm9_ovl_offset + arm9_ovl_size + arm7_align & (~arm7_align);
+            int old_arm7_offset = readFromByteArr(header, 0x30, 4);
+            int arm7_size = readFromByteArr(header, 0x3C, 4);
+            // copy arm7
+            out.position(arm7_offset);
+            transfer(in, old_arm7_offset, arm7_size, out);
+
+            // arm7 ovl
+            int arm7_ovl_offset = (int) out.position();
+            int old_arm7_ovl_offset = readFromByteArr(header, 0x58, 4);
+            int arm7_ovl_size = readFromByteArr(header, 0x5C, 4);
+
+            // copy arm7 ovl
+            transfer(in, old_arm7_ovl_offset, arm7_ovl_size, out);
+
+            // banner
+            int banner_offset = ((int) (out.position() + banner_align)) & (~banner_align);
+            int old_banner_offset = readFromByteArr(header, 0x68, 4);
+            int banner_size = 0x840;
+            // copy banner
+            out.position(banner_offset);
+            transfer(in, old_banner_offset, banner_size, out);
+
+            // filename table (doesn't change)
+            int fnt_offset = ((int) (out.position() + fnt_align)) & (~fnt_align);
+            int old_fnt_offset = readFromByteArr(header, 0x40, 4);
+            int fnt_size = readFromByteArr(header, 0x44, 4);
+            // copy fnt
+            out.position(fnt_offset);
+            transfer(in, old_fnt_offset, fnt_size, out);
+
+            // make space for the FAT table
+            int fat_offset = ((int) (out.position() + fat_align)) & (~fat_align);
+            int fat_size = fat.length;
+
+            // Now for actual files
+            // Make a new FAT as needed
+            // also make a new y9 table
+            byte[] newfat = new byte[fat.length];
+            byte[] y9table = new byte[arm9overlays.length * 32];
+            int base_offset = fat_offset + fat_size;
+            int filecount = fat.length / 8;
+            for (int fid = 0; fid < filecount; fid++) {
+                int offset_of_file = (base_offset + file_align) & (~file_align);
+                int file_len = 0;
+                boolean copiedCustom = false;
+                out.position(offset_of_file);
+                if (filesByID.containsKey(fid)) {
+                    byte[] customContents = filesByID.get(fid).getOverrideContents();
+                    if (customContents != null) {
+                        // copy custom
+                        writeFully(out, customContents);
+                        copiedCustom = true;
+                        file_len = customContents.length;
+                    }
                 }
-            }
-            arm9_size = newARM9.length;
-            // copy new arm9
-            fNew.seek(arm9_offset);
-            fNew.write(newARM9);
-            // footer?
-            if (arm9_has_footer) {
-                fNew.write(arm9_footer);
+                if (arm9overlaysByFileID.containsKey(fid)) {
+                    NDSY9Entry entry = arm9overlaysByFileID.get(fid);
+                    int overlay_id = entry.overlay_id;
+                    byte[] customContents = entry.getOverrideContents();
+                    if (customContents != null) {
+                        // copy custom
+                        out.position(offset_of_file);
+                        writeFully(out, customContents);
+                        copiedCustom = true;
+                        file_len = customContents.length;
+                    }
+                    // regardless, fill in y9 table
+                    writeToByteArr(y9table, overlay_id * 32, 4, overlay_id);
+                    writeToByteArr(y9table, overlay_id * 32 + 4, 4, entry.ram_address);
+                    writeToByteArr(y9table, overlay_id * 32 + 8, 4, entry.ram_size);
+                    writeToByteArr(y9table, overlay_id * 32 + 12, 4, entry.bss_size);
+                    writeToByteArr(y9table, overlay_id * 32 + 16, 4, entry.static_start);
+                    writeToByteArr(y9table, overlay_id * 32 + 20, 4, entry.static_end);
+                    writeToByteArr(y9table, overlay_id * 32 + 24, 4, fid);
+                    writeToByteArr(y9table, overlay_id * 32 + 28, 3, entry.compressed_size);
+                    writeToByteArr(y9table, overlay_id * 32 + 31, 1, entry.compress_flag);
+                }
+                if (!copiedCustom) {
+                    // copy from original ROM
+                    int file_starts = readFromByteArr(fat, fid * 8, 4);
+                    int file_ends = readFromByteArr(fat, fid * 8 + 4, 4);
+                    file_len = file_ends - file_starts;
+                    transfer(in, file_starts, file_len, out);
+                }
+                // write to new FAT
+                writeToByteArr(newfat, fid * 8, 4, offset_of_file);
+                writeToByteArr(newfat, fid * 8 + 4, 4, offset_of_file + file_len);
+                // update base_offset
+                base_offset = offset_of_file + file_len;
             }
 
-        } else {
-            // copy arm9+footer
-            this.baseRom.seek(old_arm9_offset);
-            fNew.seek(arm9_offset);
-            copy(this.baseRom, fNew, arm9_size + 12);
-        }
-
-        // arm9 ovl
-        int arm9_ovl_offset = (int) fNew.getFilePointer();
-        int arm9_ovl_size = arm9overlays.length * 32;
-
-        // don't actually write arm9 ovl yet
-
-        // arm7
-        int arm7_offset = arm9_ovl_offset + arm9_ovl_size + arm7_align & (~arm7_align);
-        int old_arm7_offset = readFromFile(this.baseRom, 0x30, 4);
-        int arm7_size = readFromFile(this.baseRom, 0x3C, 4);
-        // copy arm7
-        this.baseRom.seek(old_arm7_offset);
-        fNew.seek(arm7_offset);
-        copy(this.baseRom, fNew, arm7_size);
-
-        // arm7 ovl
-        int arm7_ovl_offset = (int) fNew.getFilePointer();
-        int old_arm7_ovl_offset = readFromFile(this.baseRom, 0x58, 4);
-        int arm7_ovl_size = readFromFile(this.baseRom, 0x5C, 4);
-
-        // copy arm7 ovl
-        this.baseRom.seek(old_arm7_ovl_offset);
-        fNew.seek(arm7_ovl_offset);
-        copy(this.baseRom, fNew, arm7_ovl_size);
-
-        // banner
-        int banner_offset = ((int) (fNew.getFilePointer() + banner_align)) & (~banner_align);
-        int old_banner_offset = readFromFile(this.baseRom, 0x68, 4);
-        int banner_size = 0x840;
-        // copy banner
-        this.baseRom.seek(old_banner_offset);
-        fNew.seek(banner_offset);
-        copy(this.baseRom, fNew, banner_size);
-
-        // filename table (doesn't change)
-        int fnt_offset = ((int) (fNew.getFilePointer() + fnt_align)) & (~fnt_align);
-        int old_fnt_offset = readFromFile(this.baseRom, 0x40, 4);
-        int fnt_size = readFromFile(this.baseRom, 0x44, 4);
-        // copy fnt
-        this.baseRom.seek(old_fnt_offset);
-        fNew.seek(fnt_offset);
-        copy(this.baseRom, fNew, fnt_size);
-
-        // make space for the FAT table
-        int fat_offset = ((int) (fNew.getFilePointer() + fat_align)) & (~fat_align);
-        int fat_size = fat.length;
-
-        // Now for actual files
-        // Make a new FAT as needed
-        // also make a new y9 table
-        byte[] newfat = new byte[fat.length];
-        byte[] y9table = new byte[arm9overlays.length * 32];
-        int base_offset = fat_offset + fat_size;
-        int filecount = fat.length / 8;
-        for (int fid = 0; fid < filecount; fid++) {
-            int offset_of_file = (base_offset + file_align) & (~file_align);
-            int file_len = 0;
-            boolean copiedCustom = false;
-            if (filesByID.containsKey(fid)) {
-                byte[] customContents = filesByID.get(fid).getOverrideContents();
-                if (customContents != null) {
-                    // copy custom
-                    fNew.seek(offset_of_file);
-                    fNew.write(customContents);
-                    copiedCustom = true;
-                    file_len = customContents.length;
-                }
+            // tidy up ending
+            // base_offset is the end of the last file
+            int newfilesize = base_offset;
+            newfilesize = (newfilesize + 3) & ~3;
+            int application_end_offset = newfilesize;
+            if (newfilesize != base_offset) {
+                out.write(ByteBuffer.wrap(new byte[1]), newfilesize - 1);
             }
-            if (arm9overlaysByFileID.containsKey(fid)) {
-                NDSY9Entry entry = arm9overlaysByFileID.get(fid);
-                int overlay_id = entry.overlay_id;
-                byte[] customContents = entry.getOverrideContents();
-                if (customContents != null) {
-                    // copy custom
-                    fNew.seek(offset_of_file);
-                    fNew.write(customContents);
-                    copiedCustom = true;
-                    file_len = customContents.length;
-                }
-                // regardless, fill in y9 table
-                writeToByteArr(y9table, overlay_id * 32, 4, overlay_id);
-                writeToByteArr(y9table, overlay_id * 32 + 4, 4, entry.ram_address);
-                writeToByteArr(y9table, overlay_id * 32 + 8, 4, entry.ram_size);
-                writeToByteArr(y9table, overlay_id * 32 + 12, 4, entry.bss_size);
-                writeToByteArr(y9table, overlay_id * 32 + 16, 4, entry.static_start);
-                writeToByteArr(y9table, overlay_id * 32 + 20, 4, entry.static_end);
-                writeToByteArr(y9table, overlay_id * 32 + 24, 4, fid);
-                writeToByteArr(y9table, overlay_id * 32 + 28, 3, entry.compressed_size);
-                writeToByteArr(y9table, overlay_id * 32 + 31, 1, entry.compress_flag);
+
+            // calculate device capacity;
+            newfilesize |= newfilesize >> 16;
+            newfilesize |= newfilesize >> 8;
+            newfilesize |= newfilesize >> 4;
+            newfilesize |= newfilesize >> 2;
+            newfilesize |= newfilesize >> 1;
+            newfilesize++;
+            if (newfilesize <= 128 * 1024) {
+                newfilesize = 128 * 1024;
             }
-            if (!copiedCustom) {
-                // copy from original ROM
-                int file_starts = readFromByteArr(fat, fid * 8, 4);
-                int file_ends = readFromByteArr(fat, fid * 8 + 4, 4);
-                file_len = file_ends - file_starts;
-                this.baseRom.seek(file_starts);
-                fNew.seek(offset_of_file);
-                copy(this.baseRom, fNew, file_len);
+            int devcap = -18;
+            int x = newfilesize;
+            while (x != 0) {
+                x >>= 1;
+                devcap++;
             }
-            // write to new FAT
-            writeToByteArr(newfat, fid * 8, 4, offset_of_file);
-            writeToByteArr(newfat, fid * 8 + 4, 4, offset_of_file + file_len);
-            // update base_offset
-            base_offset = offset_of_file + file_len;
-        }
-
-        // write new FAT table
-        fNew.seek(fat_offset);
-        fNew.write(newfat);
-
-        // write y9 table
-        fNew.seek(arm9_ovl_offset);
-        fNew.write(y9table);
-
-        // tidy up ending
-        // base_offset is the end of the last file
-        int newfilesize = base_offset;
-        newfilesize = (newfilesize + 3) & ~3;
-        int application_end_offset = newfilesize;
-        if (newfilesize != base_offset) {
-            fNew.seek(newfilesize - 1);
-            fNew.write(0);
-        }
-
-        // calculate device capacity;
-        newfilesize |= newfilesize >> 16;
-        newfilesize |= newfilesize >> 8;
-        newfilesize |= newfilesize >> 4;
-        newfilesize |= newfilesize >> 2;
-        newfilesize |= newfilesize >> 1;
-        newfilesize++;
-        if (newfilesize <= 128 * 1024) {
-            newfilesize = 128 * 1024;
-        }
-        int devcap = -18;
-        int x = newfilesize;
-        while (x != 0) {
-            x >>= 1;
-            devcap++;
-        }
-        int devicecap = ((devcap < 0) ? 0 : devcap);
-
-        // Update offsets in ROM header
-        writeToFile(fNew, 0x20, 4, arm9_offset);
-        writeToFile(fNew, 0x2C, 4, arm9_size);
-        writeToFile(fNew, 0x30, 4, arm7_offset);
-        writeToFile(fNew, 0x3C, 4, arm7_size);
-        writeToFile(fNew, 0x40, 4, fnt_offset);
-        writeToFile(fNew, 0x48, 4, fat_offset);
-        writeToFile(fNew, 0x50, 4, arm9_ovl_offset);
-        writeToFile(fNew, 0x58, 4, arm7_ovl_offset);
-        writeToFile(fNew, 0x68, 4, banner_offset);
-        writeToFile(fNew, 0x80, 4, application_end_offset);
-        writeToFile(fNew, 0x14, 1, devicecap);
-
-        // Update header CRC
-        fNew.seek(0);
-        byte[] headerForCRC = new byte[0x15E];
-        fNew.readFully(headerForCRC);
-        short crc = CRC16.calculate(headerForCRC, 0, 0x15E);
-        writeToFile(fNew, 0x15E, 2, (crc & 0xFFFF));
+            int devicecap = ((devcap < 0) ? 0 : devcap);
+
+            // Update offsets in ROM header
+            writeToByteArr(header, 0x20, 4, arm9_offset);
+            writeToByteArr(header, 0x2C, 4, arm9_size);
+            writeToByteArr(header, 0x30, 4, arm7_offset);
+            writeToByteArr(header, 0x3C, 4, arm7_size);
+            writeToByteArr(header, 0x40, 4, fnt_offset);
+            writeToByteArr(header, 0x48, 4, fat_offset);
+            writeToByteArr(header, 0x50, 4, arm9_ovl_offset);
+            writeToByteArr(header, 0x58, 4, arm7_ovl_offset);
+            writeToByteArr(header, 0x68, 4, banner_offset);
+            writeToByteArr(header, 0x80, 4, application_end_offset);
+            writeToByteArr(header, 0x14, 1, devicecap);
+
+            // Update header CRC
+            short crc = CRC16.calculate(header, 0, 0x15E);
+            writeToByteArr(header, 0x15E, 2, (crc & 0xFFFF));
+
+            // Lastly, the header and the two tables, which had to wait until the data was written
+            writeFully(out, header, 0);
+            writeFully(out, y9table, arm9_ovl_offset);
+            writeFully(out, newfat, fat_offset);
+        }
 
         // done
-        fNew.close();
         closeROM();
     }
 
-    private void copy(RandomAccessFile from, RandomAccessFile to, int bytes) throws IOException {
-        int sizeof_copybuf = Math.min(256 * 1024, bytes);
-        byte[] copybuf = new byte[sizeof_copybuf];
+    // Copies bytes from the base ROM to the current position of out, without going through the heap
+    private static void transfer(FileChannel in, long from, long bytes, FileChannel out) throws IOException {
         while (bytes > 0) {
-            int size2 = (bytes >= sizeof_copybuf) ? sizeof_copybuf : bytes;
-            int read = from.read(copybuf, 0, size2);
-            to.write(copybuf, 0, read);
-            bytes -= read;
+            long transferred = in.transferTo(from, bytes, out);
+            if (transferred <= 0) {
+                throw new EOFException();
+            }
+            from += transferred;
+            bytes -= transferred;
+        }
+    }
+
+    private static void writeFully(FileChannel out, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static void writeFully(FileChannel out, byte[] data, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            out.write(buffer, position + buffer.position());
         }
     }
 
@@ -462,6 +506,24 @@ public class NDSRom {
         }
     }
 
+    // The CRC32s of these files as they are in the base ROM, worked out in parallel. Like reading the
+    // files would, this also records them for printRomDiagnostics.
+    public long[] getOriginalCRC32s(List<String> filenames) throws IOException {
+        List<ParallelHasher.Region> regions = new ArrayList<>();
+        for (String filename : filenames) {
+            NDSFile file = files.get(filename);
+            if (file == null) {
+                throw new FileNotFoundException(filename);
+            }
+            regions.add(new ParallelHasher.Region(mappedRom.slice(file.offset, file.size)));
+        }
+        long[] crcs = ParallelHasher.crc32(regions);
+        for (int i = 0; i < crcs.length; i++) {
+            files.get(filenames.get(i)).originalCRC = crcs[i];
+        }
+        return crcs;
+    }
+
     public byte[] getOverlay(int number) throws IOException {
         if (number >= 0 && number < arm9overlays.length) {
             return arm9overlays[number].getContents();
@@ -481,87 +543,85 @@ public class NDSRom {
     public byte[] getARM9() throws IOException {
         if (!arm9_open) {
             arm9_open = true;
-            this.reopenROM();
-            int arm9_offset = readFromFile(this.baseRom, 0x20, 4);
-            int arm9_size = readFromFile(this.baseRom, 0x2C, 4);
-            byte[] arm9 = new byte[arm9_size];
-            this.baseRom.seek(arm9_offset);
-            this.baseRom.readFully(arm9);
-            originalArm9CRC = FileFunctions.getCRC32(arm9);
-            // footer check
-            int nitrocode = readFromFile(this.baseRom, 4);
-            if (nitrocode == 0xDEC00621) {
-                // found a footer
-                arm9_footer = new byte[12];
-                writeToByteArr(arm9_footer, 0, 4, 0xDEC00621);
-                this.baseRom.readFully(arm9_footer, 4, 8);
+            byte[] arm9 = base != null ? base.pristineARM9For(this) : readARM9();
+            overlays.put("arm9", arm9);
+            return arm9;
+        } else {
+            return overlays.get("arm9");
+        }
+    }
+
+    // The arm9 as it is in the base ROM, along with what was found out reading it
+    private synchronized byte[] pristineARM9For(NDSRom copy) throws IOException {
+        byte[] arm9 = getARM9();
+        // Only the copies need the file open
+        closeROM();
+        copy.originalArm9CRC = originalArm9CRC;
+        copy.arm9_has_footer = arm9_has_footer;
+        copy.arm9_footer = arm9_footer;
+        copy.arm9_compressed = arm9_compressed;
+        copy.arm9_szoffset = arm9_szoffset;
+        return arm9;
+    }
+
+    private byte[] readARM9() throws IOException {
+        this.reopenROM();
+        int arm9_offset = readFromFile(this.baseRom, 0x20, 4);
+        int arm9_size = readFromFile(this.baseRom, 0x2C, 4);
+        byte[] arm9 = new byte[arm9_size];
+        this.baseRom.seek(arm9_offset);
+        this.baseRom.readFully(arm9);
+        originalArm9CRC = FileFunctions.getCRC32(arm9);
+        // footer check
+        int nitrocode = readFromFile(this.baseRom, 4);
+        if (nitrocode == 0xDEC00621) {
+            // found a footer
+            arm9_footer = new byte[12];
+            writeToByteArr(arm9_footer, 0, 4, 0xDEC00621);
+            this.baseRom.readFully(arm9_footer, 4, 8);
+            arm9_has_footer = true;
+        } else {
+            arm9_has_footer = false;
+        }
+        // Any extras?
+        while ((readFromByteArr(arm9, arm9.length - 12, 4) == 0xDEC00621)
+                || ((readFromByteArr(arm9, arm9.length - 12, 4) == 0
+                        && readFromByteArr(arm9, arm9.length - 8, 4) == 0 && readFromByteArr(arm9, arm9.length - 4,
+                        4) == 0))) {
+            if (!arm9_has_footer) {
                 arm9_has_footer = true;
-            } else {
-                arm9_has_footer = false;
-            }
-            // Any extras?
-            while ((readFromByteArr(arm9, arm9.length - 12, 4) == 0xDEC00621)
-                    || ((readFromByteArr(arm9, arm9.length - 12, 4) == 0
-                            && readFromByteArr(arm9, arm9.length - 8, 4) == 0 && readFromByteArr(arm9, arm9.length - 4,
-                            4) == 0))) {
-                if (!arm9_has_footer) {
-                    arm9_has_footer = true;
-                    arm9_footer = new byte[0];
-                }
-                byte[] newfooter = new byte[arm9_footer.length + 12];
-                System.arraycopy(arm9, arm9.length - 12, newfooter, 0, 12);
-                System.arraycopy(arm9_footer, 0, newfooter, 12, arm9_footer.length);
-                arm9_footer = newfooter;
-                byte[] newarm9 = new byte[arm9.length - 12];
-                System.arraycopy(arm9, 0, newarm9, 0, arm9.length - 12);
-                arm9 = newarm9;
+                arm9_footer = new byte[0];
             }
-            // Compression?
-            arm9_compressed = false;
-            arm9_szoffset = 0;
-            if (((int) arm9[arm9.length - 5]) >= 0x08 && ((int) arm9[arm9.length - 5]) <= 0x0B) {
-                int compSize = readFromByteArr(arm9, arm9.length - 8, 3);
-                if (compSize > (arm9.length * 9 / 10) && compSize < (arm9.length * 11 / 10)) {
-                    arm9_compressed = true;
-                    byte[] compLength = new byte[4];
-                    writeToByteArr(compLength, 0, 4, arm9.length + arm9_ramoffset);
-                    List<Integer> foundOffsets = RomFunctions.search(arm9, compLength);
-                    if (foundOffsets.size() == 1) {
-                        arm9_szoffset = foundOffsets.get(0);
-                    } else {
-                        throw new RandomizerIOException("Could not read ARM9 size offset. May be a bad ROM.");
-                    }
+            byte[] newfooter = new byte[arm9_footer.length + 12];
+            System.arraycopy(arm9, arm9.length - 12, newfooter, 0, 12);
+            System.arraycopy(arm9_footer, 0, newfooter, 12, arm9_footer.length);
+            arm9_footer = newfooter;
+            byte[] newarm9 = new byte[arm9.length - 12];
+            System.arraycopy(arm9, 0, newarm9, 0, arm9.length - 12);
+            arm9 = newarm9;
+        }
+        // Compression?
+        arm9_compressed = false;
+        arm9_szoffset = 0;
+        if (((int) arm9[arm9.length - 5]) >= 0x08 && ((int) arm9[arm9.length - 5]) <= 0x0B) {
+            int compSize = readFromByteArr(arm9, arm9.length - 8, 3);
+            if (compSize > (arm9.length * 9 / 10) && compSize < (arm9.length * 11 / 10)) {
+                arm9_compressed = true;
+                byte[] compLength = new byte[4];
+                writeToByteArr(compLength, 0, 4, arm9.length + arm9_ramoffset);
+                List<Integer> foundOffsets = RomFunctions.search(arm9, compLength);
+                if (foundOffsets.size() == 1) {
+                    arm9_szoffset = foundOffsets.get(0);
+                } else {
+                    throw new RandomizerIOException("Could not read ARM9 size offset. May be a bad ROM.");
                 }
             }
+        }
 
-            if (arm9_compressed) {
-                arm9 = new BLZCoder(null).BLZ_DecodePub(arm9, "arm9.bin");
-            }
-
-            // Now actually make the copy or w/e
-            if (writingEnabled) {
-                File arm9file = new File(tmpFolder + "arm9.bin");
-                FileOutputStream fos = new FileOutputStream(arm9file);
-                fos.write(arm9);
-                fos.close();
-                arm9file.deleteOnExit();
-                this.arm9_ramstored = null;
-                return arm9;
-            } else {
-                this.arm9_ramstored = arm9;
-                byte[] newcopy = new byte[arm9.length];
-                System.arraycopy(arm9, 0, newcopy, 0, arm9.length);
-                return newcopy;
-            }
-        } else {
-            if (writingEnabled) {
-                return FileFunctions.readFileFullyIntoBuffer(tmpFolder + "arm9.bin");
-            } else {
-                byte[] newcopy = new byte[this.arm9_ramstored.length];
-                System.arraycopy(this.arm9_ramstored, 0, newcopy, 0, this.arm9_ramstored.length);
-                return newcopy;
-            }
+        if (arm9_compressed) {
+            arm9 = new BLZCoder(null).BLZ_DecodePub(arm9, "arm9.bin");
         }
+        return arm9;
     }
 
     // returns null if file doesn't exist
@@ -582,21 +642,7 @@ public class NDSRom {
             getARM9();
         }
         arm9_changed = true;
-        if (writingEnabled) {
-            FileOutputStream fos = new FileOutputStream(new File(tmpFolder + "arm9.bin"));
-            fos.write(arm9);
-            fos.close();
-        } else {
-            if (this.arm9_ramstored.length == arm9.length) {
-                // copy new in
-                System.arraycopy(arm9, 0, this.arm9_ramstored, 0, arm9.length);
-            } else {
-                // make new array
-                this.arm9_ramstored = null;
-                this.arm9_ramstored = new byte[arm9.length];
-                System.arraycopy(arm9, 0, this.arm9_ramstored, 0, arm9.length);
-            }
-        }
+        overlays.put("arm9", arm9);
     }
 
     private void firstPassDirectory(int dir, int subTableOffset, int firstFileID, String[] directoryNames,
@@ -651,16 +697,18 @@ public class NDSRom {
         }
     }
 
-    public String getTmpFolder() {
-        return tmpFolder;
-    }
-
     public RandomAccessFile getBaseRom() {
         return baseRom;
     }
 
-    public boolean isWritingEnabled() {
-        return writingEnabled;
+    // For reading the base ROM; unlike getBaseRom(), this is safe to use from any thread
+    public MappedFile getMappedRom() {
+        return mappedRom;
+    }
+
+    // Where extracted and modified files are kept; each NDSRom has its own
+    public OverlayStore getOverlayStore() {
+        return overlays;
     }
 
     private int readFromByteArr(byte[] data, int offset, int size) {
@@ -1,9 +1,6 @@
 package com.dabomstew.pkrandom.newnds;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
 import com.dabomstew.pkrandom.FileFunctions;
 
@@ -42,81 +39,73 @@ public class NDSY9Entry {
     public int compressed_size;
     public int compress_flag;
     private Extracted status = Extracted.NOT;
-    private String extFilename;
-    public byte[] data;
+    private String storeKey;
     public long originalCRC;
     private boolean decompressed_data = false;
+    // The same overlay in the NDSRom the parent was copied from, which decompresses it for all copies
+    private NDSY9Entry base;
 
     public NDSY9Entry(NDSRom parent) {
         this.parent = parent;
     }
 
+    // An unextracted entry for the same overlay in a copy of the parent
+    NDSY9Entry copyFor(NDSRom parent) {
+        NDSY9Entry copy = new NDSY9Entry(parent);
+        copy.offset = offset;
+        copy.size = size;
+        copy.original_size = original_size;
+        copy.fileID = fileID;
+        copy.overlay_id = overlay_id;
+        copy.ram_address = ram_address;
+        copy.ram_size = ram_size;
+        copy.bss_size = bss_size;
+        copy.static_start = static_start;
+        copy.static_end = static_end;
+        copy.compressed_size = compressed_size;
+        copy.compress_flag = compress_flag;
+        copy.base = this;
+        return copy;
+    }
+
     public byte[] getContents() throws IOException {
         if (this.status == Extracted.NOT) {
-            // extract file
-            parent.reopenROM();
-            RandomAccessFile rom = parent.getBaseRom();
-            byte[] buf = new byte[this.original_size];
-            rom.seek(this.offset);
-            rom.readFully(buf);
-            originalCRC = FileFunctions.getCRC32(buf);
-            // Compression?
-            if (compress_flag != 0 && this.original_size == this.compressed_size && this.compressed_size != 0) {
-                buf = new BLZCoder(null).BLZ_DecodePub(buf, "overlay " + overlay_id);
-                decompressed_data = true;
-            }
-            if (parent.isWritingEnabled()) {
-                // make a file
-                String tmpDir = parent.getTmpFolder();
-                String fullPath = String.format("overlay_%04d", overlay_id);
-                this.extFilename = fullPath.replaceAll("[^A-Za-z0-9_]+", "");
-                File tmpFile = new File(tmpDir + extFilename);
-                FileOutputStream fos = new FileOutputStream(tmpFile);
-                fos.write(buf);
-                fos.close();
-                tmpFile.deleteOnExit();
-                this.status = Extracted.TO_FILE;
-                this.data = null;
-                return buf;
+            byte[] buf;
+            if (base != null) {
+                buf = base.pristineContentsFor(this);
             } else {
-                this.status = Extracted.TO_RAM;
-                this.data = buf;
-                byte[] newcopy = new byte[buf.length];
-                System.arraycopy(buf, 0, newcopy, 0, buf.length);
-                return newcopy;
+                // extract file
+                buf = parent.getMappedRom().read(this.offset, this.original_size);
+                originalCRC = FileFunctions.getCRC32(buf);
+                // Compression?
+                if (compress_flag != 0 && this.original_size == this.compressed_size && this.compressed_size != 0) {
+                    buf = new BLZCoder(null).BLZ_DecodePub(buf, "overlay " + overlay_id);
+                    decompressed_data = true;
+                }
             }
-        } else if (this.status == Extracted.TO_RAM) {
-            byte[] newcopy = new byte[this.data.length];
-            System.arraycopy(this.data, 0, newcopy, 0, this.data.length);
-            return newcopy;
+            this.storeKey = "overlay/" + overlay_id;
+            parent.getOverlayStore().put(storeKey, buf);
+            this.status = Extracted.EXTRACTED;
+            return buf;
         } else {
-            String tmpDir = parent.getTmpFolder();
-            return FileFunctions.readFileFullyIntoBuffer(tmpDir + this.extFilename);
+            return parent.getOverlayStore().get(storeKey);
         }
     }
 
+    private synchronized byte[] pristineContentsFor(NDSY9Entry copy) throws IOException {
+        byte[] buf = getContents();
+        copy.originalCRC = originalCRC;
+        copy.decompressed_data = decompressed_data;
+        return buf;
+    }
+
     public void writeOverride(byte[] data) throws IOException {
         if (status == Extracted.NOT) {
             // temp extract
             getContents();
         }
         size = data.length;
-        if (status == Extracted.TO_FILE) {
-            String tmpDir = parent.getTmpFolder();
-            FileOutputStream fos = new FileOutputStream(new File(tmpDir + this.extFilename));
-            fos.write(data);
-            fos.close();
-        } else {
-            if (this.data.length == data.length) {
-                // copy new in
-                System.arraycopy(data, 0, this.data, 0, data.length);
-            } else {
-                // make new array
-                this.data = null;
-                this.data = new byte[data.length];
-                System.arraycopy(data, 0, this.data, 0, data.length);
-            }
-        }
+        parent.getOverlayStore().put(storeKey, data);
     }
 
     // returns null if no override
@@ -134,7 +123,7 @@ public class NDSY9Entry {
     }
 
     private enum Extracted {
-        NOT, TO_FILE, TO_RAM
+        NOT, EXTRACTED
     }
 
 }
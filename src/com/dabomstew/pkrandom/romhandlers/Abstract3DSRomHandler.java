@@ -25,6 +25,7 @@ package com.dabomstew.pkrandom.romhandlers;
 /*----------------------------------------------------------------------------*/
 
 import com.dabomstew.pkrandom.FileFunctions;
+import com.dabomstew.pkrandom.RandomSource;
 import com.dabomstew.pkrandom.ctr.GARCArchive;
 import com.dabomstew.pkrandom.ctr.NCCH;
 import com.dabomstew.pkrandom.exceptions.EncryptedROMException;
@@ -35,8 +36,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
 
 public abstract class Abstract3DSRomHandler extends AbstractRomHandler {
 
@@ -44,8 +45,8 @@ public abstract class Abstract3DSRomHandler extends AbstractRomHandler {
     private NCCH gameUpdate;
     private String loadedFN;
 
-    public Abstract3DSRomHandler(Random random, PrintStream logStream) {
-        super(random, logStream);
+    public Abstract3DSRomHandler(RandomSource randomSource, PrintStream logStream) {
+        super(randomSource, logStream);
     }
 
     @Override
@@ -69,6 +70,25 @@ public abstract class Abstract3DSRomHandler extends AbstractRomHandler {
         return true;
     }
 
+    // Loads from an NCCH that was already read (see RomSnapshotCache). The handler works on a copy, so
+    // the same NCCH can be loaded from any number of times.
+    public boolean loadRom(String filename, NCCH snapshot) {
+        if (!this.detect3DSRom(snapshot.getProductCode(), snapshot.getTitleId())) {
+            return false;
+        }
+        try {
+            baseRom = snapshot.copy();
+            if (!baseRom.isDecrypted()) {
+                throw new EncryptedROMException(filename);
+            }
+        } catch (IOException e) {
+            throw new RandomizerIOException(e);
+        }
+        loadedFN = filename;
+        this.loadedROM(snapshot.getProductCode(), snapshot.getTitleId());
+        return true;
+    }
+
     protected abstract boolean detect3DSRom(String productCode, String titleId);
 
     @Override
@@ -104,6 +124,22 @@ public abstract class Abstract3DSRomHandler extends AbstractRomHandler {
         return true;
     }
 
+    @Override
+    public boolean saveRomPatch(String filename) {
+        try {
+            savingROM();
+            baseRom.saveAsLayeredFSZip(filename);
+        } catch (IOException e) {
+            throw new RandomizerIOException(e);
+        }
+        return true;
+    }
+
+    @Override
+    public String getPatchExtension() {
+        return "zip";
+    }
+
     protected abstract boolean isGameUpdateSupported(int version);
 
     @Override
@@ -153,6 +189,20 @@ public abstract class Abstract3DSRomHandler extends AbstractRomHandler {
         baseRom.closeROM();
     }
 
+    @Override
+    public void releaseRom() {
+        try {
+            if (baseRom != null) {
+                baseRom.close();
+            }
+            if (gameUpdate != null) {
+                gameUpdate.close();
+            }
+        } catch (IOException e) {
+            throw new RandomizerIOException(e);
+        }
+    }
+
     @Override
     public boolean hasPhysicalSpecialSplit() {
         // Default value for Gen4+.
@@ -190,6 +240,31 @@ public abstract class Abstract3DSRomHandler extends AbstractRomHandler {
         return baseRom.getFile(location);
     }
 
+    // The CRC32s of the files as readFile would return them before any changes, in the same order
+    protected long[] getOriginalCRC32s(List<String> locations) throws IOException {
+        List<String> baseLocations = new ArrayList<>();
+        List<String> updateLocations = new ArrayList<>();
+        for (String location : locations) {
+            if (gameUpdate != null && gameUpdate.hasFile(location)) {
+                updateLocations.add(location);
+            } else {
+                baseLocations.add(location);
+            }
+        }
+        long[] baseCRCs = baseRom.getOriginalCRC32s(baseLocations);
+        long[] updateCRCs = gameUpdate == null ? new long[0] : gameUpdate.getOriginalCRC32s(updateLocations);
+        long[] crcs = new long[locations.size()];
+        int nextBase = 0, nextUpdate = 0;
+        for (int i = 0; i < crcs.length; i++) {
+            if (gameUpdate != null && gameUpdate.hasFile(locations.get(i))) {
+                crcs[i] = updateCRCs[nextUpdate++];
+            } else {
+                crcs[i] = baseCRCs[nextBase++];
+            }
+        }
+        return crcs;
+    }
+
     protected void writeFile(String location, byte[] data) throws IOException {
         writeFile(location, data, 0, data.length);
     }
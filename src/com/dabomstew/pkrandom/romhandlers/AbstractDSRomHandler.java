@@ -24,14 +24,23 @@ package com.dabomstew.pkrandom.romhandlers;
 /*--  You should have received a copy of the GNU General Public License     --*/
 /*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
 /*----------------------------------------------------------------------------*/
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
 
+import com.dabomstew.pkrandom.BPSPatch;
 import com.dabomstew.pkrandom.FileFunctions;
+import com.dabomstew.pkrandom.MappedFile;
+import com.dabomstew.pkrandom.RandomSource;
 import com.dabomstew.pkrandom.RomFunctions;
 import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
 import com.dabomstew.pkrandom.newnds.NARCArchive;
@@ -44,9 +53,16 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
     private NDSRom baseRom;
     private String loadedFN;
     private boolean arm9Extended = false;
+    // NARCs as they are in the ROM right now, by path. Never handed out themselves: readNARC returns
+    // copies, which share the cached archive's buffer until their entries are used. Each one holds the
+    // file a second time on top of the ROM's store, so only the most recently read ones are kept, up to
+    // NARC_CACHE_BYTES.
+    private static final long NARC_CACHE_BYTES = 16 * 1024 * 1024;
+    private final Map<String, NARCArchive> narcCache = new LinkedHashMap<>(16, 0.75f, true);
+    private long narcCacheBytes;
 
-    public AbstractDSRomHandler(Random random, PrintStream logStream) {
-        super(random, logStream);
+    public AbstractDSRomHandler(RandomSource randomSource, PrintStream logStream) {
+        super(randomSource, logStream);
     }
 
     protected abstract boolean detectNDSRom(String ndsCode, byte version);
@@ -67,6 +83,22 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
         return true;
     }
 
+    // Loads from an NDSRom that was already read (see RomSnapshotCache). The handler works on a copy, so
+    // the same NDSRom can be loaded from any number of times.
+    public boolean loadRom(String filename, NDSRom snapshot) {
+        if (!this.detectNDSRom(snapshot.getCode(), snapshot.getVersion())) {
+            return false;
+        }
+        try {
+            baseRom = snapshot.copy();
+        } catch (IOException e) {
+            throw new RandomizerIOException(e);
+        }
+        loadedFN = filename;
+        loadedROM(baseRom.getCode(), baseRom.getVersion());
+        return true;
+    }
+
     @Override
     public String loadedFilename() {
         return loadedFN;
@@ -95,6 +127,37 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
         return true;
     }
 
+    // The new ROM is built in a temporary file next to the patch and diffed against the base ROM, which
+    // finds the files that saving moved as well as the ones that changed
+    @Override
+    public boolean saveRomPatch(String filename) {
+        savingROM();
+        File patchFile = new File(filename).getAbsoluteFile();
+        File newRom = null;
+        try {
+            newRom = File.createTempFile("tmp_", ".nds", patchFile.getParentFile());
+            baseRom.saveTo(newRom.getPath());
+            MappedFile original = baseRom.getMappedRom();
+            try (FileChannel channel = FileChannel.open(newRom.toPath(), StandardOpenOption.READ);
+                 FileOutputStream fos = new FileOutputStream(patchFile)) {
+                BPSPatch.create(original.slice(0, (int) original.length()),
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), fos);
+            }
+        } catch (IOException e) {
+            throw new RandomizerIOException(e);
+        } finally {
+            if (newRom != null && !newRom.delete()) {
+                newRom.deleteOnExit();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String getPatchExtension() {
+        return "bps";
+    }
+
     @Override
     public boolean saveRomDirectory(String filename) {
         // do nothing. DS games do have the concept of a filesystem, but it's way more
@@ -133,6 +196,19 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
         baseRom.closeROM();
     }
 
+    @Override
+    public void releaseRom() {
+        narcCache.clear();
+        narcCacheBytes = 0;
+        try {
+            if (baseRom != null) {
+                baseRom.close();
+            }
+        } catch (IOException e) {
+            throw new RandomizerIOException(e);
+        }
+    }
+
     @Override
     public boolean canChangeStaticPokemon() {
         return false;
@@ -146,11 +222,37 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
     }
 
     public NARCArchive readNARC(String subpath) throws IOException {
-        return new NARCArchive(readFile(subpath));
+        NARCArchive narc = narcCache.get(subpath);
+        if (narc == null) {
+            narc = new NARCArchive(readFile(subpath));
+            cacheNARC(subpath, narc);
+        }
+        return narc.copy();
     }
 
     public void writeNARC(String subpath, NARCArchive narc) throws IOException {
-        this.writeFile(subpath, narc.getBytes());
+        byte[] data = narc.getBytes();
+        this.writeFile(subpath, data);
+        // writeFile keeps its own copy, so the cache can keep this one
+        cacheNARC(subpath, new NARCArchive(data));
+    }
+
+    private void cacheNARC(String subpath, NARCArchive narc) throws IOException {
+        uncacheNARC(subpath);
+        narcCache.put(subpath, narc);
+        narcCacheBytes += narc.length();
+        Iterator<NARCArchive> leastRecent = narcCache.values().iterator();
+        while (narcCacheBytes > NARC_CACHE_BYTES && leastRecent.hasNext()) {
+            narcCacheBytes -= leastRecent.next().length();
+            leastRecent.remove();
+        }
+    }
+
+    private void uncacheNARC(String subpath) throws IOException {
+        NARCArchive old = narcCache.remove(subpath);
+        if (old != null) {
+            narcCacheBytes -= old.length();
+        }
     }
 
     protected static String getROMCodeFromFile(String filename) {
@@ -213,11 +315,16 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
         return baseRom.getFile(location);
     }
 
+    protected long[] getOriginalCRC32s(List<String> locations) throws IOException {
+        return baseRom.getOriginalCRC32s(locations);
+    }
+
     protected void writeFile(String location, byte[] data) throws IOException {
         writeFile(location, data, 0, data.length);
     }
 
     protected void writeFile(String location, byte[] data, int offset, int length) throws IOException {
+        uncacheNARC(location);
         if (offset != 0 || length != data.length) {
             byte[] newData = new byte[length];
             System.arraycopy(data, offset, newData, 0, length);
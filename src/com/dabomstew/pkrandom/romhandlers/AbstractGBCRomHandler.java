@@ -31,10 +31,10 @@ import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
 import java.util.Scanner;
 
 import com.dabomstew.pkrandom.FileFunctions;
+import com.dabomstew.pkrandom.RandomSource;
 import com.dabomstew.pkrandom.constants.GBConstants;
 
 public abstract class AbstractGBCRomHandler extends AbstractGBRomHandler {
@@ -43,8 +43,8 @@ public abstract class AbstractGBCRomHandler extends AbstractGBRomHandler {
     private Map<String, Byte> d;
     private int longestTableToken;
 
-    public AbstractGBCRomHandler(Random random, PrintStream logStream) {
-        super(random, logStream);
+    public AbstractGBCRomHandler(RandomSource randomSource, PrintStream logStream) {
+        super(randomSource, logStream);
     }
 
     protected void clearTextTables() {
@@ -30,11 +30,14 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Random;
+import java.util.Arrays;
 
+import com.dabomstew.pkrandom.BPSPatch;
 import com.dabomstew.pkrandom.FileFunctions;
+import com.dabomstew.pkrandom.RandomSource;
 import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
 
 public abstract class AbstractGBRomHandler extends AbstractRomHandler {
@@ -43,8 +46,8 @@ public abstract class AbstractGBRomHandler extends AbstractRomHandler {
     protected byte[] originalRom;
     private String loadedFN;
 
-    public AbstractGBRomHandler(Random random, PrintStream logStream) {
-        super(random, logStream);
+    public AbstractGBRomHandler(RandomSource randomSource, PrintStream logStream) {
+        super(randomSource, logStream);
     }
 
     @Override
@@ -61,11 +64,31 @@ public abstract class AbstractGBRomHandler extends AbstractRomHandler {
         return true;
     }
 
+    // Loads from a ROM image that was already read into memory (see RomSnapshotCache).
+    // The image is never written to, so it can be shared as the pristine copy between handlers.
+    public boolean loadRom(String filename, byte[] image) {
+        byte[] loaded = Arrays.copyOf(image, image.length);
+        if (!detectRom(loaded)) {
+            return false;
+        }
+        this.rom = loaded;
+        // detectRom may patch the header of some ROM hacks, in which case keep our own copy
+        this.originalRom = Arrays.equals(rom, image) ? image : Arrays.copyOf(rom, rom.length);
+        loadedFN = filename;
+        loadedRom();
+        return true;
+    }
+
     @Override
     public String loadedFilename() {
         return loadedFN;
     }
 
+    @Override
+    public void releaseRom() {
+        // The whole ROM is in the rom array
+    }
+
     @Override
     public boolean saveRomFile(String filename, long seed) {
         savingRom();
@@ -85,6 +108,22 @@ public abstract class AbstractGBRomHandler extends AbstractRomHandler {
         return true;
     }
 
+    @Override
+    public boolean saveRomPatch(String filename) {
+        savingRom();
+        try (FileOutputStream fos = new FileOutputStream(filename)) {
+            BPSPatch.create(ByteBuffer.wrap(originalRom), ByteBuffer.wrap(rom), fos);
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public String getPatchExtension() {
+        return "bps";
+    }
+
     @Override
     public boolean hasGameUpdateLoaded() {
         return false;
@@ -30,6 +30,8 @@ package com.dabomstew.pkrandom.romhandlers;
 
 import java.io.PrintStream;
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import com.dabomstew.pkrandom.*;
@@ -39,6 +41,13 @@ import com.dabomstew.pkrandom.pokemon.*;
 
 public abstract class AbstractRomHandler implements RomHandler {
 
+    // Set with the pkrandom.parallelTrainers property. Trainers are then randomized in parallel, each with a
+    // random stream of its own, so a seed gives the same trainers on any number of cores. They aren't the
+    // same trainers the seed gives without it.
+    private static final boolean PARALLEL_TRAINERS = Boolean.getBoolean("pkrandom.parallelTrainers");
+    // How many trainers are randomized in parallel before their placements are added to the history
+    private static final int TRAINER_WAVE_SIZE = 32;
+
     private boolean restrictionsSet;
     protected List<Pokemon> mainPokemonList;
     protected List<Pokemon> mainPokemonListInclFormes;
@@ -47,22 +56,29 @@ public abstract class AbstractRomHandler implements RomHandler {
     private List<Pokemon> noLegendaryList, onlyLegendaryList, ultraBeastList;
     private List<Pokemon> noLegendaryListInclFormes, onlyLegendaryListInclFormes;
     private List<Pokemon> noLegendaryAltsList, onlyLegendaryAltsList;
+    // Every Pokemon, indexed so the lists above can also be kept as pools of it
+    private PokemonUniverse universe;
+    private BitSet mainPool, mainPoolInclFormes, noLegendaryPool, noLegendaryPoolInclFormes;
+    // Made when first needed. These are shared, so they must be copied before being changed.
+    private BitSet playerBannedFormesPool, abilityDependentFormesPool, irregularFormesPool;
     private List<Pokemon> pickedStarters;
-    protected final Random random;
-    private final Random cosmeticRandom;
+    private RandomSource randomSource;
+    protected Random random;
+    private Random cosmeticRandom;
     protected PrintStream logStream;
     private List<Pokemon> alreadyPicked = new ArrayList<>();
-    private Map<Pokemon, Integer> placementHistory = new HashMap<>();
-    private Map<Integer, Integer> itemPlacementHistory = new HashMap<>();
+    private PlacementHistory placementHistory = new PlacementHistory();
+    private PlacementHistory itemPlacementHistory = new PlacementHistory();
+    // The placement history of the trainer being randomized on this thread, see randomizeTrainersInParallel
+    private final ThreadLocal<PlacementHistory> trainerPlacementHistory = new ThreadLocal<>();
     boolean isORAS = false;
     boolean isSM = false;
     int perfectAccuracy = 100;
 
     /* Constructor */
 
-    public AbstractRomHandler(Random random, PrintStream logStream) {
-        this.random = random;
-        this.cosmeticRandom = RandomSource.cosmeticInstance();
+    public AbstractRomHandler(RandomSource randomSource, PrintStream logStream) {
+        setRandomSource(randomSource);
         this.logStream = logStream;
     }
 
@@ -74,6 +90,16 @@ public abstract class AbstractRomHandler implements RomHandler {
         this.logStream = logStream;
     }
 
+    public void setRandomSource(RandomSource randomSource) {
+        this.randomSource = randomSource;
+        this.random = randomSource.instance();
+        this.cosmeticRandom = randomSource.cosmeticInstance();
+    }
+
+    public RandomSource getRandomSource() {
+        return randomSource;
+    }
+
     public void setPokemonPool(Settings settings) {
         GenRestrictions restrictions = null;
         if (settings != null) {
@@ -173,6 +199,15 @@ public abstract class AbstractRomHandler implements RomHandler {
                 noLegendaryAltsList.add(f);
             }
         }
+
+        universe = new PokemonUniverse(mainPokemonListInclFormes, allPokemonInclFormesWithoutNull());
+        mainPool = universe.of(mainPokemonList);
+        mainPoolInclFormes = universe.of(mainPokemonListInclFormes);
+        noLegendaryPool = universe.of(noLegendaryList);
+        noLegendaryPoolInclFormes = universe.of(noLegendaryListInclFormes);
+        playerBannedFormesPool = null;
+        abilityDependentFormesPool = null;
+        irregularFormesPool = null;
     }
 
     private void addPokesFromRange(List<Pokemon> pokemonPool, List<Pokemon> allPokemon, int range_min, int range_max) {
@@ -701,78 +736,49 @@ public abstract class AbstractRomHandler implements RomHandler {
         List<EncounterSet> scrambledEncounters = new ArrayList<>(currentEncounters);
         Collections.shuffle(scrambledEncounters, this.random);
 
-        List<Pokemon> banned = this.bannedForWildEncounters();
-        banned.addAll(this.getBannedFormesForPlayerPokemon());
-        if (!abilitiesAreRandomized) {
-            List<Pokemon> abilityDependentFormes = getAbilityDependentFormes();
-            banned.addAll(abilityDependentFormes);
-        }
-        if (banIrregularAltFormes) {
-            banned.addAll(getIrregularFormes());
-        }
+        BitSet banned = bannedFormesPool(!abilitiesAreRandomized, banIrregularAltFormes);
+        banned.or(playerBannedFormesPool());
+        banned.or(universe.of(this.bannedForWildEncounters()));
         // Assume EITHER catch em all OR type themed OR match strength for now
         if (catchEmAll) {
 
-            List<Pokemon> allPokes;
-            if (allowAltFormes) {
-                allPokes = noLegendaries ? new ArrayList<>(noLegendaryListInclFormes) : new ArrayList<>(
-                        mainPokemonListInclFormes);
-                allPokes.removeIf(o -> ((Pokemon) o).actuallyCosmetic);
-            } else {
-                allPokes = noLegendaries ? new ArrayList<>(noLegendaryList) : new ArrayList<>(
-                        mainPokemonList);
-            }
-            allPokes.removeAll(banned);
+            BitSet allPokes = wildPool(allowAltFormes, noLegendaries, banned);
 
             for (EncounterSet area : scrambledEncounters) {
-                List<Pokemon> pickablePokemon = allPokes;
+                BitSet pickablePokemon = allPokes;
+                BitSet areaBanned = universe.of(area.bannedPokemon);
                 if (area.bannedPokemon.size() > 0) {
-                    pickablePokemon = new ArrayList<>(allPokes);
-                    pickablePokemon.removeAll(area.bannedPokemon);
+                    pickablePokemon = (BitSet) allPokes.clone();
+                    pickablePokemon.andNot(areaBanned);
                 }
                 for (Encounter enc : area.encounters) {
                     // Pick a random pokemon
-                    if (pickablePokemon.size() == 0) {
+                    if (pickablePokemon.isEmpty()) {
                         // Only banned pokes are left, ignore them and pick
                         // something else for now.
-                        List<Pokemon> tempPickable;
-                        if (allowAltFormes) {
-                            tempPickable = noLegendaries ? new ArrayList<>(noLegendaryListInclFormes) : new ArrayList<>(
-                                    mainPokemonListInclFormes);
-                            tempPickable.removeIf(o -> ((Pokemon) o).actuallyCosmetic);
-                        } else {
-                            tempPickable = noLegendaries ? new ArrayList<>(noLegendaryList) : new ArrayList<>(
-                                    mainPokemonList);
-                        }
-                        tempPickable.removeAll(banned);
-                        tempPickable.removeAll(area.bannedPokemon);
-                        if (tempPickable.size() == 0) {
+                        BitSet tempPickable = wildPool(allowAltFormes, noLegendaries, banned);
+                        tempPickable.andNot(areaBanned);
+                        if (tempPickable.isEmpty()) {
                             throw new RandomizationException("ERROR: Couldn't replace a wild Pokemon!");
                         }
-                        int picked = this.random.nextInt(tempPickable.size());
-                        enc.pokemon = tempPickable.get(picked);
+                        int picked = this.random.nextInt(tempPickable.cardinality());
+                        enc.pokemon = universe.get(tempPickable, picked);
                         setFormeForEncounter(enc, enc.pokemon);
                     } else {
                         // Picked this Pokemon, remove it
-                        int picked = this.random.nextInt(pickablePokemon.size());
-                        enc.pokemon = pickablePokemon.get(picked);
-                        pickablePokemon.remove(picked);
+                        int picked = this.random.nextInt(pickablePokemon.cardinality());
+                        enc.pokemon = universe.get(pickablePokemon, picked);
+                        universe.remove(pickablePokemon, enc.pokemon);
                         if (allPokes != pickablePokemon) {
-                            allPokes.remove(enc.pokemon);
+                            universe.remove(allPokes, enc.pokemon);
                         }
                         setFormeForEncounter(enc, enc.pokemon);
-                        if (allPokes.size() == 0) {
+                        if (allPokes.isEmpty()) {
                             // Start again
-                            if (allowAltFormes) {
-                                allPokes.addAll(noLegendaries ? noLegendaryListInclFormes : mainPokemonListInclFormes);
-                                allPokes.removeIf(o -> ((Pokemon) o).actuallyCosmetic);
-                            } else {
-                                allPokes.addAll(noLegendaries ? noLegendaryList : mainPokemonList);
-                            }
-                            allPokes.removeAll(banned);
+                            allPokes.or(wildPool(allowAltFormes, noLegendaries, banned));
                             if (pickablePokemon != allPokes) {
-                                pickablePokemon.addAll(allPokes);
-                                pickablePokemon.removeAll(area.bannedPokemon);
+                                pickablePokemon.or(allPokes);
+                                pickablePokemon.andNot(areaBanned);
                             }
                         }
                     }
@@ -788,7 +794,7 @@ public abstract class AbstractRomHandler implements RomHandler {
                     if (!cachedPokeLists.containsKey(areaTheme)) {
                         List<Pokemon> pType = allowAltFormes ? pokemonOfTypeInclFormes(areaTheme, noLegendaries) :
                                 pokemonOfType(areaTheme, noLegendaries);
-                        pType.removeAll(banned);
+                        pType.removeIf(pk -> universe.contains(banned, pk));
                         cachedPokeLists.put(areaTheme, pType);
                     }
                     possiblePokemon = cachedPokeLists.get(areaTheme);
@@ -823,12 +829,12 @@ public abstract class AbstractRomHandler implements RomHandler {
                 allowedPokes = noLegendaries ? new ArrayList<>(noLegendaryList)
                         : new ArrayList<>(mainPokemonList);
             }
-            allowedPokes.removeAll(banned);
+            allowedPokes.removeIf(pk -> universe.contains(banned, pk));
+            PowerLevelIndex allowedIndex = new PowerLevelIndex(allowedPokes);
             for (EncounterSet area : scrambledEncounters) {
-                List<Pokemon> localAllowed = allowedPokes;
+                PowerLevelIndex localAllowed = allowedIndex;
                 if (area.bannedPokemon.size() > 0) {
-                    localAllowed = new ArrayList<>(allowedPokes);
-                    localAllowed.removeAll(area.bannedPokemon);
+                    localAllowed = allowedIndex.without(area.bannedPokemon);
                 }
                 for (Encounter enc : area.encounters) {
                     if (balanceShakingGrass) {
@@ -902,15 +908,9 @@ public abstract class AbstractRomHandler implements RomHandler {
         boolean abilitiesAreRandomized = settings.getAbilitiesMod() == Settings.AbilitiesMod.RANDOMIZE;
 
         checkPokemonRestrictions();
-        List<Pokemon> banned = this.bannedForWildEncounters();
-        banned.addAll(this.getBannedFormesForPlayerPokemon());
-        if (!abilitiesAreRandomized) {
-            List<Pokemon> abilityDependentFormes = getAbilityDependentFormes();
-            banned.addAll(abilityDependentFormes);
-        }
-        if (banIrregularAltFormes) {
-            banned.addAll(getIrregularFormes());
-        }
+        BitSet banned = bannedFormesPool(!abilitiesAreRandomized, banIrregularAltFormes);
+        banned.or(playerBannedFormesPool());
+        banned.or(universe.of(this.bannedForWildEncounters()));
 
         // New: randomize the order encounter sets are randomized in.
         // Leads to less predictable results for various modifiers.
@@ -920,66 +920,43 @@ public abstract class AbstractRomHandler implements RomHandler {
 
         // Assume EITHER catch em all OR type themed for now
         if (catchEmAll) {
-            List<Pokemon> allPokes;
-            if (allowAltFormes) {
-                allPokes = noLegendaries ? new ArrayList<>(noLegendaryListInclFormes) : new ArrayList<>(
-                        mainPokemonListInclFormes);
-                allPokes.removeIf(o -> ((Pokemon) o).actuallyCosmetic);
-            } else {
-                allPokes = noLegendaries ? new ArrayList<>(noLegendaryList) : new ArrayList<>(
-                        mainPokemonList);
-            }
-            allPokes.removeAll(banned);
+            BitSet allPokes = wildPool(allowAltFormes, noLegendaries, banned);
             for (EncounterSet area : scrambledEncounters) {
                 // Poke-set
                 Set<Pokemon> inArea = pokemonInArea(area);
                 // Build area map using catch em all
                 Map<Pokemon, Pokemon> areaMap = new TreeMap<>();
-                List<Pokemon> pickablePokemon = allPokes;
+                BitSet pickablePokemon = allPokes;
+                BitSet areaBanned = universe.of(area.bannedPokemon);
                 if (area.bannedPokemon.size() > 0) {
-                    pickablePokemon = new ArrayList<>(allPokes);
-                    pickablePokemon.removeAll(area.bannedPokemon);
+                    pickablePokemon = (BitSet) allPokes.clone();
+                    pickablePokemon.andNot(areaBanned);
                 }
                 for (Pokemon areaPk : inArea) {
-                    if (pickablePokemon.size() == 0) {
+                    if (pickablePokemon.isEmpty()) {
                         // No more pickable pokes left, take a random one
-                        List<Pokemon> tempPickable;
-                        if (allowAltFormes) {
-                            tempPickable = noLegendaries ? new ArrayList<>(noLegendaryListInclFormes) : new ArrayList<>(
-                                    mainPokemonListInclFormes);
-                            tempPickable.removeIf(o -> ((Pokemon) o).actuallyCosmetic);
-                        } else {
-                            tempPickable = noLegendaries ? new ArrayList<>(noLegendaryList) : new ArrayList<>(
-                                    mainPokemonList);
-                        }
-                        tempPickable.removeAll(banned);
-                        tempPickable.removeAll(area.bannedPokemon);
-                        if (tempPickable.size() == 0) {
+                        BitSet tempPickable = wildPool(allowAltFormes, noLegendaries, banned);
+                        tempPickable.andNot(areaBanned);
+                        if (tempPickable.isEmpty()) {
                             throw new RandomizationException("ERROR: Couldn't replace a wild Pokemon!");
                         }
-                        int picked = this.random.nextInt(tempPickable.size());
-                        Pokemon pickedMN = tempPickable.get(picked);
+                        int picked = this.random.nextInt(tempPickable.cardinality());
+                        Pokemon pickedMN = universe.get(tempPickable, picked);
                         areaMap.put(areaPk, pickedMN);
                     } else {
-                        int picked = this.random.nextInt(allPokes.size());
-                        Pokemon pickedMN = allPokes.get(picked);
+                        int picked = this.random.nextInt(allPokes.cardinality());
+                        Pokemon pickedMN = universe.get(allPokes, picked);
                         areaMap.put(areaPk, pickedMN);
-                        pickablePokemon.remove(pickedMN);
+                        universe.remove(pickablePokemon, pickedMN);
                         if (allPokes != pickablePokemon) {
-                            allPokes.remove(pickedMN);
+                            universe.remove(allPokes, pickedMN);
                         }
-                        if (allPokes.size() == 0) {
+                        if (allPokes.isEmpty()) {
                             // Start again
-                            if (allowAltFormes) {
-                                allPokes.addAll(noLegendaries ? noLegendaryListInclFormes : mainPokemonListInclFormes);
-                                allPokes.removeIf(o -> ((Pokemon) o).actuallyCosmetic);
-                            } else {
-                                allPokes.addAll(noLegendaries ? noLegendaryList : mainPokemonList);
-                            }
-                            allPokes.removeAll(banned);
+                            allPokes.or(wildPool(allowAltFormes, noLegendaries, banned));
                             if (pickablePokemon != allPokes) {
-                                pickablePokemon.addAll(allPokes);
-                                pickablePokemon.removeAll(area.bannedPokemon);
+                                pickablePokemon.or(allPokes);
+                                pickablePokemon.andNot(areaBanned);
                             }
                         }
                     }
@@ -1002,7 +979,7 @@ public abstract class AbstractRomHandler implements RomHandler {
                     if (!cachedPokeLists.containsKey(areaTheme)) {
                         List<Pokemon> pType = allowAltFormes ? pokemonOfTypeInclFormes(areaTheme, noLegendaries) :
                                 pokemonOfType(areaTheme, noLegendaries);
-                        pType.removeAll(banned);
+                        pType.removeIf(pk -> universe.contains(banned, pk));
                         cachedPokeLists.put(areaTheme, pType);
                     }
                     possiblePokemon = new ArrayList<>(cachedPokeLists.get(areaTheme));
@@ -1046,17 +1023,17 @@ public abstract class AbstractRomHandler implements RomHandler {
                 allowedPokes = noLegendaries ? new ArrayList<>(noLegendaryList)
                         : new ArrayList<>(mainPokemonList);
             }
-            allowedPokes.removeAll(banned);
+            allowedPokes.removeIf(pk -> universe.contains(banned, pk));
+            PowerLevelIndex allowedIndex = new PowerLevelIndex(allowedPokes);
             for (EncounterSet area : scrambledEncounters) {
                 // Poke-set
                 Set<Pokemon> inArea = pokemonInArea(area);
                 // Build area map using randoms
                 Map<Pokemon, Pokemon> areaMap = new TreeMap<>();
-                List<Pokemon> usedPks = new ArrayList<>();
-                List<Pokemon> localAllowed = allowedPokes;
+                BitSet usedPks = new BitSet();
+                PowerLevelIndex localAllowed = allowedIndex;
                 if (area.bannedPokemon.size() > 0) {
-                    localAllowed = new ArrayList<>(allowedPokes);
-                    localAllowed.removeAll(area.bannedPokemon);
+                    localAllowed = allowedIndex.without(area.bannedPokemon);
                 }
                 for (Pokemon areaPk : inArea) {
                     Pokemon picked = pickWildPowerLvlReplacement(localAllowed, areaPk, false, usedPks, 100);
@@ -1064,7 +1041,7 @@ public abstract class AbstractRomHandler implements RomHandler {
                         picked = pickWildPowerLvlReplacement(localAllowed, areaPk, false, usedPks, 100);
                     }
                     areaMap.put(areaPk, picked);
-                    usedPks.add(picked);
+                    usedPks.set(picked.number);
                 }
                 for (Encounter enc : area.encounters) {
                     // Apply the map
@@ -1119,30 +1096,17 @@ public abstract class AbstractRomHandler implements RomHandler {
         Map<Pokemon, Pokemon> translateMap = new TreeMap<>();
         List<Pokemon> remainingLeft = allPokemonInclFormesWithoutNull();
         remainingLeft.removeIf(o -> ((Pokemon) o).actuallyCosmetic);
-        List<Pokemon> remainingRight;
-        if (allowAltFormes) {
-            remainingRight = noLegendaries ? new ArrayList<>(noLegendaryListInclFormes)
-                    : new ArrayList<>(mainPokemonListInclFormes);
-            remainingRight.removeIf(o -> ((Pokemon) o).actuallyCosmetic);
-        } else {
-            remainingRight = noLegendaries ? new ArrayList<>(noLegendaryList)
-                    : new ArrayList<>(mainPokemonList);
-        }
-        List<Pokemon> banned = this.bannedForWildEncounters();
-        banned.addAll(this.getBannedFormesForPlayerPokemon());
-        if (!abilitiesAreRandomized) {
-            List<Pokemon> abilityDependentFormes = getAbilityDependentFormes();
-            banned.addAll(abilityDependentFormes);
-        }
-        if (banIrregularAltFormes) {
-            banned.addAll(getIrregularFormes());
-        }
+        BitSet banned = bannedFormesPool(!abilitiesAreRandomized, banIrregularAltFormes);
+        banned.or(playerBannedFormesPool());
+        banned.or(universe.of(this.bannedForWildEncounters()));
         // Banned pokemon should be mapped to themselves
-        for (Pokemon bannedPK : banned) {
+        for (Pokemon bannedPK : universe.list(banned)) {
             translateMap.put(bannedPK, bannedPK);
-            remainingLeft.remove(bannedPK);
-            remainingRight.remove(bannedPK);
         }
+        remainingLeft.removeIf(pk -> universe.contains(banned, pk));
+        List<Pokemon> remainingRight = universe.list(wildPool(allowAltFormes, noLegendaries, banned));
+        // Kept in step with remainingRight
+        PowerLevelIndex remainingRightIndex = usePowerLevels ? new PowerLevelIndex(remainingRight) : null;
         while (!remainingLeft.isEmpty()) {
             if (usePowerLevels) {
                 int pickedLeft = this.random.nextInt(remainingLeft.size());
@@ -1153,9 +1117,10 @@ public abstract class AbstractRomHandler implements RomHandler {
                     pickedRightP = remainingRight.get(0);
                 } else {
                     // pick on power level with the current one blocked
-                    pickedRightP = pickWildPowerLvlReplacement(remainingRight, pickedLeftP, true, null, 100);
+                    pickedRightP = pickWildPowerLvlReplacement(remainingRightIndex, pickedLeftP, true, null, 100);
                 }
                 remainingRight.remove(pickedRightP);
+                remainingRightIndex.remove(pickedRightP);
                 translateMap.put(pickedLeftP, pickedRightP);
             } else {
                 int pickedLeft = this.random.nextInt(remainingLeft.size());
@@ -1172,13 +1137,10 @@ public abstract class AbstractRomHandler implements RomHandler {
             }
             if (remainingRight.size() == 0) {
                 // restart
-                if (allowAltFormes) {
-                    remainingRight.addAll(noLegendaries ? noLegendaryListInclFormes : mainPokemonListInclFormes);
-                    remainingRight.removeIf(o -> ((Pokemon) o).actuallyCosmetic);
-                } else {
-                    remainingRight.addAll(noLegendaries ? noLegendaryList : mainPokemonList);
+                remainingRight.addAll(universe.list(wildPool(allowAltFormes, noLegendaries, banned)));
+                if (usePowerLevels) {
+                    remainingRightIndex = new PowerLevelIndex(remainingRight);
                 }
-                remainingRight.removeAll(banned);
             }
         }
 
@@ -1198,25 +1160,17 @@ public abstract class AbstractRomHandler implements RomHandler {
                 enc.pokemon = translateMap.get(enc.pokemon);
                 if (area.bannedPokemon.contains(enc.pokemon)) {
                     // Ignore the map and put a random non-banned poke
-                    List<Pokemon> tempPickable;
-                    if (allowAltFormes) {
-                        tempPickable = noLegendaries ? new ArrayList<>(noLegendaryListInclFormes)
-                                : new ArrayList<>(mainPokemonListInclFormes);
-                        tempPickable.removeIf(o -> ((Pokemon) o).actuallyCosmetic);
-                    } else {
-                        tempPickable = noLegendaries ? new ArrayList<>(noLegendaryList)
-                                : new ArrayList<>(mainPokemonList);
-                    }
-                    tempPickable.removeAll(banned);
-                    tempPickable.removeAll(area.bannedPokemon);
-                    if (tempPickable.size() == 0) {
+                    BitSet tempPickable = wildPool(allowAltFormes, noLegendaries, banned);
+                    tempPickable.andNot(universe.of(area.bannedPokemon));
+                    if (tempPickable.isEmpty()) {
                         throw new RandomizationException("ERROR: Couldn't replace a wild Pokemon!");
                     }
                     if (usePowerLevels) {
-                        enc.pokemon = pickWildPowerLvlReplacement(tempPickable, enc.pokemon, false, null, 100);
+                        enc.pokemon = pickWildPowerLvlReplacement(new PowerLevelIndex(universe.list(tempPickable)),
+                                enc.pokemon, false, null, 100);
                     } else {
-                        int picked = this.random.nextInt(tempPickable.size());
-                        enc.pokemon = tempPickable.get(picked);
+                        int picked = this.random.nextInt(tempPickable.cardinality());
+                        enc.pokemon = universe.get(tempPickable, picked);
                     }
                 }
                 setFormeForEncounter(enc, enc.pokemon);
@@ -1261,16 +1215,24 @@ public abstract class AbstractRomHandler implements RomHandler {
         boolean banIrregularAltFormes = settings.isBanIrregularAltFormes();
         boolean abilitiesAreRandomized = settings.getAbilitiesMod() == Settings.AbilitiesMod.RANDOMIZE;
 
-        List<Pokemon> banned = this.bannedForWildEncounters();
-        if (!abilitiesAreRandomized) {
-            List<Pokemon> abilityDependentFormes = getAbilityDependentFormes();
-            banned.addAll(abilityDependentFormes);
-        }
-        if (banIrregularAltFormes) {
-            banned.addAll(getIrregularFormes());
-        }
+        BitSet banned = bannedFormesPool(!abilitiesAreRandomized, banIrregularAltFormes);
+        banned.or(universe.of(this.bannedForWildEncounters()));
         Map<Integer, List<EncounterSet>> zonesToEncounters = mapZonesToEncounters(collapsedEncounters);
         Map<Type, List<Pokemon>> cachedPokeLists = new TreeMap<>();
+        // The Pokemon allowed by power level are the same for every area
+        PowerLevelIndex allowedIndex = null;
+        if (usePowerLevels) {
+            List<Pokemon> allowedPokes;
+            if (allowAltFormes) {
+                allowedPokes  = noLegendaries ? new ArrayList<>(noLegendaryListInclFormes)
+                        : new ArrayList<>(mainPokemonListInclFormes);
+            } else {
+                allowedPokes = noLegendaries ? new ArrayList<>(noLegendaryList)
+                        : new ArrayList<>(mainPokemonList);
+            }
+            allowedPokes.removeIf(pk -> universe.contains(banned, pk));
+            allowedIndex = new PowerLevelIndex(allowedPokes);
+        }
         for (List<EncounterSet> encountersInZone : zonesToEncounters.values()) {
             int currentAreaIndex = -1;
             List<EncounterSet> nonRockSmashAreas = new ArrayList<>();
@@ -1295,7 +1257,7 @@ public abstract class AbstractRomHandler implements RomHandler {
                             if (!cachedPokeLists.containsKey(areaTheme)) {
                                 List<Pokemon> pType = allowAltFormes ? pokemonOfTypeInclFormes(areaTheme, noLegendaries) :
                                         pokemonOfType(areaTheme, noLegendaries);
-                                pType.removeAll(banned);
+                                pType.removeIf(pk -> universe.contains(banned, pk));
                                 cachedPokeLists.put(areaTheme, pType);
                             }
                             possiblePokemon = cachedPokeLists.get(areaTheme);
@@ -1321,19 +1283,9 @@ public abstract class AbstractRomHandler implements RomHandler {
                             setFormeForEncounter(enc, enc.pokemon);
                         }
                     } else if (usePowerLevels) {
-                        List<Pokemon> allowedPokes;
-                        if (allowAltFormes) {
-                            allowedPokes  = noLegendaries ? new ArrayList<>(noLegendaryListInclFormes)
-                                    : new ArrayList<>(mainPokemonListInclFormes);
-                        } else {
-                            allowedPokes = noLegendaries ? new ArrayList<>(noLegendaryList)
-                                    : new ArrayList<>(mainPokemonList);
-                        }
-                        allowedPokes.removeAll(banned);
-                        List<Pokemon> localAllowed = allowedPokes;
+                        PowerLevelIndex localAllowed = allowedIndex;
                         if (area.bannedPokemon.size() > 0) {
-                            localAllowed = new ArrayList<>(allowedPokes);
-                            localAllowed.removeAll(area.bannedPokemon);
+                            localAllowed = allowedIndex.without(area.bannedPokemon);
                         }
                         for (Encounter enc : area.encounters) {
                             enc.pokemon = pickWildPowerLvlReplacement(localAllowed, enc.pokemon, false, null, 100);
@@ -1383,7 +1335,7 @@ public abstract class AbstractRomHandler implements RomHandler {
                     if (!cachedPokeLists.containsKey(areaTheme)) {
                         List<Pokemon> pType = allowAltFormes ? pokemonOfTypeInclFormes(areaTheme, noLegendaries) :
                                 pokemonOfType(areaTheme, noLegendaries);
-                        pType.removeAll(banned);
+                        pType.removeIf(pk -> universe.contains(banned, pk));
                         cachedPokeLists.put(areaTheme, pType);
                     }
                     possiblePokemon = cachedPokeLists.get(areaTheme);
@@ -1402,19 +1354,9 @@ public abstract class AbstractRomHandler implements RomHandler {
                     }
                     setFormeForEncounter(enc, enc.pokemon);
                 } else if (usePowerLevels) {
-                    List<Pokemon> allowedPokes;
-                    if (allowAltFormes) {
-                        allowedPokes  = noLegendaries ? new ArrayList<>(noLegendaryListInclFormes)
-                                : new ArrayList<>(mainPokemonListInclFormes);
-                    } else {
-                        allowedPokes = noLegendaries ? new ArrayList<>(noLegendaryList)
-                                : new ArrayList<>(mainPokemonList);
-                    }
-                    allowedPokes.removeAll(banned);
-                    List<Pokemon> localAllowed = allowedPokes;
+                    PowerLevelIndex localAllowed = allowedIndex;
                     if (area.bannedPokemon.size() > 0) {
-                        localAllowed = new ArrayList<>(allowedPokes);
-                        localAllowed.removeAll(area.bannedPokemon);
+                        localAllowed = allowedIndex.without(area.bannedPokemon);
                     }
                     enc.pokemon = pickWildPowerLvlReplacement(localAllowed, enc.pokemon, false, null, 100);
                     while (enc.pokemon.actuallyCosmetic) {
@@ -1571,6 +1513,7 @@ public abstract class AbstractRomHandler implements RomHandler {
         Collections.shuffle(scrambledTrainers, this.random);
 
         cachedReplacementLists = new TreeMap<>();
+        cachedPowerLevelIndexes.clear();
         cachedAllList = noLegendaries ? new ArrayList<>(noLegendaryList) : new ArrayList<>(
                 mainPokemonList);
         if (includeFormes) {
@@ -1584,24 +1527,18 @@ public abstract class AbstractRomHandler implements RomHandler {
                         .collect(Collectors.toList());
         List<Integer> mainPlaythroughTrainers = getMainPlaythroughTrainers();
 
-        List<Pokemon> banned = this.getBannedFormesForTrainerPokemon();
-        if (!abilitiesAreRandomized) {
-            List<Pokemon> abilityDependentFormes = getAbilityDependentFormes();
-            banned.addAll(abilityDependentFormes);
-        }
-        if (banIrregularAltFormes) {
-            banned.addAll(getIrregularFormes());
-        }
-        cachedAllList.removeAll(banned);
+        BitSet banned = bannedFormesPool(!abilitiesAreRandomized, banIrregularAltFormes);
+        banned.or(universe.of(this.getBannedFormesForTrainerPokemon()));
+        cachedAllList.removeIf(pk -> universe.contains(banned, pk));
 
         // Fully random is easy enough - randomize then worry about rival
         // carrying starter at the end
-        for (Trainer t : scrambledTrainers) {
+        Consumer<Trainer> randomizeTrainer = t -> {
             applyLevelModifierToTrainerPokemon(t, levelModifier);
             if (t.tag != null && t.tag.equals("IRIVAL")) {
                 // This is the first rival in Yellow. His Pokemon is used to determine the non-player
                 // starter, so we can't change it here. Just skip it
-                continue;
+                return;
             }
             for (TrainerPokemon tp : t.pokemon) {
                 boolean swapThisMegaEvo = swapMegaEvos && tp.canMegaEvolve();
@@ -1692,6 +1629,13 @@ public abstract class AbstractRomHandler implements RomHandler {
                     }
                 }
             }
+        };
+        if (PARALLEL_TRAINERS) {
+            randomizeTrainersInParallel(currentTrainers, scrambledTrainers, randomizeTrainer);
+        } else {
+            for (Trainer t : scrambledTrainers) {
+                randomizeTrainer.accept(t);
+            }
         }
 
         // Save it all up
@@ -1723,6 +1667,22 @@ public abstract class AbstractRomHandler implements RomHandler {
         }
     }
 
+    // Runs randomizeTrainer on the trainers of order in parallel waves (see PlacementHistory.placeInWaves). Each
+    // trainer draws from its own stream, seeded from one draw of the main stream and the trainer's index in
+    // trainers, so the result is the same on any number of cores.
+    private void randomizeTrainersInParallel(List<Trainer> trainers, List<Trainer> order,
+                                             Consumer<Trainer> randomizeTrainer) {
+        long streamsSeed = random.nextLong();
+        RandomizationMetrics.OtherThreads otherThreads = RandomizationMetrics.otherThreads();
+        Map<Trainer, Integer> indexes = new IdentityHashMap<>();
+        for (int i = 0; i < trainers.size(); i++) {
+            indexes.put(trainers.get(i), i);
+        }
+        placementHistory.placeInWaves(order, TRAINER_WAVE_SIZE, trainerPlacementHistory,
+                t -> otherThreads.run(() -> randomSource.onStream(RandomSource.streamSeed(streamsSeed, indexes.get(t)),
+                        () -> randomizeTrainer.accept(t))));
+    }
+
     @Override
     public void typeThemeTrainerPokes(Settings settings) {
         boolean usePowerLevels = settings.isTrainersUsePokemonOfSimilarStrength();
@@ -1739,6 +1699,7 @@ public abstract class AbstractRomHandler implements RomHandler {
         checkPokemonRestrictions();
         List<Trainer> currentTrainers = this.getTrainers();
         cachedReplacementLists = new TreeMap<>();
+        cachedPowerLevelIndexes.clear();
         cachedAllList = noLegendaries ? new ArrayList<>(noLegendaryList) : new ArrayList<>(
                 mainPokemonList);
         if (includeFormes) {
@@ -1756,15 +1717,9 @@ public abstract class AbstractRomHandler implements RomHandler {
         typeWeightings = new TreeMap<>();
         totalTypeWeighting = 0;
 
-        List<Pokemon> banned = this.getBannedFormesForTrainerPokemon();
-        if (!abilitiesAreRandomized) {
-            List<Pokemon> abilityDependentFormes = getAbilityDependentFormes();
-            banned.addAll(abilityDependentFormes);
-        }
-        if (banIrregularAltFormes) {
-            banned.addAll(getIrregularFormes());
-        }
-        cachedAllList.removeAll(banned);
+        BitSet banned = bannedFormesPool(!abilitiesAreRandomized, banIrregularAltFormes);
+        banned.or(universe.of(this.getBannedFormesForTrainerPokemon()));
+        cachedAllList.removeIf(pk -> universe.contains(banned, pk));
 
         // Construct groupings for types
         // Anything starting with GYM or ELITE or CHAMPION is a group
@@ -1799,6 +1754,59 @@ public abstract class AbstractRomHandler implements RomHandler {
             }
         }
 
+        BiConsumer<Trainer, Type> themeTrainer = (t, type) -> {
+            for (TrainerPokemon tp : t.pokemon) {
+                boolean swapThisMegaEvo = swapMegaEvos && tp.canMegaEvolve();
+                boolean wgAllowed = (!noEarlyWonderGuard) || tp.level >= 20;
+                Pokemon oldPK = tp.pokemon;
+                if (tp.forme > 0) {
+                    oldPK = getAltFormeOfPokemon(oldPK, tp.forme);
+                }
+                Pokemon newPK =
+                        pickReplacement(
+                                oldPK,
+                                usePowerLevels,
+                                type,
+                                noLegendaries,
+                                wgAllowed,
+                                false,
+                                swapThisMegaEvo,
+                                abilitiesAreRandomized,
+                                includeFormes,
+                                banIrregularAltFormes
+                        );
+                tp.absolutePokeNumber = newPK.number;
+                tp.pokemon = newPK;
+                setFormeForTrainerPokemon(tp, newPK);
+                tp.abilitySlot = getRandomAbilitySlot(newPK);
+
+                if (swapThisMegaEvo) {
+                    tp.heldItem = newPK
+                            .megaEvolutionsFrom
+                            .get(this.random.nextInt(newPK.megaEvolutionsFrom.size()))
+                            .argument;
+                }
+
+                tp.resetMoves = true;
+                if (shinyChance) {
+                    if (this.random.nextInt(256) == 0) {
+                        tp.IVs |= (1 << 30);
+                    }
+                }
+            }
+        };
+        // Types are given out in the same order either way, but with parallel trainers the trainers are only
+        // randomized once every one has a type
+        List<Trainer> themedTrainers = new ArrayList<>();
+        Map<Trainer, Type> themes = new IdentityHashMap<>();
+        BiConsumer<Trainer, Type> giveTheme = themeTrainer;
+        if (PARALLEL_TRAINERS) {
+            giveTheme = (t, type) -> {
+                themedTrainers.add(t);
+                themes.put(t, type);
+            };
+        }
+
         // Give a type to each group
         // Gym & elite types have to be unique
         // So do uber types, including the type we pick for champion
@@ -1827,45 +1835,7 @@ public abstract class AbstractRomHandler implements RomHandler {
             }
             // Themed groups just have a theme, no special criteria
             for (Trainer t : trainersInGroup) {
-                for (TrainerPokemon tp : t.pokemon) {
-                    boolean swapThisMegaEvo = swapMegaEvos && tp.canMegaEvolve();
-                    boolean wgAllowed = (!noEarlyWonderGuard) || tp.level >= 20;
-                    Pokemon oldPK = tp.pokemon;
-                    if (tp.forme > 0) {
-                        oldPK = getAltFormeOfPokemon(oldPK, tp.forme);
-                    }
-                    Pokemon newPK =
-                            pickReplacement(
-                                    oldPK,
-                                    usePowerLevels,
-                                    typeForGroup,
-                                    noLegendaries,
-                                    wgAllowed,
-                                    false,
-                                    swapThisMegaEvo,
-                                    abilitiesAreRandomized,
-                                    includeFormes,
-                                    banIrregularAltFormes
-                            );
-                    tp.absolutePokeNumber = newPK.number;
-                    tp.pokemon = newPK;
-                    setFormeForTrainerPokemon(tp, newPK);
-                    tp.abilitySlot = getRandomAbilitySlot(newPK);
-
-                    if (swapThisMegaEvo) {
-                        tp.heldItem = newPK
-                                .megaEvolutionsFrom
-                                .get(this.random.nextInt(newPK.megaEvolutionsFrom.size()))
-                                .argument;
-                    }
-
-                    tp.resetMoves = true;
-                    if (shinyChance) {
-                        if (this.random.nextInt(256) == 0) {
-                            tp.IVs |= (1 << 30);
-                        }
-                    }
-                }
+                giveTheme.accept(t, typeForGroup);
             }
         }
 
@@ -1890,47 +1860,12 @@ public abstract class AbstractRomHandler implements RomHandler {
                     }
                     usedUberTypes.add(typeForTrainer);
                 }
-                for (TrainerPokemon tp : t.pokemon) {
-                    boolean swapThisMegaEvo = swapMegaEvos && tp.canMegaEvolve();
-                    boolean shedAllowed = (!noEarlyWonderGuard) || tp.level >= 20;
-                    Pokemon oldPK = tp.pokemon;
-                    if (tp.forme > 0) {
-                        oldPK = getAltFormeOfPokemon(oldPK, tp.forme);
-                    }
-                    Pokemon newPK =
-                            pickReplacement(
-                                    oldPK,
-                                    usePowerLevels,
-                                    typeForTrainer,
-                                    noLegendaries,
-                                    shedAllowed,
-                                    false,
-                                    swapThisMegaEvo,
-                                    abilitiesAreRandomized,
-                                    includeFormes,
-                                    banIrregularAltFormes
-                            );
-                    tp.absolutePokeNumber = newPK.number;
-                    tp.pokemon = newPK;
-                    setFormeForTrainerPokemon(tp, newPK);
-                    tp.abilitySlot = getRandomAbilitySlot(newPK);
-
-                    if (swapThisMegaEvo) {
-                        tp.heldItem = newPK
-                                        .megaEvolutionsFrom
-                                        .get(this.random.nextInt(newPK.megaEvolutionsFrom.size()))
-                                        .argument;
-                    }
-
-                    tp.resetMoves = true;
-                    if (shinyChance) {
-                        if (this.random.nextInt(256) == 0) {
-                            tp.IVs |= (1 << 30);
-                        }
-                    }
-                }
+                giveTheme.accept(t, typeForTrainer);
             }
         }
+        if (PARALLEL_TRAINERS) {
+            randomizeTrainersInParallel(currentTrainers, themedTrainers, t -> themeTrainer.accept(t, themes.get(t)));
+        }
 
         // Save it all up
         this.setTrainers(currentTrainers, false);
@@ -1946,18 +1881,18 @@ public abstract class AbstractRomHandler implements RomHandler {
         List<Move> moves = this.getMoves();
         Map<Integer, List<MoveLearnt>> movesets = this.getMovesLearnt();
         List<Trainer> currentTrainers = this.getTrainers();
-        for (Trainer t : currentTrainers) {
+        Consumer<Trainer> giveHeldItems = t -> {
             if (trainerShouldNotGetBuffs(t)) {
-                continue;
+                return;
             }
             if (!giveToRegularPokemon && (!t.isImportant() && !t.isBoss())) {
-                continue;
+                return;
             }
             if (!giveToImportantPokemon && t.isImportant()) {
-                continue;
+                return;
             }
             if (!giveToBossPokemon && t.isBoss()) {
-                continue;
+                return;
             }
             t.setPokemonHaveItems(true);
             if (highestLevelOnly) {
@@ -1970,7 +1905,7 @@ public abstract class AbstractRomHandler implements RomHandler {
                     }
                 }
                 if (highestLevelPoke == null) {
-                    continue; // should never happen - trainer had zero pokes
+                    return; // should never happen - trainer had zero pokes
                 }
                 randomizeHeldItem(highestLevelPoke, settings, moves, movesets);
             } else {
@@ -1978,6 +1913,13 @@ public abstract class AbstractRomHandler implements RomHandler {
                     randomizeHeldItem(tp, settings, moves, movesets);
                 }
             }
+        };
+        if (PARALLEL_TRAINERS) {
+            randomizeTrainersInParallel(currentTrainers, currentTrainers, giveHeldItems);
+        } else {
+            for (Trainer t : currentTrainers) {
+                giveHeldItems.accept(t);
+            }
         }
         this.setTrainers(currentTrainers, false);
     }
@@ -3111,17 +3053,11 @@ public abstract class AbstractRomHandler implements RomHandler {
 
         int starterCount = starterCount();
         pickedStarters = new ArrayList<>();
-        List<Pokemon> banned = getBannedFormesForPlayerPokemon();
-        if (abilitiesUnchanged) {
-            List<Pokemon> abilityDependentFormes = getAbilityDependentFormes();
-            banned.addAll(abilityDependentFormes);
-        }
-        if (banIrregularAltFormes) {
-            banned.addAll(getIrregularFormes());
-        }
+        BitSet banned = bannedFormesPool(abilitiesUnchanged, banIrregularAltFormes);
+        banned.or(playerBannedFormesPool());
         for (int i = 0; i < starterCount; i++) {
             Pokemon pkmn = allowAltFormes ? randomPokemonInclFormes() : randomPokemon();
-            while (pickedStarters.contains(pkmn) || banned.contains(pkmn) || pkmn.actuallyCosmetic) {
+            while (pickedStarters.contains(pkmn) || universe.contains(banned, pkmn) || pkmn.actuallyCosmetic) {
                 pkmn = allowAltFormes ? randomPokemonInclFormes() : randomPokemon();
             }
             pickedStarters.add(pkmn);
@@ -3137,17 +3073,11 @@ public abstract class AbstractRomHandler implements RomHandler {
 
         int starterCount = starterCount();
         pickedStarters = new ArrayList<>();
-        List<Pokemon> banned = getBannedFormesForPlayerPokemon();
-        if (abilitiesUnchanged) {
-            List<Pokemon> abilityDependentFormes = getAbilityDependentFormes();
-            banned.addAll(abilityDependentFormes);
-        }
-        if (banIrregularAltFormes) {
-            banned.addAll(getIrregularFormes());
-        }
+        BitSet banned = bannedFormesPool(abilitiesUnchanged, banIrregularAltFormes);
+        banned.or(playerBannedFormesPool());
         for (int i = 0; i < starterCount; i++) {
             Pokemon pkmn = random2EvosPokemon(allowAltFormes);
-            while (pickedStarters.contains(pkmn) || banned.contains(pkmn)) {
+            while (pickedStarters.contains(pkmn) || universe.contains(banned, pkmn)) {
                 pkmn = random2EvosPokemon(allowAltFormes);
             }
             pickedStarters.add(pkmn);
@@ -3178,15 +3108,9 @@ public abstract class AbstractRomHandler implements RomHandler {
         checkPokemonRestrictions();
         List<StaticEncounter> currentStaticPokemon = this.getStaticPokemon();
         List<StaticEncounter> replacements = new ArrayList<>();
-        List<Pokemon> banned = this.bannedForStaticPokemon();
-        banned.addAll(this.getBannedFormesForPlayerPokemon());
-        if (!abilitiesAreRandomized) {
-            List<Pokemon> abilityDependentFormes = getAbilityDependentFormes();
-            banned.addAll(abilityDependentFormes);
-        }
-        if (banIrregularAltFormes) {
-            banned.addAll(getIrregularFormes());
-        }
+        BitSet banned = bannedFormesPool(!abilitiesAreRandomized, banIrregularAltFormes);
+        banned.or(playerBannedFormesPool());
+        banned.or(universe.of(this.bannedForStaticPokemon()));
         boolean reallySwapMegaEvos = forceSwapStaticMegaEvos() || swapMegaEvos;
 
         Map<Integer,Integer> specialMusicStaticChanges = new HashMap<>();
@@ -3215,9 +3139,9 @@ public abstract class AbstractRomHandler implements RomHandler {
                                 .collect(Collectors.toList());
             }
             List<Pokemon> ultraBeastsLeft = new ArrayList<>(ultraBeastList);
-            legendariesLeft.removeAll(banned);
-            nonlegsLeft.removeAll(banned);
-            ultraBeastsLeft.removeAll(banned);
+            legendariesLeft.removeIf(pk -> universe.contains(banned, pk));
+            nonlegsLeft.removeIf(pk -> universe.contains(banned, pk));
+            ultraBeastsLeft.removeIf(pk -> universe.contains(banned, pk));
 
             // Full pools for easier refilling later
             List<Pokemon> legendariesPool = new ArrayList<>(legendariesLeft);
@@ -3283,7 +3207,7 @@ public abstract class AbstractRomHandler implements RomHandler {
                             .filter(pk -> !pk.actuallyCosmetic)
                             .collect(Collectors.toList());
             List<Pokemon> pokemonLeft = new ArrayList<>(!allowAltFormes ? mainPokemonList : listInclFormesExclCosmetics);
-            pokemonLeft.removeAll(banned);
+            pokemonLeft.removeIf(pk -> universe.contains(banned, pk));
 
             List<Pokemon> pokemonPool = new ArrayList<>(pokemonLeft);
 
@@ -3383,7 +3307,7 @@ public abstract class AbstractRomHandler implements RomHandler {
                             .filter(pk -> !pk.actuallyCosmetic)
                             .collect(Collectors.toList());
             List<Pokemon> pokemonLeft = new ArrayList<>(!allowAltFormes ? mainPokemonList : listInclFormesExclCosmetics);
-            pokemonLeft.removeAll(banned);
+            pokemonLeft.removeIf(pk -> universe.contains(banned, pk));
 
             List<Pokemon> pokemonPool = new ArrayList<>(pokemonLeft);
 
@@ -4584,14 +4508,8 @@ public abstract class AbstractRomHandler implements RomHandler {
         List<Pokemon> actuallyCosmeticPokemonPool = new ArrayList<>();
         int stageLimit = limitToThreeStages ? 3 : 10;
 
-        List<Pokemon> banned = this.getBannedFormesForPlayerPokemon();
-        if (!abilitiesAreRandomized) {
-            List<Pokemon> abilityDependentFormes = getAbilityDependentFormes();
-            banned.addAll(abilityDependentFormes);
-        }
-        if (banIrregularAltFormes) {
-            banned.addAll(getIrregularFormes());
-        }
+        BitSet banned = bannedFormesPool(!abilitiesAreRandomized, banIrregularAltFormes);
+        banned.or(playerBannedFormesPool());
 
         for (int i = 0; i < pokemonPool.size(); i++) {
             Pokemon pk = pokemonPool.get(i);
@@ -4608,7 +4526,6 @@ public abstract class AbstractRomHandler implements RomHandler {
             originalEvos.put(pk, new ArrayList<>(pk.evolutionsFrom));
         }
 
-        Set<EvolutionPair> newEvoPairs = new HashSet<>();
         Set<EvolutionPair> oldEvoPairs = new HashSet<>();
 
         if (forceChange) {
@@ -4628,6 +4545,24 @@ public abstract class AbstractRomHandler implements RomHandler {
 
         List<Pokemon> replacements = new ArrayList<>();
 
+        List<Pokemon> chosenList =
+                allowAltFormes ?
+                mainPokemonListInclFormes
+                        .stream()
+                        .filter(pk -> !pk.actuallyCosmetic)
+                        .collect(Collectors.toList()) :
+                mainPokemonList;
+        // The mandatory filters that don't depend on the evolutions made so far: the same EXP curve, and
+        // not banned
+        Map<ExpCurve, List<Pokemon>> candidatesByCurve = new HashMap<>();
+        for (Pokemon pk : chosenList) {
+            if (!universe.contains(banned, pk)) {
+                candidatesByCurve.computeIfAbsent(pk.growthCurve, curve -> new ArrayList<>()).add(pk);
+            }
+        }
+        List<Pokemon> graphPokemon = new ArrayList<>(pokemonPool);
+        graphPokemon.addAll(chosenList);
+
         int loops = 0;
         while (loops < 1) {
             // Setup for this loop.
@@ -4636,7 +4571,7 @@ public abstract class AbstractRomHandler implements RomHandler {
                 pk.evolutionsFrom.clear();
                 pk.evolutionsTo.clear();
             }
-            newEvoPairs.clear();
+            EvolutionGraph graph = new EvolutionGraph(graphPokemon, originalEvos, stageLimit);
 
             // Shuffle pokemon list so the results aren't overly predictable.
             Collections.shuffle(pokemonPool, this.random);
@@ -4647,71 +4582,31 @@ public abstract class AbstractRomHandler implements RomHandler {
                     // Pick a Pokemon as replacement
                     replacements.clear();
 
-                    List<Pokemon> chosenList =
-                            allowAltFormes ?
-                            mainPokemonListInclFormes
-                                    .stream()
-                                    .filter(pk -> !pk.actuallyCosmetic)
-                                    .collect(Collectors.toList()) :
-                            mainPokemonList;
                     // Step 1: base filters
-                    for (Pokemon pk : chosenList) {
+                    for (Pokemon pk : candidatesByCurve.getOrDefault(fromPK.growthCurve, Collections.emptyList())) {
                         // Prevent evolving into oneself (mandatory)
                         if (pk == fromPK) {
                             continue;
                         }
 
-                        // Force same EXP curve (mandatory)
-                        if (pk.growthCurve != fromPK.growthCurve) {
-                            continue;
-                        }
-
-                        // Prevent evolving into banned Pokemon (mandatory)
-                        if (banned.contains(pk)) {
-                            continue;
-                        }
-
-                        EvolutionPair ep = new EvolutionPair(fromPK, pk);
                         // Prevent split evos choosing the same Pokemon
                         // (mandatory)
-                        if (newEvoPairs.contains(ep)) {
+                        if (graph.evolvesInto(fromPK, pk)) {
                             continue;
                         }
 
                         // Prevent evolving into old thing if flagged
-                        if (forceChange && oldEvoPairs.contains(ep)) {
+                        if (forceChange && oldEvoPairs.contains(new EvolutionPair(fromPK, pk))) {
                             continue;
                         }
 
                         // Prevent evolution that causes cycle (mandatory)
-                        if (evoCycleCheck(fromPK, pk)) {
+                        if (graph.makesCycle(fromPK, pk)) {
                             continue;
                         }
 
                         // Prevent evolution that exceeds stage limit
-                        Evolution tempEvo = new Evolution(fromPK, pk, false, EvolutionType.NONE, 0);
-                        fromPK.evolutionsFrom.add(tempEvo);
-                        pk.evolutionsTo.add(tempEvo);
-                        boolean exceededLimit = false;
-
-                        Set<Pokemon> related = relatedPokemon(fromPK);
-
-                        for (Pokemon pk2 : related) {
-                            int numPreEvos = numPreEvolutions(pk2, stageLimit);
-                            if (numPreEvos >= stageLimit) {
-                                exceededLimit = true;
-                                break;
-                            } else if (numPreEvos == stageLimit - 1 && pk2.evolutionsFrom.size() == 0
-                                    && originalEvos.get(pk2).size() > 0) {
-                                exceededLimit = true;
-                                break;
-                            }
-                        }
-
-                        fromPK.evolutionsFrom.remove(tempEvo);
-                        pk.evolutionsTo.remove(tempEvo);
-
-                        if (exceededLimit) {
+                        if (graph.exceedsStageLimit(fromPK, pk)) {
                             continue;
                         }
 
@@ -4785,9 +4680,7 @@ public abstract class AbstractRomHandler implements RomHandler {
                     if (newEvo.type == EvolutionType.LEVEL_FEMALE_ESPURR) {
                         newEvo.type = EvolutionType.LEVEL_FEMALE_ONLY;
                     }
-                    fromPK.evolutionsFrom.add(newEvo);
-                    picked.evolutionsTo.add(newEvo);
-                    newEvoPairs.add(new EvolutionPair(fromPK, picked));
+                    graph.add(newEvo);
                 }
 
                 if (hadError) {
@@ -4827,11 +4720,8 @@ public abstract class AbstractRomHandler implements RomHandler {
         }
         List<Pokemon> actuallyCosmeticPokemonPool = new ArrayList<>();
 
-        List<Pokemon> banned = this.getBannedFormesForPlayerPokemon();
-        if (!abilitiesAreRandomized) {
-            List<Pokemon> abilityDependentFormes = getAbilityDependentFormes();
-            banned.addAll(abilityDependentFormes);
-        }
+        BitSet banned = bannedFormesPool(!abilitiesAreRandomized, false);
+        banned.or(playerBannedFormesPool());
 
         for (int i = 0; i < pokemonPool.size(); i++) {
             Pokemon pk = pokemonPool.get(i);
@@ -4897,7 +4787,7 @@ public abstract class AbstractRomHandler implements RomHandler {
                     }
 
                     // Prevent evolving into banned Pokemon (mandatory)
-                    if (banned.contains(pk)) {
+                    if (universe.contains(banned, pk)) {
                         continue;
                     }
 
@@ -5312,16 +5202,22 @@ public abstract class AbstractRomHandler implements RomHandler {
     private Pokemon pickEvoPowerLvlReplacement(List<Pokemon> pokemonPool, Pokemon current) {
         // start with within 10% and add 5% either direction till we find
         // something
+        PowerLevelIndex pool = new PowerLevelIndex(pokemonPool);
+        BitSet picked = pokemonNumbers(alreadyPicked);
         int currentBST = current.bstForPowerLevels();
         int minTarget = currentBST - currentBST / 10;
         int maxTarget = currentBST + currentBST / 10;
         List<Pokemon> canPick = new ArrayList<>();
         List<Pokemon> emergencyPick = new ArrayList<>();
+        BitSet seen = new BitSet();
+        int innerMin = 1, innerMax = 0;
         int expandRounds = 0;
         while (canPick.isEmpty() || (canPick.size() < 3 && expandRounds < 3)) {
-            for (Pokemon pk : pokemonPool) {
-                if (pk.bstForPowerLevels() >= minTarget && pk.bstForPowerLevels() <= maxTarget && !canPick.contains(pk) && !emergencyPick.contains(pk)) {
-                    if (alreadyPicked.contains(pk)) {
+            // Only what the wider window adds; everything in the last one was already looked at
+            for (Pokemon pk : pool.band(minTarget, maxTarget, innerMin, innerMax)) {
+                if (!seen.get(pk.number)) {
+                    seen.set(pk.number);
+                    if (picked.get(pk.number)) {
                         emergencyPick.add(pk);
                     } else {
                         canPick.add(pk);
@@ -5331,6 +5227,8 @@ public abstract class AbstractRomHandler implements RomHandler {
             if (expandRounds >= 2 && canPick.isEmpty()) {
                 canPick.addAll(emergencyPick);
             }
+            innerMin = minTarget;
+            innerMax = maxTarget;
             minTarget -= currentBST / 20;
             maxTarget += currentBST / 20;
             expandRounds++;
@@ -5441,40 +5339,6 @@ public abstract class AbstractRomHandler implements RomHandler {
         }
     }
 
-    /**
-     * Check whether adding an evolution from one Pokemon to another will cause
-     * an evolution cycle.
-     *
-     * @param from Pokemon that is evolving
-     * @param to Pokemon to evolve to
-     * @return True if there is an evolution cycle, else false
-     */
-    private boolean evoCycleCheck(Pokemon from, Pokemon to) {
-        Evolution tempEvo = new Evolution(from, to, false, EvolutionType.NONE, 0);
-        from.evolutionsFrom.add(tempEvo);
-        Set<Pokemon> visited = new HashSet<>();
-        Set<Pokemon> recStack = new HashSet<>();
-        boolean recur = isCyclic(from, visited, recStack);
-        from.evolutionsFrom.remove(tempEvo);
-        return recur;
-    }
-
-    private boolean isCyclic(Pokemon pk, Set<Pokemon> visited, Set<Pokemon> recStack) {
-        if (!visited.contains(pk)) {
-            visited.add(pk);
-            recStack.add(pk);
-            for (Evolution ev : pk.evolutionsFrom) {
-                if (!visited.contains(ev.to) && isCyclic(ev.to, visited, recStack)) {
-                    return true;
-                } else if (recStack.contains(ev.to)) {
-                    return true;
-                }
-            }
-        }
-        recStack.remove(pk);
-        return false;
-    }
-
     private interface BasePokemonAction {
         void applyTo(Pokemon pk);
     }
@@ -5844,27 +5708,6 @@ public abstract class AbstractRomHandler implements RomHandler {
 
     }
 
-    // Return the max depth of pre-evolutions a Pokemon has
-    private int numPreEvolutions(Pokemon pk, int maxInterested) {
-        return numPreEvolutions(pk, 0, maxInterested);
-    }
-
-    private int numPreEvolutions(Pokemon pk, int depth, int maxInterested) {
-        if (pk.evolutionsTo.size() == 0) {
-            return 0;
-        } else {
-            if (depth == maxInterested - 1) {
-                return 1;
-            } else {
-                int maxPreEvos = 0;
-                for (Evolution ev : pk.evolutionsTo) {
-                    maxPreEvos = Math.max(maxPreEvos, numPreEvolutions(ev.from, depth + 1, maxInterested) + 1);
-                }
-                return maxPreEvos;
-            }
-        }
-    }
-
     private int numEvolutions(Pokemon pk, int maxInterested) {
         return numEvolutions(pk, 0, maxInterested);
     }
@@ -5917,31 +5760,10 @@ public abstract class AbstractRomHandler implements RomHandler {
         return pokemon;
     }
 
-    private Set<Pokemon> relatedPokemon(Pokemon original) {
-        Set<Pokemon> results = new HashSet<>();
-        results.add(original);
-        Queue<Pokemon> toCheck = new LinkedList<>();
-        toCheck.add(original);
-        while (!toCheck.isEmpty()) {
-            Pokemon check = toCheck.poll();
-            for (Evolution ev : check.evolutionsFrom) {
-                if (!results.contains(ev.to)) {
-                    results.add(ev.to);
-                    toCheck.add(ev.to);
-                }
-            }
-            for (Evolution ev : check.evolutionsTo) {
-                if (!results.contains(ev.from)) {
-                    results.add(ev.from);
-                    toCheck.add(ev.from);
-                }
-            }
-        }
-        return results;
-    }
-
     private Map<Type, List<Pokemon>> cachedReplacementLists;
     private List<Pokemon> cachedAllList;
+    // Power level indexes of cachedAllList and the lists in cachedReplacementLists, made when first needed
+    private final Map<List<Pokemon>, PowerLevelIndex> cachedPowerLevelIndexes = new IdentityHashMap<>();
 
     private Pokemon pickReplacement(Pokemon current, boolean usePowerLevels, Type type, boolean noLegendaries,
                                     boolean wonderGuardAllowed, boolean usePlacementHistory, boolean swapMegaEvos,
@@ -5957,42 +5779,41 @@ public abstract class AbstractRomHandler implements RomHandler {
         } else {
             pickFrom = cachedAllList;
         }
+        // Set when only the Pokemon of cachedAllList placed less than twice the average may be picked, which
+        // leaves pickFrom as the whole of cachedAllList
+        PlacementHistory.BelowTwiceAverage belowTwiceAverage = null;
         if (usePlacementHistory) {
-            double placementAverage = getPlacementAverage();
-            pickFrom = pickFrom
-                    .stream()
-                    .filter(pk -> getPlacementHistory(pk) < placementAverage * 2)
-                    .collect(Collectors.toList());
-            if (pickFrom.isEmpty()) {
-                pickFrom = cachedAllList;
-            }
-        }
-        if (type != null) {
-            if (!cachedReplacementLists.containsKey(type)) {
-//                System.out.println(current.name + " using cachedReplacementLists");
-                List<Pokemon> pokemonOfType = allowAltFormes ? pokemonOfTypeInclFormes(type, noLegendaries) :
-                        pokemonOfType(type, noLegendaries);
-                pokemonOfType.removeAll(this.getBannedFormesForPlayerPokemon());
-                if (!abilitiesAreRandomized) {
-                    List<Pokemon> abilityDependentFormes = getAbilityDependentFormes();
-                    pokemonOfType.removeAll(abilityDependentFormes);
+            if (pickFrom == cachedAllList) {
+                belowTwiceAverage = placementHistory().belowTwiceAverage(cachedAllList);
+                if (belowTwiceAverage.size() == 0) {
+                    belowTwiceAverage = null;
                 }
-                if (banIrregularAltFormes) {
-                    pokemonOfType.removeAll(getIrregularFormes());
+            } else {
+                double placementAverage = getPlacementAverage();
+                pickFrom = pickFrom
+                        .stream()
+                        .filter(pk -> getPlacementHistory(pk) < placementAverage * 2)
+                        .collect(Collectors.toList());
+                if (pickFrom.isEmpty()) {
+                    pickFrom = cachedAllList;
                 }
-                cachedReplacementLists.put(type, pokemonOfType);
             }
+        }
+        if (type != null) {
+            List<Pokemon> pokemonOfType = cachedReplacementList(type, noLegendaries, abilitiesAreRandomized,
+                    allowAltFormes, banIrregularAltFormes);
             if (swapMegaEvos) {
-                pickFrom = cachedReplacementLists.get(type)
+                pickFrom = pokemonOfType
                         .stream()
                         .filter(pickFrom::contains)
                         .collect(Collectors.toList());
                 if (pickFrom.isEmpty()) {
-                    pickFrom = cachedReplacementLists.get(type);
+                    pickFrom = pokemonOfType;
                 }
             } else {
-                pickFrom = cachedReplacementLists.get(type);
+                pickFrom = pokemonOfType;
             }
+            belowTwiceAverage = null;
         }
 
         if (usePowerLevels) {
@@ -6001,14 +5822,17 @@ public abstract class AbstractRomHandler implements RomHandler {
             int currentBST = current.bstForPowerLevels();
             int minTarget = currentBST - currentBST / 10;
             int maxTarget = currentBST + currentBST / 10;
+            PowerLevelIndex pickIndex = powerLevelIndex(pickFrom);
             List<Pokemon> canPick = new ArrayList<>();
             int expandRounds = 0;
             while (canPick.isEmpty() || (canPick.size() < 3 && expandRounds < 2)) {
-                for (Pokemon pk : pickFrom) {
-                    if (pk.bstForPowerLevels() >= minTarget
-                            && pk.bstForPowerLevels() <= maxTarget
-                            && (wonderGuardAllowed || (pk.ability1 != Abilities.wonderGuard
-                                    && pk.ability2 != Abilities.wonderGuard && pk.ability3 != Abilities.wonderGuard))) {
+                // Every round adds the whole window again, so Pokemon closer in strength are likelier picks
+                for (Pokemon pk : pickIndex.band(minTarget, maxTarget, 1, 0)) {
+                    if (belowTwiceAverage != null && !belowTwiceAverage.contains(pk)) {
+                        continue;
+                    }
+                    if (wonderGuardAllowed || (pk.ability1 != Abilities.wonderGuard
+                            && pk.ability2 != Abilities.wonderGuard && pk.ability3 != Abilities.wonderGuard)) {
                         canPick.add(pk);
                     }
                 }
@@ -6034,6 +5858,14 @@ public abstract class AbstractRomHandler implements RomHandler {
                 chosenPokemon = filteredPickList.get(this.random.nextInt(filteredPickList.size()));
             }
             return chosenPokemon;
+        } else if (belowTwiceAverage != null) {
+            Pokemon pk = belowTwiceAverage.get(this.random.nextInt(belowTwiceAverage.size()));
+            while (!wonderGuardAllowed && (pk.ability1 == Abilities.wonderGuard
+                    || pk.ability2 == Abilities.wonderGuard
+                    || pk.ability3 == Abilities.wonderGuard)) {
+                pk = belowTwiceAverage.get(this.random.nextInt(belowTwiceAverage.size()));
+            }
+            return pk;
         } else {
             if (wonderGuardAllowed) {
                 return pickFrom.get(this.random.nextInt(pickFrom.size()));
@@ -6049,8 +5881,46 @@ public abstract class AbstractRomHandler implements RomHandler {
         }
     }
 
-    private Pokemon pickWildPowerLvlReplacement(List<Pokemon> pokemonPool, Pokemon current, boolean banSamePokemon,
-            List<Pokemon> usedUp, int bstBalanceLevel) {
+    // Synchronized, like powerLevelIndex, as parallel trainers share the caches
+    private synchronized List<Pokemon> cachedReplacementList(Type type, boolean noLegendaries,
+                                                              boolean abilitiesAreRandomized, boolean allowAltFormes,
+                                                              boolean banIrregularAltFormes) {
+        if (!cachedReplacementLists.containsKey(type)) {
+//            System.out.println(current.name + " using cachedReplacementLists");
+            List<Pokemon> pokemonOfType = allowAltFormes ? pokemonOfTypeInclFormes(type, noLegendaries) :
+                    pokemonOfType(type, noLegendaries);
+            BitSet banned = bannedFormesPool(!abilitiesAreRandomized, banIrregularAltFormes);
+            banned.or(playerBannedFormesPool());
+            pokemonOfType.removeIf(pk -> universe.contains(banned, pk));
+            cachedReplacementLists.put(type, pokemonOfType);
+        }
+        return cachedReplacementLists.get(type);
+    }
+
+    // The cached trainer pools are picked from over and over, so their indexes are kept; other pools are
+    // indexed for the one pick
+    private synchronized PowerLevelIndex powerLevelIndex(List<Pokemon> pool) {
+        PowerLevelIndex index = cachedPowerLevelIndexes.get(pool);
+        if (index == null) {
+            index = new PowerLevelIndex(pool);
+            if (pool == cachedAllList || cachedReplacementLists != null && cachedReplacementLists.values().stream().anyMatch(list -> list == pool)) {
+                cachedPowerLevelIndexes.put(pool, index);
+            }
+        }
+        return index;
+    }
+
+    private static BitSet pokemonNumbers(Collection<Pokemon> pokemon) {
+        BitSet numbers = new BitSet();
+        for (Pokemon pk : pokemon) {
+            numbers.set(pk.number);
+        }
+        return numbers;
+    }
+
+    // usedUp holds the numbers of Pokemon that can't be picked, or is null
+    private Pokemon pickWildPowerLvlReplacement(PowerLevelIndex pokemonPool, Pokemon current, boolean banSamePokemon,
+            BitSet usedUp, int bstBalanceLevel) {
         // start with within 10% and add 5% either direction till we find
         // something
         int balancedBST = bstBalanceLevel * 10 + 250;
@@ -6058,15 +5928,19 @@ public abstract class AbstractRomHandler implements RomHandler {
         int minTarget = currentBST - currentBST / 10;
         int maxTarget = currentBST + currentBST / 10;
         List<Pokemon> canPick = new ArrayList<>();
+        BitSet added = new BitSet();
+        int innerMin = 1, innerMax = 0;
         int expandRounds = 0;
         while (canPick.isEmpty() || (canPick.size() < 3 && expandRounds < 3)) {
-            for (Pokemon pk : pokemonPool) {
-                if (pk.bstForPowerLevels() >= minTarget && pk.bstForPowerLevels() <= maxTarget
-                        && (!banSamePokemon || pk != current) && (usedUp == null || !usedUp.contains(pk))
-                        && !canPick.contains(pk)) {
+            for (Pokemon pk : pokemonPool.band(minTarget, maxTarget, innerMin, innerMax)) {
+                if ((!banSamePokemon || pk != current) && (usedUp == null || !usedUp.get(pk.number))
+                        && !added.get(pk.number)) {
                     canPick.add(pk);
+                    added.set(pk.number);
                 }
             }
+            innerMin = minTarget;
+            innerMax = maxTarget;
             minTarget -= currentBST / 20;
             maxTarget += currentBST / 20;
             expandRounds++;
@@ -6103,7 +5977,7 @@ public abstract class AbstractRomHandler implements RomHandler {
         return zonesToEncounters;
     }
 
-    public Pokemon pickEntirelyRandomPokemon(boolean includeFormes, boolean noLegendaries, EncounterSet area, List<Pokemon> banned) {
+    private Pokemon pickEntirelyRandomPokemon(boolean includeFormes, boolean noLegendaries, EncounterSet area, BitSet banned) {
         Pokemon result;
         Pokemon randomNonLegendaryPokemon = includeFormes ? randomNonLegendaryPokemonInclFormes() : randomNonLegendaryPokemon();
         Pokemon randomPokemon = includeFormes ? randomPokemonInclFormes() : randomPokemon();
@@ -6113,7 +5987,7 @@ public abstract class AbstractRomHandler implements RomHandler {
             randomPokemon = includeFormes ? randomPokemonInclFormes() : randomPokemon();
             result = noLegendaries ? randomNonLegendaryPokemon : randomPokemon;
         }
-        while (banned.contains(result) || area.bannedPokemon.contains(result)) {
+        while (universe.contains(banned, result) || area.bannedPokemon.contains(result)) {
             randomNonLegendaryPokemon = includeFormes ? randomNonLegendaryPokemonInclFormes() : randomNonLegendaryPokemon();
             randomPokemon = includeFormes ? randomPokemonInclFormes() : randomPokemon();
             result = noLegendaries ? randomNonLegendaryPokemon : randomPokemon;
@@ -6130,18 +6004,23 @@ public abstract class AbstractRomHandler implements RomHandler {
                                                   boolean limitBST) {
         // start with within 10% and add 5% either direction till we find
         // something
+        PowerLevelIndex pool = new PowerLevelIndex(pokemonPool);
         int currentBST = current.bstForPowerLevels();
         int minTarget = limitBST ? currentBST - currentBST / 5 : currentBST - currentBST / 10;
         int maxTarget = limitBST ? currentBST : currentBST + currentBST / 10;
         List<Pokemon> canPick = new ArrayList<>();
+        BitSet added = new BitSet();
+        int innerMin = 1, innerMax = 0;
         int expandRounds = 0;
         while (canPick.isEmpty() || (canPick.size() < 3 && expandRounds < 3)) {
-            for (Pokemon pk : pokemonPool) {
-                if (pk.bstForPowerLevels() >= minTarget && pk.bstForPowerLevels() <= maxTarget
-                        && (!banSamePokemon || pk != current) && !canPick.contains(pk)) {
+            for (Pokemon pk : pool.band(minTarget, maxTarget, innerMin, innerMax)) {
+                if ((!banSamePokemon || pk != current) && !added.get(pk.number)) {
                     canPick.add(pk);
+                    added.set(pk.number);
                 }
             }
+            innerMin = minTarget;
+            innerMax = maxTarget;
             minTarget -= currentBST / 20;
             maxTarget += currentBST / 20;
             expandRounds++;
@@ -6194,6 +6073,47 @@ public abstract class AbstractRomHandler implements RomHandler {
         return bannedFormes;
     }
 
+    // The formes banned for the player's Pokemon. This is shared, so it mustn't be changed.
+    private BitSet playerBannedFormesPool() {
+        checkPokemonRestrictions();
+        if (playerBannedFormesPool == null) {
+            playerBannedFormesPool = universe.of(getBannedFormesForPlayerPokemon());
+        }
+        return playerBannedFormesPool;
+    }
+
+    // A new pool of the ability dependent formes and/or the irregular formes
+    private BitSet bannedFormesPool(boolean banAbilityDependentFormes, boolean banIrregularAltFormes) {
+        checkPokemonRestrictions();
+        BitSet banned = new BitSet();
+        if (banAbilityDependentFormes) {
+            if (abilityDependentFormesPool == null) {
+                abilityDependentFormesPool = universe.of(getAbilityDependentFormes());
+            }
+            banned.or(abilityDependentFormesPool);
+        }
+        if (banIrregularAltFormes) {
+            if (irregularFormesPool == null) {
+                irregularFormesPool = universe.of(getIrregularFormes());
+            }
+            banned.or(irregularFormesPool);
+        }
+        return banned;
+    }
+
+    // A new pool of the Pokemon wild encounters can be replaced with, in the order of mainPokemonListInclFormes
+    private BitSet wildPool(boolean allowAltFormes, boolean noLegendaries, BitSet banned) {
+        BitSet pool;
+        if (allowAltFormes) {
+            pool = (BitSet) (noLegendaries ? noLegendaryPoolInclFormes : mainPoolInclFormes).clone();
+            pool.andNot(universe.actuallyCosmetic());
+        } else {
+            pool = (BitSet) (noLegendaries ? noLegendaryPool : mainPool).clone();
+        }
+        pool.andNot(banned);
+        return pool;
+    }
+
     @Override
     public void randomizeTotemPokemon(Settings settings) {
         boolean randomizeTotem =
@@ -6217,21 +6137,15 @@ public abstract class AbstractRomHandler implements RomHandler {
         checkPokemonRestrictions();
         List<TotemPokemon> currentTotemPokemon = this.getTotemPokemon();
         List<TotemPokemon> replacements = new ArrayList<>();
-        List<Pokemon> banned = this.bannedForStaticPokemon();
-        if (!abilitiesAreRandomized) {
-            List<Pokemon> abilityDependentFormes = getAbilityDependentFormes();
-            banned.addAll(abilityDependentFormes);
-        }
-        if (banIrregularAltFormes) {
-            banned.addAll(getIrregularFormes());
-        }
+        BitSet banned = bannedFormesPool(!abilitiesAreRandomized, banIrregularAltFormes);
+        banned.or(universe.of(this.bannedForStaticPokemon()));
         List<Pokemon> listInclFormesExclCosmetics =
                 mainPokemonListInclFormes
                         .stream()
                         .filter(pk -> !pk.actuallyCosmetic)
                         .collect(Collectors.toList());
         List<Pokemon> pokemonLeft = new ArrayList<>(!allowAltFormes ? mainPokemonList : listInclFormesExclCosmetics);
-        pokemonLeft.removeAll(banned);
+        pokemonLeft.removeIf(pk -> universe.contains(banned, pk));
         for (TotemPokemon old : currentTotemPokemon) {
             TotemPokemon newTotem = new TotemPokemon();
             newTotem.heldItem = old.heldItem;
@@ -6263,7 +6177,7 @@ public abstract class AbstractRomHandler implements RomHandler {
                 }
                 if (pokemonLeft.size() == 0) {
                     pokemonLeft.addAll(!allowAltFormes ? mainPokemonList : listInclFormesExclCosmetics);
-                    pokemonLeft.removeAll(banned);
+                    pokemonLeft.removeIf(pk -> universe.contains(banned, pk));
                 }
             } else {
                 newTotem.pkmn = old.pkmn;
@@ -6305,7 +6219,7 @@ public abstract class AbstractRomHandler implements RomHandler {
                     newTotem.allies.put(oldAllyIndex,newAlly);
                     if (pokemonLeft.size() == 0) {
                         pokemonLeft.addAll(!allowAltFormes ? mainPokemonList : listInclFormesExclCosmetics);
-                        pokemonLeft.removeAll(banned);
+                        pokemonLeft.removeIf(pk -> universe.contains(banned, pk));
                     }
                 }
             } else {
@@ -6362,17 +6276,21 @@ public abstract class AbstractRomHandler implements RomHandler {
     }
 
     private void setPlacementHistory(Pokemon newPK) {
-        Integer history = getPlacementHistory(newPK);
-//         System.out.println("Current history: " + newPK.name + " : " + history);
-        placementHistory.put(newPK, history + 1);
+//         System.out.println("Current history: " + newPK.name + " : " + getPlacementHistory(newPK));
+        placementHistory().add(newPK.number);
     }
 
     private int getPlacementHistory(Pokemon newPK) {
-        return placementHistory.getOrDefault(newPK, 0);
+        return placementHistory().get(newPK.number);
     }
 
     private double getPlacementAverage() {
-        return placementHistory.values().stream().mapToInt(e -> e).average().orElse(0);
+        return placementHistory().average();
+    }
+
+    private PlacementHistory placementHistory() {
+        PlacementHistory history = trainerPlacementHistory.get();
+        return history != null ? history : placementHistory;
     }
 
 
@@ -6383,13 +6301,8 @@ public abstract class AbstractRomHandler implements RomHandler {
         // So add to list and return 
 
         List<Pokemon> toPlacePK = new ArrayList<>();
-        List<Pokemon> placedPK = new ArrayList<>(placementHistory.keySet());
         List<Pokemon> allPK = cachedAllList;
-        int placedPKNum = 0;
-        for (Pokemon p : placedPK) {
-            placedPKNum += placementHistory.get(p);
-        }
-        float placedAverage = Math.round((float)placedPKNum / (float)placedPK.size());
+        float placedAverage = Math.round((float)placementHistory().total() / (float)placementHistory().placed());
 
 
 
@@ -6400,13 +6313,14 @@ public abstract class AbstractRomHandler implements RomHandler {
         // now we've got placement average, iterate all pokemon and see if they qualify to be placed
 
         for (Pokemon newPK : allPK) {
-            if (placedPK.contains(newPK)) { // if it's in the list of previously placed, then check its viability 
-                if (placementHistory.get(newPK) <= placedAverage) {
-//                     System.out.println(newPK.name + ": " + placementHistory.get(newPK)+" "+placedAverage+" ACCEPT");
+            int history = getPlacementHistory(newPK);
+            if (history > 0) { // if it's in the list of previously placed, then check its viability 
+                if (history <= placedAverage) {
+//                     System.out.println(newPK.name + ": " + history+" "+placedAverage+" ACCEPT");
                     toPlacePK.add(newPK);
                 }
                 else {
-//                  System.out.println(newPK.name + ": " + placementHistory.get(newPK)+" "+placedAverage+" REJECT");
+//                  System.out.println(newPK.name + ": " + history+" "+placedAverage+" REJECT");
                 }
             }
             else {
@@ -6422,27 +6336,21 @@ public abstract class AbstractRomHandler implements RomHandler {
 
     @Override
     public void renderPlacementHistory() {
-        List<Pokemon> placedPK = new ArrayList<>(placementHistory.keySet());
-        for (Pokemon p : placedPK) {
-            System.out.println(p.name+": "+ placementHistory.get(p));
+        for (Pokemon p : mainPokemonListInclFormes) {
+            if (getPlacementHistory(p) > 0) {
+                System.out.println(p.name+": "+ getPlacementHistory(p));
+            }
         }
     }
 
     ///// Item functions
     private void setItemPlacementHistory(int newItem) {
-        Integer history = getItemPlacementHistory(newItem);
-        // System.out.println("Current history: " + newPK.name + " : " + history);
-        itemPlacementHistory.put(newItem, history + 1);
+        // System.out.println("Current history: " + newPK.name + " : " + getItemPlacementHistory(newItem));
+        itemPlacementHistory.add(newItem);
     }
 
     private int getItemPlacementHistory(int newItem) {
-        List<Integer> placedItem = new ArrayList<>(itemPlacementHistory.keySet());
-        if (placedItem.contains(newItem)) {
-            return itemPlacementHistory.get(newItem);
-        }
-        else {
-            return 0;
-        }
+        return itemPlacementHistory.get(newItem);
     }
 
     private float getItemPlacementAverage() {
@@ -6451,18 +6359,12 @@ public abstract class AbstractRomHandler implements RomHandler {
         // E.g., Charmander's been placed once, but the average for all pokemon is 2.2
         // So add to list and return 
 
-        List<Integer> placedPK = new ArrayList<>(itemPlacementHistory.keySet());
-        int placedPKNum = 0;
-        for (Integer p : placedPK) {
-            placedPKNum += itemPlacementHistory.get(p);
-        }
-        return (float)placedPKNum / (float)placedPK.size();
+        return (float)itemPlacementHistory.total() / (float)itemPlacementHistory.placed();
     }
 
     private void reportItemHistory() {
         String[] itemNames = this.getItemNames();
-        List<Integer> placedItem = new ArrayList<>(itemPlacementHistory.keySet());
-        for (Integer p : placedItem) {
+        for (Integer p : itemPlacementHistory.placedIds()) {
             System.out.println(itemNames[p]+": "+ itemPlacementHistory.get(p));
         }
     }
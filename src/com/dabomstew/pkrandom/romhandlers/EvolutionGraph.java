@@ -0,0 +1,297 @@
+package com.dabomstew.pkrandom.romhandlers;
+
+/*----------------------------------------------------------------------------*/
+/*--  EvolutionGraph.java - the evolutions made while randomizing them,     --*/
+/*--                        for checking cycles and stage limits.           --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import com.dabomstew.pkrandom.pokemon.Evolution;
+import com.dabomstew.pkrandom.pokemon.EvolutionType;
+import com.dabomstew.pkrandom.pokemon.Pokemon;
+
+// Pokemon joined by evolutions, either way round, are kept in one family with union-find. A new evolution into
+// a Pokemon of another family can only make a cycle if the families were already joined, and it can only
+// change the stages of the family it evolves into, so for those candidates, which are nearly all of them, the
+// checks look at that family alone. The family of the Pokemon evolving is checked once per evolution rather
+// than once per candidate. Candidates from the same family are checked on the whole graph, as before.
+//
+// The graph is the evolutionsFrom and evolutionsTo lists of the Pokemon themselves, so evolutions must only be
+// added through add() while it's in use.
+class EvolutionGraph {
+
+    private final Map<Pokemon, List<Evolution>> originalEvos;
+    private final int stageLimit;
+    // Union-find over Pokemon numbers
+    private final int[] parent;
+    private final int[] familySize;
+    // Marks for walking a family, so no set is made per candidate
+    private final int[] seen;
+    private int seenStamp;
+    private final Deque<Pokemon> toCheck = new ArrayDeque<>();
+    // Bumped whenever an evolution is added, so the check of the evolving Pokemon's family can be kept
+    private int version;
+    private Pokemon checkedFrom;
+    private int checkedVersion;
+    private boolean checkedFromExceeds;
+
+    // pokemon should hold every Pokemon that can evolve or be evolved into. Evolutions they already have are
+    // part of the graph, along with every Pokemon reached through them.
+    EvolutionGraph(Collection<Pokemon> pokemon, Map<Pokemon, List<Evolution>> originalEvos, int stageLimit) {
+        this.originalEvos = originalEvos;
+        this.stageLimit = stageLimit;
+        Set<Pokemon> all = new HashSet<>(pokemon);
+        Deque<Pokemon> reached = new ArrayDeque<>(all);
+        int maxNumber = 0;
+        while (!reached.isEmpty()) {
+            Pokemon pk = reached.poll();
+            maxNumber = Math.max(maxNumber, pk.number);
+            for (Evolution ev : pk.evolutionsFrom) {
+                if (all.add(ev.to)) {
+                    reached.add(ev.to);
+                }
+            }
+            for (Evolution ev : pk.evolutionsTo) {
+                if (all.add(ev.from)) {
+                    reached.add(ev.from);
+                }
+            }
+        }
+        this.parent = new int[maxNumber + 1];
+        this.familySize = new int[maxNumber + 1];
+        for (int i = 0; i <= maxNumber; i++) {
+            parent[i] = i;
+            familySize[i] = 1;
+        }
+        for (Pokemon pk : all) {
+            for (Evolution ev : pk.evolutionsFrom) {
+                union(pk.number, ev.to.number);
+            }
+            for (Evolution ev : pk.evolutionsTo) {
+                union(pk.number, ev.from.number);
+            }
+        }
+        this.seen = new int[maxNumber + 1];
+    }
+
+    void add(Evolution evo) {
+        evo.from.evolutionsFrom.add(evo);
+        evo.to.evolutionsTo.add(evo);
+        union(evo.from.number, evo.to.number);
+        version++;
+    }
+
+    boolean evolvesInto(Pokemon from, Pokemon to) {
+        for (Evolution ev : from.evolutionsFrom) {
+            if (ev.to.equals(to)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether evolving from into to would make an evolution cycle
+    boolean makesCycle(Pokemon from, Pokemon to) {
+        if (find(from.number) != find(to.number)) {
+            return false;
+        }
+        Evolution tempEvo = new Evolution(from, to, false, EvolutionType.NONE, 0);
+        from.evolutionsFrom.add(tempEvo);
+        boolean recur = isCyclic(from, new HashSet<>(), new HashSet<>());
+        from.evolutionsFrom.remove(tempEvo);
+        return recur;
+    }
+
+    // Whether evolving from into to would leave a Pokemon with too many stages before it, or one that should
+    // evolve at the last stage with no evolution
+    boolean exceedsStageLimit(Pokemon from, Pokemon to) {
+        if (find(from.number) == find(to.number)) {
+            return exceedsStageLimitInFamily(from, to);
+        }
+        if (checkedFrom != from || checkedVersion != version) {
+            checkedFrom = from;
+            checkedVersion = version;
+            // Only from itself gets an evolution, and nothing in its family gets a pre-evolution
+            checkedFromExceeds = false;
+            for (Pokemon pk : family(from)) {
+                int numPreEvos = numPreEvolutions(pk, 0, null, null);
+                if (numPreEvos >= stageLimit || (pk != from && needsEvolution(pk, numPreEvos))) {
+                    checkedFromExceeds = true;
+                    break;
+                }
+            }
+        }
+        if (checkedFromExceeds) {
+            return true;
+        }
+        for (Pokemon pk : family(to)) {
+            int numPreEvos = numPreEvolutions(pk, 0, from, to);
+            if (numPreEvos >= stageLimit || needsEvolution(pk, numPreEvos)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The check as randomizeEvolutions always did it, with the evolution added for real
+    private boolean exceedsStageLimitInFamily(Pokemon from, Pokemon to) {
+        Evolution tempEvo = new Evolution(from, to, false, EvolutionType.NONE, 0);
+        from.evolutionsFrom.add(tempEvo);
+        to.evolutionsTo.add(tempEvo);
+        boolean exceededLimit = false;
+        for (Pokemon pk : relatedPokemon(from)) {
+            int numPreEvos = numPreEvolutions(pk, 0, null, null);
+            if (numPreEvos >= stageLimit || needsEvolution(pk, numPreEvos)) {
+                exceededLimit = true;
+                break;
+            }
+        }
+        from.evolutionsFrom.remove(tempEvo);
+        to.evolutionsTo.remove(tempEvo);
+        return exceededLimit;
+    }
+
+    // A Pokemon at the last stage that evolved before, but now can't. Pokemon from outside the pool being
+    // randomized have no original evolutions.
+    private boolean needsEvolution(Pokemon pk, int numPreEvos) {
+        if (numPreEvos != stageLimit - 1 || pk.evolutionsFrom.size() != 0) {
+            return false;
+        }
+        List<Evolution> original = originalEvos.get(pk);
+        return original != null && original.size() > 0;
+    }
+
+    // The max depth of pre-evolutions pk has, counting an evolution from extraFrom into extraTo if they're set
+    private int numPreEvolutions(Pokemon pk, int depth, Pokemon extraFrom, Pokemon extraTo) {
+        boolean extra = pk == extraTo;
+        if (pk.evolutionsTo.size() == 0 && !extra) {
+            return 0;
+        } else if (depth == stageLimit - 1) {
+            return 1;
+        }
+        int maxPreEvos = 0;
+        for (Evolution ev : pk.evolutionsTo) {
+            maxPreEvos = Math.max(maxPreEvos, numPreEvolutions(ev.from, depth + 1, extraFrom, extraTo) + 1);
+        }
+        if (extra) {
+            maxPreEvos = Math.max(maxPreEvos, numPreEvolutions(extraFrom, depth + 1, extraFrom, extraTo) + 1);
+        }
+        return maxPreEvos;
+    }
+
+    // The Pokemon reached from pk through evolutions either way
+    private List<Pokemon> family(Pokemon pk) {
+        seenStamp++;
+        List<Pokemon> results = new ArrayList<>();
+        reach(pk, results);
+        while (!toCheck.isEmpty()) {
+            Pokemon check = toCheck.poll();
+            for (Evolution ev : check.evolutionsFrom) {
+                reach(ev.to, results);
+            }
+            for (Evolution ev : check.evolutionsTo) {
+                reach(ev.from, results);
+            }
+        }
+        return results;
+    }
+
+    private void reach(Pokemon pk, List<Pokemon> results) {
+        if (seen[pk.number] != seenStamp) {
+            seen[pk.number] = seenStamp;
+            results.add(pk);
+            toCheck.add(pk);
+        }
+    }
+
+    private static Set<Pokemon> relatedPokemon(Pokemon original) {
+        Set<Pokemon> results = new HashSet<>();
+        results.add(original);
+        Queue<Pokemon> toCheck = new LinkedList<>();
+        toCheck.add(original);
+        while (!toCheck.isEmpty()) {
+            Pokemon check = toCheck.poll();
+            for (Evolution ev : check.evolutionsFrom) {
+                if (!results.contains(ev.to)) {
+                    results.add(ev.to);
+                    toCheck.add(ev.to);
+                }
+            }
+            for (Evolution ev : check.evolutionsTo) {
+                if (!results.contains(ev.from)) {
+                    results.add(ev.from);
+                    toCheck.add(ev.from);
+                }
+            }
+        }
+        return results;
+    }
+
+    private static boolean isCyclic(Pokemon pk, Set<Pokemon> visited, Set<Pokemon> recStack) {
+        if (!visited.contains(pk)) {
+            visited.add(pk);
+            recStack.add(pk);
+            for (Evolution ev : pk.evolutionsFrom) {
+                if (!visited.contains(ev.to) && isCyclic(ev.to, visited, recStack)) {
+                    return true;
+                } else if (recStack.contains(ev.to)) {
+                    return true;
+                }
+            }
+        }
+        recStack.remove(pk);
+        return false;
+    }
+
+    private int find(int number) {
+        while (parent[number] != number) {
+            parent[number] = parent[parent[number]];
+            number = parent[number];
+        }
+        return number;
+    }
+
+    private void union(int a, int b) {
+        a = find(a);
+        b = find(b);
+        if (a == b) {
+            return;
+        }
+        if (familySize[a] < familySize[b]) {
+            int t = a;
+            a = b;
+            b = t;
+        }
+        parent[b] = a;
+        familySize[a] += familySize[b];
+    }
+}
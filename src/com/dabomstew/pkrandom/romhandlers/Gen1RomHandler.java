@@ -37,7 +37,6 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Scanner;
 import java.util.TreeMap;
 import java.util.regex.Matcher;
@@ -46,6 +45,7 @@ import java.util.regex.Pattern;
 import com.dabomstew.pkrandom.FileFunctions;
 import com.dabomstew.pkrandom.GFXFunctions;
 import com.dabomstew.pkrandom.MiscTweak;
+import com.dabomstew.pkrandom.RandomSource;
 import com.dabomstew.pkrandom.Settings;
 import com.dabomstew.pkrandom.constants.*;
 import com.dabomstew.pkrandom.exceptions.RandomizationException;
@@ -58,8 +58,8 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
     public static class Factory extends RomHandler.Factory {
 
         @Override
-        public Gen1RomHandler create(Random random, PrintStream logStream) {
-            return new Gen1RomHandler(random, logStream);
+        public Gen1RomHandler create(RandomSource randomSource, PrintStream logStream) {
+            return new Gen1RomHandler(randomSource, logStream);
         }
 
         public boolean isLoadable(String filename) {
@@ -73,12 +73,12 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
         }
     }
 
-    public Gen1RomHandler(Random random) {
-        super(random, null);
+    public Gen1RomHandler(RandomSource randomSource) {
+        super(randomSource, null);
     }
 
-    public Gen1RomHandler(Random random, PrintStream logStream) {
-        super(random, logStream);
+    public Gen1RomHandler(RandomSource randomSource, PrintStream logStream) {
+        super(randomSource, logStream);
     }
 
     // Important RBY Data Structures
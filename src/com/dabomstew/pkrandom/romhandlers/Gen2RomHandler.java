@@ -45,8 +45,8 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
     public static class Factory extends RomHandler.Factory {
 
         @Override
-        public Gen2RomHandler create(Random random, PrintStream logStream) {
-            return new Gen2RomHandler(random, logStream);
+        public Gen2RomHandler create(RandomSource randomSource, PrintStream logStream) {
+            return new Gen2RomHandler(randomSource, logStream);
         }
 
         public boolean isLoadable(String filename) {
@@ -60,12 +60,12 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
         }
     }
 
-    public Gen2RomHandler(Random random) {
-        super(random, null);
+    public Gen2RomHandler(RandomSource randomSource) {
+        super(randomSource, null);
     }
 
-    public Gen2RomHandler(Random random, PrintStream logStream) {
-        super(random, logStream);
+    public Gen2RomHandler(RandomSource randomSource, PrintStream logStream) {
+        super(randomSource, logStream);
     }
 
     private static class RomEntry {
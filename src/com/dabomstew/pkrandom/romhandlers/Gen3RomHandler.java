@@ -43,8 +43,8 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     public static class Factory extends RomHandler.Factory {
 
         @Override
-        public Gen3RomHandler create(Random random, PrintStream logStream) {
-            return new Gen3RomHandler(random, logStream);
+        public Gen3RomHandler create(RandomSource randomSource, PrintStream logStream) {
+            return new Gen3RomHandler(randomSource, logStream);
         }
 
         public boolean isLoadable(String filename) {
@@ -58,12 +58,12 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
         }
     }
 
-    public Gen3RomHandler(Random random) {
-        super(random, null);
+    public Gen3RomHandler(RandomSource randomSource) {
+        super(randomSource, null);
     }
 
-    public Gen3RomHandler(Random random, PrintStream logStream) {
-        super(random, logStream);
+    public Gen3RomHandler(RandomSource randomSource, PrintStream logStream) {
+        super(randomSource, logStream);
     }
 
     private static class RomEntry {
@@ -25,6 +25,7 @@ package com.dabomstew.pkrandom.romhandlers;
 /*----------------------------------------------------------------------------*/
 
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -48,21 +49,29 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     public static class Factory extends RomHandler.Factory {
 
         @Override
-        public Gen4RomHandler create(Random random, PrintStream logStream) {
-            return new Gen4RomHandler(random, logStream);
+        public Gen4RomHandler create(RandomSource randomSource, PrintStream logStream) {
+            return new Gen4RomHandler(randomSource, logStream);
         }
 
         public boolean isLoadable(String filename) {
             return detectNDSRomInner(getROMCodeFromFile(filename), getVersionFromFile(filename));
         }
+
+        @Override
+        public long getEstimatedPeakHeapBytes(String filename) {
+            // arm9, overlays and every NARC the handler has read stay cached until the ROM is saved, on top
+            // of what the overlay store keeps in memory
+            long romLength = new File(filename).length();
+            return 192L * 1024 * 1024 + romLength / 2 + OverlayStore.estimatedHeapBytes(romLength);
+        }
     }
 
-    public Gen4RomHandler(Random random) {
-        super(random, null);
+    public Gen4RomHandler(RandomSource randomSource) {
+        super(randomSource, null);
     }
 
-    public Gen4RomHandler(Random random, PrintStream logStream) {
-        super(random, logStream);
+    public Gen4RomHandler(RandomSource randomSource, PrintStream logStream) {
+        super(randomSource, logStream);
     }
 
     private static class RomFileEntry {
@@ -5075,10 +5084,14 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
             long crc32 = FileFunctions.getCRC32(overlay);
             this.actualOverlayCRC32s.put(overlayNumber, crc32);
         }
-        for (String fileKey : romEntry.files.keySet()) {
-            byte[] file = readFile(romEntry.getFile(fileKey));
-            long crc32 = FileFunctions.getCRC32(file);
-            this.actualFileCRC32s.put(fileKey, crc32);
+        List<String> fileKeys = new ArrayList<>(romEntry.files.keySet());
+        List<String> fileLocations = new ArrayList<>();
+        for (String fileKey : fileKeys) {
+            fileLocations.add(romEntry.getFile(fileKey));
+        }
+        long[] fileCRC32s = getOriginalCRC32s(fileLocations);
+        for (int i = 0; i < fileKeys.size(); i++) {
+            this.actualFileCRC32s.put(fileKeys.get(i), fileCRC32s[i]);
         }
     }
 
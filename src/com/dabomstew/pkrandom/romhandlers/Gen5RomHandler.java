@@ -26,6 +26,7 @@ package com.dabomstew.pkrandom.romhandlers;
 
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -50,21 +51,29 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     public static class Factory extends RomHandler.Factory {
 
         @Override
-        public Gen5RomHandler create(Random random, PrintStream logStream) {
-            return new Gen5RomHandler(random, logStream);
+        public Gen5RomHandler create(RandomSource randomSource, PrintStream logStream) {
+            return new Gen5RomHandler(randomSource, logStream);
         }
 
         public boolean isLoadable(String filename) {
             return detectNDSRomInner(getROMCodeFromFile(filename), getVersionFromFile(filename));
         }
+
+        @Override
+        public long getEstimatedPeakHeapBytes(String filename) {
+            // arm9, overlays and every NARC the handler has read stay cached until the ROM is saved, on top
+            // of what the overlay store keeps in memory
+            long romLength = new File(filename).length();
+            return 256L * 1024 * 1024 + romLength / 2 + OverlayStore.estimatedHeapBytes(romLength);
+        }
     }
 
-    public Gen5RomHandler(Random random) {
-        super(random, null);
+    public Gen5RomHandler(RandomSource randomSource) {
+        super(randomSource, null);
     }
 
-    public Gen5RomHandler(Random random, PrintStream logStream) {
-        super(random, logStream);
+    public Gen5RomHandler(RandomSource randomSource, PrintStream logStream) {
+        super(randomSource, logStream);
     }
 
     @Override
@@ -3986,10 +3995,14 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
             long crc32 = FileFunctions.getCRC32(overlay);
             this.actualOverlayCRC32s.put(overlayNumber, crc32);
         }
-        for (String fileKey : romEntry.files.keySet()) {
-            byte[] file = readFile(romEntry.getFile(fileKey));
-            long crc32 = FileFunctions.getCRC32(file);
-            this.actualFileCRC32s.put(fileKey, crc32);
+        List<String> fileKeys = new ArrayList<>(romEntry.files.keySet());
+        List<String> fileLocations = new ArrayList<>();
+        for (String fileKey : fileKeys) {
+            fileLocations.add(romEntry.getFile(fileKey));
+        }
+        long[] fileCRC32s = getOriginalCRC32s(fileLocations);
+        for (int i = 0; i < fileKeys.size(); i++) {
+            this.actualFileCRC32s.put(fileKeys.get(i), fileCRC32s[i]);
         }
     }
 
@@ -44,21 +44,29 @@ public class Gen6RomHandler extends Abstract3DSRomHandler {
     public static class Factory extends RomHandler.Factory {
 
         @Override
-        public Gen6RomHandler create(Random random, PrintStream logStream) {
-            return new Gen6RomHandler(random, logStream);
+        public Gen6RomHandler create(RandomSource randomSource, PrintStream logStream) {
+            return new Gen6RomHandler(randomSource, logStream);
         }
 
         public boolean isLoadable(String filename) {
             return detect3DSRomInner(getProductCodeFromFile(filename), getTitleIdFromFile(filename));
         }
+
+        @Override
+        public long getEstimatedPeakHeapBytes(String filename) {
+            // NCCH buffers and the decoded GARCs are held in memory, and the changed RomFS files as far as
+            // the overlay store keeps them there
+            long romLength = new File(filename).length();
+            return 512L * 1024 * 1024 + romLength / 2 + OverlayStore.estimatedHeapBytes(romLength);
+        }
     }
 
-    public Gen6RomHandler(Random random) {
-        super(random, null);
+    public Gen6RomHandler(RandomSource randomSource) {
+        super(randomSource, null);
     }
 
-    public Gen6RomHandler(Random random, PrintStream logStream) {
-        super(random, logStream);
+    public Gen6RomHandler(RandomSource randomSource, PrintStream logStream) {
+        super(randomSource, logStream);
     }
 
     private static class OffsetWithinEntry {
@@ -3813,10 +3821,14 @@ public class Gen6RomHandler extends Abstract3DSRomHandler {
     private void computeCRC32sForRom() throws IOException {
         this.actualFileCRC32s = new HashMap<>();
         this.actualCodeCRC32 = FileFunctions.getCRC32(code);
-        for (String fileKey : romEntry.files.keySet()) {
-            byte[] file = readFile(romEntry.getFile(fileKey));
-            long crc32 = FileFunctions.getCRC32(file);
-            this.actualFileCRC32s.put(fileKey, crc32);
+        List<String> fileKeys = new ArrayList<>(romEntry.files.keySet());
+        List<String> fileLocations = new ArrayList<>();
+        for (String fileKey : fileKeys) {
+            fileLocations.add(romEntry.getFile(fileKey));
+        }
+        long[] fileCRC32s = getOriginalCRC32s(fileLocations);
+        for (int i = 0; i < fileKeys.size(); i++) {
+            this.actualFileCRC32s.put(fileKeys.get(i), fileCRC32s[i]);
         }
     }
 
@@ -0,0 +1,308 @@
+package com.dabomstew.pkrandom.romhandlers;
+
+/*----------------------------------------------------------------------------*/
+/*--  PlacementHistory.java - how often each Pokemon or item has been       --*/
+/*--                          placed, for spreading placements evenly.      --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import com.dabomstew.pkrandom.pokemon.Pokemon;
+
+// Counts are kept in an array indexed by Pokemon number or item id, along with their total and how many
+// ids have been placed at all, so the average is there without going over every count.
+class PlacementHistory {
+
+    private int[] counts = new int[0];
+    private int total;
+    // How many ids have been placed at least once
+    private int placed;
+    private BelowTwiceAverage belowTwiceAverage;
+    // The counts as of the last copy, shared by the copies made since, until something is added
+    private int[] snapshot;
+    // For a copy: the history it was made from, with its counts and total at the time
+    private PlacementHistory source;
+    private int[] sourceCounts;
+    private int sourceTotal;
+
+    void add(int id) {
+        snapshot = null;
+        if (id >= counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(id + 1, counts.length * 2));
+        }
+        int count = counts[id]++;
+        total++;
+        if (count == 0) {
+            placed++;
+        }
+        if (belowTwiceAverage != null) {
+            belowTwiceAverage.placedAgain(id, count);
+        }
+    }
+
+    int get(int id) {
+        return id < counts.length ? counts[id] : 0;
+    }
+
+    int total() {
+        return total;
+    }
+
+    int placed() {
+        return placed;
+    }
+
+    // The average count of the ids placed at least once, or 0 if none have been
+    double average() {
+        return placed == 0 ? 0 : (double) total / placed;
+    }
+
+    // A copy of the counts, to be placed in separately and merged back with addNewIn
+    PlacementHistory copy() {
+        if (snapshot == null) {
+            snapshot = counts.clone();
+        }
+        PlacementHistory copy = new PlacementHistory();
+        copy.counts = counts.clone();
+        copy.total = total;
+        copy.placed = placed;
+        copy.source = this;
+        copy.sourceCounts = snapshot;
+        copy.sourceTotal = total;
+        return copy;
+    }
+
+    // Adds what was placed in copy since it was made. Copies made at the same time can all be added, in any
+    // order, but nothing else may change this history in between.
+    void addNewIn(PlacementHistory copy) {
+        for (int id = 0; id < copy.counts.length; id++) {
+            int before = id < copy.sourceCounts.length ? copy.sourceCounts[id] : 0;
+            for (int count = before; count < copy.counts[id]; count++) {
+                add(id);
+            }
+        }
+    }
+
+    // Runs place on every item of order in parallel. Items go in waves of waveSize, each item placing into a
+    // copy of this history, which current holds on the thread running it. After a wave the copies are added
+    // back in the order of order. Nothing depends on which thread runs an item or when, so as long as place
+    // only draws from randomness of the item's own, what's placed is the same on any number of cores.
+    <T> void placeInWaves(List<T> order, int waveSize, ThreadLocal<PlacementHistory> current, Consumer<T> place) {
+        for (int start = 0; start < order.size(); start += waveSize) {
+            List<T> wave = order.subList(start, Math.min(order.size(), start + waveSize));
+            PlacementHistory[] histories = new PlacementHistory[wave.size()];
+            for (int i = 0; i < histories.length; i++) {
+                histories[i] = copy();
+            }
+            IntStream.range(0, wave.size()).parallel().forEach(i -> {
+                current.set(histories[i]);
+                try {
+                    place.accept(wave.get(i));
+                } finally {
+                    current.remove();
+                }
+            });
+            for (PlacementHistory history : histories) {
+                addNewIn(history);
+            }
+        }
+    }
+
+    // The ids placed at least once, in order
+    List<Integer> placedIds() {
+        List<Integer> ids = new ArrayList<>(placed);
+        for (int id = 0; id < counts.length; id++) {
+            if (counts[id] > 0) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    // The Pokemon of pool placed fewer than twice the average number of times, kept up to date as more are
+    // placed. Only one is kept at a time, for the last pool asked for.
+    BelowTwiceAverage belowTwiceAverage(List<Pokemon> pool) {
+        if (belowTwiceAverage == null || !belowTwiceAverage.isFor(pool)) {
+            if (source != null && total == sourceTotal) {
+                // Nothing placed in this copy yet, so it starts as a copy of the source's, which the copies
+                // of a wave share and which merging the wave keeps up to date
+                synchronized (source) {
+                    belowTwiceAverage = new BelowTwiceAverage(source.belowTwiceAverage(pool));
+                }
+            } else {
+                belowTwiceAverage = new BelowTwiceAverage(pool);
+            }
+        }
+        return belowTwiceAverage;
+    }
+
+    // A Pokemon is in if its count is below the cutoff, the lowest count that isn't below twice the average.
+    // Counts only go up one at a time and the cutoff mostly moves by one, so only the Pokemon with a count
+    // between the old and new cutoff ever need to be looked at. The Pokemon that are in are marked in a
+    // Fenwick tree over their positions, which finds the k-th one in pool order in O(log n).
+    class BelowTwiceAverage {
+
+        private final List<Pokemon> source;
+        private final Pokemon[] pool;
+        // The first position of each Pokemon number in the pool, and the next position with the same number
+        private final int[] firstPosition;
+        private final int[] nextPosition;
+        // The positions of the Pokemon placed a given number of times
+        private final List<BitSet> byCount = new ArrayList<>();
+        private final BitSet in;
+        private final int[] tree;
+        private int inCount;
+        private int cutoff;
+
+        private BelowTwiceAverage(List<Pokemon> pool) {
+            this.source = pool;
+            this.pool = pool.toArray(new Pokemon[0]);
+            int maxNumber = 0;
+            for (Pokemon pk : this.pool) {
+                maxNumber = Math.max(maxNumber, pk.number);
+            }
+            this.firstPosition = new int[maxNumber + 1];
+            Arrays.fill(firstPosition, -1);
+            this.nextPosition = new int[this.pool.length];
+            for (int i = this.pool.length - 1; i >= 0; i--) {
+                nextPosition[i] = firstPosition[this.pool[i].number];
+                firstPosition[this.pool[i].number] = i;
+            }
+            this.cutoff = cutoff();
+            this.in = new BitSet(this.pool.length);
+            this.tree = new int[this.pool.length + 1];
+            for (int i = 0; i < this.pool.length; i++) {
+                int count = PlacementHistory.this.get(this.pool[i].number);
+                countBucket(count).set(i);
+                if (count < cutoff) {
+                    in.set(i);
+                    tree[i + 1]++;
+                    inCount++;
+                }
+            }
+            for (int i = 1; i <= this.pool.length; i++) {
+                int parent = i + (i & -i);
+                if (parent <= this.pool.length) {
+                    tree[parent] += tree[i];
+                }
+            }
+        }
+
+        // A copy of other, for this history with the same counts
+        private BelowTwiceAverage(BelowTwiceAverage other) {
+            this.source = other.source;
+            this.pool = other.pool;
+            this.firstPosition = other.firstPosition;
+            this.nextPosition = other.nextPosition;
+            for (BitSet bucket : other.byCount) {
+                byCount.add((BitSet) bucket.clone());
+            }
+            this.in = (BitSet) other.in.clone();
+            this.tree = other.tree.clone();
+            this.inCount = other.inCount;
+            this.cutoff = other.cutoff;
+        }
+
+        private boolean isFor(List<Pokemon> pool) {
+            return source == pool && this.pool.length == pool.size();
+        }
+
+        int size() {
+            update();
+            return inCount;
+        }
+
+        boolean contains(Pokemon pk) {
+            update();
+            return PlacementHistory.this.get(pk.number) < cutoff;
+        }
+
+        // The Pokemon that is in with index others before it in the pool
+        Pokemon get(int index) {
+            update();
+            if (index < 0 || index >= inCount) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + inCount);
+            }
+            int position = 0;
+            int remaining = index + 1;
+            for (int step = Integer.highestOneBit(pool.length); step > 0; step >>= 1) {
+                if (position + step <= pool.length && tree[position + step] < remaining) {
+                    position += step;
+                    remaining -= tree[position];
+                }
+            }
+            return pool[position];
+        }
+
+        private void placedAgain(int number, int oldCount) {
+            if (number >= firstPosition.length) {
+                return;
+            }
+            for (int i = firstPosition[number]; i >= 0; i = nextPosition[i]) {
+                countBucket(oldCount).clear(i);
+                countBucket(oldCount + 1).set(i);
+                if (oldCount < cutoff && oldCount + 1 >= cutoff) {
+                    flip(i);
+                }
+            }
+        }
+
+        // Brings the Pokemon that are in up to date with the current average
+        private void update() {
+            int newCutoff = cutoff();
+            int from = Math.min(cutoff, newCutoff);
+            int to = Math.min(Math.max(cutoff, newCutoff), byCount.size());
+            for (int count = from; count < to; count++) {
+                BitSet bucket = byCount.get(count);
+                for (int i = bucket.nextSetBit(0); i >= 0; i = bucket.nextSetBit(i + 1)) {
+                    flip(i);
+                }
+            }
+            cutoff = newCutoff;
+        }
+
+        private int cutoff() {
+            return (int) Math.ceil(average() * 2);
+        }
+
+        private BitSet countBucket(int count) {
+            while (byCount.size() <= count) {
+                byCount.add(new BitSet(pool.length));
+            }
+            return byCount.get(count);
+        }
+
+        private void flip(int position) {
+            in.flip(position);
+            int delta = in.get(position) ? 1 : -1;
+            inCount += delta;
+            for (int i = position + 1; i <= pool.length; i += i & -i) {
+                tree[i] += delta;
+            }
+        }
+    }
+}
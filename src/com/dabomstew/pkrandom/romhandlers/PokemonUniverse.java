@@ -0,0 +1,142 @@
+package com.dabomstew.pkrandom.romhandlers;
+
+/*----------------------------------------------------------------------------*/
+/*--  PokemonUniverse.java - every Pokemon of a ROM by position, so pools   --*/
+/*--                         of Pokemon can be bit sets.                    --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+import com.dabomstew.pkrandom.pokemon.Pokemon;
+
+// Pokemon are numbered by their position in mainPokemonListInclFormes, followed by every other Pokemon of the
+// ROM. The other lists setPokemonPool makes keep the order of mainPokemonListInclFormes, so a pool made from
+// one of them gives back the same list, and the same k-th Pokemon, as the list itself. Restrictions become
+// and/andNot on the pools instead of removeAll on lists.
+//
+// Pools are plain BitSets, so callers can combine them freely. Pokemon are matched by number, like
+// Pokemon.equals.
+class PokemonUniverse {
+
+    private final Pokemon[] pokemon;
+    // The position of each Pokemon number, or -1
+    private final int[] positions;
+    private final BitSet actuallyCosmetic;
+
+    // ordered comes first, then the Pokemon of others that aren't in it
+    PokemonUniverse(List<Pokemon> ordered, List<Pokemon> others) {
+        int maxNumber = 0;
+        for (Pokemon pk : ordered) {
+            maxNumber = pk == null ? maxNumber : Math.max(maxNumber, pk.number);
+        }
+        for (Pokemon pk : others) {
+            maxNumber = pk == null ? maxNumber : Math.max(maxNumber, pk.number);
+        }
+        this.positions = new int[maxNumber + 1];
+        Arrays.fill(positions, -1);
+        List<Pokemon> all = new ArrayList<>(ordered.size() + others.size());
+        for (Pokemon pk : ordered) {
+            add(pk, all);
+        }
+        for (Pokemon pk : others) {
+            add(pk, all);
+        }
+        this.pokemon = all.toArray(new Pokemon[0]);
+        this.actuallyCosmetic = new BitSet(pokemon.length);
+        for (int i = 0; i < pokemon.length; i++) {
+            if (pokemon[i].actuallyCosmetic) {
+                actuallyCosmetic.set(i);
+            }
+        }
+    }
+
+    private void add(Pokemon pk, List<Pokemon> all) {
+        if (pk != null && positions[pk.number] < 0) {
+            positions[pk.number] = all.size();
+            all.add(pk);
+        }
+    }
+
+    // A new pool of the Pokemon in pokemon
+    BitSet of(Collection<Pokemon> pokemon) {
+        BitSet pool = new BitSet(this.pokemon.length);
+        for (Pokemon pk : pokemon) {
+            int position = position(pk);
+            if (position >= 0) {
+                pool.set(position);
+            }
+        }
+        return pool;
+    }
+
+    // A new pool of the actually cosmetic formes
+    BitSet actuallyCosmetic() {
+        return (BitSet) actuallyCosmetic.clone();
+    }
+
+    boolean contains(BitSet pool, Pokemon pk) {
+        int position = position(pk);
+        return position >= 0 && pool.get(position);
+    }
+
+    void remove(BitSet pool, Pokemon pk) {
+        int position = position(pk);
+        if (position >= 0) {
+            pool.clear(position);
+        }
+    }
+
+    // The Pokemon of the pool with index others before it, like get on the list of the pool
+    Pokemon get(BitSet pool, int index) {
+        long[] words = pool.toLongArray();
+        int remaining = index;
+        for (int i = 0; i < words.length; i++) {
+            int count = Long.bitCount(words[i]);
+            if (remaining < count) {
+                long word = words[i];
+                for (int j = 0; j < remaining; j++) {
+                    word &= word - 1;
+                }
+                return pokemon[i * 64 + Long.numberOfTrailingZeros(word)];
+            }
+            remaining -= count;
+        }
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + pool.cardinality());
+    }
+
+    // The Pokemon of the pool in order, as a new list
+    List<Pokemon> list(BitSet pool) {
+        List<Pokemon> list = new ArrayList<>(pool.cardinality());
+        for (int i = pool.nextSetBit(0); i >= 0; i = pool.nextSetBit(i + 1)) {
+            list.add(pokemon[i]);
+        }
+        return list;
+    }
+
+    private int position(Pokemon pk) {
+        return pk != null && pk.number < positions.length ? positions[pk.number] : -1;
+    }
+}
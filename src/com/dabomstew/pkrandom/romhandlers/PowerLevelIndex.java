@@ -0,0 +1,163 @@
+package com.dabomstew.pkrandom.romhandlers;
+
+/*----------------------------------------------------------------------------*/
+/*--  PowerLevelIndex.java - a pool of Pokemon sorted by power level, for   --*/
+/*--                         finding replacements of similar strength.      --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+
+import com.dabomstew.pkrandom.pokemon.Pokemon;
+
+// The similar strength pickers look for Pokemon with a power level inside a window around the one being
+// replaced, and widen the window until they have enough. Keeping the pool sorted by power level makes a
+// window two binary searches, and widening it only has to look at the Pokemon the wider window adds.
+// Pokemon always come back in the order of the pool the index was made from, so picks come out the same
+// as when the pickers scanned the list.
+//
+// Power levels are read when the index is made, so an index mustn't be kept across changes to base stats.
+class PowerLevelIndex {
+
+    private final Pokemon[] pool;
+    // Positions in the pool, sorted by power level and then position, and the power level of each
+    private final int[] sortedPositions;
+    private final int[] sortedPowerLevels;
+    // Positions taken out of the pool since it was indexed
+    private final BitSet removed;
+
+    PowerLevelIndex(List<Pokemon> pool) {
+        this.pool = pool.toArray(new Pokemon[0]);
+        int[] powerLevels = new int[this.pool.length];
+        long[] keys = new long[this.pool.length];
+        for (int i = 0; i < this.pool.length; i++) {
+            powerLevels[i] = this.pool[i].bstForPowerLevels();
+            keys[i] = ((long) powerLevels[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+        this.sortedPositions = new int[keys.length];
+        this.sortedPowerLevels = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            sortedPositions[i] = (int) keys[i];
+            sortedPowerLevels[i] = powerLevels[sortedPositions[i]];
+        }
+        this.removed = new BitSet(this.pool.length);
+    }
+
+    private PowerLevelIndex(PowerLevelIndex other) {
+        this.pool = other.pool;
+        this.sortedPositions = other.sortedPositions;
+        this.sortedPowerLevels = other.sortedPowerLevels;
+        this.removed = (BitSet) other.removed.clone();
+    }
+
+    // A copy of the index without any Pokemon equal to one in excluded, like List.removeAll
+    PowerLevelIndex without(Collection<Pokemon> excluded) {
+        PowerLevelIndex copy = new PowerLevelIndex(this);
+        for (Pokemon pk : excluded) {
+            int position;
+            while ((position = copy.find(pk)) >= 0) {
+                copy.removed.set(position);
+            }
+        }
+        return copy;
+    }
+
+    // A copy of the index with only the Pokemon that pass the filter
+    PowerLevelIndex filter(Predicate<Pokemon> filter) {
+        PowerLevelIndex copy = new PowerLevelIndex(this);
+        for (int i = copy.removed.nextClearBit(0); i < pool.length; i = copy.removed.nextClearBit(i + 1)) {
+            if (!filter.test(pool[i])) {
+                copy.removed.set(i);
+            }
+        }
+        return copy;
+    }
+
+    // Takes the first Pokemon equal to pk out of the pool, like List.remove
+    boolean remove(Pokemon pk) {
+        int position = find(pk);
+        if (position < 0) {
+            return false;
+        }
+        removed.set(position);
+        return true;
+    }
+
+    // The Pokemon with a power level in [min, max] but not in [innerMin, innerMax], in pool order. Passing
+    // innerMin > innerMax gives the whole window.
+    List<Pokemon> band(int min, int max, int innerMin, int innerMax) {
+        int start = lowerBound(min);
+        int end = lowerBound(max + 1);
+        int innerStart = end, innerEnd = end;
+        if (innerMin <= innerMax) {
+            innerStart = Math.max(start, Math.min(end, lowerBound(innerMin)));
+            innerEnd = Math.max(innerStart, Math.min(end, lowerBound(innerMax + 1)));
+        }
+        // Marking the positions puts them back in pool order without sorting
+        BitSet positions = new BitSet(pool.length);
+        for (int i = start; i < innerStart; i++) {
+            positions.set(sortedPositions[i]);
+        }
+        for (int i = innerEnd; i < end; i++) {
+            positions.set(sortedPositions[i]);
+        }
+        positions.andNot(removed);
+        List<Pokemon> result = new ArrayList<>(positions.cardinality());
+        for (int i = positions.nextSetBit(0); i >= 0; i = positions.nextSetBit(i + 1)) {
+            result.add(pool[i]);
+        }
+        return result;
+    }
+
+    // The first position in the pool sorted by power level with a power level of at least powerLevel
+    private int lowerBound(int powerLevel) {
+        int low = 0, high = sortedPowerLevels.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sortedPowerLevels[middle] < powerLevel) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // The first position still in the pool holding a Pokemon equal to pk, or -1. Equal Pokemon have the same
+    // base stats, so only the Pokemon with pk's power level need to be looked at.
+    private int find(Pokemon pk) {
+        int powerLevel = pk.bstForPowerLevels();
+        for (int i = lowerBound(powerLevel); i < sortedPowerLevels.length && sortedPowerLevels[i] == powerLevel; i++) {
+            int position = sortedPositions[i];
+            // Sorted by position within a power level, so the first match is the first in the pool
+            if (!removed.get(position) && pk.equals(pool[position])) {
+                return position;
+            }
+        }
+        return -1;
+    }
+}
@@ -26,26 +26,34 @@ package com.dabomstew.pkrandom.romhandlers;
 /*----------------------------------------------------------------------------*/
 
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.PrintStream;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 
 import com.dabomstew.pkrandom.MiscTweak;
+import com.dabomstew.pkrandom.RandomSource;
 import com.dabomstew.pkrandom.Settings;
 import com.dabomstew.pkrandom.pokemon.*;
 
 public interface RomHandler {
 
     abstract class Factory {
-        public RomHandler create(Random random) {
-            return create(random, null);
+        public RomHandler create(RandomSource randomSource) {
+            return create(randomSource, null);
         }
 
-        public abstract RomHandler create(Random random, PrintStream log);
+        public abstract RomHandler create(RandomSource randomSource, PrintStream log);
 
         public abstract boolean isLoadable(String filename);
+
+        // Rough upper bound on the heap one randomization job for this ROM holds at its peak.
+        // The worker admits concurrent jobs against a heap budget using this. Cartridge handlers
+        // keep the ROM image and a pristine copy of it in memory, plus the parsed game data.
+        public long getEstimatedPeakHeapBytes(String filename) {
+            return 32L * 1024 * 1024 + 2 * new File(filename).length();
+        }
     }
 
     // =======================
@@ -58,8 +66,18 @@ public interface RomHandler {
 
     boolean saveRomDirectory(String filename);
 
+    // Saves only what changed, for applying to the loaded ROM later: a BPS patch (see BPSPatch) for GB and
+    // DS games, a zip of the changed files laid out for LayeredFS for 3DS games
+    boolean saveRomPatch(String filename);
+
+    String getPatchExtension();
+
     String loadedFilename();
 
+    // Frees what the loaded ROM holds outside the Java heap, like the files its extracted data was spilled
+    // to (see OverlayStore). The handler can't be used afterwards.
+    void releaseRom();
+
     // =============================================================
     // Methods relating to game updates for the 3DS and Switch games
     // =============================================================
@@ -78,6 +96,11 @@ public interface RomHandler {
 
     void setLog(PrintStream logStream);
 
+    // Swaps in the RNG context for the next randomization job
+    void setRandomSource(RandomSource randomSource);
+
+    RandomSource getRandomSource();
+
     void printRomDiagnostics(PrintStream logStream);
 
     boolean isRomValid();
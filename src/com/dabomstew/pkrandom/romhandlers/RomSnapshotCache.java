@@ -0,0 +1,258 @@
+package com.dabomstew.pkrandom.romhandlers;
+
+/*----------------------------------------------------------------------------*/
+/*--  RomSnapshotCache.java - remembers base ROMs that were already loaded  --*/
+/*--                          so repeated jobs on the same game skip the    --*/
+/*--                          handler probing, the disk reads and parsing   --*/
+/*--                          the DS/3DS file systems.                      --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.dabomstew.pkrandom.FileFunctions;
+import com.dabomstew.pkrandom.RandomSource;
+import com.dabomstew.pkrandom.ctr.NCCH;
+import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
+import com.dabomstew.pkrandom.newnds.NDSRom;
+
+public class RomSnapshotCache {
+
+    private static final long DEFAULT_MAX_IMAGE_BYTES = 256L * 1024 * 1024;
+    private static final int MAX_ENTRIES = 64;
+
+    private static final RomSnapshotCache instance = new RomSnapshotCache(DEFAULT_MAX_IMAGE_BYTES);
+
+    // What we learned the first time a base ROM was loaded. Cartridge ROMs also keep their pristine
+    // image, DS and 3DS ROMs their parsed NDSRom or NCCH along with the arm9, overlays or .code once
+    // they've been decompressed. None of these are ever written to: every handler loaded from them
+    // works on its own copy.
+    private static class Snapshot {
+        private final RomHandler.Factory factory;
+        private final byte[] image;
+        private final NDSRom nds;
+        private final NCCH ncch;
+        private long crc32 = -1;
+
+        private Snapshot(RomHandler.Factory factory, byte[] image, NDSRom nds, NCCH ncch) {
+            this.factory = factory;
+            this.image = image;
+            this.nds = nds;
+            this.ncch = ncch;
+        }
+    }
+
+    private final long maxImageBytes;
+    // Access-ordered, so iteration starts at the least recently used ROM. Guarded by this.
+    private final Map<String, Snapshot> snapshots = new LinkedHashMap<>(16, 0.75f, true);
+    private long imageBytes;
+    // CRCs of files that were checksummed without being loaded through the cache. Guarded by this.
+    private final Map<String, Long> crcs = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    public RomSnapshotCache(long maxImageBytes) {
+        this.maxImageBytes = maxImageBytes;
+    }
+
+    public static RomSnapshotCache instance() {
+        return instance;
+    }
+
+    // Returns a freshly loaded handler for the given file, or null if none of the factories can load it.
+    // The handler belongs to the caller and can be randomized and saved like one from Factory.create.
+    public RomHandler load(String filename, RomHandler.Factory[] factories, RandomSource randomSource,
+                           PrintStream log) {
+        File file = new File(filename);
+        String key = keyFor(file);
+        Snapshot snapshot = get(key);
+        RomHandler.Factory factory = snapshot != null ? snapshot.factory : findFactory(file.getAbsolutePath(), factories);
+        if (factory == null) {
+            return null;
+        }
+        RomHandler romHandler = factory.create(randomSource, log);
+        if (snapshot == null) {
+            snapshot = takeSnapshot(file.getAbsolutePath(), factory, romHandler);
+            put(key, snapshot);
+        }
+
+        boolean loaded;
+        try {
+            if (snapshot.image != null) {
+                loaded = ((AbstractGBRomHandler) romHandler).loadRom(file.getAbsolutePath(), snapshot.image);
+            } else if (snapshot.nds != null) {
+                loaded = ((AbstractDSRomHandler) romHandler).loadRom(file.getAbsolutePath(), snapshot.nds);
+            } else if (snapshot.ncch != null) {
+                loaded = ((Abstract3DSRomHandler) romHandler).loadRom(file.getAbsolutePath(), snapshot.ncch);
+            } else {
+                loaded = romHandler.loadRom(file.getAbsolutePath());
+            }
+        } catch (RuntimeException e) {
+            // e.g. an encrypted 3DS ROM, which would fail the same way every time
+            remove(key);
+            throw e;
+        }
+        if (!loaded) {
+            remove(key);
+            return null;
+        }
+        return romHandler;
+    }
+
+    // CRC32 of the whole base ROM file, computed once per file version
+    public long getCRC32(String filename) {
+        File file = new File(filename);
+        String key = keyFor(file);
+        Snapshot snapshot = get(key);
+        if (snapshot != null) {
+            synchronized (snapshot) {
+                if (snapshot.crc32 == -1) {
+                    snapshot.crc32 = fileCRC32(file);
+                }
+                return snapshot.crc32;
+            }
+        }
+        synchronized (this) {
+            Long crc32 = crcs.get(key);
+            if (crc32 != null) {
+                return crc32;
+            }
+        }
+        long crc32 = fileCRC32(file);
+        synchronized (this) {
+            crcs.put(key, crc32);
+        }
+        return crc32;
+    }
+
+    public synchronized void clear() {
+        snapshots.clear();
+        crcs.clear();
+        imageBytes = 0;
+    }
+
+    public synchronized int size() {
+        return snapshots.size();
+    }
+
+    private synchronized Snapshot get(String key) {
+        return snapshots.get(key);
+    }
+
+    private synchronized void put(String key, Snapshot snapshot) {
+        Snapshot old = snapshots.put(key, snapshot);
+        if (old != null && old.image != null) {
+            imageBytes -= old.image.length;
+        }
+        if (snapshot.image != null) {
+            imageBytes += snapshot.image.length;
+        }
+        // Evict least recently used ROMs, but always keep the one that was just added
+        Iterator<Map.Entry<String, Snapshot>> it = snapshots.entrySet().iterator();
+        while (it.hasNext() && (imageBytes > maxImageBytes || snapshots.size() > MAX_ENTRIES)) {
+            Map.Entry<String, Snapshot> eldest = it.next();
+            if (eldest.getValue() == snapshot) {
+                continue;
+            }
+            if (eldest.getValue().image != null) {
+                imageBytes -= eldest.getValue().image.length;
+            }
+            it.remove();
+        }
+    }
+
+    private synchronized void remove(String key) {
+        Snapshot old = snapshots.remove(key);
+        if (old != null && old.image != null) {
+            imageBytes -= old.image.length;
+        }
+    }
+
+    private static Snapshot takeSnapshot(String filename, RomHandler.Factory factory, RomHandler romHandler) {
+        if (romHandler instanceof AbstractGBRomHandler) {
+            byte[] image = AbstractGBRomHandler.loadFile(filename);
+            Snapshot snapshot = new Snapshot(factory, image, null, null);
+            snapshot.crc32 = FileFunctions.getCRC32(image);
+            return snapshot;
+        }
+        try {
+            if (romHandler instanceof AbstractDSRomHandler) {
+                NDSRom nds = new NDSRom(filename);
+                // Only the copies need the file open
+                nds.closeROM();
+                return new Snapshot(factory, null, nds, null);
+            } else if (romHandler instanceof Abstract3DSRomHandler) {
+                NCCH ncch = new NCCH(filename, Abstract3DSRomHandler.getProductCodeFromFile(filename),
+                        Abstract3DSRomHandler.getTitleIdFromFile(filename));
+                ncch.closeROM();
+                return new Snapshot(factory, null, null, ncch);
+            }
+        } catch (IOException e) {
+            throw new RandomizerIOException(e);
+        }
+        return new Snapshot(factory, null, null, null);
+    }
+
+    private static RomHandler.Factory findFactory(String filename, RomHandler.Factory[] factories) {
+        for (RomHandler.Factory rhf : factories) {
+            if (rhf.isLoadable(filename)) {
+                return rhf;
+            }
+        }
+        return null;
+    }
+
+    // A replaced or edited file gets a new key, so stale snapshots are never used
+    private static String keyFor(File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            path = file.getAbsolutePath();
+        }
+        return path + "|" + file.length() + "|" + file.lastModified();
+    }
+
+    private static long fileCRC32(File file) {
+        CRC32 checksum = new CRC32();
+        byte[] buf = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(file)) {
+            int count;
+            while ((count = in.read(buf)) > 0) {
+                checksum.update(buf, 0, count);
+            }
+        } catch (IOException e) {
+            throw new RandomizerIOException(e);
+        }
+        return checksum.getValue();
+    }
+}
@@ -0,0 +1,102 @@
+package com.dabomstew.pkrandom.worker;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultServiceUnavailableRetryStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.client.StandardHttpRequestRetryHandler;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.dabomstew.pkrandom.WebConstants.API_KEY;
+
+// One pooled, keep-alive HTTP client shared by everything in the process that talks to the API or
+// uploads files. Building a client per request opened (and leaked) a new connection every time.
+public class ApiClient {
+
+    private static final int MAX_CONNECTIONS = 20;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int SOCKET_TIMEOUT_MILLIS = 30000;
+    private static final int POOL_TIMEOUT_MILLIS = 5000;
+    private static final int RETRIES = 3;
+    private static final int RETRY_INTERVAL_MILLIS = 1000;
+    // Only these are safe to send twice. A POST that reached the server creates a second job or upload.
+    private static final Set<String> IDEMPOTENT_METHODS =
+            new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE"));
+
+    private static final RequestConfig requestConfig = createRequestConfig();
+    private static final CloseableHttpClient httpClient = createHttpClient();
+
+    private static RequestConfig createRequestConfig() {
+        RequestConfig.Builder builder = RequestConfig.custom()
+                .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+                .setSocketTimeout(SOCKET_TIMEOUT_MILLIS)
+                .setConnectionRequestTimeout(POOL_TIMEOUT_MILLIS);
+        // For debugging, e.g. -Dpkrandom.proxy=localhost:8888
+        String proxy = System.getProperty("pkrandom.proxy");
+        if (proxy != null && !proxy.isEmpty()) {
+            String[] hostAndPort = proxy.split(":");
+            builder.setProxy(new HttpHost(hostAndPort[0], Integer.parseInt(hostAndPort[1]), "http"));
+        }
+        return builder.build();
+    }
+
+    private static CloseableHttpClient createHttpClient() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                // Requests that never made it out are always retried, ones that did only if they're idempotent
+                .setRetryHandler(new StandardHttpRequestRetryHandler(RETRIES, false))
+                .setServiceUnavailableRetryStrategy(new IdempotentServiceUnavailableRetryStrategy())
+                .evictIdleConnections(30, TimeUnit.SECONDS)
+                .build();
+    }
+
+    // Retries a 503 after a pause, but only for idempotent methods
+    private static class IdempotentServiceUnavailableRetryStrategy extends DefaultServiceUnavailableRetryStrategy {
+
+        private IdempotentServiceUnavailableRetryStrategy() {
+            super(RETRIES, RETRY_INTERVAL_MILLIS);
+        }
+
+        @Override
+        public boolean retryRequest(HttpResponse response, int executionCount, HttpContext context) {
+            String method = HttpClientContext.adapt(context).getRequest().getRequestLine().getMethod();
+            return IDEMPOTENT_METHODS.contains(method) && super.retryRequest(response, executionCount, context);
+        }
+    }
+
+    public static CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    // Sends an authorized request to the API and returns the response body.
+    // Throws for anything that isn't a 2xx/3xx response so callers can retry.
+    public static String execute(HttpRequestBase request) throws IOException {
+        request.addHeader("X-Authorization", API_KEY);
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            int httpStatus = response.getStatusLine().getStatusCode();
+            // Always read the entity fully, otherwise the connection can't go back to the pool
+            String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), "UTF-8");
+            if (httpStatus < 200 || httpStatus >= 400) {
+                throw new IOException("HTTP " + httpStatus + " from " + request.getURI() + ": " + body);
+            }
+            return body;
+        }
+    }
+}
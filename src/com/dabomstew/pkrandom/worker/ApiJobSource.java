@@ -0,0 +1,31 @@
+package com.dabomstew.pkrandom.worker;
+
+import com.dabomstew.pkrandom.Utils.ApiRandomizations;
+import com.google.gson.Gson;
+import org.apache.http.client.methods.HttpGet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.dabomstew.pkrandom.WebConstants.API_URL;
+
+// Pulls pending randomizations from the site's API.
+public class ApiJobSource implements JobSource {
+
+    @Override
+    public List<ApiRandomizations> fetchJobs(int max) throws IOException {
+        HttpGet httpRequest = new HttpGet(API_URL + "randomizations");
+        httpRequest.addHeader("Content-Type", "application/json");
+        String body = ApiClient.execute(httpRequest);
+
+        //The API endpoint will return an array of pending randomizations
+        ApiRandomizations[] randomizations = new Gson().fromJson(body, ApiRandomizations[].class);
+        List<ApiRandomizations> jobs = new ArrayList<>();
+        if (randomizations != null) {
+            jobs.addAll(Arrays.asList(randomizations).subList(0, Math.min(max, randomizations.length)));
+        }
+        return jobs;
+    }
+}
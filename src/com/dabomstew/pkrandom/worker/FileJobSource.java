@@ -0,0 +1,54 @@
+package com.dabomstew.pkrandom.worker;
+
+import com.dabomstew.pkrandom.Utils.ApiRandomizations;
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Reads jobs from a local JSON file in the same format the API returns, so the worker can run
+// without the remote API. The file is re-read on every poll and each job is only handed out once,
+// so new jobs can be appended while the worker is running.
+public class FileJobSource implements JobSource {
+
+    private final File jobsFile;
+    private final Set<String> handedOut = new HashSet<>();
+
+    public FileJobSource(File jobsFile) {
+        this.jobsFile = jobsFile;
+    }
+
+    @Override
+    public synchronized List<ApiRandomizations> fetchJobs(int max) throws IOException {
+        List<ApiRandomizations> jobs = new ArrayList<>();
+        if (!jobsFile.exists()) {
+            return jobs;
+        }
+
+        ApiRandomizations[] randomizations;
+        try (Reader reader = new InputStreamReader(new FileInputStream(jobsFile), StandardCharsets.UTF_8)) {
+            randomizations = new Gson().fromJson(reader, ApiRandomizations[].class);
+        }
+        if (randomizations == null) {
+            return jobs;
+        }
+
+        for (ApiRandomizations randomization : randomizations) {
+            if (jobs.size() >= max) {
+                break;
+            }
+            if (handedOut.add(randomization.generated_id)) {
+                jobs.add(randomization);
+            }
+        }
+        return jobs;
+    }
+}
@@ -0,0 +1,264 @@
+package com.dabomstew.pkrandom.worker;
+
+import com.dabomstew.pkrandom.Utils.ApiRandomizations;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+// Keeps a bounded, prioritized queue of randomization jobs topped up from a JobSource and runs them on a
+// fixed set of worker threads. A worker picks up the next job as soon as it's free, and the feeder
+// refills the queue as soon as a slot opens instead of waiting for the next poll.
+// With a heap budget set, the worker count is only a ceiling: jobs are admitted in order as long as
+// their estimated peak heap fits next to the jobs already running.
+public class JobScheduler {
+
+    private static final long DEFAULT_IDLE_POLL_MILLIS = 5000;
+
+    // Lower runs first. Small cartridge jobs finish in seconds and shouldn't queue behind 3DS rebuilds.
+    public enum JobPriority {
+        GB, GBA, NDS, CTR;
+
+        public static JobPriority forFileName(String fileName) {
+            String lower = fileName == null ? "" : fileName.toLowerCase(Locale.ROOT);
+            if (lower.endsWith(".gb") || lower.endsWith(".gbc") || lower.endsWith(".sgb")) {
+                return GB;
+            } else if (lower.endsWith(".gba")) {
+                return GBA;
+            } else if (lower.endsWith(".nds")) {
+                return NDS;
+            }
+            return CTR;
+        }
+    }
+
+    private static class QueuedJob implements Comparable<QueuedJob> {
+        private final String id;
+        private final JobPriority priority;
+        private final long sequence;
+        private final Runnable task;
+        private final long heapCost;
+
+        private QueuedJob(String id, JobPriority priority, long sequence, Runnable task, long heapCost) {
+            this.id = id;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+            this.heapCost = heapCost;
+        }
+
+        @Override
+        public int compareTo(QueuedJob other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final JobSource source;
+    private final Function<ApiRandomizations, Runnable> workerFactory;
+    private final int workerCount;
+    private final int queueCapacity;
+    private final long idlePollMillis;
+    private long heapBudget = Long.MAX_VALUE;
+    private ToLongFunction<ApiRandomizations> heapCostEstimator = randomization -> 0;
+
+    private final PriorityBlockingQueue<QueuedJob> queue = new PriorityBlockingQueue<>();
+    // Jobs stay pending on the API until a worker starts them, so remember what we already have
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Object slotFreed = new Object();
+    private ExecutorService workers;
+    private Thread feeder;
+    private volatile boolean running;
+
+    // Admission state, guarded by admission. Workers wait on it for a job to come in or for heap to free up.
+    private final Object admission = new Object();
+    private long reservedHeap;
+    private int runningJobs;
+
+    public JobScheduler(JobSource source, Function<ApiRandomizations, Runnable> workerFactory) {
+        this(source, workerFactory, Runtime.getRuntime().availableProcessors());
+    }
+
+    public JobScheduler(JobSource source, Function<ApiRandomizations, Runnable> workerFactory, int workerCount) {
+        this(source, workerFactory, workerCount, workerCount * 2);
+    }
+
+    public JobScheduler(JobSource source, Function<ApiRandomizations, Runnable> workerFactory, int workerCount,
+                        int queueCapacity) {
+        this(source, workerFactory, workerCount, queueCapacity, DEFAULT_IDLE_POLL_MILLIS);
+    }
+
+    public JobScheduler(JobSource source, Function<ApiRandomizations, Runnable> workerFactory, int workerCount,
+                        int queueCapacity, long idlePollMillis) {
+        if (workerCount < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Worker count and queue capacity must be positive");
+        }
+        this.source = source;
+        this.workerFactory = workerFactory;
+        this.workerCount = workerCount;
+        this.queueCapacity = queueCapacity;
+        this.idlePollMillis = idlePollMillis;
+    }
+
+    // Admit jobs against a heap budget instead of just the worker count. Must be called before start().
+    public synchronized void setHeapBudget(long heapBudgetBytes, ToLongFunction<ApiRandomizations> heapCostEstimator) {
+        if (running) {
+            throw new IllegalStateException("Heap budget must be set before the scheduler is started");
+        }
+        this.heapBudget = heapBudgetBytes;
+        this.heapCostEstimator = heapCostEstimator;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        workers = Executors.newFixedThreadPool(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            workers.execute(this::work);
+        }
+        feeder = new Thread(this::feed, "job-feeder");
+        feeder.setDaemon(true);
+        feeder.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (feeder != null) {
+            feeder.interrupt();
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    // Queues a job directly. Returns false if the queue is full or the job is already queued/running.
+    public synchronized boolean submit(ApiRandomizations randomization) {
+        if (queue.size() >= queueCapacity || !inFlight.add(randomization.generated_id)) {
+            return false;
+        }
+        Runnable task;
+        long heapCost;
+        try {
+            task = workerFactory.apply(randomization);
+            heapCost = heapCostEstimator.applyAsLong(randomization);
+        } catch (Exception ex) {
+            inFlight.remove(randomization.generated_id);
+            System.out.println("Could not create job " + randomization.generated_id + ": " + ex);
+            return false;
+        }
+        queue.add(new QueuedJob(randomization.generated_id, JobPriority.forFileName(randomization.file_name),
+                sequence.getAndIncrement(), task, heapCost));
+        synchronized (admission) {
+            admission.notifyAll();
+        }
+        return true;
+    }
+
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public long getReservedHeap() {
+        synchronized (admission) {
+            return reservedHeap;
+        }
+    }
+
+    private void feed() {
+        while (running) {
+            int added = 0;
+            int free = queueCapacity - queue.size();
+            if (free > 0) {
+                try {
+                    List<ApiRandomizations> jobs = source.fetchJobs(free);
+                    for (ApiRandomizations job : jobs) {
+                        if (submit(job)) {
+                            added++;
+                        }
+                    }
+                } catch (Exception ex) {
+                    System.out.println(ex.toString());
+                }
+            }
+            if (added == 0) {
+                // Nothing new (or no room): sleep until a worker frees a slot or the idle poll interval passes
+                try {
+                    synchronized (slotFreed) {
+                        slotFreed.wait(idlePollMillis);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void work() {
+        while (running) {
+            QueuedJob job;
+            try {
+                job = admitNext();
+            } catch (InterruptedException e) {
+                return;
+            }
+            wakeFeeder();
+            try {
+                job.task.run();
+            } catch (Throwable t) {
+                // Errors too, e.g. running out of memory, or this worker would be gone for good: the pool
+                // replaces the thread, but nothing would run work() on it again
+                t.printStackTrace();
+            } finally {
+                release(job);
+                inFlight.remove(job.id);
+            }
+        }
+    }
+
+    // Takes the first job in the queue once it fits in the budget. Jobs stay queued while they wait, so a
+    // higher priority job that comes in meanwhile goes ahead of them, and only the head of the queue is
+    // ever admitted, so a big job isn't starved by smaller ones behind it.
+    private QueuedJob admitNext() throws InterruptedException {
+        synchronized (admission) {
+            while (true) {
+                QueuedJob head = queue.peek();
+                // A job bigger than the whole budget still runs, just on its own
+                if (head != null && (runningJobs == 0 || reservedHeap + head.heapCost <= heapBudget)) {
+                    queue.remove(head);
+                    reservedHeap += head.heapCost;
+                    runningJobs++;
+                    return head;
+                }
+                admission.wait();
+            }
+        }
+    }
+
+    private void release(QueuedJob job) {
+        synchronized (admission) {
+            reservedHeap -= job.heapCost;
+            runningJobs--;
+            admission.notifyAll();
+        }
+    }
+
+    private void wakeFeeder() {
+        synchronized (slotFreed) {
+            slotFreed.notifyAll();
+        }
+    }
+}
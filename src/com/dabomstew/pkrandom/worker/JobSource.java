@@ -0,0 +1,14 @@
+package com.dabomstew.pkrandom.worker;
+
+import com.dabomstew.pkrandom.Utils.ApiRandomizations;
+
+import java.io.IOException;
+import java.util.List;
+
+// Somewhere the worker can pull pending randomizations from. The live worker polls the API,
+// local runs and tests can point it at a file (or a stub) instead.
+public interface JobSource {
+
+    // Returns at most max pending jobs; an empty list means there's nothing to do right now.
+    List<ApiRandomizations> fetchJobs(int max) throws IOException;
+}
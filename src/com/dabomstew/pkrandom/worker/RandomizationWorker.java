@@ -8,30 +8,11 @@ import com.dabomstew.pkrandom.romhandlers.*;
 import java.io.*;
 import java.util.*;
 
-import org.apache.http.HttpHost;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPatch;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.entity.mime.MultipartEntityBuilder;
-import org.apache.http.entity.mime.content.FileBody;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
 import org.json.*;
-import com.google.gson.*;
-
-import javax.servlet.AsyncContext;
 
 import java.io.File;
 import java.io.IOException;
 
-import static com.dabomstew.pkrandom.WebConstants.API_KEY;
-import static com.dabomstew.pkrandom.WebConstants.API_URL;
-
 public class RandomizationWorker implements Runnable {
 
     private Settings workerSettings;
@@ -56,25 +37,9 @@ public class RandomizationWorker implements Runnable {
     private final static ResourceBundle bundle = java.util.ResourceBundle.getBundle("com/dabomstew/pkrandom/newgui/Bundle");
 
     private String performDirectRandomization() {
-        //Update API status to show as RANDOMIZING
-
-        HttpClient httpClient = HttpClientBuilder.create().build();
-        RequestConfig.Builder reqconfigconbuilder= RequestConfig.custom();
-        HttpHost proxyHost = new HttpHost("localhost", 8888, "http");
-        reqconfigconbuilder = reqconfigconbuilder.setProxy(proxyHost);
-        RequestConfig config = reqconfigconbuilder.build();
-        try {
-            HttpPatch httpRequest = new HttpPatch(API_URL + "randomizations/" + workerDestinationFilePath);
-            StringEntity params = new StringEntity("status=RANDOMIZING");
-            httpRequest.addHeader("X-Authorization", API_KEY);
-            httpRequest.addHeader("Content-Type", "application/x-www-form-urlencoded");
-            httpRequest.setEntity(params);
-            httpRequest.setConfig(config);
-            HttpResponse httpResponse = httpClient.execute(httpRequest);
-        } catch (Exception ex) {
-        } finally {
-            // @Deprecated httpClient.getConnectionManager().shutdown();
-        }
+        //Update API status to show as RANDOMIZING. This one can't wait for the next flush, the job must
+        //no longer be pending on the API by the time the scheduler forgets about it.
+        StatusReporter.instance().reportNow(workerDestinationFilePath, "RANDOMIZING");
 
         // borrowed directly from NewRandomizerGUI()
         RomHandler.Factory[] checkHandlers = new RomHandler.Factory[] {
@@ -98,103 +63,124 @@ public class RandomizationWorker implements Runnable {
 
         final PrintStream verboseLog = log;
 
+        // Randomizing is deterministic, so a job identical to an earlier one is served from the result
+        // cache without loading the ROM. Directory output and game updates aren't cached.
+        String settingsString = Version.VERSION + this.workerSettings.toString();
+        boolean cacheable = !this.workerSaveAsDirectory && this.workerUpdateFilePath == null;
+        File cached = cacheable && this.workerSeed != 0
+                ? ResultCache.instance().serve(this.workerRomFilePath, settingsString, this.workerSeed,
+                        this.workerDestinationFilePath, this.workerSaveLog)
+                : null;
+        if (cached != null) {
+            printSuccess("Served from result cache");
+            printSuccess(cached.getAbsolutePath());
+            Map<String, String> uploadFields = new HashMap<>();
+            uploadFields.put("local_path", cached.getAbsolutePath());
+            StatusReporter.instance().report(workerDestinationFilePath, "UPLOADING", uploadFields);
+            return new JSONObject()
+                    .put("status", 200)
+                    .put("data", new JSONObject().put("fileName", cached.getName())
+                            .put("seed", this.workerSeed)
+                            .put("settingsString", this.workerSettings.toString()))
+                    .toString();
+        }
+
+        RandomizationMetrics metrics = new RandomizationMetrics();
+        RomHandler romHandler = null;
         try {
             File romFileHandler = new File(this.workerRomFilePath);
-            RomHandler romHandler = null;
-
-            for (RomHandler.Factory rhf : checkHandlers) {
-                if (rhf.isLoadable(romFileHandler.getAbsolutePath())) {
-                    romHandler = rhf.create(RandomSource.instance());
-                    romHandler.loadRom(romFileHandler.getAbsolutePath());
-                    if (this.workerUpdateFilePath != null && romHandler.generationOfPokemon() == 6 || romHandler.generationOfPokemon() == 7) {
-                        romHandler.loadGameUpdate(this.workerUpdateFilePath);
-                        if (!this.workerSaveAsDirectory) {
-                            printWarning("Forcing save as directory since a game update was supplied.");
-                        }
-                        this.workerSaveAsDirectory = true;
-                    }
-                    if (this.workerSaveAsDirectory && romHandler.generationOfPokemon() != 6 && romHandler.generationOfPokemon() != 7) {
-                        this.workerSaveAsDirectory = false;
-                        printWarning("Saving as directory does not make sense for non-3DS games, ignoring \"-d\" flag...");
-                    }
-                    //settings.tweakForRom(romHandler);
-                    displaySettingsWarnings(this.workerSettings, romHandler);
 
-                    File fh = new File(this.workerDestinationFilePath);
+            romHandler = metrics.measure(RandomizationMetrics.LOAD_ROM, () -> RomSnapshotCache.instance()
+                    .load(romFileHandler.getAbsolutePath(), checkHandlers, new RandomSource(), null));
+            if (romHandler != null) {
+                metrics.setRomHandler(romHandler);
+                if (this.workerUpdateFilePath != null && romHandler.generationOfPokemon() == 6 || romHandler.generationOfPokemon() == 7) {
+                    romHandler.loadGameUpdate(this.workerUpdateFilePath);
                     if (!this.workerSaveAsDirectory) {
-                        List<String> extensions = new ArrayList<>(Arrays.asList("sgb", "gbc", "gba", "nds", "cxi"));
-                        extensions.remove(romHandler.getDefaultExtension());
-
-                        fh = FileFunctions.fixFilename(fh, romHandler.getDefaultExtension(), extensions);
-                        if (romHandler instanceof AbstractDSRomHandler || romHandler instanceof Abstract3DSRomHandler) {
-                            String currentFN = romHandler.loadedFilename();
-                            if (currentFN.equals(fh.getAbsolutePath())) {
-                                printError(bundle.getString("GUI.cantOverwriteDS"));
-                                return "error";
-                            }
+                        printWarning("Forcing save as directory since a game update was supplied.");
+                    }
+                    this.workerSaveAsDirectory = true;
+                }
+                if (this.workerSaveAsDirectory && romHandler.generationOfPokemon() != 6 && romHandler.generationOfPokemon() != 7) {
+                    this.workerSaveAsDirectory = false;
+                    printWarning("Saving as directory does not make sense for non-3DS games, ignoring \"-d\" flag...");
+                }
+                //settings.tweakForRom(romHandler);
+                displaySettingsWarnings(this.workerSettings, romHandler);
+
+                File fh = new File(this.workerDestinationFilePath);
+                if (!this.workerSaveAsDirectory) {
+                    List<String> extensions = new ArrayList<>(Arrays.asList("sgb", "gbc", "gba", "nds", "cxi"));
+                    extensions.remove(romHandler.getDefaultExtension());
+
+                    fh = FileFunctions.fixFilename(fh, romHandler.getDefaultExtension(), extensions);
+                    if (romHandler instanceof AbstractDSRomHandler || romHandler instanceof Abstract3DSRomHandler) {
+                        String currentFN = romHandler.loadedFilename();
+                        if (currentFN.equals(fh.getAbsolutePath())) {
+                            printError(bundle.getString("GUI.cantOverwriteDS"));
+                            return "error";
                         }
                     }
+                }
 
-                    String filename = fh.getAbsolutePath();
+                String filename = fh.getAbsolutePath();
 
-                    Randomizer randomizer = new Randomizer(this.workerSettings, romHandler, bundle, this.workerSaveAsDirectory);
-                    if (this.workerSeed == 0)
-                    {
-                        this.workerSeed = RandomSource.pickSeed();
-                        randomizer.randomize(filename, verboseLog, this.workerSeed);
-                    }
-                    else
-                    {
-                        randomizer.randomize(filename, verboseLog, this.workerSeed);
-                    }
-                    verboseLog.close();
-                    byte[] out = baos.toByteArray();
-                    if (this.workerSaveLog) {
-                        try {
-                            FileOutputStream fos = new FileOutputStream(filename + ".log");
-                            fos.write(0xEF);
-                            fos.write(0xBB);
-                            fos.write(0xBF);
-                            fos.write(out);
-                            fos.close();
-                        } catch (IOException e) {
-                            printWarning("Could not write log.");
-                        }
-                    }
-                    printSuccess("Finished randomizing - update status via API");
-                    httpClient = HttpClientBuilder.create().build();
-                    reqconfigconbuilder= RequestConfig.custom();
-                    reqconfigconbuilder = reqconfigconbuilder.setProxy(proxyHost);
-                    config = reqconfigconbuilder.build();
-                    printSuccess(filename);
+                Randomizer randomizer = new Randomizer(this.workerSettings, romHandler, bundle, this.workerSaveAsDirectory);
+                randomizer.addListener(metrics);
+                if (this.workerSeed == 0)
+                {
+                    this.workerSeed = RandomSource.pickSeed();
+                    randomizer.randomize(filename, verboseLog, this.workerSeed);
+                }
+                else
+                {
+                    randomizer.randomize(filename, verboseLog, this.workerSeed);
+                }
+                verboseLog.close();
+                byte[] out = baos.toByteArray();
+                if (this.workerSaveLog) {
                     try {
-                        HttpPatch httpRequest = new HttpPatch(API_URL + "randomizations/" + workerDestinationFilePath);
-                        StringEntity params = new StringEntity("status=UPLOADING&local_path=" + filename);
-                        httpRequest.addHeader("X-Authorization", API_KEY);
-                        httpRequest.addHeader("Content-Type", "application/x-www-form-urlencoded");
-                        httpRequest.setEntity(params);
-                        httpRequest.setConfig(config);
-                        HttpResponse httpResponse = httpClient.execute(httpRequest);
-                    } catch (Exception ex) {
-                    } finally {
-                        // @Deprecated httpClient.getConnectionManager().shutdown();
+                        FileOutputStream fos = new FileOutputStream(filename + ".log");
+                        fos.write(0xEF);
+                        fos.write(0xBB);
+                        fos.write(0xBF);
+                        fos.write(out);
+                        fos.close();
+                    } catch (IOException e) {
+                        printWarning("Could not write log.");
                     }
-                    String jsonString = new JSONObject()
-                            .put("status", 200)
-                            .put("data", new JSONObject().put("fileName", fh.getName())
-                                    .put("seed", this.workerSeed)
-                                    .put("settingsString", this.workerSettings.toString()))
-                            .toString();
-                    return jsonString;
-                    // this is the only successful exit, everything else will return false at the end of the function
-                    //return true;
                 }
+                if (cacheable && !this.workerSaveAsDirectory) {
+                    ResultCache.instance().store(this.workerRomFilePath, settingsString, this.workerSeed, fh,
+                            romHandler.getDefaultExtension(), out);
+                }
+                metrics.finish(true);
+                printSuccess("Finished randomizing - update status via API");
+                printSuccess("Metrics: " + metrics);
+                printSuccess(filename);
+                Map<String, String> uploadFields = new HashMap<>();
+                uploadFields.put("local_path", filename);
+                StatusReporter.instance().report(workerDestinationFilePath, "UPLOADING", uploadFields);
+                String jsonString = new JSONObject()
+                        .put("status", 200)
+                        .put("data", new JSONObject().put("fileName", fh.getName())
+                                .put("seed", this.workerSeed)
+                                .put("settingsString", this.workerSettings.toString()))
+                        .toString();
+                return jsonString;
+                // this is the only successful exit, everything else will return false at the end of the function
+                //return true;
             }
             // if we get here it means no rom handlers matched the ROM file
             System.err.printf(bundle.getString("GUI.unsupportedRom") + "%n", romFileHandler.getName());
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            if (romHandler != null) {
+                romHandler.releaseRom();
+            }
         }
+        metrics.finish(false);
         return "";
     }
 
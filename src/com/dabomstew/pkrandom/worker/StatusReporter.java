@@ -0,0 +1,145 @@
+package com.dabomstew.pkrandom.worker;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.message.BasicNameValuePair;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.dabomstew.pkrandom.WebConstants.API_URL;
+
+// Sends job status changes to the API in the background so the randomization threads don't wait on
+// the network (reportNow is the one exception). Updates are flushed on a short interval; transitions
+// for the same job that happen between flushes are merged into a single PATCH (latest value wins per
+// field), and failed updates are retried on later flushes unless a newer update supersedes them.
+public class StatusReporter {
+
+    private static final long FLUSH_INTERVAL_MILLIS = 500;
+    private static final int MAX_ATTEMPTS = 5;
+
+    private static final StatusReporter instance = new StatusReporter(API_URL, FLUSH_INTERVAL_MILLIS);
+
+    private static class PendingUpdate {
+        private Map<String, String> fields = new LinkedHashMap<>();
+        private int attempts;
+    }
+
+    private final String apiUrl;
+    // Guarded by this; insertion order keeps updates roughly in the order they were reported
+    private Map<String, PendingUpdate> pending = new LinkedHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    public StatusReporter(String apiUrl, long flushIntervalMillis) {
+        this.apiUrl = apiUrl;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "status-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static StatusReporter instance() {
+        return instance;
+    }
+
+    public void report(String generatedId, String status) {
+        report(generatedId, status, null);
+    }
+
+    public synchronized void report(String generatedId, String status, Map<String, String> extraFields) {
+        PendingUpdate update = pending.computeIfAbsent(generatedId, id -> new PendingUpdate());
+        update.fields.put("status", status);
+        if (extraFields != null) {
+            update.fields.putAll(extraFields);
+        }
+    }
+
+    // Sends an update straight away instead of on the next flush, along with anything still pending for the
+    // job. Used for RANDOMIZING: the scheduler forgets a job once it's done, so the API has to have stopped
+    // listing it as pending by then or it gets picked up again. If the send fails, the update is queued like
+    // any other and false is returned.
+    public boolean reportNow(String generatedId, String status) {
+        PendingUpdate update;
+        synchronized (this) {
+            update = pending.remove(generatedId);
+            if (update == null) {
+                update = new PendingUpdate();
+            }
+            update.fields.put("status", status);
+        }
+        try {
+            send(generatedId, update.fields);
+            return true;
+        } catch (Exception ex) {
+            update.attempts++;
+            requeue(generatedId, update);
+            return false;
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    // Sends everything reported so far. Runs on the flusher thread, but can also be called directly
+    // (e.g. on shutdown) to push out the last updates.
+    public void flush() {
+        Map<String, PendingUpdate> toSend;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            toSend = pending;
+            pending = new LinkedHashMap<>();
+        }
+
+        for (Map.Entry<String, PendingUpdate> entry : toSend.entrySet()) {
+            PendingUpdate update = entry.getValue();
+            try {
+                send(entry.getKey(), update.fields);
+            } catch (Exception ex) {
+                update.attempts++;
+                if (update.attempts < MAX_ATTEMPTS) {
+                    requeue(entry.getKey(), update);
+                } else {
+                    System.out.println("Giving up on status update for " + entry.getKey() + ": " + ex);
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        flusher.shutdown();
+        flush();
+    }
+
+    private synchronized void requeue(String generatedId, PendingUpdate failed) {
+        PendingUpdate newer = pending.get(generatedId);
+        if (newer == null) {
+            pending.put(generatedId, failed);
+        } else {
+            // Keep anything the failed update carried that the newer one doesn't override
+            failed.fields.putAll(newer.fields);
+            newer.fields = failed.fields;
+        }
+    }
+
+    private void send(String generatedId, Map<String, String> fields) throws Exception {
+        List<NameValuePair> params = new ArrayList<>();
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            params.add(new BasicNameValuePair(field.getKey(), field.getValue()));
+        }
+        HttpPatch httpRequest = new HttpPatch(apiUrl + "randomizations/" + generatedId);
+        httpRequest.setEntity(new UrlEncodedFormEntity(params, StandardCharsets.UTF_8));
+        ApiClient.execute(httpRequest);
+    }
+}
@@ -1,5 +1,6 @@
 package com.dabomstew.pkrandom.worker;
 
+import java.io.File;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
@@ -7,22 +8,16 @@ import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.URL;
 import java.util.Scanner;
-import java.util.concurrent.*;
 
+import com.dabomstew.pkrandom.MetricsRegistry;
 import com.dabomstew.pkrandom.Settings;
 import com.dabomstew.pkrandom.SettingsUpdater;
 import com.dabomstew.pkrandom.Utils.*;
 import com.dabomstew.pkrandom.Version;
 import com.dabomstew.pkrandom.cli.randomStringGenerator;
-import org.apache.http.HttpHost;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.HttpGet;
+import com.dabomstew.pkrandom.romhandlers.*;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.util.EntityUtils;
 import org.json.*;
 import com.google.gson.*;
 import spark.utils.IOUtils;
@@ -32,9 +27,19 @@ import javax.swing.text.html.parser.Entity;
 import static com.dabomstew.pkrandom.WebConstants.*;
 import static spark.Spark.*;
 
-public class WorkerStart implements Runnable {
+public class WorkerStart {
 
-    ExecutorService executor = Executors.newFixedThreadPool(5);
+    private static JobScheduler scheduler;
+
+    private static final RomHandler.Factory[] checkHandlers = new RomHandler.Factory[] {
+            new Gen1RomHandler.Factory(),
+            new Gen2RomHandler.Factory(),
+            new Gen3RomHandler.Factory(),
+            new Gen4RomHandler.Factory(),
+            new Gen5RomHandler.Factory(),
+            new Gen6RomHandler.Factory(),
+            new Gen7RomHandler.Factory()
+    };
 
     public static String printObject(Object object) {
         Gson gson = new GsonBuilder().setPrettyPrinting().create();
@@ -57,6 +62,12 @@ public class WorkerStart implements Runnable {
     }
 
     public static int invoke(String[] args) {
+        get("/metrics", (request, response) -> {
+            // Prometheus text exposition format
+            response.header("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            return MetricsRegistry.instance().toPrometheusText();
+        });
+
         post("/settingsToJson", (request, response) -> {
             response.header("Content-Type", "application/json");
             if (request.queryParams("settings") != null && !request.queryParams("settings").isEmpty())
@@ -117,22 +128,13 @@ public class WorkerStart implements Runnable {
                         randomization.user_id = "0";
                     }
                     randomization.status = "PENDING";
-                    HttpClient httpClient = HttpClientBuilder.create().build();
-                    RequestConfig.Builder reqconfigconbuilder= RequestConfig.custom();
-                    HttpHost proxyHost = new HttpHost("localhost", 8888, "http");
-                    reqconfigconbuilder = reqconfigconbuilder.setProxy(proxyHost);
-                    RequestConfig config = reqconfigconbuilder.build();
                     try {
                         HttpPost httpRequest = new HttpPost(API_URL + "randomizations");
                         StringEntity params = new StringEntity(gson.toJson(randomization));
-                        httpRequest.addHeader("X-Authorization", API_KEY);
                         httpRequest.addHeader("Content-Type", "application/json");
                         httpRequest.setEntity(params);
-                        httpRequest.setConfig(config);
-                        HttpResponse httpResponse = httpClient.execute(httpRequest);
+                        ApiClient.execute(httpRequest);
                     } catch (Exception ex) {
-                    } finally {
-                        // @Deprecated httpClient.getConnectionManager().shutdown();
                     }
 
                     JSONObject returnList = new JSONObject();
@@ -159,57 +161,54 @@ public class WorkerStart implements Runnable {
             }
 
         });
-        WorkerStart worker = new WorkerStart();
-        ScheduledExecutorService schedular = Executors.newScheduledThreadPool(1);
-        schedular.scheduleAtFixedRate(worker, 0,30, TimeUnit.SECONDS);
+        JobSource source = new ApiJobSource();
+        int workerCount = Runtime.getRuntime().availableProcessors();
+        int queueCapacity = 0;
+        // Leave a quarter of the heap for the web endpoints and GC headroom
+        long heapBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
+        for (int i = 0; i < args.length - 1; i++) {
+            switch (args[i]) {
+                case "-j":
+                    // Take jobs from a local JSON file instead of the API
+                    source = new FileJobSource(new File(args[++i]));
+                    break;
+                case "-w":
+                    workerCount = Integer.parseInt(args[++i]);
+                    break;
+                case "-q":
+                    queueCapacity = Integer.parseInt(args[++i]);
+                    break;
+                case "-m":
+                    // Heap budget for concurrent jobs, in MB
+                    heapBudget = Long.parseLong(args[++i]) * 1024 * 1024;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (queueCapacity <= 0) {
+            queueCapacity = workerCount * 2;
+        }
+        scheduler = new JobScheduler(source, WorkerStart::createWorker, workerCount, queueCapacity);
+        scheduler.setHeapBudget(heapBudget, WorkerStart::estimatePeakHeapBytes);
+        scheduler.start();
 
         return 1;
     }
 
-    @Override
-    public void run() {
-        try
-        {
-            int activeThreads = ((ThreadPoolExecutor) executor).getActiveCount();
-            System.out.println(activeThreads);
-            if (activeThreads < 5)
-            {
-
-                HttpClient httpClient = HttpClientBuilder.create().build();
-                RequestConfig.Builder reqconfigconbuilder= RequestConfig.custom();
-                //This is just for testing
-                HttpHost proxyHost = new HttpHost("localhost", 8888, "http");
-                reqconfigconbuilder = reqconfigconbuilder.setProxy(proxyHost);
-                RequestConfig config = reqconfigconbuilder.build();
-                String body = "";
-                try {
-                    HttpGet httpRequest = new HttpGet(API_URL + "randomizations");
-                    httpRequest.addHeader("X-Authorization", API_KEY);
-                    httpRequest.addHeader("Content-Type", "application/json");
-                    httpRequest.setConfig(config);
-                    HttpResponse httpResponse = httpClient.execute(httpRequest);
-                    body = EntityUtils.toString(httpResponse.getEntity());
-                } catch (Exception ex) {
-                } finally {
-                    // @Deprecated httpClient.getConnectionManager().shutdown();
-                }
-
-
-
-                //The API endpoint will return an array of up to 5 pending randomizations - we need to loop through each randomization and start a worker with that randomization.
-                ApiRandomizations[] randomizations = new Gson().fromJson(body, ApiRandomizations[].class);
-
-                for (ApiRandomizations randomization : randomizations)
-                {
-                    Settings settings = new Gson().fromJson(randomization.settings, Settings.class);
-                    Runnable worker = new RandomizationWorker(settings, Long.parseLong(randomization.seed), randomization.file_name, randomization.generated_id, false, null, false);
-                    executor.execute(worker);
-                }
+    private static long estimatePeakHeapBytes(ApiRandomizations randomization) {
+        File romFile = new File(randomization.file_name);
+        for (RomHandler.Factory rhf : checkHandlers) {
+            if (rhf.isLoadable(romFile.getAbsolutePath())) {
+                return rhf.getEstimatedPeakHeapBytes(romFile.getAbsolutePath());
             }
         }
-        catch (Exception ex)
-        {
-            System.out.println(ex.toString());
-        }
+        // Unsupported ROMs fail straight away in the worker, so they barely cost anything
+        return 0;
+    }
+
+    private static Runnable createWorker(ApiRandomizations randomization) {
+        Settings settings = new Gson().fromJson(randomization.settings, Settings.class);
+        return new RandomizationWorker(settings, Long.parseLong(randomization.seed), randomization.file_name, randomization.generated_id, false, null, false);
     }
 }
@@ -7,6 +7,7 @@ import java.nio.ByteOrder;
 import java.util.Arrays;
 
 import com.dabomstew.pkrandom.FileFunctions;
+import com.dabomstew.pkrandom.MetricsRegistry;
 
 /*----------------------------------------------------------------------------*/
 /*--  BLZCoder.java - Bottom LZ coding for Nintendo GBA/DS/3DS              --*/
@@ -54,6 +55,12 @@ public class BLZCoder {
 
     private static final int BLZ_MAXIM = 0x01400000;
 
+    // With -Dpkrandom.compression.fast=true, matches are only looked for among the nearest
+    // FAST_CANDIDATES earlier positions with the same prefix. That's much faster on repetitive data,
+    // but the output is no longer byte-identical to the reference encoders.
+    private static final boolean FAST_MATCHING = Boolean.getBoolean("pkrandom.compression.fast");
+    private static final int FAST_CANDIDATES = 32;
+
     private boolean arm9;
 
     public BLZCoder(String[] args) {
@@ -414,11 +421,9 @@ public class BLZCoder {
         if (reference.equals("GARC")) {
             return LZSS_Encode(data);
         } else {
-            System.out.printf("- encoding '%s' (memory)", reference);
-            long startTime = System.currentTimeMillis();
+            long startTime = System.nanoTime();
             BLZResult result = BLZ_Encode(data, mode);
-            System.out.print(" - done, time=" + (System.currentTimeMillis() - startTime) + "ms");
-            System.out.print("\n");
+            MetricsRegistry.instance().addStep("BLZ_ENCODE", 0, System.nanoTime() - startTime, 0, 0);
             if (result != null) {
                 byte[] retbuf = new byte[result.length];
                 for (int i = 0; i < result.length; i++) {
@@ -475,6 +480,7 @@ public class BLZCoder {
         }
 
         BLZ_Invert(raw_buffer, 0, raw_len);
+        MatchFinder matches = new MatchFinder(raw_buffer);
 
         pak = 0;
         raw = 0;
@@ -487,7 +493,7 @@ public class BLZCoder {
                 mask = BLZ_MASK;
             }
 
-            SearchPair sl1 = SEARCH(pos_best, raw_buffer, raw, raw_end);
+            SearchPair sl1 = SEARCH(pos_best, matches, raw_buffer, raw, raw_end);
             len_best = sl1.l;
             pos_best = sl1.p;
 
@@ -496,11 +502,11 @@ public class BLZCoder {
                 if (len_best > BLZ_THRESHOLD) {
                     if (raw + len_best < raw_end) {
                         raw += len_best;
-                        SearchPair sl2 = SEARCH(pos_next, raw_buffer, raw, raw_end);
+                        SearchPair sl2 = SEARCH(pos_next, matches, raw_buffer, raw, raw_end);
                         len_next = sl2.l;
                         pos_next = sl2.p;
                         raw -= (len_best - 1);
-                        SearchPair sl3 = SEARCH(pos_post, raw_buffer, raw, raw_end);
+                        SearchPair sl3 = SEARCH(pos_post, matches, raw_buffer, raw, raw_end);
                         len_post = sl3.l;
                         pos_post = sl3.p;
                         raw--;
@@ -613,6 +619,10 @@ public class BLZCoder {
             return Arrays.copyOfRange(outBuf.array(),0,outBuf.position());
         }
 
+        int[] buffer = prepareData(data);
+        MatchFinder matches = new MatchFinder(buffer);
+        int[] candidates = new int[0x1000];
+
         ByteBuffer blockBuf = ByteBuffer.allocate((8 * 4) + 1);
         blockBuf.put((byte)0);
         int bufferedBlocks = 0;
@@ -627,10 +637,11 @@ public class BLZCoder {
             int oldLength = Math.min(inBuf.position(),0x1000);
             LengthDispPair pair =
                     getOccurrenceLength(
-                            inBuf,
+                            buffer,
+                            matches,
+                            candidates,
                             inBuf.position(),
                             Math.min(data.length - inBuf.position(), 0x10110),
-                            inBuf.position() - oldLength,
                             oldLength);
             int length = pair.length;
             int disp = pair.disp;
@@ -668,32 +679,46 @@ public class BLZCoder {
         return Arrays.copyOfRange(outBuf.array(),0,outBuf.position());
     }
 
-    private LengthDispPair getOccurrenceLength(ByteBuffer buf, int newIndex, int newLength, int oldIndex, int oldLength) {
-        int disp = 0;
-        if (newLength == 0) {
+    // Finds the longest match for newIndex that starts 2 to oldLength bytes back; of equally long
+    // matches, the farthest one wins. Matches shorter than 3 bytes are never used, so they aren't looked for.
+    private LengthDispPair getOccurrenceLength(int[] buffer, MatchFinder matches, int[] candidates,
+                                               int newIndex, int newLength, int oldLength) {
+        if (newLength < 3) {
             return new LengthDispPair(0,0);
         }
-        int maxLength = 0;
+        // The chain runs from the nearest position back; collect it, then try the farthest first
+        matches.insertUpTo(newIndex - 1);
+        int count = 0;
+        int limit = FAST_MATCHING ? FAST_CANDIDATES : candidates.length;
+        for (int c = matches.first(newIndex); c >= newIndex - oldLength && count < limit; c = matches.next(c)) {
+            if (c <= newIndex - 2) {
+                candidates[count++] = c;
+            }
+        }
 
-        for (int i = 0; i < oldLength - 1; i++) {
-            int currentOldStart = oldIndex + i;
+        int maxLength = 2;
+        int disp = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            int currentOldStart = candidates[i];
+            // A longer match has to agree on the byte at maxLength, so check that one first
+            if (buffer[currentOldStart + maxLength] != buffer[newIndex + maxLength]) {
+                continue;
+            }
             int currentLength = 0;
-
-            for (int j = 0; j < newLength; j++) {
-                if (buf.get(currentOldStart + j) != buf.get(newIndex + j)) break;
+            while (currentLength < newLength && buffer[currentOldStart + currentLength] == buffer[newIndex + currentLength]) {
                 currentLength++;
             }
 
             if (currentLength > maxLength) {
                 maxLength = currentLength;
-                disp = oldLength - i;
+                disp = newIndex - currentOldStart;
 
                 if (maxLength == newLength) {
                     break;
                 }
             }
         }
-        return new LengthDispPair(maxLength,disp);
+        return disp == 0 ? new LengthDispPair(0,0) : new LengthDispPair(maxLength,disp);
     }
 
     private class LengthDispPair {
@@ -716,28 +741,39 @@ public class BLZCoder {
         }
     }
 
-    private SearchPair SEARCH(int p, int[] raw_buffer, int raw, int raw_end) {
+    // Finds the longest match of up to BLZ_F bytes, BLZ_N bytes back at most and not overlapping raw.
+    // Candidates come from the hash chains nearest first, so the nearest of several equally long
+    // matches wins, as it did when every distance from 3 to BLZ_N was tried in order.
+    private SearchPair SEARCH(int p, MatchFinder matches, int[] raw_buffer, int raw, int raw_end) {
         int l = BLZ_THRESHOLD;
+        if (raw_end - raw <= BLZ_THRESHOLD) {
+            return new SearchPair(l, p);
+        }
         int max = (raw >= BLZ_N) ? BLZ_N : raw;
-        for (int pos = 3; pos <= max; pos++) {
-            int len;
-            for (len = 0; len < BLZ_F; len++) {
-                if (raw + len == raw_end) {
-                    break;
-                }
-                if (len >= pos) {
-                    break;
+        // The LZ-CUE lookahead may have inserted positions after raw already; they're skipped below
+        matches.insertUpTo(raw - 2);
+        int candidates = FAST_MATCHING ? FAST_CANDIDATES : Integer.MAX_VALUE;
+        for (int c = matches.first(raw); c >= raw - max && c >= 0; c = matches.next(c)) {
+            int pos = raw - c;
+            if (pos < 3) {
+                continue;
+            }
+            int limit = Math.min(Math.min(BLZ_F, raw_end - raw), pos);
+            // A longer match has to agree on the byte at l, so check that one first
+            if (limit > l && raw_buffer[c + l] == raw_buffer[raw + l]) {
+                int len = 0;
+                while (len < limit && raw_buffer[raw + len] == raw_buffer[c + len]) {
+                    len++;
                 }
-                if (raw_buffer[raw + len] != raw_buffer[raw + len - pos]) {
-                    break;
+                if (len > l) {
+                    p = pos;
+                    if ((l = len) == BLZ_F) {
+                        break;
+                    }
                 }
             }
-
-            if (len > l) {
-                p = pos;
-                if ((l = len) == BLZ_F) {
-                    break;
-                }
+            if (--candidates == 0) {
+                break;
             }
         }
         return new SearchPair(l, p);
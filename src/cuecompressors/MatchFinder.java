@@ -0,0 +1,76 @@
+package cuecompressors;
+
+/*----------------------------------------------------------------------------*/
+/*--  MatchFinder.java - hash chains of 3-byte prefixes, for finding LZ     --*/
+/*--                     matches without scanning the whole window.         --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.util.Arrays;
+
+// Both BLZ and LZ11 only use matches of 3 bytes or more, so a match for a position can only start at an
+// earlier position with the same first 3 bytes. Every position is put on the chain of its 3-byte hash,
+// and the chain is walked from the most recent position backwards. Different prefixes can share a hash,
+// so callers still compare the bytes of every candidate.
+class MatchFinder {
+
+    private static final int HASH_BITS = 15;
+
+    private final int[] buffer;
+    private final int[] head;
+    // prev[i] is the position before i on the same chain, or -1
+    private final int[] prev;
+    private int inserted;
+
+    // buffer holds one byte per element, as in BLZCoder
+    MatchFinder(int[] buffer) {
+        this.buffer = buffer;
+        this.head = new int[1 << HASH_BITS];
+        Arrays.fill(head, -1);
+        this.prev = new int[buffer.length];
+    }
+
+    // Puts every position before end on its chain, unless it already is. Positions need 3 bytes to hash,
+    // so the last 2 elements of the buffer are never inserted.
+    void insertUpTo(int end) {
+        end = Math.min(end, buffer.length - 2);
+        for (; inserted < end; inserted++) {
+            int h = hash(inserted);
+            prev[inserted] = head[h];
+            head[h] = inserted;
+        }
+    }
+
+    // The most recently inserted position that may share the first 3 bytes of position, or -1
+    int first(int position) {
+        return position + 2 < buffer.length ? head[hash(position)] : -1;
+    }
+
+    // The next older position on the same chain as candidate, or -1
+    int next(int candidate) {
+        return prev[candidate];
+    }
+
+    private int hash(int position) {
+        int key = (buffer[position] << 16) | (buffer[position + 1] << 8) | buffer[position + 2];
+        return (key * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+}
@@ -0,0 +1,124 @@
+package com.dabomstew.pkrandom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BPSPatchTest {
+
+    private File sourceFile, patchFile, targetFile;
+
+    @Before
+    public void createFiles() throws IOException {
+        sourceFile = File.createTempFile("bps", ".src");
+        patchFile = File.createTempFile("bps", ".bps");
+        targetFile = File.createTempFile("bps", ".out");
+    }
+
+    @After
+    public void deleteFiles() {
+        sourceFile.delete();
+        patchFile.delete();
+        targetFile.delete();
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    // Patches source into target through files, the way saved patches are applied, and returns the result
+    private byte[] roundTrip(byte[] source, byte[] target) throws IOException {
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        BPSPatch.create(ByteBuffer.wrap(source), ByteBuffer.wrap(target), patch);
+        Files.write(sourceFile.toPath(), source);
+        Files.write(patchFile.toPath(), patch.toByteArray());
+        BPSPatch.apply(sourceFile.getPath(), patchFile.getPath(), targetFile.getPath());
+        return Files.readAllBytes(targetFile.toPath());
+    }
+
+    @Test
+    public void identicalRomsRoundTrip() throws IOException {
+        byte[] source = randomBytes(0x8000, 1);
+        assertArrayEquals(source, roundTrip(source, source.clone()));
+    }
+
+    @Test
+    public void changedBytesRoundTrip() throws IOException {
+        byte[] source = randomBytes(0x8000, 2);
+        byte[] target = source.clone();
+        for (int i = 0; i < target.length; i += 0x777) {
+            target[i] ^= 0x5A;
+        }
+        assertArrayEquals(target, roundTrip(source, target));
+    }
+
+    // Like a rebuilt NDS ROM: a file in the middle grew, so every block after it moved
+    @Test
+    public void movedBlocksRoundTrip() throws IOException {
+        byte[] source = randomBytes(0x10000, 3);
+        byte[] inserted = randomBytes(0x600, 4);
+        byte[] target = new byte[source.length + inserted.length];
+        System.arraycopy(source, 0, target, 0, 0x4000);
+        System.arraycopy(inserted, 0, target, 0x4000, inserted.length);
+        System.arraycopy(source, 0x4000, target, 0x4000 + inserted.length, source.length - 0x4000);
+        byte[] patched = roundTrip(source, target);
+        assertArrayEquals(target, patched);
+        // The moved blocks were copied from the source, not sent again
+        assertTrue(patchFile.length() < inserted.length + 0x400);
+    }
+
+    @Test
+    public void shorterTargetRoundTrips() throws IOException {
+        byte[] source = randomBytes(0x8000, 5);
+        byte[] target = Arrays.copyOfRange(source, 0x1000, 0x3000);
+        assertArrayEquals(target, roundTrip(source, target));
+    }
+
+    @Test
+    public void patchForAnotherRomIsRejected() throws IOException {
+        byte[] source = randomBytes(0x4000, 6);
+        byte[] target = source.clone();
+        target[100]++;
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        BPSPatch.create(ByteBuffer.wrap(source), ByteBuffer.wrap(target), patch);
+        Files.write(sourceFile.toPath(), randomBytes(0x4000, 7));
+        Files.write(patchFile.toPath(), patch.toByteArray());
+        try {
+            BPSPatch.apply(sourceFile.getPath(), patchFile.getPath(), targetFile.getPath());
+            fail("Patch applied to the wrong ROM");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void damagedPatchIsRejected() throws IOException {
+        byte[] source = randomBytes(0x4000, 8);
+        byte[] target = source.clone();
+        target[100]++;
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        BPSPatch.create(ByteBuffer.wrap(source), ByteBuffer.wrap(target), patch);
+        byte[] damaged = patch.toByteArray();
+        damaged[damaged.length - 13] ^= 1;
+        Files.write(sourceFile.toPath(), source);
+        Files.write(patchFile.toPath(), damaged);
+        try {
+            BPSPatch.apply(sourceFile.getPath(), patchFile.getPath(), targetFile.getPath());
+            fail("Damaged patch applied");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.dabomstew.pkrandom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class MappedFileTest {
+
+    private final List<File> files = new ArrayList<>();
+
+    @Before
+    public void createFiles() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            File file = File.createTempFile("mapped", ".bin");
+            Files.write(file.toPath(), new byte[] { (byte) i, 1, 2, 3 });
+            files.add(file);
+        }
+    }
+
+    @After
+    public void deleteFiles() {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void reopeningARecentFileSharesTheMapping() throws IOException {
+        MappedFile first = MappedFile.open(files.get(0).getPath());
+        assertSame(first, MappedFile.open(files.get(0).getPath()));
+    }
+
+    @Test
+    public void onlyTheLastFewFilesStayMapped() throws IOException {
+        MappedFile first = MappedFile.open(files.get(0).getPath());
+        for (int i = 1; i < files.size(); i++) {
+            MappedFile.open(files.get(i).getPath());
+        }
+        MappedFile reopened = MappedFile.open(files.get(0).getPath());
+        assertNotSame(first, reopened);
+        // The evicted mapping still works for whoever had it
+        assertArrayEquals(new byte[] { 0, 1, 2, 3 }, first.read(0, 4));
+        assertArrayEquals(new byte[] { 0, 1, 2, 3 }, reopened.read(0, 4));
+    }
+}
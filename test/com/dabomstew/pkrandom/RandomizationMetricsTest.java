@@ -0,0 +1,51 @@
+package com.dabomstew.pkrandom;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RandomizationMetricsTest {
+
+    private static final int ALLOCATION = 16 * 1024 * 1024;
+
+    private static volatile byte[] sink;
+
+    @Test
+    public void allocationsOnOtherThreadsCountTowardTheStep() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .isThreadAllocatedMemoryEnabled());
+        RandomizationMetrics metrics = new RandomizationMetrics();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            metrics.measure("STEP", () -> {
+                RandomizationMetrics.OtherThreads otherThreads = RandomizationMetrics.otherThreads();
+                Future<?> work = executor.submit(() -> otherThreads.run(() -> sink = new byte[ALLOCATION]));
+                try {
+                    work.get();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                return null;
+            });
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, metrics.getSteps().size());
+        assertTrue(metrics.getSteps().get(0).allocatedBytes >= ALLOCATION);
+    }
+
+    @Test
+    public void workOutsideAMeasuredJobJustRuns() {
+        boolean[] ran = new boolean[1];
+        RandomizationMetrics.otherThreads().run(() -> ran[0] = true);
+        assertTrue(ran[0]);
+    }
+}
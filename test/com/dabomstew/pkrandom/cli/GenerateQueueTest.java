@@ -0,0 +1,53 @@
+package com.dabomstew.pkrandom.cli;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GenerateQueueTest {
+
+    private final GenerateQueue queue = new GenerateQueue(1, 4);
+
+    @After
+    public void shutdown() {
+        queue.shutdown();
+    }
+
+    private GenerateQueue.JobStatus waitFor(String id) throws InterruptedException {
+        GenerateQueue.JobStatus status = queue.getStatus(id);
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((status.getState() == GenerateQueue.JobState.QUEUED
+                || status.getState() == GenerateQueue.JobState.RUNNING) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return status;
+    }
+
+    @Test
+    public void successfulJobIsDone() throws InterruptedException {
+        assertTrue(queue.submit("ok", listener ->
+                GenerateQueue.JobResult.success(new JSONObject().put("status", 200))));
+        GenerateQueue.JobStatus status = waitFor("ok");
+        assertEquals(GenerateQueue.JobState.DONE, status.getState());
+        assertEquals(200, status.toJson().getJSONObject("result").getInt("status"));
+    }
+
+    @Test
+    public void failedJobIsFailedEvenIfItsMessageLooksLikeJson() throws InterruptedException {
+        assertTrue(queue.submit("failed", listener -> GenerateQueue.JobResult.failure("{not json")));
+        GenerateQueue.JobStatus status = waitFor("failed");
+        assertEquals(GenerateQueue.JobState.FAILED, status.getState());
+        assertEquals("{not json", status.toJson().getString("result"));
+    }
+
+    @Test
+    public void jobThrowingAnErrorIsFailed() throws InterruptedException {
+        assertTrue(queue.submit("error", listener -> {
+            throw new OutOfMemoryError("test");
+        }));
+        assertEquals(GenerateQueue.JobState.FAILED, waitFor("error").getState());
+    }
+}
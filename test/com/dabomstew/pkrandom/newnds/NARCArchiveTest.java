@@ -0,0 +1,94 @@
+package com.dabomstew.pkrandom.newnds;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class NARCArchiveTest {
+
+    private static final byte[][] FILES = {
+            "first".getBytes(StandardCharsets.US_ASCII),
+            new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 },
+            new byte[0]
+    };
+    private static final String[] NAMES = { "a.bin", "second.bin", "c" };
+
+    private static int padded(int length) {
+        return (length + 3) & ~3;
+    }
+
+    // A NARC laid out the way NARCArchive writes them, with a filename for every file
+    private static byte[] narcWithFilenames(String[] names) {
+        int fatbLength = 8 + 4 + FILES.length * 8;
+        int fntbLength = 16;
+        for (String name : names) {
+            fntbLength += name.length() + 1;
+        }
+        int fimgLength = 8;
+        for (byte[] file : FILES) {
+            fimgLength += padded(file.length);
+        }
+        int total = 16 + fatbLength + fntbLength + fimgLength;
+        ByteBuffer out = ByteBuffer.allocate(total).order(ByteOrder.LITTLE_ENDIAN);
+        out.put(new byte[] { 'N', 'A', 'R', 'C' }).putShort((short) 0xFFFE).putShort((short) 0x0100)
+                .putInt(total).putShort((short) 0x10).putShort((short) 3);
+        out.put(new byte[] { 'B', 'T', 'A', 'F' }).putInt(fatbLength).putInt(FILES.length);
+        int offset = 0;
+        for (byte[] file : FILES) {
+            out.putInt(offset).putInt(offset + file.length);
+            offset += padded(file.length);
+        }
+        out.put(new byte[] { 'B', 'T', 'N', 'F' }).putInt(fntbLength).putInt(8).putInt(0x10000);
+        for (String name : names) {
+            out.put((byte) name.length()).put(name.getBytes(StandardCharsets.US_ASCII));
+        }
+        out.put(new byte[] { 'G', 'M', 'I', 'F' }).putInt(fimgLength);
+        for (byte[] file : FILES) {
+            out.put(file);
+            for (int i = file.length; i < padded(file.length); i++) {
+                out.put((byte) 0xFF);
+            }
+        }
+        return out.array();
+    }
+
+    @Test
+    public void filenamesSurviveARoundTrip() throws IOException {
+        byte[] data = narcWithFilenames(NAMES);
+        NARCArchive narc = new NARCArchive(data);
+        assertEquals(FILES.length, narc.files.size());
+        for (int i = 0; i < FILES.length; i++) {
+            assertArrayEquals(FILES[i], narc.files.get(i));
+        }
+        assertArrayEquals(data, narc.getBytes());
+    }
+
+    @Test(expected = IOException.class)
+    public void filenameRunningPastTheFrameIsRejected() throws IOException {
+        byte[] data = narcWithFilenames(NAMES);
+        // The last name's length byte now claims more than is left of the FNTB frame
+        int lastNameOffset = 16 + 8 + 4 + FILES.length * 8 + 16 + NAMES[0].length() + 1 + NAMES[1].length() + 1;
+        data[lastNameOffset] = (byte) 0x7F;
+        new NARCArchive(data);
+    }
+
+    @Test
+    public void namelessArchiveRoundTrips() throws IOException {
+        NARCArchive narc = new NARCArchive();
+        narc.files.addAll(Arrays.asList(FILES));
+        byte[] data = narc.getBytes();
+        assertEquals(data.length, narc.length());
+        NARCArchive read = new NARCArchive(data);
+        for (int i = 0; i < FILES.length; i++) {
+            assertArrayEquals(FILES[i], read.files.get(i));
+        }
+        assertArrayEquals(data, read.getBytes());
+    }
+}
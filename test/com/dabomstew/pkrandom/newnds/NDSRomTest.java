@@ -0,0 +1,158 @@
+package com.dabomstew.pkrandom.newnds;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class NDSRomTest {
+
+    private static final int HEADER_SIZE = 0x200;
+
+    private File romFile;
+    private final byte[] arm9 = filled(0x400, 0x55);
+    private final byte[] overlay = filled(0x80, 0x66);
+    private final byte[] fileA = "first file".getBytes(StandardCharsets.US_ASCII);
+    private final byte[] fileB = filled(0x300, 0x77);
+
+    private static byte[] filled(int length, int value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    private static void writeInt(byte[] data, int offset, int size, int value) {
+        for (int i = 0; i < size; i++) {
+            data[offset + i] = (byte) (value >> (i * 8));
+        }
+    }
+
+    // A tiny but well-formed ROM: an uncompressed arm9, one overlay (file 0) and two files in the root
+    // folder, "a.bin" and "b.bin" (files 1 and 2)
+    @Before
+    public void writeRom() throws IOException {
+        byte[] rom = new byte[0x4000];
+        int arm9Offset = HEADER_SIZE;
+        int arm7Offset = 0x800;
+        int ovlTableOffset = 0x900;
+        int bannerOffset = 0xA00;
+        int fntOffset = 0x1300;
+        int fatOffset = 0x1380;
+        int[] fileOffsets = {0x1400, 0x1600, 0x1800};
+        byte[][] fileContents = {overlay, fileA, fileB};
+
+        System.arraycopy("TEST".getBytes(StandardCharsets.US_ASCII), 0, rom, 0x0C, 4);
+        rom[0x1E] = 1;
+        writeInt(rom, 0x20, 4, arm9Offset);
+        writeInt(rom, 0x28, 4, 0x02000000);
+        writeInt(rom, 0x2C, 4, arm9.length);
+        writeInt(rom, 0x30, 4, arm7Offset);
+        writeInt(rom, 0x3C, 4, 0x10);
+        writeInt(rom, 0x84, 4, HEADER_SIZE);
+        System.arraycopy(arm9, 0, rom, arm9Offset, arm9.length);
+
+        // The fnt: the root folder's entry, then its subtable
+        byte[] fnt = new byte[0x20];
+        writeInt(fnt, 0, 4, 8);
+        writeInt(fnt, 4, 2, 1);
+        writeInt(fnt, 6, 2, 1);
+        int pos = 8;
+        for (String name : new String[]{"a.bin", "b.bin"}) {
+            fnt[pos++] = (byte) name.length();
+            System.arraycopy(name.getBytes(StandardCharsets.US_ASCII), 0, fnt, pos, name.length());
+            pos += name.length();
+        }
+        System.arraycopy(fnt, 0, rom, fntOffset, fnt.length);
+        writeInt(rom, 0x40, 4, fntOffset);
+        writeInt(rom, 0x44, 4, fnt.length);
+
+        for (int i = 0; i < fileContents.length; i++) {
+            System.arraycopy(fileContents[i], 0, rom, fileOffsets[i], fileContents[i].length);
+            writeInt(rom, fatOffset + i * 8, 4, fileOffsets[i]);
+            writeInt(rom, fatOffset + i * 8 + 4, 4, fileOffsets[i] + fileContents[i].length);
+        }
+        writeInt(rom, 0x48, 4, fatOffset);
+        writeInt(rom, 0x4C, 4, fileContents.length * 8);
+
+        writeInt(rom, ovlTableOffset + 4, 4, 0x02100000);
+        writeInt(rom, ovlTableOffset + 8, 4, overlay.length);
+        writeInt(rom, 0x50, 4, ovlTableOffset);
+        writeInt(rom, 0x54, 4, 32);
+        writeInt(rom, 0x68, 4, bannerOffset);
+
+        romFile = File.createTempFile("ndsromtest_", ".nds");
+        Files.write(romFile.toPath(), rom);
+    }
+
+    @After
+    public void deleteRom() {
+        romFile.delete();
+    }
+
+    @Test
+    public void copyReadsTheSameAsAFreshLoad() throws IOException {
+        NDSRom fresh = new NDSRom(romFile.getPath());
+        NDSRom copy = new NDSRom(romFile.getPath()).copy();
+        assertEquals("TEST", copy.getCode());
+        assertEquals(fresh.getVersion(), copy.getVersion());
+        assertArrayEquals(fresh.getARM9(), copy.getARM9());
+        assertArrayEquals(arm9, copy.getARM9());
+        assertArrayEquals(overlay, copy.getOverlay(0));
+        assertArrayEquals(fileA, copy.getFile("a.bin"));
+        assertArrayEquals(fileB, copy.getFile("b.bin"));
+    }
+
+    @Test
+    public void copiesDontSeeEachOthersChanges() throws IOException {
+        NDSRom base = new NDSRom(romFile.getPath());
+        NDSRom first = base.copy();
+        NDSRom second = base.copy();
+        byte[] changedArm9 = first.getARM9();
+        changedArm9[0] = 1;
+        first.writeARM9(changedArm9);
+        first.writeOverlay(0, filled(0x40, 1));
+        first.writeFile("a.bin", filled(0x10, 2));
+
+        assertArrayEquals(arm9, second.getARM9());
+        assertArrayEquals(overlay, second.getOverlay(0));
+        assertArrayEquals(fileA, second.getFile("a.bin"));
+        assertArrayEquals(fileA, base.getFile("a.bin"));
+        assertArrayEquals(changedArm9, first.getARM9());
+    }
+
+    @Test
+    public void savedCopyMatchesSavedFreshRom() throws IOException {
+        NDSRom fresh = new NDSRom(romFile.getPath());
+        NDSRom base = new NDSRom(romFile.getPath());
+        // Have another copy decompress everything first, so the saved one takes it from the base
+        NDSRom other = base.copy();
+        other.getARM9();
+        other.getOverlay(0);
+        NDSRom copy = base.copy();
+        for (NDSRom rom : new NDSRom[]{fresh, copy}) {
+            byte[] changedArm9 = rom.getARM9();
+            changedArm9[8] = 9;
+            rom.writeARM9(changedArm9);
+            rom.writeOverlay(0, filled(0x90, 3));
+            rom.writeFile("b.bin", filled(0x20, 4));
+        }
+        File freshOut = File.createTempFile("ndsromtest_", ".nds");
+        File copyOut = File.createTempFile("ndsromtest_", ".nds");
+        try {
+            fresh.saveTo(freshOut.getPath());
+            copy.saveTo(copyOut.getPath());
+            assertArrayEquals(Files.readAllBytes(freshOut.toPath()), Files.readAllBytes(copyOut.toPath()));
+        } finally {
+            freshOut.delete();
+            copyOut.delete();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.dabomstew.pkrandom.romhandlers;
+
+import com.dabomstew.pkrandom.pokemon.Evolution;
+import com.dabomstew.pkrandom.pokemon.EvolutionType;
+import com.dabomstew.pkrandom.pokemon.Pokemon;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class EvolutionGraphTest {
+
+    private static final int STAGE_LIMIT = 3;
+
+    // The checks as randomizeEvolutions did them before EvolutionGraph, on the whole graph with the
+    // evolution added for real
+
+    private static boolean naiveMakesCycle(Pokemon from, Pokemon to) {
+        Evolution tempEvo = new Evolution(from, to, false, EvolutionType.NONE, 0);
+        from.evolutionsFrom.add(tempEvo);
+        boolean recur = isCyclic(from, new HashSet<>(), new HashSet<>());
+        from.evolutionsFrom.remove(tempEvo);
+        return recur;
+    }
+
+    private static boolean isCyclic(Pokemon pk, Set<Pokemon> visited, Set<Pokemon> recStack) {
+        if (!visited.contains(pk)) {
+            visited.add(pk);
+            recStack.add(pk);
+            for (Evolution ev : pk.evolutionsFrom) {
+                if (!visited.contains(ev.to) && isCyclic(ev.to, visited, recStack)) {
+                    return true;
+                } else if (recStack.contains(ev.to)) {
+                    return true;
+                }
+            }
+        }
+        recStack.remove(pk);
+        return false;
+    }
+
+    private static boolean naiveExceedsStageLimit(Pokemon from, Pokemon to, Map<Pokemon, List<Evolution>> originalEvos) {
+        Evolution tempEvo = new Evolution(from, to, false, EvolutionType.NONE, 0);
+        from.evolutionsFrom.add(tempEvo);
+        to.evolutionsTo.add(tempEvo);
+        boolean exceededLimit = false;
+        for (Pokemon pk : relatedPokemon(from)) {
+            int numPreEvos = numPreEvolutions(pk, 0);
+            if (numPreEvos >= STAGE_LIMIT || (numPreEvos == STAGE_LIMIT - 1 && pk.evolutionsFrom.size() == 0
+                    && originalEvos.get(pk).size() > 0)) {
+                exceededLimit = true;
+                break;
+            }
+        }
+        from.evolutionsFrom.remove(tempEvo);
+        to.evolutionsTo.remove(tempEvo);
+        return exceededLimit;
+    }
+
+    private static int numPreEvolutions(Pokemon pk, int depth) {
+        if (pk.evolutionsTo.size() == 0) {
+            return 0;
+        } else if (depth == STAGE_LIMIT - 1) {
+            return 1;
+        }
+        int maxPreEvos = 0;
+        for (Evolution ev : pk.evolutionsTo) {
+            maxPreEvos = Math.max(maxPreEvos, numPreEvolutions(ev.from, depth + 1) + 1);
+        }
+        return maxPreEvos;
+    }
+
+    private static Set<Pokemon> relatedPokemon(Pokemon original) {
+        Set<Pokemon> results = new HashSet<>();
+        results.add(original);
+        Queue<Pokemon> toCheck = new LinkedList<>();
+        toCheck.add(original);
+        while (!toCheck.isEmpty()) {
+            Pokemon check = toCheck.poll();
+            for (Evolution ev : check.evolutionsFrom) {
+                if (results.add(ev.to)) {
+                    toCheck.add(ev.to);
+                }
+            }
+            for (Evolution ev : check.evolutionsTo) {
+                if (results.add(ev.from)) {
+                    toCheck.add(ev.from);
+                }
+            }
+        }
+        return results;
+    }
+
+    // Adds random evolutions through the graph, the way randomizeEvolutions does, checking every candidate
+    // against the old checks first. Some Pokemon start with evolutions, which makes families to join.
+    private static void checkRandomEvolutions(long seed) {
+        Random random = new Random(seed);
+        List<Pokemon> pokemon = new ArrayList<>();
+        Map<Pokemon, List<Evolution>> originalEvos = new HashMap<>();
+        for (int number = 1; number <= 120; number++) {
+            Pokemon pk = new Pokemon();
+            pk.number = number;
+            pokemon.add(pk);
+        }
+        for (int i = 0; i + 2 < pokemon.size(); i += 3) {
+            if (random.nextInt(3) > 0) {
+                Pokemon from = pokemon.get(i), to = pokemon.get(i + 1);
+                Evolution evo = new Evolution(from, to, false, EvolutionType.LEVEL, 20);
+                from.evolutionsFrom.add(evo);
+                to.evolutionsTo.add(evo);
+            }
+        }
+        for (Pokemon pk : pokemon) {
+            originalEvos.put(pk, new ArrayList<>(pk.evolutionsFrom));
+            if (pk.evolutionsFrom.isEmpty() && random.nextInt(4) == 0) {
+                // Evolved in the original game, but that evolution was taken away
+                originalEvos.get(pk).add(new Evolution(pk, pokemon.get(0), false, EvolutionType.LEVEL, 30));
+            }
+        }
+
+        EvolutionGraph graph = new EvolutionGraph(pokemon, originalEvos, STAGE_LIMIT);
+        int added = 0;
+        for (int i = 0; i < 4000 && added < 150; i++) {
+            Pokemon from = pokemon.get(random.nextInt(pokemon.size()));
+            // Several candidates in a row for the same Pokemon, like the picker tries them
+            for (int j = 0; j < 10; j++) {
+                Pokemon to = pokemon.get(random.nextInt(pokemon.size()));
+                if (to == from) {
+                    continue;
+                }
+                boolean cycle = naiveMakesCycle(from, to);
+                assertEquals(cycle, graph.makesCycle(from, to));
+                if (cycle) {
+                    continue;
+                }
+                boolean exceeds = naiveExceedsStageLimit(from, to, originalEvos);
+                assertEquals(exceeds, graph.exceedsStageLimit(from, to));
+                if (!exceeds && !graph.evolvesInto(from, to) && random.nextInt(3) == 0) {
+                    graph.add(new Evolution(from, to, false, EvolutionType.LEVEL, 25));
+                    added++;
+                    break;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void checksMatchTheWholeGraphChecks() {
+        for (long seed = 1; seed <= 20; seed++) {
+            checkRandomEvolutions(seed);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.dabomstew.pkrandom.romhandlers;
+
+import com.dabomstew.pkrandom.pokemon.Pokemon;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PlacementHistoryTest {
+
+    private static List<Pokemon> pool(Random random) {
+        List<Pokemon> pool = new ArrayList<>();
+        for (int number = 1; number <= 200; number++) {
+            Pokemon pk = new Pokemon();
+            pk.number = number;
+            pool.add(pk);
+        }
+        // Pools can hold the same Pokemon more than once
+        for (int i = 0; i < 20; i++) {
+            pool.add(random.nextInt(pool.size()), pool.get(random.nextInt(pool.size())));
+        }
+        return pool;
+    }
+
+    // The history as it was kept before the count arrays: a map of counts, averaged over its values
+    private static List<Pokemon> naiveBelowTwiceAverage(List<Pokemon> pool, Map<Integer, Integer> counts) {
+        double average = counts.values().stream().mapToInt(e -> e).average().orElse(0);
+        List<Pokemon> result = new ArrayList<>();
+        for (Pokemon pk : pool) {
+            if (counts.getOrDefault(pk.number, 0) < average * 2) {
+                result.add(pk);
+            }
+        }
+        return result;
+    }
+
+    private static void assertSame(List<Pokemon> expected, PlacementHistory.BelowTwiceAverage actual,
+                                   List<Pokemon> pool) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), actual.get(i));
+        }
+        for (Pokemon pk : pool) {
+            assertEquals(expected.contains(pk), actual.contains(pk));
+        }
+    }
+
+    @Test
+    public void countsAndAverageMatchAMap() {
+        Random random = new Random(1);
+        PlacementHistory history = new PlacementHistory();
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            int id = random.nextInt(random.nextBoolean() ? 20 : 500);
+            history.add(id);
+            counts.merge(id, 1, Integer::sum);
+        }
+        for (int id = 0; id < 600; id++) {
+            assertEquals((int) counts.getOrDefault(id, 0), history.get(id));
+        }
+        assertEquals(2000, history.total());
+        assertEquals(counts.size(), history.placed());
+        assertEquals(counts.values().stream().mapToInt(e -> e).average().orElse(0), history.average(), 0);
+        assertEquals(new ArrayList<>(new TreeSet<>(counts.keySet())), history.placedIds());
+    }
+
+    // Placing a few Pokemon over and over moves the average in both directions, so Pokemon keep
+    // dropping out of and coming back into the set
+    @Test
+    public void belowTwiceAverageMatchesFilteringThePool() {
+        Random random = new Random(2);
+        List<Pokemon> pool = pool(random);
+        PlacementHistory history = new PlacementHistory();
+        Map<Integer, Integer> counts = new HashMap<>();
+        PlacementHistory.BelowTwiceAverage belowTwiceAverage = history.belowTwiceAverage(pool);
+        for (int i = 0; i < 3000; i++) {
+            int id;
+            if (i % 500 < 100) {
+                id = 1 + random.nextInt(5);
+            } else if (random.nextInt(10) == 0) {
+                // Something that isn't in the pool at all
+                id = 300 + random.nextInt(50);
+            } else {
+                id = pool.get(random.nextInt(pool.size())).number;
+            }
+            history.add(id);
+            counts.merge(id, 1, Integer::sum);
+            if (i % 7 == 0) {
+                assertSame(naiveBelowTwiceAverage(pool, counts), belowTwiceAverage, pool);
+            }
+        }
+    }
+
+    @Test
+    public void indexMadeAfterPlacementsStartsUpToDate() {
+        Random random = new Random(3);
+        List<Pokemon> pool = pool(random);
+        PlacementHistory history = new PlacementHistory();
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 500; i++) {
+            int id = 1 + random.nextInt(random.nextBoolean() ? 10 : 200);
+            history.add(id);
+            counts.merge(id, 1, Integer::sum);
+        }
+        assertSame(naiveBelowTwiceAverage(pool, counts), history.belowTwiceAverage(pool), pool);
+    }
+
+    @Test
+    public void copiesPlacingTheSameIdAreAllAdded() {
+        PlacementHistory history = new PlacementHistory();
+        history.add(5);
+        history.add(7);
+        PlacementHistory first = history.copy();
+        PlacementHistory second = history.copy();
+        first.add(5);
+        second.add(5);
+        second.add(5);
+        second.add(9);
+        history.addNewIn(first);
+        history.addNewIn(second);
+        assertEquals(4, history.get(5));
+        assertEquals(1, history.get(7));
+        assertEquals(1, history.get(9));
+        assertEquals(6, history.total());
+        assertEquals(3, history.placed());
+    }
+
+    // A copy's index starts from the source's, and they go their own ways after that
+    @Test
+    public void copiesKeepTheirOwnIndex() {
+        Random random = new Random(4);
+        List<Pokemon> pool = pool(random);
+        PlacementHistory history = new PlacementHistory();
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            int id = 1 + random.nextInt(random.nextBoolean() ? 10 : 200);
+            history.add(id);
+            counts.merge(id, 1, Integer::sum);
+        }
+        history.belowTwiceAverage(pool);
+        PlacementHistory copy = history.copy();
+        PlacementHistory.BelowTwiceAverage copyIndex = copy.belowTwiceAverage(pool);
+        Map<Integer, Integer> copyCounts = new HashMap<>(counts);
+        for (int i = 0; i < 200; i++) {
+            int id = 1 + random.nextInt(5);
+            copy.add(id);
+            copyCounts.merge(id, 1, Integer::sum);
+        }
+        assertSame(naiveBelowTwiceAverage(pool, copyCounts), copyIndex, pool);
+        assertSame(naiveBelowTwiceAverage(pool, counts), history.belowTwiceAverage(pool), pool);
+    }
+
+    // Each item picks a few Pokemon from the ones placed less than twice the average, with a Random of its own
+    private static int[][] placeInWaves(List<Pokemon> pool, int parallelism) throws Exception {
+        PlacementHistory history = new PlacementHistory();
+        for (int i = 0; i < 50; i++) {
+            history.add(1 + i % 7);
+        }
+        List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            items.add(i);
+        }
+        int[][] picks = new int[items.size() + 1][];
+        ThreadLocal<PlacementHistory> current = new ThreadLocal<>();
+        ForkJoinPool threads = new ForkJoinPool(parallelism);
+        try {
+            // Parallel streams run in the pool of the thread that starts them
+            threads.submit(() -> history.placeInWaves(items, 32, current, item -> {
+                Random random = new Random(item * 31L + 7);
+                PlacementHistory placed = current.get();
+                picks[item] = new int[3];
+                for (int j = 0; j < 3; j++) {
+                    PlacementHistory.BelowTwiceAverage candidates = placed.belowTwiceAverage(pool);
+                    Pokemon pk = candidates.get(random.nextInt(candidates.size()));
+                    placed.add(pk.number);
+                    picks[item][j] = pk.number;
+                }
+            })).get();
+        } finally {
+            threads.shutdown();
+        }
+        picks[items.size()] = new int[pool.size() + 1];
+        for (Pokemon pk : pool) {
+            picks[items.size()][pk.number] = history.get(pk.number);
+        }
+        return picks;
+    }
+
+    @Test
+    public void placeInWavesGivesTheSameResultOnAnyNumberOfThreads() throws Exception {
+        List<Pokemon> pool = pool(new Random(5));
+        int[][] oneThread = placeInWaves(pool, 1);
+        assertArrayEquals(oneThread, placeInWaves(pool, 4));
+        assertArrayEquals(oneThread, placeInWaves(pool, 16));
+    }
+}
@@ -0,0 +1,126 @@
+package com.dabomstew.pkrandom.romhandlers;
+
+import com.dabomstew.pkrandom.pokemon.Pokemon;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PokemonUniverseTest {
+
+    private final List<Pokemon> ordered = new ArrayList<>();
+    private final List<Pokemon> others = new ArrayList<>();
+
+    // Numbers out of order, as formes come after the base species in mainPokemonListInclFormes, and
+    // others that overlap with the ordered list
+    public PokemonUniverseTest() {
+        Random random = new Random(0);
+        List<Integer> numbers = new ArrayList<>();
+        for (int number = 1; number <= 400; number++) {
+            numbers.add(number);
+        }
+        Collections.shuffle(numbers, random);
+        for (int number : numbers.subList(0, 300)) {
+            Pokemon pk = new Pokemon();
+            pk.number = number;
+            pk.actuallyCosmetic = random.nextInt(10) == 0;
+            ordered.add(pk);
+        }
+        for (int number : numbers.subList(300, 400)) {
+            Pokemon pk = new Pokemon();
+            pk.number = number;
+            others.add(pk);
+        }
+        others.add(ordered.get(5));
+        others.add(null);
+    }
+
+    // A sublist of ordered in its order, the way setPokemonPool's lists are made
+    private List<Pokemon> sublist(Random random) {
+        List<Pokemon> list = new ArrayList<>();
+        for (Pokemon pk : ordered) {
+            if (random.nextInt(3) > 0) {
+                list.add(pk);
+            }
+        }
+        return list;
+    }
+
+    @Test
+    public void poolOfAnOrderedListGivesTheListBack() {
+        PokemonUniverse universe = new PokemonUniverse(ordered, others);
+        Random random = new Random(1);
+        List<Pokemon> list = sublist(random);
+        BitSet pool = universe.of(list);
+        assertEquals(list, universe.list(pool));
+        for (int i = 0; i < list.size(); i++) {
+            assertEquals(list.get(i), universe.get(pool, i));
+        }
+        for (Pokemon pk : ordered) {
+            assertEquals(list.contains(pk), universe.contains(pool, pk));
+        }
+        assertEquals(others.subList(0, 100), universe.list(universe.of(others.subList(0, 100))));
+    }
+
+    // Catch-em-all: pick the k-th Pokemon left and take it out, with removeAll for banned Pokemon
+    // in between. The pool has to pick the same Pokemon as the list for the same seed.
+    @Test
+    public void picksMatchTheListsForTheSameSeed() {
+        PokemonUniverse universe = new PokemonUniverse(ordered, others);
+        Random setup = new Random(2);
+        List<Pokemon> list = sublist(setup);
+        List<Pokemon> banned = sublist(setup).subList(0, 20);
+        BitSet pool = universe.of(list);
+
+        Random listRandom = new Random(3), poolRandom = new Random(3);
+        List<Pokemon> remaining = new ArrayList<>(list);
+        remaining.removeAll(banned);
+        pool.andNot(universe.of(banned));
+        while (!remaining.isEmpty()) {
+            Pokemon fromList = remaining.remove(listRandom.nextInt(remaining.size()));
+            Pokemon fromPool = universe.get(pool, poolRandom.nextInt(pool.cardinality()));
+            universe.remove(pool, fromPool);
+            assertEquals(fromList, fromPool);
+        }
+        assertEquals(0, pool.cardinality());
+    }
+
+    @Test
+    public void actuallyCosmeticPoolHoldsTheCosmeticFormes() {
+        PokemonUniverse universe = new PokemonUniverse(ordered, others);
+        List<Pokemon> cosmetic = new ArrayList<>();
+        for (Pokemon pk : ordered) {
+            if (pk.actuallyCosmetic) {
+                cosmetic.add(pk);
+            }
+        }
+        assertEquals(cosmetic, universe.list(universe.actuallyCosmetic()));
+    }
+
+    @Test
+    public void unknownPokemonAreNeverInAPool() {
+        PokemonUniverse universe = new PokemonUniverse(ordered, others);
+        Pokemon unknown = new Pokemon();
+        unknown.number = 1000;
+        BitSet pool = universe.of(Arrays.asList(unknown, null, ordered.get(0)));
+        assertEquals(1, pool.cardinality());
+        assertFalse(universe.contains(pool, unknown));
+        assertFalse(universe.contains(pool, null));
+        universe.remove(pool, unknown);
+        assertEquals(1, pool.cardinality());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getPastTheEndOfAPoolThrows() {
+        PokemonUniverse universe = new PokemonUniverse(ordered, others);
+        BitSet pool = universe.of(ordered.subList(0, 10));
+        universe.get(pool, 10);
+    }
+}
@@ -0,0 +1,101 @@
+package com.dabomstew.pkrandom.romhandlers;
+
+import com.dabomstew.pkrandom.pokemon.Pokemon;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class PowerLevelIndexTest {
+
+    private static Pokemon pokemon(int number, int statTotal) {
+        Pokemon pk = new Pokemon();
+        pk.number = number;
+        pk.hp = statTotal / 6;
+        pk.attack = statTotal / 6;
+        pk.defense = statTotal / 6;
+        pk.spatk = statTotal / 6;
+        pk.spdef = statTotal / 6;
+        pk.speed = statTotal - 5 * (statTotal / 6);
+        return pk;
+    }
+
+    // A pool with many equal power levels and a few Pokemon in it more than once
+    private static List<Pokemon> pool(Random random) {
+        List<Pokemon> pool = new ArrayList<>();
+        for (int number = 1; number <= 300; number++) {
+            pool.add(pokemon(number, 200 + 10 * random.nextInt(50)));
+        }
+        for (int i = 0; i < 30; i++) {
+            pool.add(random.nextInt(pool.size()), pool.get(random.nextInt(pool.size())));
+        }
+        return pool;
+    }
+
+    // What the pickers did before the index: one pass over the pool in order
+    private static List<Pokemon> naiveBand(List<Pokemon> pool, int min, int max, int innerMin, int innerMax) {
+        List<Pokemon> result = new ArrayList<>();
+        for (Pokemon pk : pool) {
+            int powerLevel = pk.bstForPowerLevels();
+            if (powerLevel >= min && powerLevel <= max && !(powerLevel >= innerMin && powerLevel <= innerMax)) {
+                result.add(pk);
+            }
+        }
+        return result;
+    }
+
+    private static void assertSameBands(List<Pokemon> expected, PowerLevelIndex index, Random random) {
+        for (int i = 0; i < 50; i++) {
+            int min = 150 + random.nextInt(500);
+            int max = min + random.nextInt(200);
+            assertEquals(naiveBand(expected, min, max, 1, 0), index.band(min, max, 1, 0));
+            int innerMin = min + random.nextInt(max - min + 1);
+            int innerMax = innerMin + random.nextInt(max - innerMin + 1);
+            assertEquals(naiveBand(expected, min, max, innerMin, innerMax),
+                    index.band(min, max, innerMin, innerMax));
+        }
+    }
+
+    @Test
+    public void bandsMatchAScanOfThePool() {
+        Random random = new Random(1);
+        List<Pokemon> pool = pool(random);
+        assertSameBands(pool, new PowerLevelIndex(pool), random);
+    }
+
+    @Test
+    public void removeTakesOutTheFirstEqualPokemon() {
+        Random random = new Random(2);
+        List<Pokemon> pool = pool(random);
+        PowerLevelIndex index = new PowerLevelIndex(pool);
+        List<Pokemon> expected = new ArrayList<>(pool);
+        for (int i = 0; i < 100; i++) {
+            Pokemon pk = pool.get(random.nextInt(pool.size()));
+            assertEquals(expected.remove(pk), index.remove(pk));
+        }
+        assertSameBands(expected, index, random);
+    }
+
+    @Test
+    public void withoutAndFilterMatchRemoveAllAndRemoveIf() {
+        Random random = new Random(3);
+        List<Pokemon> pool = pool(random);
+        PowerLevelIndex index = new PowerLevelIndex(pool);
+        List<Pokemon> excluded = Arrays.asList(pool.get(0), pool.get(10), pool.get(20), pool.get(5));
+        List<Pokemon> withoutExpected = new ArrayList<>(pool);
+        withoutExpected.removeAll(excluded);
+        PowerLevelIndex without = index.without(excluded);
+        assertSameBands(withoutExpected, without, random);
+
+        List<Pokemon> filteredExpected = new ArrayList<>(withoutExpected);
+        filteredExpected.removeIf(pk -> pk.number % 3 == 0);
+        assertSameBands(filteredExpected, without.filter(pk -> pk.number % 3 != 0), random);
+
+        // The copies don't change the index they came from
+        assertSameBands(pool, index, random);
+    }
+}
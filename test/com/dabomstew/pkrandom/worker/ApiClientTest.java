@@ -0,0 +1,65 @@
+package com.dabomstew.pkrandom.worker;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ApiClientTest {
+
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            exchange.getRequestBody().close();
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private String url() {
+        return "http://localhost:" + server.getAddress().getPort() + "/randomizations";
+    }
+
+    private void executeExpectingFailure(HttpRequestBase request) {
+        try {
+            ApiClient.execute(request);
+            fail("Expected the 503 to be reported");
+        } catch (IOException expected) {
+            // The status is passed on once retries are used up
+        }
+    }
+
+    @Test
+    public void postIsNotResentOnServiceUnavailable() {
+        executeExpectingFailure(new HttpPost(url()));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void getIsRetriedOnServiceUnavailable() {
+        executeExpectingFailure(new HttpGet(url()));
+        // The first attempt and three retries
+        assertEquals(4, requests.get());
+    }
+}
@@ -0,0 +1,103 @@
+package com.dabomstew.pkrandom.worker;
+
+import com.dabomstew.pkrandom.Utils.ApiRandomizations;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JobSchedulerTest {
+
+    private static ApiRandomizations job(String id, String fileName) {
+        ApiRandomizations randomization = new ApiRandomizations();
+        randomization.generated_id = id;
+        randomization.file_name = fileName;
+        return randomization;
+    }
+
+    @Test
+    public void higherPriorityJobGoesAheadOfOneWaitingForHeap() throws Exception {
+        CountDownLatch bigStarted = new CountDownLatch(1);
+        CountDownLatch smallDone = new CountDownLatch(1);
+        CountDownLatch allDone = new CountDownLatch(3);
+        List<String> started = Collections.synchronizedList(new ArrayList<>());
+        Map<String, Long> heapCosts = new HashMap<>();
+        heapCosts.put("big1", 80L);
+        heapCosts.put("big2", 80L);
+        heapCosts.put("small", 10L);
+
+        JobScheduler scheduler = new JobScheduler(max -> Collections.emptyList(), randomization -> () -> {
+            started.add(randomization.generated_id);
+            try {
+                if (randomization.generated_id.equals("big1")) {
+                    bigStarted.countDown();
+                    // Hold the heap until the small job has been and gone
+                    smallDone.await(10, TimeUnit.SECONDS);
+                } else if (randomization.generated_id.equals("small")) {
+                    smallDone.countDown();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            allDone.countDown();
+        }, 2, 4, 50);
+        scheduler.setHeapBudget(100, randomization -> heapCosts.get(randomization.generated_id));
+        scheduler.start();
+        try {
+            assertTrue(scheduler.submit(job("big1", "a.3ds")));
+            assertTrue(bigStarted.await(10, TimeUnit.SECONDS));
+            assertTrue(scheduler.submit(job("big2", "b.3ds")));
+            // big2 doesn't fit next to big1, so it has to stay in the queue
+            Thread.sleep(100);
+            assertEquals(1, scheduler.getQueuedCount());
+            assertTrue(scheduler.submit(job("small", "c.gb")));
+            assertTrue(allDone.await(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("big1", "small", "big2"), started);
+        } finally {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void jobBiggerThanTheBudgetRunsOnItsOwn() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        JobScheduler scheduler = new JobScheduler(max -> Collections.emptyList(), randomization -> done::countDown,
+                2, 4, 50);
+        scheduler.setHeapBudget(100, randomization -> 1000);
+        scheduler.start();
+        try {
+            assertTrue(scheduler.submit(job("huge", "a.3ds")));
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void workerKeepsGoingAfterAJobThrowsAnError() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        JobScheduler scheduler = new JobScheduler(max -> Collections.emptyList(), randomization -> () -> {
+            if (randomization.generated_id.equals("failing")) {
+                throw new OutOfMemoryError("Java heap space");
+            }
+            done.countDown();
+        }, 1, 4, 50);
+        scheduler.start();
+        try {
+            assertTrue(scheduler.submit(job("failing", "a.3ds")));
+            assertTrue(scheduler.submit(job("next", "b.3ds")));
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            scheduler.stop();
+        }
+    }
+}
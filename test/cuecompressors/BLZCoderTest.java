@@ -0,0 +1,93 @@
+package cuecompressors;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BLZCoderTest {
+
+    // Inputs with short, long, overlapping and equally long matches at different distances
+    static byte[] input(int kind) {
+        Random random = new Random(kind);
+        switch (kind) {
+            case 0: {
+                // Random bytes from a small alphabet: lots of short matches and ties
+                byte[] data = new byte[20000];
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = (byte) random.nextInt(4);
+                }
+                return data;
+            }
+            case 1: {
+                // Text-like data repeating at many distances, with the odd change
+                StringBuilder text = new StringBuilder();
+                String[] words = { "Pikachu ", "used ", "Thunderbolt", "! ", "It's super effective", "\n", "Pidgey " };
+                while (text.length() < 30000) {
+                    text.append(words[random.nextInt(words.length)]);
+                    if (random.nextInt(50) == 0) {
+                        text.append((char) ('a' + random.nextInt(26)));
+                    }
+                }
+                return text.toString().getBytes(StandardCharsets.US_ASCII);
+            }
+            default: {
+                // Long runs of zeros with a few bytes sprinkled in, like padding in code
+                byte[] data = new byte[0x4800];
+                for (int i = 0; i < 200; i++) {
+                    data[random.nextInt(data.length)] = (byte) random.nextInt(256);
+                }
+                return data;
+            }
+        }
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    // {length, CRC32} of what the encoders wrote for each input before they used MatchFinder, when every
+    // distance in the window was tried
+    private static final long[][] BLZ_NORMAL = { { 7452, 0x00DC4808L }, { 4328, 0x15EFE5CFL }, { 2524, 0x70F785BDL } };
+    private static final long[][] BLZ_BEST = { { 7432, 0x7DE80EC4L }, { 4328, 0x8885BF0BL }, { 2524, 0x8C32586DL } };
+    private static final long[][] BLZ_ARM9 = { { 17936, 0xDCE0ED9EL }, { 18432, 0x154825BFL }, { 16692, 0x8CFB2B48L } };
+    private static final long[][] LZ11 = { { 7454, 0x1C6D5723L }, { 3897, 0x06411199L }, { 827, 0xD65468E5L } };
+
+    private static void assertSameAsBefore(long[] expected, byte[] encoded) {
+        assertEquals(expected[0], encoded.length);
+        assertEquals(expected[1], crc(encoded));
+    }
+
+    @Test
+    public void blzOutputIsUnchanged() {
+        for (int kind = 0; kind < 3; kind++) {
+            assertSameAsBefore(BLZ_NORMAL[kind], new BLZCoder(null).BLZ_EncodePub(input(kind), false, false, "test"));
+            assertSameAsBefore(BLZ_BEST[kind], new BLZCoder(null).BLZ_EncodePub(input(kind), false, true, "test"));
+            assertSameAsBefore(BLZ_ARM9[kind], new BLZCoder(null).BLZ_EncodePub(input(kind), true, false, "test"));
+        }
+    }
+
+    @Test
+    public void lz11OutputIsUnchanged() {
+        for (int kind = 0; kind < 3; kind++) {
+            assertSameAsBefore(LZ11[kind], new BLZCoder(null).BLZ_EncodePub(input(kind), false, false, "GARC"));
+        }
+    }
+
+    @Test
+    public void encodedDataDecodesToTheInput() {
+        for (int kind = 0; kind < 3; kind++) {
+            byte[] data = input(kind);
+            byte[] blz = new BLZCoder(null).BLZ_EncodePub(data, false, true, "test");
+            assertArrayEquals(data, new BLZCoder(null).BLZ_DecodePub(blz, "test"));
+            byte[] lz11 = new BLZCoder(null).BLZ_EncodePub(data, false, false, "GARC");
+            assertArrayEquals(data, new BLZCoder(null).BLZ_DecodePub(lz11, "GARC"));
+        }
+    }
+}